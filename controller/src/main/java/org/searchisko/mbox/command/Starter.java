@@ -5,13 +5,19 @@
  */
 package org.searchisko.mbox.command;
 
+import org.searchisko.mbox.task.BuildMboxOffsetIndex;
+import org.searchisko.mbox.task.BuildMessageIdSet;
 import org.searchisko.mbox.task.IndexDeltaFolder;
 import org.searchisko.mbox.task.IndexMboxArchive;
+import org.searchisko.mbox.task.IndexMboxBatch;
 
 /**
  * This class is used as a manifest Main-Class. Depending on the first parameter it can execute different actions.
  * <ul>
  *   <li>If the first parameter is "-delta" then delta indexing is started.</li>
+ *   <li>If the first parameter is "-offsetIndex" then offset index of given mbox file is built or updated.</li>
+ *   <li>If the first parameter is "-batch" then several mbox files are fully re-indexed in a single run.</li>
+ *   <li>If the first parameter is "-messageIdSet" then list of Message-IDs is converted to binary file.</li>
  *   <li>Otherwise it fully re-indexed given specified mbox file.</li>
  * </ul>
  *
@@ -24,13 +30,19 @@ public class Starter {
         if (args.length < 1) {
             StringBuilder sb = new StringBuilder();
             sb.append("Invalid parameters!\n");
-            sb.append("Usage: [ -delta ] options...\n");
+            sb.append("Usage: [ -delta | -offsetIndex | -batch | -messageIdSet ] options...\n");
             System.out.println(sb.toString());
             return;
         }
 
         if (args[0].equalsIgnoreCase("-delta")) {
             IndexDeltaFolder.main(args);
+        } else if (args[0].equalsIgnoreCase("-offsetIndex")) {
+            BuildMboxOffsetIndex.main(args);
+        } else if (args[0].equalsIgnoreCase("-batch")) {
+            IndexMboxBatch.main(args);
+        } else if (args[0].equalsIgnoreCase("-messageIdSet")) {
+            BuildMessageIdSet.main(args);
         } else {
             IndexMboxArchive.main(args);
         }
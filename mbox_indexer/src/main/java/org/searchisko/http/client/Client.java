@@ -7,6 +7,7 @@
 package org.searchisko.http.client;
 
 import org.apache.http.Consts;
+import org.apache.http.HttpEntity;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
@@ -14,7 +15,9 @@ import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.entity.EntityBuilder;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.ContentProducer;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
 import org.apache.http.impl.client.*;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.slf4j.Logger;
@@ -115,6 +118,31 @@ public class Client {
     }
 
     public Object post(final String messageBody, final String id) throws IOException {
+        return post(EntityBuilder.create()
+                .setContentEncoding(Consts.UTF_8.displayName())
+                .setContentType(ContentType.APPLICATION_JSON)
+                .setText(messageBody)
+                .build(), id);
+    }
+
+    /**
+     * Post JSON document written by the producer. The document is written directly to the connection in chunks,
+     * it is never held in memory as a whole. The producer may be called again if the request is retried.
+     *
+     * @param messageBody writes UTF-8 JSON document
+     * @param id document id
+     * @return response
+     * @throws IOException
+     */
+    public Object post(final ContentProducer messageBody, final String id) throws IOException {
+        EntityTemplate entity = new EntityTemplate(messageBody);
+        entity.setContentEncoding(Consts.UTF_8.displayName());
+        entity.setContentType(ContentType.APPLICATION_JSON.toString());
+        entity.setChunked(true);
+        return post(entity, id);
+    }
+
+    private Object post(final HttpEntity entity, final String id) throws IOException {
 
         String idURLEncoded = URLEncoder.encode(id, StandardCharsets.UTF_8.name());
 
@@ -123,17 +151,11 @@ public class Client {
         log.trace("making POST to '{}'", uri);
 
         HttpPost httpPost = new HttpPost(uri);
-        httpPost.setEntity(EntityBuilder.create()
-                .setContentEncoding(Consts.UTF_8.displayName())
-                .setContentType(ContentType.APPLICATION_JSON)
-                .setText(messageBody)
-                .build());
+        httpPost.setEntity(entity);
 
         Object response = httpClient.execute(httpPost, responseHandler, httpClientContent.get());
 
         return response;
     }
 
-
-
 }
@@ -0,0 +1,231 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Progress of indexing of mbox archive which makes it possible to resume interrupted job.
+ * <p/>
+ * The archive is processed in one or more byte ranges (see {@link MboxRanges}), every message within the range
+ * has its public URL number. For every range we keep the number of the first message which has not been
+ * acknowledged yet and the byte offset where this message can be found (the end of the last acknowledged message).
+ * Messages are processed by a thread pool so they can be acknowledged out of order, only the contiguous sequence
+ * of acknowledged messages moves the checkpoint. Once a message fails no later message of the same range can move
+ * the checkpoint anymore during the current run.
+ * <p/>
+ * The checkpoint is stored as a properties file together with archive size and checksum of the archive tail.
+ * It can be used to resume only if the archive has not been changed since (it can be appended).
+ */
+public class Checkpoint {
+
+	public static final String DEFAULT_SUFFIX = ".checkpoint";
+
+	/**
+	 * Progress of single byte range of the archive. Instances are thread-safe.
+	 */
+	public static class Range {
+
+		private final long start;
+		private final long end;
+		private long number;
+		private long offset;
+		private long failed = Long.MAX_VALUE;
+		// acknowledged messages following not yet acknowledged one: number -> end offset
+		private final TreeMap<Long, Long> acknowledged = new TreeMap<>();
+
+		/**
+		 * @param start byte offset of the range
+		 * @param end end of the range (exclusive), negative value means end of the file
+		 * @param number number of the first message in the range
+		 */
+		public Range(long start, long end, long number) {
+			this(start, end, number, start);
+		}
+
+		private Range(long start, long end, long number, long offset) {
+			this.start = start;
+			this.end = end;
+			this.number = number;
+			this.offset = offset;
+		}
+
+		public long getStart() { return this.start; }
+
+		public long getEnd() { return this.end; }
+
+		/**
+		 * @return number of the first message which has not been acknowledged yet
+		 */
+		public synchronized long getNumber() { return this.number; }
+
+		/**
+		 * @return byte offset of the first message which has not been acknowledged yet
+		 */
+		public synchronized long getOffset() { return this.offset; }
+
+		/**
+		 * Message has been processed and it does not need to be processed again.
+		 * @param number message number
+		 * @param endOffset byte offset following the message
+		 */
+		public synchronized void acknowledge(long number, long endOffset) {
+			if (number >= failed || number < this.number) {
+				return;
+			}
+			if (number > this.number) {
+				acknowledged.put(number, endOffset);
+				return;
+			}
+			this.number++;
+			this.offset = endOffset;
+			Long next;
+			while ((next = acknowledged.remove(this.number)) != null) {
+				this.number++;
+				this.offset = next;
+			}
+		}
+
+		/**
+		 * Message has not been processed and it needs to be processed again when resuming.
+		 * @param number message number
+		 */
+		public synchronized void fail(long number) {
+			if (number < failed) {
+				failed = number;
+				acknowledged.tailMap(number).clear();
+			}
+		}
+	}
+
+	private final long archiveSize;
+	private final long tailChecksum;
+	private final List<Range> ranges;
+
+	private Checkpoint(long archiveSize, long tailChecksum, List<Range> ranges) {
+		this.archiveSize = archiveSize;
+		this.tailChecksum = tailChecksum;
+		this.ranges = Collections.unmodifiableList(ranges);
+	}
+
+	/**
+	 * @param archive mbox archive
+	 * @return default checkpoint file of the archive
+	 */
+	public static File getDefaultCheckpointFile(File archive) {
+		return new File(archive.getPath() + DEFAULT_SUFFIX);
+	}
+
+	/**
+	 * Create new checkpoint of archive which is processed in given ranges.
+	 *
+	 * @param archive mbox archive
+	 * @param bounds range bounds as returned by {@link MboxRanges#split(java.io.File, long, int)},
+	 *               the last range always continues to the end of the file
+	 * @param numbers number of the first message of every range
+	 * @return new checkpoint
+	 * @throws IOException
+	 */
+	public static Checkpoint create(File archive, long[] bounds, long[] numbers) throws IOException {
+		List<Range> ranges = new ArrayList<>();
+		for (int i = 0; i < numbers.length; i++) {
+			ranges.add(new Range(bounds[i], i == numbers.length - 1 ? -1 : bounds[i + 1], numbers[i]));
+		}
+		long size = archive.length();
+		return new Checkpoint(size, MboxOffsetIndex.checksum(archive, size), ranges);
+	}
+
+	/**
+	 * Read checkpoint from file.
+	 * @param file
+	 * @return
+	 * @throws IOException if the file can not be read or it is not a checkpoint file
+	 */
+	public static Checkpoint read(File file) throws IOException {
+		Properties p = new Properties();
+		InputStream is = new FileInputStream(file);
+		try {
+			p.load(is);
+		} finally {
+			is.close();
+		}
+		try {
+			int count = Integer.parseInt(p.getProperty("ranges"));
+			List<Range> ranges = new ArrayList<>();
+			for (int i = 0; i < count; i++) {
+				ranges.add(new Range(
+						Long.parseLong(p.getProperty("range." + i + ".start")),
+						Long.parseLong(p.getProperty("range." + i + ".end")),
+						Long.parseLong(p.getProperty("range." + i + ".number")),
+						Long.parseLong(p.getProperty("range." + i + ".offset"))));
+			}
+			return new Checkpoint(
+					Long.parseLong(p.getProperty("archive.size")),
+					Long.parseLong(p.getProperty("archive.checksum")),
+					ranges);
+		} catch (NumberFormatException e) {
+			throw new IOException("Not a checkpoint file: " + file, e);
+		}
+	}
+
+	/**
+	 * Write current state of the checkpoint to file. The file is replaced atomically where possible.
+	 * @param file
+	 * @throws IOException
+	 */
+	public synchronized void write(File file) throws IOException {
+		Properties p = new Properties();
+		p.setProperty("archive.size", Long.toString(archiveSize));
+		p.setProperty("archive.checksum", Long.toString(tailChecksum));
+		p.setProperty("ranges", Integer.toString(ranges.size()));
+		for (int i = 0; i < ranges.size(); i++) {
+			Range range = ranges.get(i);
+			p.setProperty("range." + i + ".start", Long.toString(range.getStart()));
+			p.setProperty("range." + i + ".end", Long.toString(range.getEnd()));
+			synchronized (range) {
+				p.setProperty("range." + i + ".number", Long.toString(range.number));
+				p.setProperty("range." + i + ".offset", Long.toString(range.offset));
+			}
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream os = new FileOutputStream(tmp);
+		try {
+			p.store(os, "mbox archive indexing checkpoint");
+		} finally {
+			os.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// renameTo can fail on some platforms if the target exists
+			if (!file.delete() || !tmp.renameTo(file)) {
+				throw new IOException("Can not write checkpoint file " + file);
+			}
+		}
+	}
+
+	/**
+	 * @param archive
+	 * @return true if the archive has not been changed since the checkpoint was created, except it could be appended
+	 * @throws IOException
+	 */
+	public boolean isValidFor(File archive) throws IOException {
+		return archive.length() >= archiveSize && MboxOffsetIndex.checksum(archive, archiveSize) == tailChecksum;
+	}
+
+	public List<Range> getRanges() {
+		return this.ranges;
+	}
+}
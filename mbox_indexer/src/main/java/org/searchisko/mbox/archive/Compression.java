@@ -0,0 +1,102 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.searchisko.mbox.util.ParallelGzipInputStream;
+import org.searchisko.mbox.util.ReadAheadInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compression format of mbox archive file. The format is detected from magic bytes at the beginning
+ * of the file, file name extension is not taken into account.
+ */
+public enum Compression {
+
+	NONE(new int[0]),
+	GZIP(new int[]{0x1f, 0x8b}),
+	BZIP2(new int[]{'B', 'Z', 'h'}),
+	XZ(new int[]{0xfd, '7', 'z', 'X', 'Z', 0x00});
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final int[] magic;
+
+	Compression(int[] magic) {
+		this.magic = magic;
+	}
+
+	/**
+	 * @param file archive file
+	 * @return compression format of the file, {@link #NONE} if it is not recognized
+	 * @throws IOException
+	 */
+	public static Compression detect(File file) throws IOException {
+		byte[] header = new byte[XZ.magic.length];
+		int length = 0;
+		InputStream is = new FileInputStream(file);
+		try {
+			int n;
+			while (length < header.length && (n = is.read(header, length, header.length - length)) > -1) {
+				length += n;
+			}
+		} finally {
+			is.close();
+		}
+		for (Compression c : values()) {
+			if (c != NONE && c.matches(header, length)) {
+				return c;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Open decompressed content of the file. Decompression runs in background thread (see {@link ReadAheadInputStream})
+	 * so the caller does not wait for it unless it consumes the data faster then it can be decompressed.
+	 *
+	 * @param file archive file compressed in this format
+	 * @param threads number of threads used to inflate members of multi-member gzip file in parallel
+	 * @return stream of decompressed bytes
+	 * @throws IOException
+	 */
+	public InputStream open(File file, int threads) throws IOException {
+		InputStream is;
+		switch (this) {
+			case GZIP:
+				is = new ParallelGzipInputStream(file, threads);
+				break;
+			case BZIP2:
+				is = new BZip2CompressorInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE), true);
+				break;
+			case XZ:
+				is = new XZCompressorInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE), true);
+				break;
+			default:
+				is = new FileInputStream(file);
+		}
+		return new ReadAheadInputStream(is);
+	}
+
+	private boolean matches(byte[] header, int length) {
+		if (length < magic.length) {
+			return false;
+		}
+		for (int i = 0; i < magic.length; i++) {
+			if ((header[i] & 0xFF) != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
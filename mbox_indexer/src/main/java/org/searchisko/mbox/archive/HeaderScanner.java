@@ -0,0 +1,197 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import org.apache.james.mime4j.codec.DecodeMonitor;
+import org.apache.james.mime4j.field.DateTimeFieldLenientImpl;
+import org.apache.james.mime4j.stream.RawField;
+import org.searchisko.mbox.parser.MailDateParser;
+import org.searchisko.mbox.parser.MessageParser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Lightweight scanner of message header. It extracts values of selected header fields directly from raw message
+ * bytes without building mime4j DOM. Folded values are unfolded, encoded words are NOT decoded (values are read
+ * as ISO-8859-1). Leading mbox "From " line is skipped. If the field is present more then once the first
+ * occurrence wins.
+ * <p/>
+ * Instances are immutable and can be shared among threads.
+ */
+public class HeaderScanner {
+
+	private final String[] names;
+	private final byte[][] lowerCaseNames;
+	private final byte[][] upperCaseNames;
+
+	/**
+	 * @param names header field names we are interested in (case insensitive)
+	 */
+	public HeaderScanner(String... names) {
+		this.names = new String[names.length];
+		this.lowerCaseNames = new byte[names.length][];
+		this.upperCaseNames = new byte[names.length][];
+		for (int i = 0; i < names.length; i++) {
+			this.names[i] = names[i].toLowerCase(Locale.ENGLISH);
+			this.lowerCaseNames[i] = this.names[i].getBytes(StandardCharsets.ISO_8859_1);
+			this.upperCaseNames[i] = names[i].toUpperCase(Locale.ENGLISH).getBytes(StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	/**
+	 * Scan header of given message.
+	 *
+	 * @param message raw message bytes (from buffer position to its limit), buffer position is not changed
+	 * @return values of found header fields, keys are lower-cased field names
+	 */
+	public Map<String, String> scan(ByteBuffer message) {
+		Map<String, String> values = new HashMap<>(names.length * 2);
+		int pos = message.position();
+		int limit = message.limit();
+
+		// skip mbox "From " line
+		if (matches(message, pos, limit, "From ")) {
+			pos = nextLine(message, pos, limit);
+		}
+
+		int current = -1; // index of field we are collecting value for
+		StringBuilder value = null;
+		while (pos < limit) {
+			int eol = endOfLine(message, pos, limit);
+			if (eol == pos) {
+				break; // empty line, end of header
+			}
+			byte first = message.get(pos);
+			if (first == ' ' || first == '\t') {
+				if (current > -1) {
+					value.append(decode(message, pos, eol));
+				}
+			} else {
+				if (current > -1) {
+					values.put(names[current], value.toString().trim());
+					current = -1;
+					if (values.size() == names.length) {
+						return values;
+					}
+				}
+				int colon = indexOf(message, pos, eol, (byte) ':');
+				if (colon > -1) {
+					int field = findField(message, pos, colon);
+					if (field > -1 && !values.containsKey(names[field])) {
+						current = field;
+						value = new StringBuilder(decode(message, colon + 1, eol));
+					}
+				}
+			}
+			pos = nextLine(message, eol, limit);
+		}
+		if (current > -1) {
+			values.put(names[current], value.toString().trim());
+		}
+		return values;
+	}
+
+	/**
+	 * Parse value of Date header field the same way as {@link MessageParser#parseDate} does,
+	 * only without falling back to mbox From line.
+	 * @param value raw field value
+	 * @return parsed date or null if the value is null or it can not be parsed
+	 */
+	public static Date parseDate(String value) {
+		if (value == null) {
+			return null;
+		}
+		long millis = MailDateParser.parse(value);
+		if (millis != MailDateParser.INVALID) {
+			return new Date(millis);
+		}
+		return DateTimeFieldLenientImpl.PARSER.parse(new RawField("Date", value), DecodeMonitor.SILENT).getDate();
+	}
+
+	private int findField(ByteBuffer message, int from, int to) {
+		// field name can be followed by white spaces before colon
+		while (to > from && (message.get(to - 1) == ' ' || message.get(to - 1) == '\t')) {
+			to--;
+		}
+		int length = to - from;
+		for (int i = 0; i < names.length; i++) {
+			byte[] lower = lowerCaseNames[i];
+			if (lower.length != length) {
+				continue;
+			}
+			byte[] upper = upperCaseNames[i];
+			int j = 0;
+			while (j < length) {
+				byte b = message.get(from + j);
+				if (b != lower[j] && b != upper[j]) {
+					break;
+				}
+				j++;
+			}
+			if (j == length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean matches(ByteBuffer message, int pos, int limit, String prefix) {
+		if (limit - pos < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (message.get(pos + i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int endOfLine(ByteBuffer message, int pos, int limit) {
+		while (pos < limit) {
+			byte b = message.get(pos);
+			if (b == '\n' || b == '\r') {
+				return pos;
+			}
+			pos++;
+		}
+		return limit;
+	}
+
+	private static int nextLine(ByteBuffer message, int pos, int limit) {
+		pos = endOfLine(message, pos, limit);
+		if (pos < limit && message.get(pos) == '\r') {
+			pos++;
+		}
+		if (pos < limit && message.get(pos) == '\n') {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static int indexOf(ByteBuffer message, int from, int to, byte b) {
+		for (int i = from; i < to; i++) {
+			if (message.get(i) == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static String decode(ByteBuffer message, int from, int to) {
+		char[] chars = new char[to - from];
+		for (int i = from; i < to; i++) {
+			chars[i - from] = (char) (message.get(i) & 0xFF);
+		}
+		return new String(chars);
+	}
+}
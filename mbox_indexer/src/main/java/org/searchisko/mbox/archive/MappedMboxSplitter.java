@@ -0,0 +1,234 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Splits mbox archive file into messages using memory mapped file. Message boundaries are found directly
+ * in the bytes (a "From " sequence at the beginning of a line), no charset decoding takes place and returned
+ * messages are just slices of the mapped file.
+ * <p/>
+ * The file is mapped in windows of <code>windowSize</code> bytes so it is possible to process archives
+ * bigger then 2GB. If a single message does not fit into the window then the window is enlarged.
+ * <p/>
+ * The splitter can be limited to a byte range of the file. The range should start at a message boundary,
+ * the last message is terminated at the end of the range.
+ * <p/>
+ * If the archive is mboxcl or mboxcl2 (see {@link MboxFormat}) then the message body is skipped using
+ * its Content-Length header, the body bytes are not examined at all. If the next message does not start
+ * where the body ends according to the header then the message end is looked for the usual way.
+ */
+public class MappedMboxSplitter implements MboxSplitter {
+
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private static final byte[] FROM = {'F', 'r', 'o', 'm', ' '};
+
+	private final FileChannel channel;
+	private final long end;
+	private final int windowSize;
+	private final MboxFormat format;
+
+	private MappedByteBuffer window;
+	private long windowStart;
+	private long position;
+
+	public MappedMboxSplitter(File file) throws IOException {
+		this(file, 0, -1);
+	}
+
+	/**
+	 * @param file mbox file
+	 * @param start byte offset to start at
+	 * @param end byte offset to stop at (exclusive), if negative then file size is used
+	 * @throws IOException
+	 */
+	public MappedMboxSplitter(File file, long start, long end) throws IOException {
+		this(file, start, end, MboxFormat.detect(file));
+	}
+
+	/**
+	 * @param file mbox file
+	 * @param start byte offset to start at
+	 * @param end byte offset to stop at (exclusive), if negative then file size is used
+	 * @param format mbox variant of the file
+	 * @throws IOException
+	 */
+	public MappedMboxSplitter(File file, long start, long end, MboxFormat format) throws IOException {
+		this(file, start, end, DEFAULT_WINDOW_SIZE, format);
+	}
+
+	protected MappedMboxSplitter(File file, long start, long end, int windowSize) throws IOException {
+		this(file, start, end, windowSize, MboxFormat.detect(file));
+	}
+
+	protected MappedMboxSplitter(File file, long start, long end, int windowSize, MboxFormat format) throws IOException {
+		if (windowSize < FROM.length + 1) {
+			throw new IllegalArgumentException("windowSize is too small: " + windowSize);
+		}
+		this.channel = new FileInputStream(file).getChannel();
+		long size = channel.size();
+		this.end = end < 0 || end > size ? size : end;
+		this.position = start;
+		this.windowSize = windowSize;
+		this.format = format;
+	}
+
+	@Override
+	public MboxMessage next() throws IOException {
+		if (position >= end) {
+			return null;
+		}
+		long start = position;
+		long messageEnd = format.hasContentLength() ? findFramedMessageEnd(start) : -1;
+		if (messageEnd < 0) {
+			messageEnd = findMessageEnd(start);
+		}
+		position = messageEnd;
+		return new MboxMessage(start, slice(start, messageEnd));
+	}
+
+	/**
+	 * Find the first message boundary at or after given position.
+	 *
+	 * @param file mbox file
+	 * @param position byte offset
+	 * @return offset of the first message starting at or after the position or file size if there is no such message
+	 * @throws IOException
+	 */
+	public static long alignToBoundary(File file, long position) throws IOException {
+		if (position <= 0) {
+			return 0;
+		}
+		// pretend a message starts right before the position, its end is the boundary we are looking for
+		MappedMboxSplitter splitter = new MappedMboxSplitter(file, position - 1, -1);
+		try {
+			MboxMessage message = splitter.next();
+			return message == null ? splitter.end : message.getEndOffset();
+		} finally {
+			splitter.close();
+		}
+	}
+
+	/**
+	 * @return byte offset of the next message
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+
+	/**
+	 * @return end of the message according to its Content-Length header or -1 if it can not be used
+	 */
+	private long findFramedMessageEnd(long start) throws IOException {
+		if (window == null || start < windowStart || start >= windowStart + window.limit()) {
+			map(start, windowSize);
+		}
+		int remaps = 0;
+		while (true) {
+			long windowEnd = windowStart + window.limit();
+			boolean eof = windowEnd >= end;
+			long bodyEnd = MboxFormat.bodyEnd(window, (int) (start - windowStart), window.limit());
+			long needed; // window size needed to decide
+			if (bodyEnd == MboxFormat.NO_LENGTH) {
+				return -1;
+			} else if (bodyEnd == MboxFormat.INCOMPLETE) {
+				needed = (windowEnd - start) * 2;
+			} else {
+				long next = MboxFormat.nextMessage(window, bodyEnd, window.limit(), eof);
+				if (next == MboxFormat.NO_LENGTH) {
+					return -1;
+				} else if (next != MboxFormat.INCOMPLETE) {
+					return windowStart + next;
+				}
+				needed = windowStart + bodyEnd + 16 - start;
+			}
+			if (eof || remaps == 2 || needed > Integer.MAX_VALUE) {
+				return -1;
+			}
+			map(start, Math.max(windowSize, needed));
+			remaps++;
+		}
+	}
+
+	private long findMessageEnd(long start) throws IOException {
+		if (window == null || start < windowStart || start >= windowStart + window.limit()) {
+			map(start, windowSize);
+		}
+		long from = start + 1;
+		while (true) {
+			long windowEnd = windowStart + window.limit();
+			// line terminator must be followed by complete "From " within the window
+			long limit = windowEnd - FROM.length;
+			long boundary = findBoundary(from, limit);
+			if (boundary > -1) {
+				return boundary;
+			}
+			if (windowEnd >= end) {
+				return end;
+			}
+			// message does not fit into the window
+			from = Math.max(from, limit + 1);
+			long size = Math.max(windowSize, (windowEnd - start) * 2);
+			if (size > Integer.MAX_VALUE) {
+				if (windowEnd - start >= Integer.MAX_VALUE) {
+					throw new IOException("Message at offset " + start + " is too big.");
+				}
+				size = Integer.MAX_VALUE;
+			}
+			map(start, size);
+		}
+	}
+
+	/**
+	 * Look for line terminator followed by "From ".
+	 * @param from absolute offset of the first byte that can be part of "From "
+	 * @param limit absolute offset, line terminators at or after this offset are not checked
+	 * @return absolute offset of the "From " or -1 if not found
+	 */
+	private long findBoundary(long from, long limit) {
+		int i = (int) (from - 1 - windowStart);
+		int max = (int) (limit - windowStart);
+		for (; i < max; i++) {
+			byte b = window.get(i);
+			if ((b == '\n' || b == '\r') &&
+					window.get(i + 1) == 'F' &&
+					window.get(i + 2) == 'r' &&
+					window.get(i + 3) == 'o' &&
+					window.get(i + 4) == 'm' &&
+					window.get(i + 5) == ' ') {
+				return windowStart + i + 1;
+			}
+		}
+		return -1;
+	}
+
+	private void map(long start, long size) throws IOException {
+		long length = Math.min(end - start, size);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		windowStart = start;
+	}
+
+	private ByteBuffer slice(long start, long messageEnd) {
+		ByteBuffer b = window.duplicate();
+		b.limit((int) (messageEnd - windowStart));
+		b.position((int) (start - windowStart));
+		return b.slice();
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Variant of mbox format. All variants start every message with "From " line, they differ in how "From " lines
+ * in message body are quoted and whether the messages carry <code>Content-Length</code> header:
+ * <ul>
+ *   <li>mboxo - body lines starting with "From " are quoted as "&gt;From "</li>
+ *   <li>mboxrd - body lines starting with any number of "&gt;" followed by "From " get one more "&gt;"</li>
+ *   <li>mboxcl - quoted like mboxo and every message has Content-Length header</li>
+ *   <li>mboxcl2 - no quoting at all, every message has Content-Length header</li>
+ * </ul>
+ * Messages of mboxcl and mboxcl2 archives are framed by the Content-Length header (the splitter jumps over the body
+ * without looking at it), messages of mboxo and mboxrd archives are framed by "From " lines. Message bodies are
+ * always handed over as they are stored in the archive, no unquoting takes place.
+ */
+public enum MboxFormat {
+
+	MBOXO(false),
+	MBOXRD(false),
+	MBOXCL(true),
+	MBOXCL2(true);
+
+	/**
+	 * Number of bytes from the beginning of the archive used to detect the format.
+	 */
+	public static final int DETECT_SAMPLE_SIZE = 1024 * 1024;
+
+	/** The message has no valid Content-Length header. */
+	static final long NO_LENGTH = -1;
+	/** The message header does not end within available bytes. */
+	static final long INCOMPLETE = -2;
+
+	private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.ISO_8859_1);
+
+	private final boolean contentLength;
+
+	private MboxFormat(boolean contentLength) {
+		this.contentLength = contentLength;
+	}
+
+	/**
+	 * @return true if messages are framed by Content-Length header
+	 */
+	public boolean hasContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Detect format of given archive from its first {@link #DETECT_SAMPLE_SIZE} bytes.
+	 * @param file uncompressed mbox archive
+	 * @return detected format, {@link #MBOXO} if no specific feature is found
+	 * @throws IOException
+	 */
+	public static MboxFormat detect(File file) throws IOException {
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			ByteBuffer sample = ByteBuffer.allocate((int) Math.min(DETECT_SAMPLE_SIZE, channel.size()));
+			while (sample.hasRemaining() && channel.read(sample) > -1) {
+				// read sample
+			}
+			sample.flip();
+			return detect(sample, sample.limit() == channel.size());
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Detect format from the beginning of an archive. Archive is considered to be mboxcl or mboxcl2 if all messages
+	 * found in the sample have Content-Length header and the next message starts right where the body ends
+	 * according to the header. Then it is mboxcl if there are quoted "&gt;From " lines, otherwise it is mboxcl2.
+	 * Other archives are mboxrd if there are lines starting with "&gt;&gt;From ", otherwise they are mboxo.
+	 *
+	 * @param sample bytes from the beginning of the archive (from buffer position to its limit)
+	 * @param complete true if the sample contains the whole archive
+	 * @return detected format
+	 */
+	public static MboxFormat detect(ByteBuffer sample, boolean complete) {
+		int start = sample.position();
+		int limit = sample.limit();
+		boolean framed = false;
+		int pos = start;
+		while (pos < limit) {
+			long bodyEnd = bodyEnd(sample, pos, limit);
+			if (bodyEnd < 0) {
+				framed = framed && bodyEnd == INCOMPLETE;
+				break;
+			}
+			long next = nextMessage(sample, bodyEnd, limit, complete);
+			if (next == NO_LENGTH) {
+				framed = false;
+				break;
+			}
+			framed = true;
+			if (next == INCOMPLETE) {
+				break;
+			}
+			pos = (int) next;
+		}
+
+		boolean quoted = false;
+		boolean requoted = false;
+		for (int i = start; i < limit && !requoted; i = nextLine(sample, i, limit)) {
+			int q = i;
+			while (q < limit && sample.get(q) == '>') {
+				q++;
+			}
+			if (q > i && matchesFrom(sample, q, limit)) {
+				quoted = true;
+				requoted = q - i > 1;
+			}
+		}
+
+		if (framed) {
+			return quoted ? MBOXCL : MBOXCL2;
+		}
+		return requoted ? MBOXRD : MBOXO;
+	}
+
+	/**
+	 * Find where message body ends according to Content-Length header.
+	 *
+	 * @param b archive bytes (absolute indexes are used)
+	 * @param start index of the message "From " line
+	 * @param limit end of available bytes
+	 * @return index of the first byte following the body, {@link #NO_LENGTH} if the message has no valid
+	 * Content-Length header or {@link #INCOMPLETE} if the header does not end within the limit
+	 */
+	static long bodyEnd(ByteBuffer b, int start, int limit) {
+		long length = NO_LENGTH;
+		int pos = nextLine(b, start, limit); // skip "From " line
+		while (pos < limit) {
+			byte first = b.get(pos);
+			if (first == '\n') {
+				return length < 0 ? NO_LENGTH : pos + 1 + length;
+			}
+			if (first == '\r' && pos + 1 < limit && b.get(pos + 1) == '\n') {
+				return length < 0 ? NO_LENGTH : pos + 2 + length;
+			}
+			if (first == 'C' || first == 'c') {
+				long value = parseContentLength(b, pos, limit);
+				if (value != NO_LENGTH) {
+					length = value;
+				}
+			}
+			pos = nextLine(b, pos, limit);
+		}
+		return INCOMPLETE;
+	}
+
+	/**
+	 * Check that next message starts where the body ends. One or two line terminators are allowed between
+	 * the body and the next "From " line.
+	 *
+	 * @param b archive bytes (absolute indexes are used)
+	 * @param bodyEnd as returned by {@link #bodyEnd(ByteBuffer, int, int)}
+	 * @param limit end of available bytes
+	 * @param eof true if the limit is the end of the archive
+	 * @return index of the next message (limit if this is the last message), {@link #NO_LENGTH} if there is no message
+	 * boundary or {@link #INCOMPLETE} if more bytes are needed to decide
+	 */
+	static long nextMessage(ByteBuffer b, long bodyEnd, int limit, boolean eof) {
+		if (!eof && limit - bodyEnd < 4 + 5) {
+			return INCOMPLETE;
+		}
+		if (bodyEnd > limit) {
+			return NO_LENGTH;
+		}
+		int pos = (int) bodyEnd;
+		for (int i = 0; i < 2 && pos < limit; i++) {
+			if (b.get(pos) == '\n') {
+				pos++;
+			} else if (b.get(pos) == '\r' && pos + 1 < limit && b.get(pos + 1) == '\n') {
+				pos += 2;
+			} else {
+				break;
+			}
+		}
+		if (pos == limit) {
+			return eof ? limit : NO_LENGTH;
+		}
+		byte previous = b.get(pos - 1);
+		if ((previous == '\n' || previous == '\r') && matchesFrom(b, pos, limit)) {
+			return pos;
+		}
+		return NO_LENGTH;
+	}
+
+	private static long parseContentLength(ByteBuffer b, int pos, int limit) {
+		if (limit - pos < CONTENT_LENGTH.length) {
+			return NO_LENGTH;
+		}
+		for (int i = 0; i < CONTENT_LENGTH.length; i++) {
+			byte c = b.get(pos + i);
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			if (c != CONTENT_LENGTH[i]) {
+				return NO_LENGTH;
+			}
+		}
+		int i = pos + CONTENT_LENGTH.length;
+		while (i < limit && (b.get(i) == ' ' || b.get(i) == '\t')) {
+			i++;
+		}
+		long value = 0;
+		int digits = 0;
+		while (i < limit && b.get(i) >= '0' && b.get(i) <= '9' && digits < 18) {
+			value = value * 10 + (b.get(i) - '0');
+			digits++;
+			i++;
+		}
+		return digits == 0 ? NO_LENGTH : value;
+	}
+
+	private static boolean matchesFrom(ByteBuffer b, int pos, int limit) {
+		return limit - pos >= 5 &&
+				b.get(pos) == 'F' &&
+				b.get(pos + 1) == 'r' &&
+				b.get(pos + 2) == 'o' &&
+				b.get(pos + 3) == 'm' &&
+				b.get(pos + 4) == ' ';
+	}
+
+	private static int nextLine(ByteBuffer b, int pos, int limit) {
+		while (pos < limit) {
+			if (b.get(pos++) == '\n') {
+				break;
+			}
+		}
+		return pos;
+	}
+}
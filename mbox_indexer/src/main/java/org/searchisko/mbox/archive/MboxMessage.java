@@ -0,0 +1,52 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import org.searchisko.mbox.util.ByteBufferInputStream;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Raw bytes of a single message found in mbox archive (including the leading "From " line).
+ * The content is never decoded, it is exactly what is stored in the archive.
+ */
+public class MboxMessage {
+
+	private final long offset;
+	private final ByteBuffer content;
+
+	public MboxMessage(long offset, ByteBuffer content) {
+		this.offset = offset;
+		this.content = content;
+	}
+
+	/**
+	 * @return byte offset of the message within the archive
+	 */
+	public long getOffset() { return this.offset; }
+
+	/**
+	 * @return length of the message in bytes
+	 */
+	public int getLength() { return this.content.remaining(); }
+
+	/**
+	 * @return byte offset of the first byte following this message
+	 */
+	public long getEndOffset() { return this.offset + getLength(); }
+
+	/**
+	 * @return read-only view of message bytes
+	 */
+	public ByteBuffer getContent() { return this.content.asReadOnlyBuffer(); }
+
+	/**
+	 * @return new InputStream over message bytes, it can be called repeatedly
+	 */
+	public InputStream getInputStream() { return new ByteBufferInputStream(this.content); }
+}
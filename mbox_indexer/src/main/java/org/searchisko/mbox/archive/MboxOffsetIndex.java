@@ -0,0 +1,400 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import org.searchisko.mbox.util.MessageIdHash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent index of messages stored in mbox archive. For every message it keeps byte offset, length,
+ * ordinal number within the archive (the `cnt` used to construct public URL if no messages are excluded),
+ * hash of Message-ID (see {@link MessageIdHash}) and date.
+ * <p/>
+ * The index is stored in a sidecar file (by default <code>&lt;archive&gt;.idx</code>) together with archive size,
+ * last modification time and checksum of the archive tail. Index is valid only if all of them match the archive.
+ * If the archive was only appended since the index was created then the index is updated incrementally, only
+ * the new part of the archive is scanned. Otherwise the index is rebuilt from scratch.
+ * <p/>
+ * Index file format (big-endian): magic, version, archive size, archive last modified, tail checksum,
+ * number of entries followed by fixed length entries (offset, length, ordinal, Message-ID hash, date).
+ * Fixed length entries make it possible to read single entry without loading whole index.
+ */
+public class MboxOffsetIndex {
+
+	private static Logger log = LoggerFactory.getLogger(MboxOffsetIndex.class);
+
+	public static final String DEFAULT_SUFFIX = ".idx";
+	public static final long NO_DATE = Long.MIN_VALUE;
+
+	private static final long MAGIC = 0x4d424f5849445831L; // "MBOXIDX1"
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 8 + 4 + 8 + 8 + 8 + 4;
+	private static final int ENTRY_LENGTH = 8 + 4 + 4 + 8 + 8;
+	private static final int TAIL_LENGTH = 64 * 1024;
+
+	private static final HeaderScanner scanner = new HeaderScanner("message-id", "date");
+
+	/**
+	 * Single index entry.
+	 */
+	public static class Entry {
+
+		private final long offset;
+		private final int length;
+		private final int ordinal;
+		private final long messageIdHash;
+		private final long date;
+
+		public Entry(long offset, int length, int ordinal, long messageIdHash, long date) {
+			this.offset = offset;
+			this.length = length;
+			this.ordinal = ordinal;
+			this.messageIdHash = messageIdHash;
+			this.date = date;
+		}
+
+		public long getOffset() { return this.offset; }
+		public int getLength() { return this.length; }
+		public int getOrdinal() { return this.ordinal; }
+		public long getMessageIdHash() { return this.messageIdHash; }
+		/** @return message date in millis or {@link #NO_DATE} */
+		public long getDate() { return this.date; }
+	}
+
+	private long archiveSize;
+	private long archiveLastModified;
+	private long tailChecksum;
+
+	private int size;
+	private long[] offsets;
+	private int[] lengths;
+	private long[] messageIdHashes;
+	private long[] dates;
+
+	private MboxOffsetIndex(int capacity) {
+		offsets = new long[capacity];
+		lengths = new int[capacity];
+		messageIdHashes = new long[capacity];
+		dates = new long[capacity];
+	}
+
+	public static File getDefaultIndexFile(File archive) {
+		return new File(archive.getPath() + DEFAULT_SUFFIX);
+	}
+
+	/**
+	 * Same as calling #update(archive, #getDefaultIndexFile(archive)).
+	 */
+	public static MboxOffsetIndex update(File archive) throws IOException {
+		return update(archive, getDefaultIndexFile(archive));
+	}
+
+	/**
+	 * Make sure index file is up to date with the archive. If the index file does not exist or it is not valid
+	 * it is created from scratch. If the archive has been appended then the index is updated incrementally.
+	 *
+	 * @param archive mbox file
+	 * @param indexFile index file
+	 * @return up to date index
+	 * @throws IOException
+	 */
+	public static MboxOffsetIndex update(File archive, File indexFile) throws IOException {
+		MboxOffsetIndex index = null;
+		if (indexFile.exists()) {
+			try {
+				index = read(indexFile);
+			} catch (IOException e) {
+				log.warn("Index file {} can not be read, rebuilding it: {}", indexFile, e.getMessage());
+			}
+		}
+		if (index != null && index.isValidFor(archive)) {
+			log.debug("Index file {} is up to date", indexFile);
+			return index;
+		}
+		if (index != null && index.isPrefixOf(archive)) {
+			log.info("Archive {} has been appended, updating index {}", archive, indexFile);
+			index.scan(archive);
+		} else {
+			log.info("Building index {} for archive {}", indexFile, archive);
+			index = build(archive);
+		}
+		index.write(indexFile);
+		return index;
+	}
+
+	/**
+	 * Scan whole archive and build new index. The index is not written to disk.
+	 * @param archive
+	 * @return new index
+	 * @throws IOException
+	 */
+	public static MboxOffsetIndex build(File archive) throws IOException {
+		MboxOffsetIndex index = new MboxOffsetIndex(1024);
+		index.scan(archive);
+		return index;
+	}
+
+	/**
+	 * Read index from file. The index is not validated against the archive.
+	 * @param indexFile
+	 * @return
+	 * @throws IOException if the file can not be read or it is not an index file
+	 */
+	public static MboxOffsetIndex read(File indexFile) throws IOException {
+		DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			if (is.readLong() != MAGIC) {
+				throw new IOException("Not an index file: " + indexFile);
+			}
+			int version = is.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported index version: " + version);
+			}
+			long archiveSize = is.readLong();
+			long archiveLastModified = is.readLong();
+			long tailChecksum = is.readLong();
+			int count = is.readInt();
+			if (count < 0 || indexFile.length() != HEADER_LENGTH + (long) count * ENTRY_LENGTH) {
+				throw new IOException("Index file is truncated: " + indexFile);
+			}
+			MboxOffsetIndex index = new MboxOffsetIndex(Math.max(count, 16));
+			index.archiveSize = archiveSize;
+			index.archiveLastModified = archiveLastModified;
+			index.tailChecksum = tailChecksum;
+			for (int i = 0; i < count; i++) {
+				long offset = is.readLong();
+				int length = is.readInt();
+				is.readInt(); // ordinal equals to position
+				index.add(offset, length, is.readLong(), is.readLong());
+			}
+			return index;
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Read single entry from the index file without loading whole index.
+	 * @param indexFile
+	 * @param ordinal
+	 * @return entry or null if there is no entry with given ordinal
+	 * @throws IOException
+	 */
+	public static Entry readEntry(File indexFile, int ordinal) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+		try {
+			if (raf.readLong() != MAGIC) {
+				throw new IOException("Not an index file: " + indexFile);
+			}
+			raf.seek(HEADER_LENGTH - 4);
+			int count = raf.readInt();
+			if (ordinal < 0 || ordinal >= count) {
+				return null;
+			}
+			raf.seek(HEADER_LENGTH + (long) ordinal * ENTRY_LENGTH);
+			return new Entry(raf.readLong(), raf.readInt(), raf.readInt(), raf.readLong(), raf.readLong());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Write index into file. The file is replaced atomically if the platform supports it.
+	 * @param indexFile
+	 * @throws IOException
+	 */
+	public void write(File indexFile) throws IOException {
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			os.writeLong(MAGIC);
+			os.writeInt(VERSION);
+			os.writeLong(archiveSize);
+			os.writeLong(archiveLastModified);
+			os.writeLong(tailChecksum);
+			os.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				os.writeLong(offsets[i]);
+				os.writeInt(lengths[i]);
+				os.writeInt(i);
+				os.writeLong(messageIdHashes[i]);
+				os.writeLong(dates[i]);
+			}
+		} finally {
+			os.close();
+		}
+		if (!tmp.renameTo(indexFile)) {
+			// renameTo can fail on some platforms if the target exists
+			if (!indexFile.delete() || !tmp.renameTo(indexFile)) {
+				throw new IOException("Can not write index file " + indexFile);
+			}
+		}
+	}
+
+	/**
+	 * @param archive
+	 * @return true if archive size, last modification time and tail checksum match the index
+	 * @throws IOException
+	 */
+	public boolean isValidFor(File archive) throws IOException {
+		return archive.length() == archiveSize &&
+				archive.lastModified() == archiveLastModified &&
+				checksum(archive, archiveSize) == tailChecksum;
+	}
+
+	/**
+	 * @param archive
+	 * @return true if the archive has been only appended since this index was built
+	 * @throws IOException
+	 */
+	public boolean isPrefixOf(File archive) throws IOException {
+		return archive.length() > archiveSize && checksum(archive, archiveSize) == tailChecksum;
+	}
+
+	/**
+	 * @return number of messages in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param ordinal
+	 * @return entry for message with given ordinal number
+	 */
+	public Entry get(int ordinal) {
+		if (ordinal < 0 || ordinal >= size) {
+			throw new IndexOutOfBoundsException("ordinal: " + ordinal + ", size: " + size);
+		}
+		return new Entry(offsets[ordinal], lengths[ordinal], ordinal, messageIdHashes[ordinal], dates[ordinal]);
+	}
+
+	/**
+	 * @param messageId
+	 * @return ordinal of the first message with given Message-ID or -1 if not found
+	 */
+	public int find(String messageId) {
+		long hash = MessageIdHash.hash(messageId);
+		for (int i = 0; i < size; i++) {
+			if (messageIdHashes[i] == hash) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param offset byte offset within the archive
+	 * @return ordinal of the message containing given offset or -1 if the offset is not covered by the index
+	 */
+	public int findByOffset(long offset) {
+		int i = Arrays.binarySearch(offsets, 0, size, offset);
+		if (i < 0) {
+			i = -i - 2;
+		}
+		if (i < 0 || offset >= offsets[i] + lengths[i]) {
+			return -1;
+		}
+		return i;
+	}
+
+	/**
+	 * @return size of the archive when the index was updated
+	 */
+	public long getArchiveSize() {
+		return archiveSize;
+	}
+
+	/**
+	 * Scan the archive starting at the last indexed message (it could have been appended) till the end.
+	 */
+	private void scan(File archive) throws IOException {
+		// offsets point into the archive file, it makes no sense for compressed archive
+		Compression compression = Compression.detect(archive);
+		if (compression != Compression.NONE) {
+			throw new IOException("Can not index " + compression + " compressed archive " + archive);
+		}
+		long lastModified = archive.lastModified();
+		long start = 0;
+		if (size > 0) {
+			size--;
+			start = offsets[size];
+		}
+		MappedMboxSplitter splitter = new MappedMboxSplitter(archive, start, -1);
+		try {
+			MboxMessage message;
+			while ((message = splitter.next()) != null) {
+				Map<String, String> headers = scanner.scan(message.getContent());
+				add(message.getOffset(), message.getLength(),
+						MessageIdHash.hash(headers.get("message-id")), parseDate(headers.get("date")));
+			}
+			archiveSize = splitter.getPosition();
+		} finally {
+			splitter.close();
+		}
+		archiveLastModified = lastModified;
+		tailChecksum = checksum(archive, archiveSize);
+	}
+
+	private void add(long offset, int length, long messageIdHash, long date) {
+		if (size == offsets.length) {
+			int capacity = offsets.length * 2;
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			messageIdHashes = Arrays.copyOf(messageIdHashes, capacity);
+			dates = Arrays.copyOf(dates, capacity);
+		}
+		offsets[size] = offset;
+		lengths[size] = length;
+		messageIdHashes[size] = messageIdHash;
+		dates[size] = date;
+		size++;
+	}
+
+	private static long parseDate(String value) {
+		if (value == null) {
+			return NO_DATE;
+		}
+		Date date = HeaderScanner.parseDate(value);
+		return date == null ? NO_DATE : date.getTime();
+	}
+
+	/**
+	 * CRC32 of the last (up to) 64KB of the first <code>length</code> bytes of the file.
+	 */
+	static long checksum(File archive, long length) throws IOException {
+		if (archive.length() < length) {
+			return -1;
+		}
+		int tail = (int) Math.min(TAIL_LENGTH, length);
+		ByteBuffer buffer = ByteBuffer.allocate(tail);
+		FileChannel channel = new FileInputStream(archive).getChannel();
+		try {
+			long position = length - tail;
+			while (buffer.hasRemaining()) {
+				int n = channel.read(buffer, position + buffer.position());
+				if (n < 0) {
+					throw new EOFException("Unexpected end of file " + archive);
+				}
+			}
+		} finally {
+			channel.close();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array());
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Splits mbox archive into byte ranges that can be processed in parallel. Every range starts at a message
+ * boundary, so no message is split between two ranges.
+ * <p/>
+ * Boundaries of mboxcl and mboxcl2 archives can not be found from an arbitrary offset (body lines starting with
+ * "From " need not be quoted) so the messages are walked from the start using their Content-Length headers,
+ * only message headers are read.
+ */
+public class MboxRanges {
+
+	private MboxRanges() {}
+
+	/**
+	 * Split given part of the file into (at most) <code>n</code> ranges of similar size.
+	 *
+	 * @param file mbox file
+	 * @param start byte offset of the first message
+	 * @param n requested number of ranges
+	 * @return array of <code>n+1</code> ascending offsets, range <code>i</code> is [bounds[i], bounds[i+1]).
+	 *         Some ranges can be empty if the file contains only few big messages.
+	 * @throws IOException
+	 */
+	public static long[] split(File file, long start, int n) throws IOException {
+		if (n < 1) {
+			throw new IllegalArgumentException("Number of ranges must be at least 1");
+		}
+		long size = file.length();
+		long[] bounds = new long[n + 1];
+		bounds[0] = start;
+		bounds[n] = size;
+		long step = (size - start) / n;
+		MboxFormat format = MboxFormat.detect(file);
+		if (format.hasContentLength()) {
+			walk(file, format, bounds, step);
+			return bounds;
+		}
+		for (int i = 1; i < n; i++) {
+			long nominal = start + step * i;
+			bounds[i] = nominal <= bounds[i - 1] ? bounds[i - 1] : MappedMboxSplitter.alignToBoundary(file, nominal);
+		}
+		return bounds;
+	}
+
+	private static void walk(File file, MboxFormat format, long[] bounds, long step) throws IOException {
+		int n = bounds.length - 1;
+		int i = 1;
+		while (i < n && step * i == 0) {
+			bounds[i++] = bounds[0];
+		}
+		MappedMboxSplitter splitter = new MappedMboxSplitter(file, bounds[0], -1, format);
+		try {
+			MboxMessage message;
+			while (i < n && (message = splitter.next()) != null) {
+				while (i < n && message.getEndOffset() >= bounds[0] + step * i) {
+					bounds[i++] = message.getEndOffset();
+				}
+			}
+		} finally {
+			splitter.close();
+		}
+		while (i < n) {
+			bounds[i++] = bounds[n];
+		}
+	}
+}
@@ -0,0 +1,23 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Splits mbox archive into individual messages. Messages are returned in the order they are stored in the archive.
+ * Implementations are not thread safe, however, returned messages can be handed over to other threads.
+ */
+public interface MboxSplitter extends Closeable {
+
+	/**
+	 * @return next message from the archive or null if there are no more messages
+	 * @throws IOException
+	 */
+	MboxMessage next() throws IOException;
+}
@@ -0,0 +1,177 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits mbox archive read from a stream into messages. This is used when the archive can not be memory mapped,
+ * typically because it is compressed (see {@link Compression}). Message boundaries are found the same way as
+ * in {@link MappedMboxSplitter}, directly in the bytes. Every returned message is a copy of its bytes so it can
+ * be handed to another thread.
+ * <p/>
+ * Message offsets are offsets within the stream (that is within the decompressed archive).
+ * <p/>
+ * Format of the archive (see {@link MboxFormat}) is detected from the beginning of the stream, messages
+ * of mboxcl and mboxcl2 archives are framed by their Content-Length header.
+ */
+public class StreamMboxSplitter implements MboxSplitter {
+
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	private final InputStream input;
+
+	private byte[] buffer;
+	private int start; // first byte of the current message in buffer
+	private int length; // end of valid data in buffer
+	private boolean eof;
+	private long position; // stream offset of buffer[start]
+	private MboxFormat format;
+
+	public StreamMboxSplitter(InputStream input) {
+		this(input, DEFAULT_BUFFER_SIZE);
+	}
+
+	protected StreamMboxSplitter(InputStream input, int bufferSize) {
+		if (bufferSize < 6) {
+			throw new IllegalArgumentException("bufferSize is too small: " + bufferSize);
+		}
+		this.input = input;
+		this.buffer = new byte[bufferSize];
+	}
+
+	@Override
+	public MboxMessage next() throws IOException {
+		if (format == null) {
+			detectFormat();
+		}
+		if (format.hasContentLength() && start < length) {
+			int end = findFramedMessageEnd();
+			if (end > -1) {
+				return take(end);
+			}
+		}
+		int from = start + 1;
+		while (true) {
+			// line terminator must be followed by complete "From " within the buffer
+			int limit = length - 5;
+			for (int i = from - 1; i < limit; i++) {
+				byte b = buffer[i];
+				if ((b == '\n' || b == '\r') &&
+						buffer[i + 1] == 'F' &&
+						buffer[i + 2] == 'r' &&
+						buffer[i + 3] == 'o' &&
+						buffer[i + 4] == 'm' &&
+						buffer[i + 5] == ' ') {
+					return take(i + 1);
+				}
+			}
+			from = Math.max(from, limit + 1);
+			if (eof) {
+				return start < length ? take(length) : null;
+			}
+			int shift = fill();
+			from -= shift;
+		}
+	}
+
+	/**
+	 * Skip messages preceding given stream offset. The stream can not be positioned directly so all the messages
+	 * have to be read.
+	 * @param offset stream offset of message boundary
+	 * @throws IOException
+	 */
+	public void skipTo(long offset) throws IOException {
+		while (position < offset && next() != null) {
+			// skip
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		input.close();
+	}
+
+	/**
+	 * @return format of the archive, it is known once the first message is read
+	 */
+	public MboxFormat getFormat() {
+		return format;
+	}
+
+	private void detectFormat() throws IOException {
+		while (!eof && length - start < MboxFormat.DETECT_SAMPLE_SIZE) {
+			fill();
+		}
+		format = MboxFormat.detect(ByteBuffer.wrap(buffer, start, length - start), eof);
+	}
+
+	/**
+	 * @return end of the current message according to its Content-Length header or -1 if it can not be used
+	 */
+	private int findFramedMessageEnd() throws IOException {
+		while (true) {
+			ByteBuffer b = ByteBuffer.wrap(buffer, 0, length);
+			long bodyEnd = MboxFormat.bodyEnd(b, start, length);
+			if (bodyEnd == MboxFormat.NO_LENGTH || bodyEnd - start > Integer.MAX_VALUE / 2) {
+				return -1;
+			}
+			if (bodyEnd != MboxFormat.INCOMPLETE) {
+				long next = MboxFormat.nextMessage(b, bodyEnd, length, eof);
+				if (next == MboxFormat.NO_LENGTH) {
+					return -1;
+				} else if (next != MboxFormat.INCOMPLETE) {
+					return (int) next;
+				}
+			}
+			if (eof) {
+				return -1;
+			}
+			fill();
+		}
+	}
+
+	private MboxMessage take(int end) {
+		byte[] content = new byte[end - start];
+		System.arraycopy(buffer, start, content, 0, content.length);
+		MboxMessage message = new MboxMessage(position, ByteBuffer.wrap(content));
+		position += content.length;
+		start = end;
+		return message;
+	}
+
+	/**
+	 * Read more data into the buffer, current message is moved to the beginning of the buffer
+	 * and the buffer is enlarged if needed.
+	 * @return number of bytes the data was shifted by
+	 */
+	private int fill() throws IOException {
+		int shift = start;
+		if (start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, length - start);
+			length -= start;
+			start = 0;
+		}
+		if (length == buffer.length) {
+			if (buffer.length == Integer.MAX_VALUE) {
+				throw new IOException("Message at offset " + position + " is too big.");
+			}
+			byte[] bigger = new byte[(int) Math.min(Integer.MAX_VALUE, buffer.length * 2L)];
+			System.arraycopy(buffer, 0, bigger, 0, length);
+			buffer = bigger;
+		}
+		int n = input.read(buffer, length, buffer.length - length);
+		if (n == -1) {
+			eof = true;
+		} else {
+			length += n;
+		}
+		return shift;
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.filter;
+
+import org.searchisko.mbox.archive.HeaderScanner;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Accepts only messages with Date within given range. Messages without valid Date are accepted, it is up to
+ * the parser to decide what to do with them.
+ */
+public class DateRangeFilter implements MessageFilter {
+
+	private static final String[] HEADER_NAMES = {"Date"};
+
+	private final Date from;
+	private final Date to;
+
+	/**
+	 * @param from start of the range (inclusive), can be null
+	 * @param to end of the range (exclusive), can be null
+	 */
+	public DateRangeFilter(Date from, Date to) {
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	public String[] getHeaderNames() {
+		return HEADER_NAMES;
+	}
+
+	@Override
+	public boolean accept(Map<String, String> headers) {
+		Date date = HeaderScanner.parseDate(headers.get("date"));
+		if (date == null) {
+			return true;
+		}
+		return (from == null || !date.before(from)) && (to == null || date.before(to));
+	}
+
+	@Override
+	public boolean isExcluding() {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "Date out of range [" + from + ", " + to + ")";
+	}
+}
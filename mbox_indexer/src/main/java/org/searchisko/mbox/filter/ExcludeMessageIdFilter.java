@@ -0,0 +1,60 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.filter;
+
+import org.searchisko.mbox.util.MessageIdSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Filters out messages with Message-ID found in the exclusion list.
+ */
+public class ExcludeMessageIdFilter implements MessageFilter {
+
+	private static final String[] HEADER_NAMES = {"Message-ID"};
+
+	private final MessageIdSet messageIds;
+
+	/**
+	 * @param messageIds Message-IDs to filter out
+	 */
+	public ExcludeMessageIdFilter(MessageIdSet messageIds) {
+		this.messageIds = messageIds;
+	}
+
+	/**
+	 * @param file properties file with Message-IDs to exclude as keys or binary Message-ID set file
+	 * @return new filter
+	 * @throws IOException
+	 * @see MessageIdSet#load(File)
+	 */
+	public static ExcludeMessageIdFilter load(File file) throws IOException {
+		return new ExcludeMessageIdFilter(MessageIdSet.load(file));
+	}
+
+	@Override
+	public String[] getHeaderNames() {
+		return HEADER_NAMES;
+	}
+
+	@Override
+	public boolean accept(Map<String, String> headers) {
+		return !messageIds.contains(headers.get("message-id"));
+	}
+
+	@Override
+	public boolean isExcluding() {
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "excluded Message-ID";
+	}
+}
@@ -0,0 +1,35 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.filter;
+
+import java.util.Map;
+
+/**
+ * Predicate deciding whether a message should be processed. It is evaluated on selected header fields taken directly
+ * from raw message bytes (see {@link MessageFilterChain}), so messages which are filtered out do not cost any parsing.
+ * <p/>
+ * Implementations must be thread-safe.
+ */
+public interface MessageFilter {
+
+	/**
+	 * @return names of header fields this filter needs (case insensitive)
+	 */
+	String[] getHeaderNames();
+
+	/**
+	 * @param headers values of header fields, keys are lower-cased field names, missing fields are not present
+	 * @return true if the message should be processed
+	 */
+	boolean accept(Map<String, String> headers);
+
+	/**
+	 * @return true if messages rejected by this filter are not part of the public archive, so they do not take
+	 * any number in the archive message numbering. Messages rejected by other filters are only not processed.
+	 */
+	boolean isExcluding();
+}
@@ -0,0 +1,113 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.filter;
+
+import org.searchisko.mbox.archive.HeaderScanner;
+import org.searchisko.mbox.archive.MboxMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Set of filters evaluated on raw mbox message. Header fields needed by all the filters are extracted in a single
+ * pass over the message header by {@link HeaderScanner}, no MIME parsing takes place. The message is processed
+ * only if all filters accept it.
+ * <p/>
+ * Instances are immutable and can be shared among threads.
+ */
+public class MessageFilterChain {
+
+	private static Logger log = LoggerFactory.getLogger(MessageFilterChain.class);
+
+	private static final String MESSAGE_ID = "message-id";
+
+	/**
+	 * Result of the filtering.
+	 */
+	public enum Decision {
+		/** message should be processed */
+		PROCESS,
+		/** message should not be processed but it still takes its number in the archive */
+		SKIP,
+		/** message is not part of the public archive */
+		EXCLUDE
+	}
+
+	private final MessageFilter[] filters;
+	private final HeaderScanner scanner;
+	private final boolean excluding;
+
+	public MessageFilterChain(List<MessageFilter> filters) {
+		this.filters = filters.toArray(new MessageFilter[filters.size()]);
+		Set<String> names = new LinkedHashSet<>();
+		names.add(MESSAGE_ID); // for logging
+		boolean excluding = false;
+		for (MessageFilter filter : this.filters) {
+			Collections.addAll(names, filter.getHeaderNames());
+			excluding |= filter.isExcluding();
+		}
+		this.excluding = excluding;
+		this.scanner = new HeaderScanner(names.toArray(new String[names.size()]));
+	}
+
+	/**
+	 * @return chain accepting all messages
+	 */
+	public static MessageFilterChain empty() {
+		return new MessageFilterChain(Collections.<MessageFilter>emptyList());
+	}
+
+	/**
+	 * @return true if there are no filters
+	 */
+	public boolean isEmpty() {
+		return filters.length == 0;
+	}
+
+	/**
+	 * @return true if some messages can be excluded from the archive numbering
+	 */
+	public boolean isExcluding() {
+		return excluding;
+	}
+
+	/**
+	 * @param message raw message
+	 * @return {@link Decision#PROCESS} if all filters accept the message, {@link Decision#EXCLUDE} if it is
+	 * rejected by an excluding filter, {@link Decision#SKIP} otherwise
+	 */
+	public Decision filter(MboxMessage message) {
+		if (filters.length == 0) {
+			return Decision.PROCESS;
+		}
+		Map<String, String> headers = scanner.scan(message.getContent());
+		Decision decision = Decision.PROCESS;
+		for (MessageFilter filter : filters) {
+			if (!filter.accept(headers)) {
+				log.info("skipping message [{}] at offset [{}] ({})", new Object[]{headers.get(MESSAGE_ID), message.getOffset(), filter});
+				if (filter.isExcluding()) {
+					return Decision.EXCLUDE;
+				}
+				decision = Decision.SKIP;
+			}
+		}
+		return decision;
+	}
+
+	/**
+	 * @param message raw message
+	 * @return true if the message should be processed
+	 */
+	public boolean accept(MboxMessage message) {
+		return filter(message) == Decision.PROCESS;
+	}
+}
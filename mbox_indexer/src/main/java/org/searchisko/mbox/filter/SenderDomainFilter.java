@@ -0,0 +1,86 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.filter;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Filters out messages sent from given domains (including their sub-domains). Domain is taken from the last address
+ * in the From header field.
+ */
+public class SenderDomainFilter implements MessageFilter {
+
+	private static final String[] HEADER_NAMES = {"From"};
+
+	private final Set<String> domains = new HashSet<>();
+
+	/**
+	 * @param domains domains to filter out (case insensitive)
+	 */
+	public SenderDomainFilter(Collection<String> domains) {
+		for (String domain : domains) {
+			if (domain != null && !domain.trim().isEmpty()) {
+				this.domains.add(domain.trim().toLowerCase(Locale.ENGLISH));
+			}
+		}
+	}
+
+	@Override
+	public String[] getHeaderNames() {
+		return HEADER_NAMES;
+	}
+
+	@Override
+	public boolean accept(Map<String, String> headers) {
+		String domain = getDomain(headers.get("from"));
+		while (domain != null) {
+			if (domains.contains(domain)) {
+				return false;
+			}
+			int dot = domain.indexOf('.');
+			domain = dot > -1 ? domain.substring(dot + 1) : null;
+		}
+		return true;
+	}
+
+	/**
+	 * @param from value of From header field
+	 * @return lower-cased domain of the sender address or null if there is no address
+	 */
+	protected static String getDomain(String from) {
+		if (from == null) {
+			return null;
+		}
+		int at = from.lastIndexOf('@');
+		if (at < 0) {
+			return null;
+		}
+		int end = at + 1;
+		while (end < from.length() && "> \t,;)\"".indexOf(from.charAt(end)) < 0) {
+			end++;
+		}
+		String domain = from.substring(at + 1, end).toLowerCase(Locale.ENGLISH);
+		while (domain.endsWith(".")) {
+			domain = domain.substring(0, domain.length() - 1);
+		}
+		return domain.isEmpty() ? null : domain;
+	}
+
+	@Override
+	public boolean isExcluding() {
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "sender domain excluded";
+	}
+}
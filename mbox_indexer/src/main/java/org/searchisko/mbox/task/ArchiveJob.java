@@ -0,0 +1,92 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.task;
+
+import org.searchisko.mbox.archive.Checkpoint;
+import org.searchisko.mbox.dto.MailField;
+import org.searchisko.mbox.filter.MessageFilterChain;
+
+import java.io.File;
+import java.util.Set;
+
+/**
+ * Single mbox archive to be indexed by {@link IndexMboxArchive} together with mail list it belongs to
+ * and processing settings.
+ */
+public class ArchiveJob {
+
+	private final File file;
+	private final String mailListName;
+	private final String mailListCategory;
+	private final int numberOffset;
+
+	private MessageFilterChain filter = MessageFilterChain.empty();
+	private Integer numberOfReaders;
+	private File checkpointFile;
+	private boolean resume;
+	private Set<MailField> fields = MailField.all();
+
+	private volatile Checkpoint checkpoint;
+
+	/**
+	 * @param file mbox archive file
+	 * @param mailListName name of mail list, it is needed for document URL creation
+	 * @param mailListCategory mail list category
+	 * @param numberOffset public URL numbering offset
+	 */
+	public ArchiveJob(File file, String mailListName, String mailListCategory, int numberOffset) {
+		this.file = file;
+		this.mailListName = mailListName;
+		this.mailListCategory = mailListCategory;
+		this.numberOffset = numberOffset;
+	}
+
+	public ArchiveJob filter(MessageFilterChain filter) { this.filter = filter; return this; }
+	public ArchiveJob numberOfReaders(Integer num) { this.numberOfReaders = num; return this; }
+	public ArchiveJob checkpointFile(File file) { this.checkpointFile = file; return this; }
+	public ArchiveJob resume(boolean resume) { this.resume = resume; return this; }
+	public ArchiveJob fields(Set<MailField> fields) { this.fields = fields != null ? fields : MailField.all(); return this; }
+
+	public File getFile() { return this.file; }
+
+	public String getMailListName() { return this.mailListName; }
+
+	public String getMailListCategory() { return this.mailListCategory; }
+
+	public int getNumberOffset() { return this.numberOffset; }
+
+	/**
+	 * @return filter of messages to process, never null
+	 */
+	public MessageFilterChain getFilter() { return this.filter; }
+
+	public Integer getNumberOfReaders() { return this.numberOfReaders; }
+
+	/**
+	 * @return file to store the checkpoint to, null if the checkpoint is not stored
+	 */
+	public File getCheckpointFile() { return this.checkpointFile; }
+
+	public boolean isResume() { return this.resume; }
+
+	/**
+	 * @return body fields to send, never null
+	 */
+	public Set<MailField> getFields() { return this.fields; }
+
+	/**
+	 * @return progress of the job, null if the job has not been started yet
+	 */
+	public Checkpoint getCheckpoint() { return this.checkpoint; }
+
+	void setCheckpoint(Checkpoint checkpoint) { this.checkpoint = checkpoint; }
+
+	@Override
+	public String toString() {
+		return file + " [" + mailListName + ", " + mailListCategory + ", " + numberOffset + "]";
+	}
+}
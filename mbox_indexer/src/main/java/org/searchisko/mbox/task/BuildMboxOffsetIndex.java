@@ -0,0 +1,61 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.task;
+
+import org.searchisko.mbox.archive.MboxOffsetIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Given a single mbox archive file we scan it once and write sidecar index file with byte offset, length, ordinal
+ * number, Message-ID hash and date of every message (see {@link MboxOffsetIndex}). If the index file already exists
+ * and the archive has been only appended since then, only the new part of the archive is scanned.
+ * <p/>
+ * The <code>indexFilePath</code> is optional, by default the index is stored next to the archive with
+ * <code>.idx</code> suffix.
+ */
+public class BuildMboxOffsetIndex {
+
+	private static Logger log = LoggerFactory.getLogger(BuildMboxOffsetIndex.class);
+
+	/**
+	 * @param args see Class JavaDoc
+	 */
+	public static void main(String[] args) {
+
+		log.info("Job started.");
+
+		BuildMboxOffsetIndexOptions options = new BuildMboxOffsetIndexOptions();
+		options.parseArgs(args);
+		if (options.isValid()) {
+
+			File indexFile = options.getIndexFilePath() == null ?
+					MboxOffsetIndex.getDefaultIndexFile(options.getMboxFilePath()) : options.getIndexFilePath();
+
+			if (log.isDebugEnabled()) {
+				log.debug("CL parameters:");
+				log.debug("----------------------------------");
+				log.debug("mboxFilePath: {}", options.getMboxFilePath());
+				log.debug("indexFilePath: {}", indexFile);
+				log.debug("----------------------------------");
+			}
+
+			try {
+				long start = System.currentTimeMillis();
+				MboxOffsetIndex index = MboxOffsetIndex.update(options.getMboxFilePath(), indexFile);
+				log.info("Index of {} messages is up to date in {} millis", index.size(), System.currentTimeMillis() - start);
+			} catch (IOException e) {
+				log.error("Error occurred", e);
+			} finally {
+				log.info("Job finished.");
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.searchisko.mbox.task;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+
+import static org.kohsuke.args4j.ExampleMode.ALL;
+
+/**
+ * Options of the BuildMboxOffsetIndex task started from the command line.
+ */
+public class BuildMboxOffsetIndexOptions {
+
+	public static final String MBOX_FILE_PATH = "-mboxFilePath";
+	public static final String INDEX_FILE_PATH = "-indexFilePath";
+
+	private CmdLineParser parser;
+
+	private File mboxFilePath;
+
+	@Option(name = MBOX_FILE_PATH, usage = "path to mbox file", metaVar = "<path>")
+	public void setMboxFilePath(String input) throws CmdLineException {
+		mboxFilePath = new File(input);
+		if (!mboxFilePath.exists() || !mboxFilePath.canRead()) {
+			throw new CmdLineException(
+					this.parser,
+					new Throwable("Invalid " + MBOX_FILE_PATH + " value: " +
+							"file [" + input + "] does not exist or can not be read.")
+			);
+		}
+	}
+
+	@Option(name = "-offsetIndex", hidden = true)
+	private boolean offsetIndex;
+
+	@Option(name = INDEX_FILE_PATH, usage = "[optional] path to index file, defaults to <mboxFilePath>.idx", metaVar = "<path>")
+	private File indexFilePath;
+
+	public File getMboxFilePath() {
+		return this.mboxFilePath;
+	}
+
+	public File getIndexFilePath() {
+		return this.indexFilePath;
+	}
+
+	public boolean isValid() {
+		return (
+			mboxFilePath != null && mboxFilePath.exists() && mboxFilePath.canRead()
+		);
+	}
+
+	public static void main(String[] args) {
+		new BuildMboxOffsetIndexOptions().parseArgs(args);
+	}
+
+	protected void parseArgs(String[] args) {
+		CmdLineParser parser = new CmdLineParser(this);
+		this.parser = parser;
+
+		try {
+			parser.parseArgument(args);
+		} catch (CmdLineException e) {
+
+			System.err.println(e.getMessage());
+			System.err.println("java application.jar [options...] arguments...");
+			parser.printUsage(System.err);
+			System.err.println();
+			System.err.println("  Example: java application.jar " + parser.printExample(ALL));
+
+//			return;
+		}
+	}
+}
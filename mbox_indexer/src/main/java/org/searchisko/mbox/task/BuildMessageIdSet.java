@@ -0,0 +1,62 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.task;
+
+import org.searchisko.mbox.util.MessageIdSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Convert list of Message-IDs given as properties file (Message-IDs are the keys, the same format as used by
+ * <code>excludeMessageIdListPath</code> option) into binary {@link MessageIdSet} file. Binary file can be used
+ * wherever the properties file is accepted, it is smaller and it loads much faster when the list is huge.
+ * <p/>
+ * The <code>outputPath</code> is optional, by default the binary file is stored next to the properties file
+ * with <code>.ids</code> suffix.
+ */
+public class BuildMessageIdSet {
+
+	private static Logger log = LoggerFactory.getLogger(BuildMessageIdSet.class);
+
+	/**
+	 * @param args see Class JavaDoc
+	 */
+	public static void main(String[] args) {
+
+		log.info("Job started.");
+
+		BuildMessageIdSetOptions options = new BuildMessageIdSetOptions();
+		options.parseArgs(args);
+		if (options.isValid()) {
+
+			File output = options.getOutputPath() == null ?
+					new File(options.getMessageIdListPath().getPath() + MessageIdSet.DEFAULT_SUFFIX) : options.getOutputPath();
+
+			if (log.isDebugEnabled()) {
+				log.debug("CL parameters:");
+				log.debug("----------------------------------");
+				log.debug("messageIdListPath: {}", options.getMessageIdListPath());
+				log.debug("outputPath: {}", output);
+				log.debug("----------------------------------");
+			}
+
+			try {
+				long start = System.currentTimeMillis();
+				MessageIdSet set = MessageIdSet.readProperties(options.getMessageIdListPath());
+				set.write(output);
+				log.info("Set of {} Message-IDs written in {} millis", set.size(), System.currentTimeMillis() - start);
+			} catch (IOException e) {
+				log.error("Error occurred", e);
+			} finally {
+				log.info("Job finished.");
+			}
+		}
+	}
+}
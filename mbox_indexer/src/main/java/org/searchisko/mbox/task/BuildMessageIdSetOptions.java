@@ -0,0 +1,81 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.searchisko.mbox.task;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+
+import static org.kohsuke.args4j.ExampleMode.ALL;
+
+/**
+ * Options of the BuildMessageIdSet task started from the command line.
+ */
+public class BuildMessageIdSetOptions {
+
+	public static final String MESSAGE_ID_LIST_PATH = "-messageIdListPath";
+	public static final String OUTPUT_PATH = "-outputPath";
+
+	private CmdLineParser parser;
+
+	private File messageIdListPath;
+
+	@Option(name = MESSAGE_ID_LIST_PATH, usage = "path to properties file containing list of Message-Ids", metaVar = "<path>")
+	public void setMessageIdListPath(String input) throws CmdLineException {
+		messageIdListPath = new File(input);
+		if (!messageIdListPath.exists() || !messageIdListPath.canRead()) {
+			throw new CmdLineException(
+					this.parser,
+					new Throwable("Invalid " + MESSAGE_ID_LIST_PATH + " value: " +
+							"file [" + input + "] does not exist or can not be read.")
+			);
+		}
+	}
+
+	@Option(name = "-messageIdSet", hidden = true)
+	private boolean messageIdSet;
+
+	@Option(name = OUTPUT_PATH, usage = "[optional] path to binary file, defaults to <messageIdListPath>.ids", metaVar = "<path>")
+	private File outputPath;
+
+	public File getMessageIdListPath() {
+		return this.messageIdListPath;
+	}
+
+	public File getOutputPath() {
+		return this.outputPath;
+	}
+
+	public boolean isValid() {
+		return (
+			messageIdListPath != null && messageIdListPath.exists() && messageIdListPath.canRead()
+		);
+	}
+
+	public static void main(String[] args) {
+		new BuildMessageIdSetOptions().parseArgs(args);
+	}
+
+	protected void parseArgs(String[] args) {
+		CmdLineParser parser = new CmdLineParser(this);
+		this.parser = parser;
+
+		try {
+			parser.parseArgument(args);
+		} catch (CmdLineException e) {
+
+			System.err.println(e.getMessage());
+			System.err.println("java application.jar [options...] arguments...");
+			parser.printUsage(System.err);
+			System.err.println();
+			System.err.println("  Example: java application.jar " + parser.printExample(ALL));
+
+//			return;
+		}
+	}
+}
@@ -6,17 +6,20 @@
 
 package org.searchisko.mbox.task;
 
-import org.apache.james.mime4j.MimeException;
-import org.apache.james.mime4j.dom.Message;
-import org.apache.james.mime4j.dom.MessageBuilder;
+import org.apache.http.entity.ContentProducer;
 import org.searchisko.http.client.Client;
+import org.searchisko.mbox.archive.MboxMessage;
 import org.searchisko.mbox.dto.Mail;
+import org.searchisko.mbox.dto.MailField;
+import org.searchisko.mbox.filter.ExcludeMessageIdFilter;
+import org.searchisko.mbox.filter.MessageFilter;
+import org.searchisko.mbox.filter.MessageFilterChain;
 import org.searchisko.mbox.json.Converter;
-import org.searchisko.mbox.parser.MessageParser;
+import org.searchisko.mbox.json.EncodedMetadata;
+import org.searchisko.mbox.parser.MessageStreamParser;
 import org.searchisko.mbox.util.ContentType;
 import org.searchisko.mbox.util.DirUtil;
 import org.searchisko.mbox.util.StringUtil;
-import org.searchisko.preprocessor.HTMLStripUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,13 +27,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import static org.searchisko.http.client.Client.getConfig;
-import static org.searchisko.mbox.parser.MessageParser.getMessageBuilder;
 
 /**
  * Given path to a folder <code>pathToDeltaArchive</code> we read list of files in it (no recursion).
@@ -56,6 +61,10 @@ import static org.searchisko.mbox.parser.MessageParser.getMessageBuilder;
  * able to handle this number of incoming connections.
  * <p/>
  * Each remaining file is <b>deleted</b> immediately after it is processed successfully.
+ * <p/>
+ * The <code>excludeMessageIdListPath</code> is used if we need to exclude specific messages from processing (see
+ * {@link ExcludeMessageIdFilter}). Files of excluded messages are <b>deleted</b> without processing. This is
+ * an optional parameter.
  *
  * @author Lukáš Vlček (lvlcek@redhat.com)
  *
@@ -68,8 +77,8 @@ import static org.searchisko.mbox.parser.MessageParser.getMessageBuilder;
 public class IndexDeltaFolder {
 
 	private static Logger log = LoggerFactory.getLogger(IndexDeltaFolder.class);
-	private static MessageBuilder mb;
 	private static Client httpClient;
+	private static MessageFilterChain filter = MessageFilterChain.empty();
 
 	private static Runnable prepareTask(final File file) {
 		return new Runnable() {
@@ -82,13 +91,19 @@ public class IndexDeltaFolder {
 				String messageId;
 				try {
 
-					Map<String, String> metadata = new HashMap<>();
+					final Map<String, String> metadata = new HashMap<>();
 					metadata.put("sys_view_url", mailURL);
-					metadata.put("project", info.getProject());
-					metadata.put("mail_list_category", info.getListType());
+					final EncodedMetadata listMetadata = ListMetadata.get(info.getProject(), info.getListType());
+
+					MboxMessage source = new MboxMessage(0, ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+					if (!filter.accept(source)) {
+						if (!file.delete()) {
+							log.error("Could not delete excluded file {}, does it exist? {}", file.getName(), file.exists());
+						}
+						return;
+					}
 
-					Message message = mb.parseMessage(new FileInputStream(file));
-					Mail mail = MessageParser.parse(message);
+					final Mail mail = MessageStreamParser.parse(source.getInputStream());
 					messageId = mail.message_id(); // "sys_content_id"
 
 					String sysContent = mail.first_text_message_without_quotes();
@@ -97,13 +112,18 @@ public class IndexDeltaFolder {
 						sysContent = mail.first_text_message();
 					}
 					if (sysContent == null || sysContent.trim().isEmpty()) {
-						sysContent = HTMLStripUtil.stripHTML(mail.first_html_message());
+						sysContent = mail.first_html_text();
 					}
 					metadata.put("sys_content", sysContent);
 					metadata.put("sys_content_content-type", sysContentContentType);
 
 					metadata.put("sys_description", mail.message_snippet());
-					String messageJSON = Converter.toJSON(mail, metadata);
+					ContentProducer messageJSON = new ContentProducer() {
+						@Override
+						public void writeTo(OutputStream os) throws IOException {
+							Converter.writeJSON(mail, listMetadata, metadata, MailField.all(), os);
+						}
+					};
 
 					Object response = httpClient.post(messageJSON, messageId);
 
@@ -214,21 +234,12 @@ public class IndexDeltaFolder {
 	}
 
 	/**
-	 * This method is not thread safe.
-	 *
 	 * @param filesToProcess
 	 * @param executor
 	 */
 	public static void index(File[] filesToProcess, ThreadPoolExecutor executor) {
 		log.info("Starting to index {} files", filesToProcess.length);
 		if (filesToProcess.length > 0) {
-			try {
-				mb = getMessageBuilder(); // not thread safe
-			} catch (MimeException e) {
-				log.error("Could not get MessageBuilder", e);
-				throw new RuntimeException(e);
-			}
-
 			for (File file : filesToProcess) {
 				executor.submit(prepareTask(file));
 			}
@@ -250,6 +261,7 @@ public class IndexDeltaFolder {
 				log.debug("pathToDeltaArchive: {}", options.getPathToDeltaArchive());
 				log.debug("numberOfThreads: {} (avail_cores: {})", new Object[]{options.getNumberOfThreads(), Runtime.getRuntime().availableProcessors()});
 				log.debug("activeMailListsConf: {}", options.getActiveMailListsConf());
+				log.debug("excludeMessageIdListPath: {}", options.getExcludeMessageIdListPath());
 				log.debug("----------------------------------");
 			}
 
@@ -281,12 +293,16 @@ public class IndexDeltaFolder {
 				prop.load(new FileInputStream(options.getActiveMailListsConf()));
 				Collection<String> activeMailLists = prop.stringPropertyNames();
 
+				if (options.getExcludeMessageIdListPath() != null) {
+					filter = new MessageFilterChain(Collections.<MessageFilter>singletonList(
+							ExcludeMessageIdFilter.load(options.getExcludeMessageIdListPath())));
+				}
+
 				File[] files = read(options.getPathToDeltaArchive());
 				files = filter(files, activeMailLists);
 				index(files, executor);
 
-				executor.shutdown();
-				executor.awaitTermination(10L, TimeUnit.SECONDS);
+				IndexMboxArchive.awaitTermination(executor);
 
 			} catch (IOException e) {
 				log.error("Error occurred", e);
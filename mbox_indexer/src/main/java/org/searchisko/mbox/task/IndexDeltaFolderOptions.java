@@ -29,6 +29,7 @@ public class IndexDeltaFolderOptions {
 	public static final String USERNAME = "-username";
 	public static final String PASSWORD = "-password";
 	public static final String ACTIVE_MAIL_LISTS_CONF = "-activeMailListsConf";
+	public static final String EXCLUDE_MESSAGE_ID_LIST_PATH = "-excludeMessageIdListPath";
 
 	private CmdLineParser parser;
 
@@ -81,6 +82,20 @@ public class IndexDeltaFolderOptions {
 		}
 	}
 
+	private File excludeMessageIdListPath;
+
+	@Option(name = EXCLUDE_MESSAGE_ID_LIST_PATH, usage = "[optional] path to properties file (or binary Message-ID set file) containing list of Message-Ids to skip", metaVar = "<path>")
+	public void setExcludeMessageIdListPath(String input) throws CmdLineException {
+		excludeMessageIdListPath = new File(input);
+		if (!excludeMessageIdListPath.exists() || !excludeMessageIdListPath.canRead()) {
+			throw new CmdLineException(
+					this.parser,
+					new Throwable("Invalid " + EXCLUDE_MESSAGE_ID_LIST_PATH + " value: " +
+							"file [" + input + "] does not exist or can not be read.")
+			);
+		}
+	}
+
 	public File getPathToDeltaArchive() {
 		return this.pathToDeltaArchive;
 	}
@@ -113,6 +128,10 @@ public class IndexDeltaFolderOptions {
 		return this.activeMailListsConf;
 	}
 
+	public File getExcludeMessageIdListPath() {
+		return this.excludeMessageIdListPath;
+	}
+
 	public boolean isValid() {
 		return (
 			pathToDeltaArchive != null && pathToDeltaArchive.exists() && pathToDeltaArchive.canRead() &&
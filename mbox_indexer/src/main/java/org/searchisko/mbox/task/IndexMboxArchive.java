@@ -6,16 +6,34 @@
 
 package org.searchisko.mbox.task;
 
-import org.apache.james.mime4j.MimeException;
-import org.apache.james.mime4j.dom.Message;
-import org.apache.james.mime4j.dom.MessageBuilder;
+import org.apache.http.entity.ContentProducer;
 import org.searchisko.http.client.Client;
+import org.searchisko.mbox.archive.Checkpoint;
+import org.searchisko.mbox.archive.Compression;
+import org.searchisko.mbox.archive.MappedMboxSplitter;
+import org.searchisko.mbox.archive.MboxMessage;
+import org.searchisko.mbox.archive.MboxOffsetIndex;
+import org.searchisko.mbox.archive.MboxRanges;
+import org.searchisko.mbox.archive.MboxSplitter;
+import org.searchisko.mbox.archive.StreamMboxSplitter;
 import org.searchisko.mbox.dto.Mail;
+import org.searchisko.mbox.dto.MailField;
+import org.searchisko.mbox.filter.DateRangeFilter;
+import org.searchisko.mbox.filter.ExcludeMessageIdFilter;
+import org.searchisko.mbox.filter.MessageFilter;
+import org.searchisko.mbox.filter.MessageFilterChain;
+import org.searchisko.mbox.filter.SenderDomainFilter;
 import org.searchisko.mbox.json.Converter;
+import org.searchisko.mbox.json.EncodedMetadata;
+import org.searchisko.mbox.parser.AttachmentExtractor;
+import org.searchisko.mbox.parser.AttachmentTextCache;
+import org.searchisko.mbox.parser.CharsetDetection;
+import org.searchisko.mbox.parser.MailCallback;
+import org.searchisko.mbox.parser.MessageParseException;
 import org.searchisko.mbox.parser.MessageParser;
+import org.searchisko.mbox.parser.MessageStreamParser;
 import org.searchisko.mbox.util.ContentType;
 import org.searchisko.mbox.util.StringUtil;
-import org.searchisko.preprocessor.HTMLStripUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,18 +42,23 @@ import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static org.searchisko.http.client.Client.getConfig;
-import static org.searchisko.mbox.parser.MessageParser.getMessageBuilder;
-import static org.searchisko.mbox.parser.MessageParser.getMessageHeaders;
 
 /**
- * Given a single mbox archive file (can be huge) we read it line by line and every time a complete message is red we
- * pass that message for processing to parallel thread. Yet, we are using ThreadPoolExecutor with BlockingQueue to
- * throttle number of parallel tasks in order not to exhaust all system resources.
+ * Given a single mbox archive file (can be huge) we memory map it and split it into messages directly in bytes
+ * (see {@link MappedMboxSplitter}). Every message is passed for processing to parallel thread as a slice of the mapped
+ * file, no charset decoding or copying takes place in the `main` thread. Yet, we are using ThreadPoolExecutor with
+ * BlockingQueue to throttle number of parallel tasks in order not to exhaust all system resources.
  * <p/>
  * Each thread is responsible for parsing the mail message, converting it to JSON and then sending it to Searchisko
  * for indexing via HttpClient. When HttpClient sends Http request it blocks the thread until the response is received
@@ -54,7 +77,50 @@ import static org.searchisko.mbox.parser.MessageParser.getMessageHeaders;
  * case we can use value 0.
  * <p/>
  * The <code>excludeMessageIdListPath</code> is used if we need to exclude specific messages from processing. This is
- * an optional parameter.
+ * an optional parameter. Messages can be filtered by Date (<code>dateFrom</code>, <code>dateTo</code>) and by sender
+ * domain (<code>excludeSenderDomains</code>) as well, such messages are not processed but they keep their numbers in
+ * the archive (unlike excluded Message-Ids). All filters are evaluated on header fields taken directly from raw
+ * message bytes (see {@link MessageFilterChain}), so filtered messages are never parsed.
+ * <p/>
+ * The <code>numberOfReaders</code> can be used to split the archive into N byte ranges (aligned to message boundaries)
+ * which are then read by N parallel threads. Because the public URL number depends on the order of the message in the
+ * archive we first count messages in every range (this is a cheap byte scan, or it is taken from valid offset index
+ * if there is one next to the archive, see {@link MboxOffsetIndex}) and every range then continues numbering
+ * where the preceding range ends. This is an optional parameter, by default the archive is read by the `main`
+ * thread only.
+ * <p/>
+ * The archive can be compressed by gzip, bzip2 or xz (detected from the file content). Such archive is decompressed
+ * on the fly by a background thread and split by {@link StreamMboxSplitter}, no uncompressed copy is written to disk.
+ * Members of multi-member gzip file are inflated in parallel, in this case <code>numberOfReaders</code> is the number
+ * of parallel inflaters (it defaults to number of available processors). Every inflater can hold up to 16 MB of
+ * decompressed members inflated ahead (see {@link org.searchisko.mbox.util.ParallelGzipInputStream}). Compressed
+ * archive can not be read in byte ranges.
+ * <p/>
+ * The <code>checkpointPath</code> is used to periodically store progress of the job (see {@link Checkpoint}). If the job
+ * is started with <code>resume</code> option then it continues from the last stored checkpoint (keeping the same
+ * message numbering), by default the checkpoint is stored next to the archive (<code>&lt;mboxFilePath&gt;.checkpoint</code>).
+ * Messages which could not be sent to Searchisko are sent again when resumed, messages which could not be parsed
+ * are not. If there is no checkpoint yet the job starts from the beginning.
+ * <p/>
+ * The <code>fields</code> option limits body fields sent to Searchisko (see {@link MailField}), body content which is
+ * needed neither by requested fields nor by <code>sys_content</code> and <code>sys_description</code> is not parsed
+ * at all. By default all fields are sent.
+ * <p/>
+ * The <code>bodyStorageThreshold</code> is used to keep message bodies (typically big attachments) bigger than the
+ * given number of bytes in temporary files (in <code>bodyStorageDir</code>) instead of memory, so that memory needed
+ * by parallel threads does not depend on size of attachments. By default all bodies are kept in memory.
+ * <p/>
+ * The <code>attachmentThreads</code> option moves text extraction of attachments to its own pool of threads with
+ * <code>attachmentTimeout</code> limit per attachment (see {@link AttachmentExtractor}), so threads sending messages
+ * are not blocked by big attachments: once text extraction of its attachments ends a message is sent by one of
+ * <code>attachmentThreads</code> sender threads and the job waits for such messages before it finishes. The number of
+ * messages waiting for extraction or sending is limited, threads parsing messages wait when it is reached. The
+ * <code>attachmentWorkers</code> option runs Tika in that number of forked JVMs with <code>attachmentWorkerHeap</code>
+ * megabytes of heap each, so documents which need a lot of memory or never finish do not affect heap of the indexer.
+ * <p/>
+ * The <code>attachmentCacheDir</code> option keeps text extracted from attachments on disk (at most
+ * <code>attachmentCacheSize</code> megabytes, see {@link AttachmentTextCache}), so attachments repeated in many
+ * messages or indexed again are not parsed again.
  *
  * @author Lukáš Vlček (lvlcek@redhat.com)
  *
@@ -66,91 +132,242 @@ import static org.searchisko.mbox.parser.MessageParser.getMessageHeaders;
 public class IndexMboxArchive {
 
 	private static Logger log = LoggerFactory.getLogger(IndexMboxArchive.class);
-	private static MessageBuilder mb;
 	private static Client httpClient;
 	private static AtomicLong taskCount = new AtomicLong();
-	private static long messageCount = 0;
+	private static final long CHECKPOINT_INTERVAL = 10;
+	private static final long TERMINATION_TIMEOUT = 10 * 1000L;
+	private static final PendingMessages pendingMessages = new PendingMessages();
+	private static ExecutorService senders;
+
+	/**
+	 * Fields <code>sys_content</code> and <code>sys_description</code> are created from.
+	 */
+	private static final Set<MailField> METADATA_FIELDS = Collections.unmodifiableSet(EnumSet.of(
+			MailField.MESSAGE_SNIPPET, MailField.FIRST_TEXT_MESSAGE, MailField.FIRST_TEXT_MESSAGE_WITHOUT_QUOTES,
+			MailField.FIRST_HTML_MESSAGE));
 
 	/**
 	 *
-	 * @param messageString raw message as a string. Can be null.
-	 * @param message parsed message. Can be null.
+	 * @param source raw message bytes
 	 * @param mailListName
 	 * @param mailListCategory
+	 * @param fields body fields to send
 	 * @param cnt order # of this message within the single cumulative mbox archive file
+	 * @param progress checkpoint range to report the result to. Can be null.
 	 * @return
 	 */
-	private static Runnable prepareTask(final String messageString, final Message message, final String mailListName, final String mailListCategory, final long cnt) {
+	private static Runnable prepareTask(final MboxMessage source, final String mailListName, final String mailListCategory,
+										final Set<MailField> fields, final long cnt, final Checkpoint.Range progress) {
+		final Set<MailField> parsedFields = getParsedFields(fields);
 		return new Runnable() {
 			@Override
 			public void run() {
-				// 1. Convert mail to JSON representation with added metadata.
-				// 2. Send mail to the server, using blocking operation.
-				long taskId = taskCount.incrementAndGet();
+				// 1. Parse mail, the task does not wait for text extraction of attachments.
+				// 2. Once the mail is complete convert it to JSON representation with added metadata.
+				// 3. Send mail to the server, using blocking operation.
+				final long taskId = taskCount.incrementAndGet();
 				log.debug("starting task [{}]", taskId);
-				if (messageString == null && message == null) {
-					log.error("Missing message source. Either raw message string or parsed message must be provided. Exit task {}", taskId);
+				final Thread worker = Thread.currentThread();
+				try {
+					pendingMessages.add();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					log.warn("Task [{}] interrupted while waiting for pending messages", taskId);
+					report(progress, false, cnt, source);
 					return;
 				}
-				String messageId = null;
 				try {
-					Message msg;
-					if (messageString != null) {
-						msg = mb.parseMessage(new ByteArrayInputStream(messageString.getBytes()));
-					} else {
-					    msg = message;
-					}
+					MessageStreamParser.parse(source.getInputStream(), null, null, parsedFields, new MailCallback() {
+						@Override
+						public void completed(final Mail mail) {
+							if (Thread.currentThread() == worker) {
+								postMail(mail, source, mailListName, mailListCategory, fields, cnt, progress, taskId);
+							} else {
+								send(new Runnable() {
+									@Override
+									public void run() {
+										postMail(mail, source, mailListName, mailListCategory, fields, cnt, progress, taskId);
+									}
+								});
+							}
+						}
+
+						@Override
+						public void failed(MessageParseException e) {
+							parseFailed(e, source, cnt, progress, taskId);
+						}
+					});
+				} catch (Exception e) {
+					parseFailed(e, source, cnt, progress, taskId);
+				}
+			}
+		};
+	}
 
-					String document_url = getDocumentUrl(msg, mailListName, cnt);
+	/**
+	 * Start pool of threads which send messages completed by attachment extraction threads, so that extraction and
+	 * its timeouts are not held up by HTTP requests.
+	 *
+	 * @param threads number of sender threads
+	 * @param maxPendingMessages max number of parsed messages which are not sent yet, tasks wait for them to be sent
+	 */
+	static synchronized void startSenders(int threads, long maxPendingMessages) {
+		stopSenders();
+		senders = Executors.newFixedThreadPool(threads);
+		pendingMessages.setLimit(maxPendingMessages);
+	}
 
-					// add missing metadata
-					Map<String, String> metadata = new HashMap<>();
-					metadata.put("sys_url_view", document_url);
-					metadata.put("project", StringUtil.getProjectName(mailListName, mailListCategory));
-					metadata.put("mail_list_category", mailListCategory);
+	/**
+	 * Stop pool of sender threads, messages which are not sent yet are dropped.
+	 */
+	static synchronized void stopSenders() {
+		if (senders != null) {
+			senders.shutdownNow();
+			senders = null;
+		}
+		pendingMessages.setLimit(Long.MAX_VALUE);
+	}
 
-					Mail mail = MessageParser.parse(msg);
-					messageId = mail.message_id(); // "sys_content_id"
+	/**
+	 * Send message in the pool of sender threads, in the calling thread if the pool is not started or it is shut down.
+	 */
+	private static void send(Runnable post) {
+		ExecutorService s;
+		synchronized (IndexMboxArchive.class) {
+			s = senders;
+		}
+		if (s != null) {
+			try {
+				s.execute(post);
+				return;
+			} catch (RejectedExecutionException e) {
+				log.debug("Sending rejected, sending in calling thread");
+			}
+		}
+		post.run();
+	}
 
-					String sysContent = mail.first_text_message_without_quotes();
-					String sysContentContentType = ContentType.TEXT_PLAIN;
-					if (sysContent == null || sysContent.trim().isEmpty()) {
-						sysContent = mail.first_text_message();
-					}
-					if (sysContent == null || sysContent.trim().isEmpty()) {
-						sysContent = HTMLStripUtil.stripHTML(mail.first_html_message());
-					}
-					metadata.put("sys_content", sysContent);
-					metadata.put("sys_content_content-type", sysContentContentType);
+	/**
+	 * Send parsed mail, it is called by the task thread or by a sender thread.
+	 */
+	private static void postMail(final Mail mail, MboxMessage source, String mailListName, String mailListCategory,
+								 final Set<MailField> fields, long cnt, Checkpoint.Range progress, long taskId) {
+		String messageId = null;
+		boolean acknowledged = false;
+		try {
+			messageId = mail.message_id(); // "sys_content_id"
+
+			String document_url = getDocumentUrl(mail.dateUTC(), mailListName, cnt);
+
+			// add missing metadata
+			final Map<String, String> metadata = new HashMap<>();
+			metadata.put("sys_url_view", document_url);
+			final EncodedMetadata listMetadata = ListMetadata.get(StringUtil.getProjectName(mailListName, mailListCategory), mailListCategory);
+
+			String sysContent = mail.first_text_message_without_quotes();
+			String sysContentContentType = ContentType.TEXT_PLAIN;
+			if (sysContent == null || sysContent.trim().isEmpty()) {
+				sysContent = mail.first_text_message();
+			}
+			if (sysContent == null || sysContent.trim().isEmpty()) {
+				sysContent = mail.first_html_text();
+			}
+			metadata.put("sys_content", sysContent);
+			metadata.put("sys_content_content-type", sysContentContentType);
+
+			metadata.put("sys_description", mail.message_snippet());
+			ContentProducer messageJSON = new ContentProducer() {
+				@Override
+				public void writeTo(OutputStream os) throws IOException {
+					Converter.writeJSON(mail, listMetadata, metadata, fields, os);
+				}
+			};
 
-					metadata.put("sys_description", mail.message_snippet());
-					String messageJSON = Converter.toJSON(mail, metadata);
+			Object response = httpClient.post(messageJSON, messageId);
+			acknowledged = true;
 
-					Object response = httpClient.post(messageJSON, messageId);
+			log.trace("{}", response);
 
-					log.trace("{}", response);
+		} catch (Exception e) {
+			log.warn("Error processing message {} in task [{}], caused: {}", new Object[]{messageId, taskId, e.getMessage()});
+		} finally {
+			report(progress, acknowledged, cnt, source);
+			pendingMessages.remove();
+		}
+	}
 
-				} catch (Exception e) {
-					log.warn("Error processing message {} in task [{}], caused: {}", new Object[]{messageId, taskId, e.getMessage()});
-				}
+	private static void parseFailed(Exception e, MboxMessage source, long cnt, Checkpoint.Range progress, long taskId) {
+		log.warn("Error processing message {} in task [{}], caused: {}", new Object[]{null, taskId, e.getMessage()});
+		// message which can not be parsed will not be indexed when resumed either
+		report(progress, true, cnt, source);
+		pendingMessages.remove();
+	}
 
+	/**
+	 * @param progress checkpoint range to report the result to. Can be null.
+	 */
+	private static void report(Checkpoint.Range progress, boolean acknowledged, long cnt, MboxMessage source) {
+		if (progress != null) {
+			if (acknowledged) {
+				progress.acknowledge(cnt, source.getEndOffset());
+			} else {
+				progress.fail(cnt);
 			}
-		};
+		}
+	}
+
+	/**
+	 * Wait for tasks of the executor and for messages they parsed, messages can wait for text extraction of their
+	 * attachments (see {@link AttachmentExtractor#getCompletionTimeout()}) after their tasks ended.
+	 *
+	 * @param executor
+	 * @throws InterruptedException
+	 */
+	static void awaitTermination(ThreadPoolExecutor executor) throws InterruptedException {
+		long timeout = TERMINATION_TIMEOUT + AttachmentExtractor.getCompletionTimeout();
+		executor.shutdown();
+		executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+		if (!pendingMessages.await(timeout)) {
+			log.warn("{} messages are still waiting for attachment extraction", pendingMessages.size());
+		}
+	}
+
+	/**
+	 * @param numberOfThreads number of task threads
+	 * @param numberOfSenders number of sender threads (the same as number of attachment extraction threads)
+	 * @return max number of parsed messages which are not sent yet: messages in tasks, messages waiting for running
+	 * and queued extractions and the same number waiting for sender threads
+	 */
+	static long getMaxPendingMessages(int numberOfThreads, int numberOfSenders) {
+		return 2L * (numberOfThreads + 2L * numberOfSenders);
+	}
+
+	/**
+	 * @param fields body fields to send
+	 * @return fields which have to be parsed to send given fields and metadata
+	 */
+	static Set<MailField> getParsedFields(Set<MailField> fields) {
+		if (fields.containsAll(METADATA_FIELDS)) {
+			return fields;
+		}
+		Set<MailField> parsed = EnumSet.copyOf(METADATA_FIELDS);
+		parsed.addAll(fields);
+		return parsed;
 	}
 
 	/**
 	 * Construct public URL for given message.
 	 * TODO: this needs to be configurable going forward.
-	 * @param message
+	 * @param date message date as formatted by {@link MessageParser#defaultDatePrinter}
 	 * @param mailListName
 	 * @param cnt order # of this message within mbox file (single cumulative file)
 	 * @return
 	 */
-	protected static String getDocumentUrl(final Message message, final String mailListName, final long cnt) {
+	protected static String getDocumentUrl(final String date, final String mailListName, final long cnt) {
 		// our Mailman is in specific times zone, this has impact on how it constructs URLs
 		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MMMMM", Locale.US);
 		sdf.setTimeZone(TimeZone.getTimeZone("EST"));
-		return "http://lists.jboss.org/pipermail/"+mailListName+"/"+sdf.format(message.getDate())+"/"+String.format("%06d",cnt)+".html";
+		return "http://lists.jboss.org/pipermail/"+mailListName+"/"+sdf.format(new Date(MessageParser.defaultDatePrinter.parseMillis(date)))+"/"+String.format("%06d",cnt)+".html";
 	}
 
 	public static File getFile(String path) {
@@ -178,23 +395,293 @@ public class IndexMboxArchive {
 	}
 
 
-	private static void processMessageBuffer(ThreadPoolExecutor executor, Properties excludeMessageIds, StringBuilder messageSB, String mailListName, String mailListCategory, int offset) throws IOException, MimeException {
-		if (messageSB.length() > 0) {
-			String messageString = messageSB.toString();
-			Message message = null;
-			boolean filterOut = false;
-			if (excludeMessageIds != null && !excludeMessageIds.isEmpty()) {
-				message = mb.parseMessage(new ByteArrayInputStream(messageString.getBytes()));
-				String messageId = getMessageHeaders(message).get(MessageParser.MessageHeader.MESSAGE_ID.toString()).getBody();
-				filterOut = excludeMessageIds.containsKey(messageId) ? true : false;
-				if (filterOut) log.info("skipping message [{}]", messageId);
+	/**
+	 * @return true if the message takes number <code>cnt</code>, i.e. it was submitted for processing or it was skipped
+	 * by a filter which does not exclude it from the archive
+	 */
+	private static boolean processMessage(ThreadPoolExecutor executor, MessageFilterChain filter, MboxMessage source, String mailListName, String mailListCategory,
+										  Set<MailField> fields, Checkpoint.Range progress, long cnt) {
+		if (source.getLength() == 0) {
+			return false;
+		}
+		switch (filter.filter(source)) {
+			case PROCESS:
+				executor.submit(prepareTask(source, mailListName, mailListCategory, fields, cnt, progress));
+				return true;
+			case SKIP:
+				progress.acknowledge(cnt, source.getEndOffset());
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Set the Client used to send messages. This must be called before any job is submitted.
+	 * @param client
+	 */
+	static void setup(Client client) {
+		httpClient = client;
+	}
+
+	/**
+	 * Read all messages of the archive and submit them for processing. It returns once the last message is submitted,
+	 * it does not wait for processing of the messages. Checkpoint of the job is available since the first message
+	 * is submitted.
+	 *
+	 * @param executor
+	 * @param job
+	 * @return number of messages submitted for processing (including messages skipped by not excluding filters)
+	 * @throws Exception
+	 */
+	static long submit(ThreadPoolExecutor executor, ArchiveJob job) throws Exception {
+		File file = job.getFile();
+		MessageFilterChain filter = job.getFilter();
+		Integer numberOfReaders = job.getNumberOfReaders();
+
+		Compression compression = Compression.detect(file);
+		boolean parallelRanges = numberOfReaders != null && numberOfReaders > 1;
+		if (compression != Compression.NONE && parallelRanges) {
+			log.info("Compressed archive can not be read in byte ranges, {} is used for decompression", IndexMboxArchiveOptions.NUMBER_OF_READERS);
+			parallelRanges = false;
+		}
+		int inflaters = numberOfReaders != null ? numberOfReaders : Runtime.getRuntime().availableProcessors();
+
+		Checkpoint checkpoint = null;
+		if (job.isResume()) {
+			checkpoint = readCheckpoint(job.getCheckpointFile(), file, compression);
+		}
+		if (checkpoint == null) {
+			checkpoint = parallelRanges ?
+					createRanges(filter, file, numberOfReaders, job.getNumberOffset()) :
+					Checkpoint.create(file, new long[]{0, -1}, new long[]{job.getNumberOffset()});
+		} else {
+			log.info("Resuming from checkpoint {}", job.getCheckpointFile());
+		}
+		job.setCheckpoint(checkpoint);
+
+		if (checkpoint.getRanges().size() > 1) {
+			return processRanges(executor, filter, file, checkpoint.getRanges(), job.getMailListName(), job.getMailListCategory(),
+					job.getFields());
+		}
+
+		Checkpoint.Range range = checkpoint.getRanges().get(0);
+		long first = range.getNumber();
+		long count = 0;
+		MboxSplitter splitter = openSplitter(file, compression, inflaters, range.getOffset());
+		try {
+			MboxMessage source;
+			while ((source = splitter.next()) != null) {
+				if (processMessage(executor, filter, source, job.getMailListName(), job.getMailListCategory(), job.getFields(), range, first + count)) {
+					count++;
+				}
+			}
+		} finally {
+			splitter.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Periodically write checkpoints of all started jobs which have checkpoint file set.
+	 * @return the writer, it has to be shut down once the jobs are done
+	 */
+	static ScheduledExecutorService startCheckpointWriter(final Collection<ArchiveJob> jobs) {
+		ScheduledExecutorService checkpointWriter = Executors.newSingleThreadScheduledExecutor();
+		checkpointWriter.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				writeCheckpoints(jobs);
+			}
+		}, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.SECONDS);
+		return checkpointWriter;
+	}
+
+	static void writeCheckpoints(Collection<ArchiveJob> jobs) {
+		for (ArchiveJob job : jobs) {
+			Checkpoint checkpoint = job.getCheckpoint();
+			if (checkpoint != null && job.getCheckpointFile() != null) {
+				try {
+					checkpoint.write(job.getCheckpointFile());
+				} catch (IOException e) {
+					log.warn("Can not write checkpoint {}: {}", job.getCheckpointFile(), e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Open splitter suitable for given archive file.
+	 * @param threads number of threads used for decompression of multi-member gzip file
+	 * @param start offset of the first message
+	 */
+	private static MboxSplitter openSplitter(File file, Compression compression, int threads, long start) throws IOException {
+		if (compression == Compression.NONE) {
+			return new MappedMboxSplitter(file, start, -1);
+		}
+		log.info("Decompressing {} archive", compression);
+		StreamMboxSplitter splitter = new StreamMboxSplitter(compression.open(file, threads));
+		splitter.skipTo(start);
+		return splitter;
+	}
+
+	/**
+	 * @return valid checkpoint to resume from or null if there is none
+	 */
+	private static Checkpoint readCheckpoint(File checkpointFile, File file, Compression compression) {
+		if (!checkpointFile.exists()) {
+			log.info("Checkpoint {} does not exist, starting from the beginning", checkpointFile);
+			return null;
+		}
+		try {
+			Checkpoint checkpoint = Checkpoint.read(checkpointFile);
+			if (!checkpoint.isValidFor(file) || (compression != Compression.NONE && checkpoint.getRanges().size() > 1)) {
+				log.warn("Checkpoint {} does not match the archive, starting from the beginning", checkpointFile);
+				return null;
+			}
+			return checkpoint;
+		} catch (IOException e) {
+			log.warn("Can not read checkpoint {}, starting from the beginning: {}", checkpointFile, e.getMessage());
+			return null;
+		}
+	}
+
+
+	/**
+	 * Create filter chain from the command line options.
+	 * @param excludeMessageIdList properties file with Message-IDs to exclude. Can be null.
+	 * @param dateFrom skip messages older than this. Can be null.
+	 * @param dateTo skip messages from this date on. Can be null.
+	 * @param excludeSenderDomains skip messages from these domains. Can be null.
+	 * @return filter chain, empty if no filter is given
+	 * @throws IOException if the exclusion list can not be read
+	 */
+	static MessageFilterChain createFilter(File excludeMessageIdList, Date dateFrom, Date dateTo, List<String> excludeSenderDomains) throws IOException {
+		List<MessageFilter> filters = new ArrayList<>();
+		if (excludeMessageIdList != null) {
+			filters.add(ExcludeMessageIdFilter.load(excludeMessageIdList));
+		}
+		if (dateFrom != null || dateTo != null) {
+			filters.add(new DateRangeFilter(dateFrom, dateTo));
+		}
+		if (excludeSenderDomains != null && !excludeSenderDomains.isEmpty()) {
+			filters.add(new SenderDomainFilter(excludeSenderDomains));
+		}
+		return new MessageFilterChain(filters);
+	}
+
+	/**
+	 * Split the archive into <code>numberOfReaders</code> ranges and count messages preceding every range.
+	 * @return checkpoint of all ranges before they are processed
+	 */
+	private static Checkpoint createRanges(final MessageFilterChain filter, final File file, final int numberOfReaders, final int offset) throws Exception {
+		long[] bounds = MboxRanges.split(file, 0, numberOfReaders);
+		ExecutorService readers = Executors.newFixedThreadPool(numberOfReaders);
+		try {
+			long[] first = countPrecedingMessages(readers, filter, file, bounds);
+			for (int i = 0; i < first.length; i++) {
+				first[i] += offset;
+			}
+			return Checkpoint.create(file, bounds, first);
+		} finally {
+			readers.shutdown();
+		}
+	}
+
+	/**
+	 * Process ranges of the archive in parallel, every range continues from its checkpoint.
+	 * @return number of messages submitted for processing (including messages skipped by not excluding filters)
+	 */
+	private static long processRanges(final ThreadPoolExecutor executor, final MessageFilterChain filter, final File file,
+									  final List<Checkpoint.Range> ranges, final String mailListName, final String mailListCategory,
+									  final Set<MailField> fields) throws Exception {
+
+		ExecutorService readers = Executors.newFixedThreadPool(ranges.size());
+		try {
+			List<Future<Long>> results = new ArrayList<>();
+			for (final Checkpoint.Range range : ranges) {
+				results.add(readers.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						long cnt = 0;
+						long first = range.getNumber();
+						MboxSplitter splitter = new MappedMboxSplitter(file, range.getOffset(), range.getEnd());
+						try {
+							MboxMessage source;
+							while ((source = splitter.next()) != null) {
+								if (processMessage(executor, filter, source, mailListName, mailListCategory, fields, range, first + cnt)) {
+									cnt++;
+								}
+							}
+						} finally {
+							splitter.close();
+						}
+						return cnt;
+					}
+				}));
+			}
+			long total = 0;
+			for (Future<Long> result : results) {
+				total += result.get();
+			}
+			return total;
+		} finally {
+			readers.shutdown();
+		}
+	}
+
+	/**
+	 * @return number of (not excluded) messages preceding every range
+	 */
+	private static long[] countPrecedingMessages(ExecutorService readers, final MessageFilterChain filter, final File file, final long[] bounds) throws Exception {
+		int numberOfRanges = bounds.length - 1;
+		long[] first = new long[numberOfRanges];
+
+		if (!filter.isExcluding()) {
+			MboxOffsetIndex index = null;
+			File indexFile = MboxOffsetIndex.getDefaultIndexFile(file);
+			if (indexFile.exists()) {
+				try {
+					index = MboxOffsetIndex.read(indexFile);
+				} catch (IOException e) {
+					log.warn("Can not read offset index {}: {}", indexFile, e.getMessage());
+				}
 			}
-			if (!filterOut) {
-				executor.submit(prepareTask(messageString, message, mailListName, mailListCategory, messageCount+offset));
-				messageCount++;
+			if (index != null && index.isValidFor(file)) {
+				log.debug("Using offset index {}", indexFile);
+				for (int i = 0; i < numberOfRanges; i++) {
+					first[i] = bounds[i] >= index.getArchiveSize() ? index.size() : index.findByOffset(bounds[i]);
+				}
+				return first;
 			}
-			messageSB.setLength(0);
 		}
+
+		List<Future<Long>> counts = new ArrayList<>();
+		for (int i = 0; i < numberOfRanges - 1; i++) {
+			final int range = i;
+			counts.add(readers.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					long cnt = 0;
+					MboxSplitter splitter = new MappedMboxSplitter(file, bounds[range], bounds[range + 1]);
+					try {
+						MboxMessage source;
+						while ((source = splitter.next()) != null) {
+							if (filter.filter(source) != MessageFilterChain.Decision.EXCLUDE) {
+								cnt++;
+							}
+						}
+					} finally {
+						splitter.close();
+					}
+					return cnt;
+				}
+			}));
+		}
+		for (int i = 1; i < numberOfRanges; i++) {
+			first[i] = first[i - 1] + counts.get(i - 1).get();
+		}
+		return first;
 	}
 
 	/**
@@ -219,7 +706,22 @@ public class IndexMboxArchive {
 				log.debug("mailListName: {}", options.getMailListName());
 				log.debug("mailListCategory: {}", options.getMailListCategory());
 				log.debug("offset: {}", offset);
-				log.debug("excludeMessageIdListPath: {}", excludeMessageIdListPath.getAbsolutePath());
+				log.debug("numberOfReaders: {}", options.getNumberOfReaders());
+				log.debug("checkpointPath: {}", options.getCheckpointPath());
+				log.debug("resume: {}", options.isResume());
+				log.debug("excludeMessageIdListPath: {}", excludeMessageIdListPath);
+				log.debug("dateFrom: {}", options.getDateFrom());
+				log.debug("dateTo: {}", options.getDateTo());
+				log.debug("excludeSenderDomains: {}", options.getExcludeSenderDomains());
+				log.debug("fields: {}", options.getFields());
+				log.debug("bodyStorageThreshold: {}", options.getBodyStorageThreshold());
+				log.debug("bodyStorageDir: {}", options.getBodyStorageDir());
+				log.debug("attachmentThreads: {}", options.getAttachmentThreads());
+				log.debug("attachmentTimeout: {}", options.getAttachmentTimeout());
+				log.debug("attachmentWorkers: {}", options.getAttachmentWorkers());
+				log.debug("attachmentWorkerHeap: {}", options.getAttachmentWorkerHeap());
+				log.debug("attachmentCacheDir: {}", options.getAttachmentCacheDir());
+				log.debug("attachmentCacheSize: {}", options.getAttachmentCacheSize());
 				log.debug("----------------------------------");
 			}
 
@@ -227,8 +729,12 @@ public class IndexMboxArchive {
 				throw new IllegalArgumentException("numberOfThreads must be at least 1");
 			}
 
+			// task can be executed in the reader threads as well (`main` thread or every thread reading a byte range)
+			int numberOfReaders = options.getNumberOfReaders() != null ? Math.max(1, options.getNumberOfReaders()) : 1;
+			// messages with attachments extracted in the pool are sent by sender threads
+			int numberOfSenders = options.getAttachmentThreads() != null ? options.getAttachmentThreads() : 0;
 			httpClient = new Client(getConfig()
-					.connectionsPerRoute(options.getNumberOfThreads() + 1) // because task can be executed in the `main` thread as well
+					.connectionsPerRoute(options.getNumberOfThreads() + numberOfReaders + numberOfSenders)
 					.serviceHost(options.getServiceHost())
 					.servicePath(options.getServicePath())
 					.contentType(options.getContentType())
@@ -236,9 +742,32 @@ public class IndexMboxArchive {
 					.password(options.getPassword())
 			);
 
-			FileReader mboxFileReader = null;
-			FileReader excludedIdsFileReader = null;
-			BufferedReader br = null;
+			ScheduledExecutorService checkpointWriter = null;
+			// progress is always stored, so that a job which crashed can be resumed
+			File checkpointFile = options.getCheckpointPath() != null ? options.getCheckpointPath() :
+					Checkpoint.getDefaultCheckpointFile(options.getMboxFilePath());
+
+			if (options.getBodyStorageThreshold() != null) {
+				MessageParser.setBodyStorage(options.getBodyStorageThreshold(), options.getBodyStorageDir());
+			}
+			if (options.getAttachmentThreads() != null) {
+				AttachmentExtractor.start(options.getAttachmentThreads(),
+						options.getAttachmentTimeout() != null ? options.getAttachmentTimeout() : AttachmentExtractor.DEFAULT_TIMEOUT);
+				startSenders(numberOfSenders, getMaxPendingMessages(options.getNumberOfThreads(), numberOfSenders));
+			}
+			if (options.getAttachmentWorkers() != null) {
+				AttachmentExtractor.startWorkers(options.getAttachmentWorkers(),
+						options.getAttachmentWorkerHeap() != null ? options.getAttachmentWorkerHeap() : AttachmentExtractor.DEFAULT_WORKER_HEAP,
+						options.getAttachmentTimeout() != null ? options.getAttachmentTimeout() : AttachmentExtractor.DEFAULT_TIMEOUT);
+			}
+			if (options.getAttachmentCacheDir() != null) {
+				try {
+					AttachmentExtractor.setTextCache(new AttachmentTextCache(options.getAttachmentCacheDir(),
+							options.getAttachmentCacheSize() != null ? options.getAttachmentCacheSize() : AttachmentTextCache.DEFAULT_MAX_SIZE));
+				} catch (IOException e) {
+					log.warn("Attachment text cache can not be used", e);
+				}
+			}
 
 			ThreadPoolExecutor executor = new ThreadPoolExecutor(
 					options.getNumberOfThreads(),
@@ -247,77 +776,45 @@ public class IndexMboxArchive {
 					new ArrayBlockingQueue<Runnable>(options.getNumberOfThreads(), true),
 					new ThreadPoolExecutor.CallerRunsPolicy());
 
+			ArchiveJob job = null;
 			try {
-				mb = getMessageBuilder();
+				setup(httpClient);
 
 				log.info("Processing file {}", options.getMboxFilePath());
-				mboxFileReader = new FileReader(options.getMboxFilePath());
-				Properties excludeMessageIds = new Properties();
-				// Note that if there are any Message-Ids to be excluded then we have to parse all messages
-				// in the main thread before they are handed to another thread for processing.
-				if (excludeMessageIdListPath != null) {
-					excludeMessageIds.load(new FileInputStream(options.getExcludeMessageIdListPath()));
-				}
-				br = new BufferedReader(mboxFileReader);
+				MessageFilterChain filter = createFilter(excludeMessageIdListPath, options.getDateFrom(), options.getDateTo(),
+						options.getExcludeSenderDomains());
 
-				String line;
-				StringBuilder messageSB = new StringBuilder();
-				String separator = System.getProperty("line.separator");
+				job = new ArchiveJob(options.getMboxFilePath(), options.getMailListName(), options.getMailListCategory(), offset)
+						.filter(filter)
+						.numberOfReaders(options.getNumberOfReaders())
+						.checkpointFile(checkpointFile)
+						.resume(options.isResume())
+						.fields(options.getFields());
 
 				Date start = new Date();
 
-				while ((line = br.readLine()) != null) {
-					if (line.startsWith("From ")) {
-						processMessageBuffer(executor, excludeMessageIds, messageSB, options.getMailListName(), options.getMailListCategory(), offset);
-					}
-					messageSB.append(line).append(separator);
+				if (checkpointFile != null) {
+					checkpointWriter = startCheckpointWriter(Collections.singletonList(job));
 				}
-				// process last message
-				processMessageBuffer(executor, excludeMessageIds, messageSB, options.getMailListName(), options.getMailListCategory(), offset);
+				long messageCount = submit(executor, job);
 
-				executor.shutdown();
-				executor.awaitTermination(10L, TimeUnit.SECONDS);
+				awaitTermination(executor);
 
 				Date end = new Date();
 
 				log.info("Processed {} mails in {} millis", messageCount, end.getTime() - start.getTime());
+				log.info("Charset detection - {}", CharsetDetection.getStats());
+				if (AttachmentExtractor.getTextCache() != null) {
+					log.info("Attachment text cache - {}", AttachmentExtractor.getTextCache().getStats());
+				}
 				log.debug("Tasks created: {}", taskCount.get());
 
 			} catch (IOException e) {
 				log.error("Error occurred", e);
-			} catch (MimeException e) {
-				log.error("Unable to instantiate MessageBuilder", e);
 			} catch (/*InterruptedException | */ Throwable e) {
 				log.error("Unexpected exception", e);
 			} finally {
 
-				if (br != null) {
-					try {
-						br.close();
-					} catch (IOException e) {
-						e.printStackTrace();
-						log.error("Error closing BufferedReader", e);
-					}
-				}
-
-				if (mboxFileReader != null) {
-					try {
-						mboxFileReader.close();
-					} catch (IOException e) {
-						e.printStackTrace();
-						log.error("Error closing mboxFileReader", e);
-					}
-				}
-
-				if (excludedIdsFileReader != null) {
-					try {
-						excludedIdsFileReader.close();
-					} catch (IOException e) {
-						e.printStackTrace();
-						log.error("Error closing excludedIdsFileReader", e);
-					}
-				}
-
 				// try to force executor termination if needed
 				if (!executor.isTerminated()) {
 					log.warn("Executor not terminated, forcing termination.");
@@ -325,6 +822,14 @@ public class IndexMboxArchive {
 					Thread.currentThread().interrupt();
 				}
 
+				AttachmentExtractor.shutdown();
+				stopSenders();
+
+				if (checkpointWriter != null) {
+					checkpointWriter.shutdownNow();
+					writeCheckpoints(Collections.singletonList(job));
+				}
+
 				log.info("Job finished.");
 			}
 		}
@@ -8,9 +8,18 @@ package org.searchisko.mbox.task;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
+import org.searchisko.mbox.dto.MailField;
 
 import java.io.File;
 import java.net.URI;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
 
 import static org.kohsuke.args4j.ExampleMode.ALL;
 
@@ -32,12 +41,27 @@ public class IndexMboxArchiveOptions {
 	public static final String MAIL_LIST_CATEGORY = "-mailListCategory";
 	public static final String NUMBER_OFFSET = "-numberOffset";
 	public static final String EXCLUDE_MESSAGE_ID_LIST_PATH = "-excludeMessageIdListPath";
+	public static final String DATE_FROM = "-dateFrom";
+	public static final String DATE_TO = "-dateTo";
+	public static final String EXCLUDE_SENDER_DOMAINS = "-excludeSenderDomains";
+	public static final String NUMBER_OF_READERS = "-numberOfReaders";
+	public static final String CHECKPOINT_PATH = "-checkpointPath";
+	public static final String RESUME = "-resume";
+	public static final String FIELDS = "-fields";
+	public static final String BODY_STORAGE_THRESHOLD = "-bodyStorageThreshold";
+	public static final String BODY_STORAGE_DIR = "-bodyStorageDir";
+	public static final String ATTACHMENT_THREADS = "-attachmentThreads";
+	public static final String ATTACHMENT_TIMEOUT = "-attachmentTimeout";
+	public static final String ATTACHMENT_WORKERS = "-attachmentWorkers";
+	public static final String ATTACHMENT_WORKER_HEAP = "-attachmentWorkerHeap";
+	public static final String ATTACHMENT_CACHE_DIR = "-attachmentCacheDir";
+	public static final String ATTACHMENT_CACHE_SIZE = "-attachmentCacheSize";
 
 	private CmdLineParser parser;
 
 	private File mboxFilePath;
 
-	@Option(name = MBOX_FILE_PATH, usage = "path to mbox file", metaVar = "<path>")
+	@Option(name = MBOX_FILE_PATH, usage = "path to mbox file (can be gzip, bzip2 or xz compressed)", metaVar = "<path>")
 	public void setMboxFilePath(String input) throws CmdLineException {
 		mboxFilePath = new File(input);
 		if (!mboxFilePath.exists() || !mboxFilePath.canRead()) {
@@ -78,7 +102,7 @@ public class IndexMboxArchiveOptions {
 
 	private File excludeMessageIdListPath;
 
-	@Option(name = EXCLUDE_MESSAGE_ID_LIST_PATH, usage = "[optional] path to properties file containing list of Message-Ids to skip", metaVar = "<path>")
+	@Option(name = EXCLUDE_MESSAGE_ID_LIST_PATH, usage = "[optional] path to properties file (or binary Message-ID set file) containing list of Message-Ids to skip", metaVar = "<path>")
 	public void setExcludeMessageIdListPath(String input) throws CmdLineException {
 		excludeMessageIdListPath = new File(input);
 		if (!excludeMessageIdListPath.exists() || !excludeMessageIdListPath.canRead()) {
@@ -90,6 +114,74 @@ public class IndexMboxArchiveOptions {
 		}
 	}
 
+	private Date dateFrom;
+
+	@Option(name = DATE_FROM, usage = "[optional] skip messages sent before this day (UTC)", metaVar = "<yyyy-MM-dd>")
+	public void setDateFrom(String input) throws CmdLineException {
+		dateFrom = parseDate(this.parser, DATE_FROM, input);
+	}
+
+	private Date dateTo;
+
+	@Option(name = DATE_TO, usage = "[optional] skip messages sent on this day (UTC) or later", metaVar = "<yyyy-MM-dd>")
+	public void setDateTo(String input) throws CmdLineException {
+		dateTo = parseDate(this.parser, DATE_TO, input);
+	}
+
+	private List<String> excludeSenderDomains;
+
+	@Option(name = EXCLUDE_SENDER_DOMAINS, usage = "[optional] comma separated list of sender domains to skip (including sub-domains)", metaVar = "<domains>")
+	public void setExcludeSenderDomains(String input) {
+		excludeSenderDomains = splitList(input);
+	}
+
+	@Option(name = NUMBER_OF_READERS, usage = "[optional] number of byte ranges of mbox file read in parallel (number of parallel inflaters for gzip file, every inflater can hold up to 16 MB of read-ahead data)")
+	private Integer numberOfReaders;
+
+	@Option(name = CHECKPOINT_PATH, usage = "[optional] path to file the progress is periodically stored to, defaults to <mboxFilePath>.checkpoint", metaVar = "<path>")
+	private File checkpointPath;
+
+	@Option(name = RESUME, usage = "[optional] continue from the last checkpoint, defaults to <mboxFilePath>.checkpoint")
+	private boolean resume;
+
+	private Set<MailField> fields;
+
+	@Option(name = FIELDS, usage = "[optional] comma separated list of mail body fields to send (message_snippet, first_text_message, ...), defaults to all", metaVar = "<fields>")
+	public void setFields(String input) throws CmdLineException {
+		try {
+			fields = MailField.parse(input);
+		} catch (IllegalArgumentException e) {
+			throw new CmdLineException(
+					this.parser,
+					new Throwable("Invalid " + FIELDS + " value: [" + input + "], valid fields are " + EnumSet.allOf(MailField.class))
+			);
+		}
+	}
+
+	@Option(name = BODY_STORAGE_THRESHOLD, usage = "[optional] message bodies (attachments) bigger than this number of bytes are stored in temporary files, by default all bodies are kept in memory")
+	private Integer bodyStorageThreshold;
+
+	@Option(name = BODY_STORAGE_DIR, usage = "[optional] directory for temporary files of message bodies, defaults to system temporary directory", metaVar = "<path>")
+	private File bodyStorageDir;
+
+	@Option(name = ATTACHMENT_THREADS, usage = "[optional] number of threads extracting text of attachments, by default the text is extracted by threads parsing messages")
+	private Integer attachmentThreads;
+
+	@Option(name = ATTACHMENT_TIMEOUT, usage = "[optional] max time in millis of text extraction of one attachment when " + ATTACHMENT_THREADS + " or " + ATTACHMENT_WORKERS + " is used, defaults to 60000")
+	private Long attachmentTimeout;
+
+	@Option(name = ATTACHMENT_WORKERS, usage = "[optional] number of forked JVMs extracting text of attachments, by default the text is extracted in this JVM")
+	private Integer attachmentWorkers;
+
+	@Option(name = ATTACHMENT_WORKER_HEAP, usage = "[optional] max heap size in megabytes of each JVM forked by " + ATTACHMENT_WORKERS + ", defaults to 256")
+	private Integer attachmentWorkerHeap;
+
+	@Option(name = ATTACHMENT_CACHE_DIR, usage = "[optional] directory of cache of text extracted from attachments, reused by next runs, by default no cache is used", metaVar = "<path>")
+	private File attachmentCacheDir;
+
+	@Option(name = ATTACHMENT_CACHE_SIZE, usage = "[optional] max size in megabytes of cache in " + ATTACHMENT_CACHE_DIR + ", defaults to 1024")
+	private Long attachmentCacheSize;
+
 	public File getMboxFilePath() {
 		return this.mboxFilePath;
 	}
@@ -134,6 +226,72 @@ public class IndexMboxArchiveOptions {
 		return this.excludeMessageIdListPath;
 	}
 
+	public Date getDateFrom() {
+		return this.dateFrom;
+	}
+
+	public Date getDateTo() {
+		return this.dateTo;
+	}
+
+	public List<String> getExcludeSenderDomains() {
+		return this.excludeSenderDomains;
+	}
+
+	public Integer getNumberOfReaders() {
+		return this.numberOfReaders;
+	}
+
+	public File getCheckpointPath() {
+		return this.checkpointPath;
+	}
+
+	public boolean isResume() {
+		return this.resume;
+	}
+
+	/**
+	 * @return requested mail body fields, null if all fields are requested
+	 */
+	public Set<MailField> getFields() {
+		return this.fields;
+	}
+
+	public Integer getBodyStorageThreshold() {
+		return this.bodyStorageThreshold;
+	}
+
+	public File getBodyStorageDir() {
+		return this.bodyStorageDir;
+	}
+
+	public Integer getAttachmentThreads() {
+		return this.attachmentThreads;
+	}
+
+	public Long getAttachmentTimeout() {
+		return this.attachmentTimeout;
+	}
+
+	public Integer getAttachmentWorkers() {
+		return this.attachmentWorkers;
+	}
+
+	public Integer getAttachmentWorkerHeap() {
+		return this.attachmentWorkerHeap;
+	}
+
+	public File getAttachmentCacheDir() {
+		return this.attachmentCacheDir;
+	}
+
+	/**
+	 * @return max size of attachment text cache in bytes, null if not set
+	 */
+	public Long getAttachmentCacheSize() {
+		return this.attachmentCacheSize == null ? null : this.attachmentCacheSize * 1024 * 1024;
+	}
+
 	public boolean isValid() {
 		return (
 			mboxFilePath != null && mboxFilePath.exists() && mboxFilePath.canRead() &&
@@ -144,10 +302,49 @@ public class IndexMboxArchiveOptions {
 			username != null && !username.trim().isEmpty() &&
 			password != null && !password.isEmpty() &&
 			mailListName != null && !mailListName.trim().isEmpty() &&
-			mailListCategory != null && !mailListCategory.trim().isEmpty()
+			mailListCategory != null && !mailListCategory.trim().isEmpty() &&
+			(numberOfReaders == null || numberOfReaders > 0) &&
+			(bodyStorageThreshold == null || bodyStorageThreshold >= 0) &&
+			(attachmentThreads == null || attachmentThreads > 0) &&
+			(attachmentTimeout == null || attachmentTimeout > 0) &&
+			(attachmentWorkers == null || attachmentWorkers > 0) &&
+			(attachmentWorkerHeap == null || attachmentWorkerHeap > 0) &&
+			(attachmentCacheSize == null || attachmentCacheSize > 0) &&
+			(dateFrom == null || dateTo == null || dateFrom.before(dateTo))
 		);
 	}
 
+	/**
+	 * Parse day given as <code>yyyy-MM-dd</code>.
+	 * @return start of the day in UTC
+	 */
+	static Date parseDate(CmdLineParser parser, String option, String input) throws CmdLineException {
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+		sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+		sdf.setLenient(false);
+		try {
+			return sdf.parse(input);
+		} catch (ParseException e) {
+			throw new CmdLineException(
+					parser,
+					new Throwable("Invalid " + option + " value: [" + input + "] is not a yyyy-MM-dd date.")
+			);
+		}
+	}
+
+	/**
+	 * @return non-empty trimmed items of comma separated list
+	 */
+	static List<String> splitList(String input) {
+		List<String> items = new ArrayList<>();
+		for (String item : input.split(",")) {
+			if (!item.trim().isEmpty()) {
+				items.add(item.trim());
+			}
+		}
+		return items;
+	}
+
 	public static void main(String[] args) {
 		new IndexMboxArchiveOptions().parseArgs(args);
 	}
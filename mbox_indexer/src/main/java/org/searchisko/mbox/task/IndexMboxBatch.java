@@ -0,0 +1,315 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.task;
+
+import org.searchisko.http.client.Client;
+import org.searchisko.mbox.archive.Checkpoint;
+import org.searchisko.mbox.archive.MboxOffsetIndex;
+import org.searchisko.mbox.filter.MessageFilterChain;
+import org.searchisko.mbox.parser.AttachmentExtractor;
+import org.searchisko.mbox.parser.AttachmentTextCache;
+import org.searchisko.mbox.parser.CharsetDetection;
+import org.searchisko.mbox.parser.MessageParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.searchisko.http.client.Client.getConfig;
+
+/**
+ * Index several mbox archives in a single run. All archives share one ThreadPoolExecutor and one HttpClient
+ * connection pool, so the processing threads are kept busy until the last archive is done instead of draining
+ * at the end of every archive. See {@link IndexMboxArchive} for details about processing of individual archive.
+ * <p/>
+ * Archives are given either by a manifest file (<code>manifestPath</code>) or by a folder (<code>mboxDirPath</code>).
+ * <p/>
+ * Every line of manifest file contains path to mbox file (relative to the manifest file folder), mail list name,
+ * mail list category and optionally numbering offset separated by white spaces. Empty lines and lines starting
+ * with '#' are ignored:
+ * <pre>
+ * # path                 mailListName    mailListCategory  numberOffset
+ * hibernate-dev.mbox     hibernate-dev   dev
+ * infinispan-dev.mbox.gz infinispan-dev  dev               3
+ * </pre>
+ * <p/>
+ * All files found in the folder are processed, the mail list name is the file name up to the first dot and
+ * the category is the part of the name following the last dash (<code>hibernate-dev.mbox</code> is
+ * <code>hibernate-dev</code> list of <code>dev</code> category). Numbering offset is 0.
+ * <p/>
+ * Archives are read by <code>numberOfArchives</code> parallel threads, the biggest ones first. Other options
+ * (<code>numberOfReaders</code>, message filters and <code>resume</code>) apply to every archive. Every archive has its
+ * own checkpoint file next to it, <code>resume</code> continues every archive from it.
+ *
+ * @see IndexMboxArchive
+ */
+public class IndexMboxBatch {
+
+	private static Logger log = LoggerFactory.getLogger(IndexMboxBatch.class);
+
+	public static final int DEFAULT_NUMBER_OF_ARCHIVES = 2;
+
+	/**
+	 * Read list of archives from manifest file.
+	 * @param manifest
+	 * @return archives in order they are listed in the manifest
+	 * @throws IOException if the manifest can not be read or it contains invalid line
+	 */
+	public static List<ArchiveJob> readManifest(File manifest) throws IOException {
+		List<ArchiveJob> jobs = new ArrayList<>();
+		File folder = manifest.getAbsoluteFile().getParentFile();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] columns = line.split("\\s+");
+				if (columns.length < 3 || columns.length > 4) {
+					throw new IOException("Invalid line " + lineNumber + " of manifest " + manifest + ": " + line);
+				}
+				File file = new File(columns[0]);
+				if (!file.isAbsolute()) {
+					file = new File(folder, columns[0]);
+				}
+				int offset = 0;
+				if (columns.length == 4) {
+					try {
+						offset = Integer.parseInt(columns[3]);
+					} catch (NumberFormatException e) {
+						throw new IOException("Invalid numberOffset at line " + lineNumber + " of manifest " + manifest + ": " + columns[3]);
+					}
+				}
+				jobs.add(new ArchiveJob(file, columns[1], columns[2], offset));
+			}
+		} finally {
+			reader.close();
+		}
+		return jobs;
+	}
+
+	/**
+	 * Get list of archives found in folder (no recursion).
+	 * @param folder
+	 * @return archives in order of their names
+	 */
+	public static List<ArchiveJob> readFolder(File folder) {
+		List<ArchiveJob> jobs = new ArrayList<>();
+		File[] files = folder.listFiles();
+		if (files == null) {
+			return jobs;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			String name = file.getName();
+			if (!file.isFile() || name.startsWith(".") || name.endsWith(MboxOffsetIndex.DEFAULT_SUFFIX) ||
+					name.endsWith(Checkpoint.DEFAULT_SUFFIX) || name.endsWith(".tmp")) {
+				continue;
+			}
+			int dot = name.indexOf('.');
+			String mailListName = dot > -1 ? name.substring(0, dot) : name;
+			int dash = mailListName.lastIndexOf('-');
+			if (dash < 1 || dash == mailListName.length() - 1) {
+				log.warn("Can not get mail list category from file name {}, skipping it", name);
+				continue;
+			}
+			jobs.add(new ArchiveJob(file, mailListName, mailListName.substring(dash + 1), 0));
+		}
+		return jobs;
+	}
+
+	/**
+	 * @param args see Class JavaDoc
+	 */
+	public static void main(String[] args) {
+
+		log.info("Job started.");
+
+		IndexMboxBatchOptions options = new IndexMboxBatchOptions();
+		options.parseArgs(args);
+		if (options.isValid()) {
+
+			int numberOfArchives = options.getNumberOfArchives() == null ? DEFAULT_NUMBER_OF_ARCHIVES : options.getNumberOfArchives();
+
+			if (log.isDebugEnabled()) {
+				log.debug("CL parameters:");
+				log.debug("----------------------------------");
+				log.debug("manifestPath: {}", options.getManifestPath());
+				log.debug("mboxDirPath: {}", options.getMboxDirPath());
+				log.debug("numberOfThreads: {} (avail_cores: {})", new Object[]{options.getNumberOfThreads(), Runtime.getRuntime().availableProcessors()});
+				log.debug("numberOfArchives: {}", numberOfArchives);
+				log.debug("numberOfReaders: {}", options.getNumberOfReaders());
+				log.debug("excludeMessageIdListPath: {}", options.getExcludeMessageIdListPath());
+				log.debug("dateFrom: {}", options.getDateFrom());
+				log.debug("dateTo: {}", options.getDateTo());
+				log.debug("excludeSenderDomains: {}", options.getExcludeSenderDomains());
+				log.debug("resume: {}", options.isResume());
+				log.debug("fields: {}", options.getFields());
+				log.debug("bodyStorageThreshold: {}", options.getBodyStorageThreshold());
+				log.debug("bodyStorageDir: {}", options.getBodyStorageDir());
+				log.debug("attachmentThreads: {}", options.getAttachmentThreads());
+				log.debug("attachmentTimeout: {}", options.getAttachmentTimeout());
+				log.debug("attachmentWorkers: {}", options.getAttachmentWorkers());
+				log.debug("attachmentWorkerHeap: {}", options.getAttachmentWorkerHeap());
+				log.debug("attachmentCacheDir: {}", options.getAttachmentCacheDir());
+				log.debug("attachmentCacheSize: {}", options.getAttachmentCacheSize());
+				log.debug("----------------------------------");
+			}
+
+			// task can be executed in the reader threads as well (every archive reader or every thread reading its byte range)
+			int numberOfReaders = options.getNumberOfReaders() != null ? Math.max(1, options.getNumberOfReaders()) : 1;
+			// messages with attachments extracted in the pool are sent by sender threads
+			int numberOfSenders = options.getAttachmentThreads() != null ? options.getAttachmentThreads() : 0;
+			Client httpClient = new Client(getConfig()
+					.connectionsPerRoute(options.getNumberOfThreads() + numberOfArchives * numberOfReaders + numberOfSenders)
+					.serviceHost(options.getServiceHost())
+					.servicePath(options.getServicePath())
+					.contentType(options.getContentType())
+					.username(options.getUsername())
+					.password(options.getPassword())
+			);
+
+			if (options.getBodyStorageThreshold() != null) {
+				MessageParser.setBodyStorage(options.getBodyStorageThreshold(), options.getBodyStorageDir());
+			}
+			if (options.getAttachmentThreads() != null) {
+				AttachmentExtractor.start(options.getAttachmentThreads(),
+						options.getAttachmentTimeout() != null ? options.getAttachmentTimeout() : AttachmentExtractor.DEFAULT_TIMEOUT);
+				IndexMboxArchive.startSenders(numberOfSenders,
+						IndexMboxArchive.getMaxPendingMessages(options.getNumberOfThreads(), numberOfSenders));
+			}
+			if (options.getAttachmentWorkers() != null) {
+				AttachmentExtractor.startWorkers(options.getAttachmentWorkers(),
+						options.getAttachmentWorkerHeap() != null ? options.getAttachmentWorkerHeap() : AttachmentExtractor.DEFAULT_WORKER_HEAP,
+						options.getAttachmentTimeout() != null ? options.getAttachmentTimeout() : AttachmentExtractor.DEFAULT_TIMEOUT);
+			}
+			if (options.getAttachmentCacheDir() != null) {
+				try {
+					AttachmentExtractor.setTextCache(new AttachmentTextCache(options.getAttachmentCacheDir(),
+							options.getAttachmentCacheSize() != null ? options.getAttachmentCacheSize() : AttachmentTextCache.DEFAULT_MAX_SIZE));
+				} catch (IOException e) {
+					log.warn("Attachment text cache can not be used", e);
+				}
+			}
+
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+					options.getNumberOfThreads(),
+					options.getNumberOfThreads(),
+					3, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(options.getNumberOfThreads(), true),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+
+			ExecutorService archiveReaders = Executors.newFixedThreadPool(numberOfArchives);
+			ScheduledExecutorService checkpointWriter = null;
+			List<ArchiveJob> jobs = Collections.emptyList();
+
+			try {
+				IndexMboxArchive.setup(httpClient);
+
+				jobs = options.getManifestPath() != null ? readManifest(options.getManifestPath()) : readFolder(options.getMboxDirPath());
+				log.info("Processing {} archives", jobs.size());
+
+				MessageFilterChain filter = IndexMboxArchive.createFilter(options.getExcludeMessageIdListPath(),
+						options.getDateFrom(), options.getDateTo(), options.getExcludeSenderDomains());
+				for (ArchiveJob job : jobs) {
+					job.filter(filter)
+						.numberOfReaders(options.getNumberOfReaders())
+						.resume(options.isResume())
+						.fields(options.getFields())
+						.checkpointFile(Checkpoint.getDefaultCheckpointFile(job.getFile()));
+				}
+
+				// start with the biggest archives so that small ones fill the gaps at the end
+				List<ArchiveJob> ordered = new ArrayList<>(jobs);
+				Collections.sort(ordered, new Comparator<ArchiveJob>() {
+					@Override
+					public int compare(ArchiveJob a, ArchiveJob b) {
+						long x = a.getFile().length();
+						long y = b.getFile().length();
+						return x > y ? -1 : x < y ? 1 : 0;
+					}
+				});
+
+				Date start = new Date();
+
+				checkpointWriter = IndexMboxArchive.startCheckpointWriter(jobs);
+
+				List<Future<Long>> results = new ArrayList<>();
+				for (final ArchiveJob job : ordered) {
+					results.add(archiveReaders.submit(new Callable<Long>() {
+						@Override
+						public Long call() throws Exception {
+							log.info("Processing file {}", job.getFile());
+							long count = IndexMboxArchive.submit(executor, job);
+							log.info("Submitted {} mails of {}", count, job.getFile());
+							return count;
+						}
+					}));
+				}
+
+				long messageCount = 0;
+				for (int i = 0; i < results.size(); i++) {
+					try {
+						messageCount += results.get(i).get();
+					} catch (ExecutionException e) {
+						log.error("Error processing archive " + ordered.get(i), e.getCause());
+					}
+				}
+
+				IndexMboxArchive.awaitTermination(executor);
+
+				Date end = new Date();
+
+				log.info("Processed {} mails from {} archives in {} millis", new Object[]{messageCount, jobs.size(), end.getTime() - start.getTime()});
+				log.info("Charset detection - {}", CharsetDetection.getStats());
+				if (AttachmentExtractor.getTextCache() != null) {
+					log.info("Attachment text cache - {}", AttachmentExtractor.getTextCache().getStats());
+				}
+
+			} catch (IOException e) {
+				log.error("Error occurred", e);
+			} catch (Throwable e) {
+				log.error("Unexpected exception", e);
+			} finally {
+
+				archiveReaders.shutdownNow();
+
+				// try to force executor termination if needed
+				if (!executor.isTerminated()) {
+					log.warn("Executor not terminated, forcing termination.");
+					executor.shutdownNow();
+					Thread.currentThread().interrupt();
+				}
+
+				AttachmentExtractor.shutdown();
+				IndexMboxArchive.stopSenders();
+
+				if (checkpointWriter != null) {
+					checkpointWriter.shutdownNow();
+					IndexMboxArchive.writeCheckpoints(jobs);
+				}
+
+				log.info("Job finished.");
+			}
+		}
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+package org.searchisko.mbox.task;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.searchisko.mbox.dto.MailField;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.kohsuke.args4j.ExampleMode.ALL;
+
+/**
+ * Options of the IndexMboxBatch task started from the command line.
+ */
+public class IndexMboxBatchOptions {
+
+	public static final String MANIFEST_PATH = "-manifestPath";
+	public static final String MBOX_DIR_PATH = "-mboxDirPath";
+	public static final String NUMBER_OF_THREADS = "-numberOfThreads";
+	public static final String NUMBER_OF_ARCHIVES = "-numberOfArchives";
+	public static final String SERVICE_HOST = "-serviceHost";
+	public static final String SERVICE_PATH = "-servicePath";
+	public static final String CONTENT_TYPE = "-contentType";
+	public static final String USERNAME = "-username";
+	public static final String PASSWORD = "-password";
+	public static final String EXCLUDE_MESSAGE_ID_LIST_PATH = "-excludeMessageIdListPath";
+	public static final String DATE_FROM = "-dateFrom";
+	public static final String DATE_TO = "-dateTo";
+	public static final String EXCLUDE_SENDER_DOMAINS = "-excludeSenderDomains";
+	public static final String NUMBER_OF_READERS = "-numberOfReaders";
+	public static final String RESUME = "-resume";
+	public static final String FIELDS = "-fields";
+	public static final String BODY_STORAGE_THRESHOLD = "-bodyStorageThreshold";
+	public static final String BODY_STORAGE_DIR = "-bodyStorageDir";
+	public static final String ATTACHMENT_THREADS = "-attachmentThreads";
+	public static final String ATTACHMENT_TIMEOUT = "-attachmentTimeout";
+	public static final String ATTACHMENT_WORKERS = "-attachmentWorkers";
+	public static final String ATTACHMENT_WORKER_HEAP = "-attachmentWorkerHeap";
+	public static final String ATTACHMENT_CACHE_DIR = "-attachmentCacheDir";
+	public static final String ATTACHMENT_CACHE_SIZE = "-attachmentCacheSize";
+
+	private CmdLineParser parser;
+
+	@Option(name = "-batch", hidden = true)
+	private boolean batch;
+
+	private File manifestPath;
+
+	@Option(name = MANIFEST_PATH, usage = "path to manifest file listing mbox files (one per line: path mailListName mailListCategory [numberOffset])", metaVar = "<path>")
+	public void setManifestPath(String input) throws CmdLineException {
+		manifestPath = new File(input);
+		if (!manifestPath.isFile() || !manifestPath.canRead()) {
+			throw new CmdLineException(
+					this.parser,
+					new Throwable("Invalid " + MANIFEST_PATH + " value: " +
+							"file [" + input + "] does not exist or can not be read.")
+			);
+		}
+	}
+
+	private File mboxDirPath;
+
+	@Option(name = MBOX_DIR_PATH, usage = "path to folder with mbox files named <mailListName>.mbox (category is the last part of the name)", metaVar = "<path>")
+	public void setMboxDirPath(String input) throws CmdLineException {
+		mboxDirPath = new File(input);
+		if (!mboxDirPath.isDirectory() || !mboxDirPath.canRead()) {
+			throw new CmdLineException(
+					this.parser,
+					new Throwable("Invalid " + MBOX_DIR_PATH + " value: " +
+							"folder [" + input + "] does not exist or can not be read.")
+			);
+		}
+	}
+
+	@Option(name = NUMBER_OF_THREADS, usage = "max threads used for processing tasks")
+	private Integer numberOfThreads;
+
+	@Option(name = NUMBER_OF_ARCHIVES, usage = "[optional] number of mbox files read in parallel, defaults to 2")
+	private Integer numberOfArchives;
+
+	@Option(name = SERVICE_HOST, usage = "service host URL")
+	private URI serviceHost;
+
+	@Option(name = SERVICE_PATH, usage = "service path")
+	private String servicePath;
+
+	@Option(name = CONTENT_TYPE, usage = "Searchisko provider sys_content_type")
+	private String contentType;
+
+	@Option(name = USERNAME, usage = "Searchisko provider username (plaintext)")
+	private String username;
+
+	@Option(name = PASSWORD, usage = "Searchisko provider password (plaintext)")
+	private String password;
+
+	private File excludeMessageIdListPath;
+
+	@Option(name = EXCLUDE_MESSAGE_ID_LIST_PATH, usage = "[optional] path to properties file (or binary Message-ID set file) containing list of Message-Ids to skip", metaVar = "<path>")
+	public void setExcludeMessageIdListPath(String input) throws CmdLineException {
+		excludeMessageIdListPath = new File(input);
+		if (!excludeMessageIdListPath.exists() || !excludeMessageIdListPath.canRead()) {
+			throw new CmdLineException(
+					this.parser,
+					new Throwable("Invalid " + EXCLUDE_MESSAGE_ID_LIST_PATH + " value: " +
+							"file [" + input + "] does not exist or can not be read.")
+			);
+		}
+	}
+
+	private Date dateFrom;
+
+	@Option(name = DATE_FROM, usage = "[optional] skip messages sent before this day (UTC)", metaVar = "<yyyy-MM-dd>")
+	public void setDateFrom(String input) throws CmdLineException {
+		dateFrom = IndexMboxArchiveOptions.parseDate(this.parser, DATE_FROM, input);
+	}
+
+	private Date dateTo;
+
+	@Option(name = DATE_TO, usage = "[optional] skip messages sent on this day (UTC) or later", metaVar = "<yyyy-MM-dd>")
+	public void setDateTo(String input) throws CmdLineException {
+		dateTo = IndexMboxArchiveOptions.parseDate(this.parser, DATE_TO, input);
+	}
+
+	private List<String> excludeSenderDomains;
+
+	@Option(name = EXCLUDE_SENDER_DOMAINS, usage = "[optional] comma separated list of sender domains to skip (including sub-domains)", metaVar = "<domains>")
+	public void setExcludeSenderDomains(String input) {
+		excludeSenderDomains = IndexMboxArchiveOptions.splitList(input);
+	}
+
+	@Option(name = NUMBER_OF_READERS, usage = "[optional] number of byte ranges of every mbox file read in parallel (number of parallel inflaters for gzip file, every inflater can hold up to 16 MB of read-ahead data)")
+	private Integer numberOfReaders;
+
+	@Option(name = RESUME, usage = "[optional] continue every mbox file from its last checkpoint (<mboxFilePath>.checkpoint)")
+	private boolean resume;
+
+	private Set<MailField> fields;
+
+	@Option(name = FIELDS, usage = "[optional] comma separated list of mail body fields to send (message_snippet, first_text_message, ...), defaults to all", metaVar = "<fields>")
+	public void setFields(String input) throws CmdLineException {
+		try {
+			fields = MailField.parse(input);
+		} catch (IllegalArgumentException e) {
+			throw new CmdLineException(
+					this.parser,
+					new Throwable("Invalid " + FIELDS + " value: [" + input + "], valid fields are " + EnumSet.allOf(MailField.class))
+			);
+		}
+	}
+
+	@Option(name = BODY_STORAGE_THRESHOLD, usage = "[optional] message bodies (attachments) bigger than this number of bytes are stored in temporary files, by default all bodies are kept in memory")
+	private Integer bodyStorageThreshold;
+
+	@Option(name = BODY_STORAGE_DIR, usage = "[optional] directory for temporary files of message bodies, defaults to system temporary directory", metaVar = "<path>")
+	private File bodyStorageDir;
+
+	@Option(name = ATTACHMENT_THREADS, usage = "[optional] number of threads extracting text of attachments, by default the text is extracted by threads parsing messages")
+	private Integer attachmentThreads;
+
+	@Option(name = ATTACHMENT_TIMEOUT, usage = "[optional] max time in millis of text extraction of one attachment when " + ATTACHMENT_THREADS + " or " + ATTACHMENT_WORKERS + " is used, defaults to 60000")
+	private Long attachmentTimeout;
+
+	@Option(name = ATTACHMENT_WORKERS, usage = "[optional] number of forked JVMs extracting text of attachments, by default the text is extracted in this JVM")
+	private Integer attachmentWorkers;
+
+	@Option(name = ATTACHMENT_WORKER_HEAP, usage = "[optional] max heap size in megabytes of each JVM forked by " + ATTACHMENT_WORKERS + ", defaults to 256")
+	private Integer attachmentWorkerHeap;
+
+	@Option(name = ATTACHMENT_CACHE_DIR, usage = "[optional] directory of cache of text extracted from attachments, reused by next runs, by default no cache is used", metaVar = "<path>")
+	private File attachmentCacheDir;
+
+	@Option(name = ATTACHMENT_CACHE_SIZE, usage = "[optional] max size in megabytes of cache in " + ATTACHMENT_CACHE_DIR + ", defaults to 1024")
+	private Long attachmentCacheSize;
+
+	public File getManifestPath() {
+		return this.manifestPath;
+	}
+
+	public File getMboxDirPath() {
+		return this.mboxDirPath;
+	}
+
+	public Integer getNumberOfThreads() {
+		return this.numberOfThreads;
+	}
+
+	public Integer getNumberOfArchives() {
+		return this.numberOfArchives;
+	}
+
+	public URI getServiceHost() {
+		return this.serviceHost;
+	}
+
+	public String getServicePath() {
+		return this.servicePath;
+	}
+
+	public String getContentType() {
+		return this.contentType;
+	}
+
+	public String getUsername() {
+		return this.username;
+	}
+
+	public String getPassword() {
+		return this.password;
+	}
+
+	public File getExcludeMessageIdListPath() {
+		return this.excludeMessageIdListPath;
+	}
+
+	public Date getDateFrom() {
+		return this.dateFrom;
+	}
+
+	public Date getDateTo() {
+		return this.dateTo;
+	}
+
+	public List<String> getExcludeSenderDomains() {
+		return this.excludeSenderDomains;
+	}
+
+	public Integer getNumberOfReaders() {
+		return this.numberOfReaders;
+	}
+
+	public boolean isResume() {
+		return this.resume;
+	}
+
+	/**
+	 * @return requested mail body fields, null if all fields are requested
+	 */
+	public Set<MailField> getFields() {
+		return this.fields;
+	}
+
+	public Integer getBodyStorageThreshold() {
+		return this.bodyStorageThreshold;
+	}
+
+	public File getBodyStorageDir() {
+		return this.bodyStorageDir;
+	}
+
+	public Integer getAttachmentThreads() {
+		return this.attachmentThreads;
+	}
+
+	public Long getAttachmentTimeout() {
+		return this.attachmentTimeout;
+	}
+
+	public Integer getAttachmentWorkers() {
+		return this.attachmentWorkers;
+	}
+
+	public Integer getAttachmentWorkerHeap() {
+		return this.attachmentWorkerHeap;
+	}
+
+	public File getAttachmentCacheDir() {
+		return this.attachmentCacheDir;
+	}
+
+	/**
+	 * @return max size of attachment text cache in bytes, null if not set
+	 */
+	public Long getAttachmentCacheSize() {
+		return this.attachmentCacheSize == null ? null : this.attachmentCacheSize * 1024 * 1024;
+	}
+
+	public boolean isValid() {
+		return (
+			(manifestPath != null ^ mboxDirPath != null) &&
+			numberOfThreads != null && numberOfThreads > 0 &&
+			(numberOfArchives == null || numberOfArchives > 0) &&
+			serviceHost != null &&
+			servicePath != null && !servicePath.isEmpty() &&
+			contentType != null && !contentType.isEmpty() &&
+			username != null && !username.trim().isEmpty() &&
+			password != null && !password.isEmpty() &&
+			(numberOfReaders == null || numberOfReaders > 0) &&
+			(bodyStorageThreshold == null || bodyStorageThreshold >= 0) &&
+			(attachmentThreads == null || attachmentThreads > 0) &&
+			(attachmentTimeout == null || attachmentTimeout > 0) &&
+			(attachmentWorkers == null || attachmentWorkers > 0) &&
+			(attachmentWorkerHeap == null || attachmentWorkerHeap > 0) &&
+			(attachmentCacheSize == null || attachmentCacheSize > 0) &&
+			(dateFrom == null || dateTo == null || dateFrom.before(dateTo))
+		);
+	}
+
+	public static void main(String[] args) {
+		new IndexMboxBatchOptions().parseArgs(args);
+	}
+
+	protected void parseArgs(String[] args) {
+		CmdLineParser parser = new CmdLineParser(this);
+		this.parser = parser;
+
+		try {
+			parser.parseArgument(args);
+		} catch (CmdLineException e) {
+
+			System.err.println(e.getMessage());
+			System.err.println("java application.jar [options...] arguments...");
+			parser.printUsage(System.err);
+			System.err.println();
+			System.err.println("  Example: java application.jar " + parser.printExample(ALL));
+
+//			return;
+		}
+	}
+}
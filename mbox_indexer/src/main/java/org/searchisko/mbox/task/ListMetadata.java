@@ -0,0 +1,45 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.task;
+
+import org.searchisko.mbox.json.EncodedMetadata;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Metadata of mail list which are the same for all its messages, each list is encoded once per run.
+ */
+final class ListMetadata {
+
+	private static final ConcurrentMap<String, EncodedMetadata> lists = new ConcurrentHashMap<>();
+
+	private ListMetadata() {};
+
+	/**
+	 * @param project project name
+	 * @param mailListCategory mail list category
+	 * @return encoded <code>project</code> and <code>mail_list_category</code> fields
+	 */
+	static EncodedMetadata get(String project, String mailListCategory) {
+		String key = project + '\n' + mailListCategory;
+		EncodedMetadata metadata = lists.get(key);
+		if (metadata == null) {
+			Map<String, String> fields = new LinkedHashMap<>();
+			fields.put("project", project);
+			fields.put("mail_list_category", mailListCategory);
+			metadata = new EncodedMetadata(fields);
+			EncodedMetadata existing = lists.putIfAbsent(key, metadata);
+			if (existing != null) {
+				metadata = existing;
+			}
+		}
+		return metadata;
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.task;
+
+/**
+ * Counts messages which are parsed but not sent yet, they can wait for text extraction of attachments and for
+ * a sender thread after their task has ended. Number of such messages is limited, so that the task threads do not
+ * parse messages faster than they are sent.
+ */
+final class PendingMessages {
+
+	private long count;
+	private long limit = Long.MAX_VALUE;
+
+	synchronized void setLimit(long limit) {
+		this.limit = limit;
+		notifyAll();
+	}
+
+	/**
+	 * Add message, wait while the limit is reached.
+	 *
+	 * @throws InterruptedException
+	 */
+	synchronized void add() throws InterruptedException {
+		while (count >= limit) {
+			wait();
+		}
+		count++;
+	}
+
+	synchronized void remove() {
+		count--;
+		notifyAll();
+	}
+
+	synchronized long size() {
+		return count;
+	}
+
+	/**
+	 * @param timeoutMillis
+	 * @return true if there is no pending message, false if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	synchronized boolean await(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (count > 0) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			wait(remaining);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.util;
+
+/**
+ * 64-bit hash of normalized Message-ID value. Used wherever we need to store or compare large number of
+ * Message-IDs and keeping the whole strings would be too expensive.
+ * <p/>
+ * Normalization only removes leading and trailing white spaces (Message-IDs are case sensitive).
+ */
+public class MessageIdHash {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * @param messageId
+	 * @return 64-bit hash of the Message-ID, 0 for null or empty value
+	 */
+	public static long hash(String messageId) {
+		if (messageId == null) {
+			return 0;
+		}
+		int from = 0;
+		int to = messageId.length();
+		while (from < to && Character.isWhitespace(messageId.charAt(from))) from++;
+		while (to > from && Character.isWhitespace(messageId.charAt(to - 1))) to--;
+		if (from == to) {
+			return 0;
+		}
+		// FNV-1a followed by murmur3 finalizer to get better distribution of low bits
+		long h = FNV_OFFSET_BASIS;
+		for (int i = from; i < to; i++) {
+			char c = messageId.charAt(i);
+			h ^= c & 0xFF;
+			h *= FNV_PRIME;
+			h ^= c >>> 8;
+			h *= FNV_PRIME;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		// 0 is reserved for missing values
+		return h == 0 ? 1 : h;
+	}
+}
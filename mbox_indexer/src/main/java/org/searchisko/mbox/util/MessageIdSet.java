@@ -0,0 +1,290 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+
+/**
+ * Compact set of Message-IDs. Only 64-bit hashes of normalized Message-IDs (see {@link MessageIdHash}) are kept in
+ * a primitive open-addressing table (linear probing, load factor at most 0.5), so one entry takes 16 bytes
+ * at most no matter how long the Message-ID is and lookups do not create any garbage.
+ * <p/>
+ * The set can be stored in a binary file which is loaded by a single bulk read. Binary file format (big-endian):
+ * magic, version, number of entries, table capacity followed by the table itself (empty slots are 0).
+ * <p/>
+ * The set is not thread-safe for modifications, but it can be shared among threads once it is filled.
+ */
+public class MessageIdSet {
+
+	private static Logger log = LoggerFactory.getLogger(MessageIdSet.class);
+
+	public static final String DEFAULT_SUFFIX = ".ids";
+
+	private static final long MAGIC = 0x4d53474944533031L; // "MSGIDS01"
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 8 + 4 + 4 + 4;
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] table;
+	private int size;
+
+	public MessageIdSet() {
+		this(MIN_CAPACITY / 2);
+	}
+
+	/**
+	 * @param expectedSize number of entries the set can hold without resizing
+	 */
+	public MessageIdSet(int expectedSize) {
+		table = new long[capacityFor(expectedSize)];
+	}
+
+	private static int capacityFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2L) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * @param messageIds
+	 * @return new set containing given Message-IDs
+	 */
+	public static MessageIdSet of(String... messageIds) {
+		MessageIdSet set = new MessageIdSet(messageIds.length);
+		for (String messageId : messageIds) {
+			set.add(messageId);
+		}
+		return set;
+	}
+
+	/**
+	 * @param messageId
+	 * @return true if the set did not contain the Message-ID yet, false if it did or if the Message-ID is empty
+	 */
+	public boolean add(String messageId) {
+		return addHash(MessageIdHash.hash(messageId));
+	}
+
+	/**
+	 * @param hash hash computed by {@link MessageIdHash#hash(String)}
+	 * @return true if the set did not contain the hash yet
+	 */
+	public boolean addHash(long hash) {
+		if (hash == 0) {
+			return false;
+		}
+		if ((size + 1) * 2L > table.length) {
+			resize(table.length << 1);
+		}
+		int mask = table.length - 1;
+		int i = slot(hash, mask);
+		while (table[i] != 0) {
+			if (table[i] == hash) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		table[i] = hash;
+		size++;
+		return true;
+	}
+
+	/**
+	 * @param messageId
+	 * @return true if the set contains the Message-ID
+	 */
+	public boolean contains(String messageId) {
+		return containsHash(MessageIdHash.hash(messageId));
+	}
+
+	/**
+	 * @param hash hash computed by {@link MessageIdHash#hash(String)}
+	 * @return true if the set contains the hash
+	 */
+	public boolean containsHash(long hash) {
+		if (hash == 0) {
+			return false;
+		}
+		long[] table = this.table;
+		int mask = table.length - 1;
+		int i = slot(hash, mask);
+		long h;
+		while ((h = table[i]) != 0) {
+			if (h == hash) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private static int slot(long hash, int mask) {
+		// hash bits are already well mixed
+		return (int) hash & mask;
+	}
+
+	private void resize(int capacity) {
+		long[] old = table;
+		table = new long[capacity];
+		int mask = capacity - 1;
+		for (long hash : old) {
+			if (hash != 0) {
+				int i = slot(hash, mask);
+				while (table[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				table[i] = hash;
+			}
+		}
+	}
+
+	/**
+	 * Write the set into binary file. The file is replaced atomically if the platform supports it.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileChannel channel = new FileOutputStream(tmp).getChannel();
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putLong(MAGIC).putInt(VERSION).putInt(size).putInt(table.length).flip();
+			ByteBuffer data = ByteBuffer.allocate(table.length * 8);
+			data.asLongBuffer().put(table);
+			ByteBuffer[] buffers = {header, data};
+			while (data.hasRemaining()) {
+				channel.write(buffers);
+			}
+		} finally {
+			channel.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// renameTo can fail on some platforms if the target exists
+			if (!file.delete() || !tmp.renameTo(file)) {
+				throw new IOException("Can not write Message-ID set file " + file);
+			}
+		}
+	}
+
+	/**
+	 * Read the set from binary file.
+	 * @param file
+	 * @return
+	 * @throws IOException if the file can not be read or it is not a Message-ID set file
+	 */
+	public static MessageIdSet read(File file) throws IOException {
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			readFully(channel, header, file);
+			header.flip();
+			if (header.getLong() != MAGIC) {
+				throw new IOException("Not a Message-ID set file: " + file);
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported Message-ID set version: " + version);
+			}
+			int size = header.getInt();
+			int capacity = header.getInt();
+			if (capacity < MIN_CAPACITY || Integer.bitCount(capacity) != 1 || size < 0 || size * 2L > capacity ||
+					file.length() != HEADER_LENGTH + capacity * 8L) {
+				throw new IOException("Message-ID set file is corrupted: " + file);
+			}
+			ByteBuffer data = ByteBuffer.allocate(capacity * 8);
+			readFully(channel, data, file);
+			data.flip();
+			MessageIdSet set = new MessageIdSet();
+			set.table = new long[capacity];
+			data.asLongBuffer().get(set.table);
+			set.size = size;
+			return set;
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, File file) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("Message-ID set file is truncated: " + file);
+			}
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file starts with binary Message-ID set magic
+	 * @throws IOException
+	 */
+	public static boolean isBinary(File file) throws IOException {
+		if (file.length() < HEADER_LENGTH) {
+			return false;
+		}
+		DataInputStream is = new DataInputStream(new FileInputStream(file));
+		try {
+			return is.readLong() == MAGIC;
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Load Message-IDs from properties file (Message-IDs are the keys).
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static MessageIdSet readProperties(File file) throws IOException {
+		Properties ids = new Properties();
+		InputStream is = new FileInputStream(file);
+		try {
+			ids.load(is);
+		} finally {
+			is.close();
+		}
+		MessageIdSet set = new MessageIdSet(ids.size());
+		for (String messageId : ids.stringPropertyNames()) {
+			set.add(messageId);
+		}
+		return set;
+	}
+
+	/**
+	 * Load Message-IDs from either binary file or properties file (detected from the file content).
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static MessageIdSet load(File file) throws IOException {
+		long start = System.currentTimeMillis();
+		MessageIdSet set = isBinary(file) ? read(file) : readProperties(file);
+		log.debug("Loaded {} Message-IDs from {} in {} millis", new Object[]{set.size(), file, System.currentTimeMillis() - start});
+		return set;
+	}
+}
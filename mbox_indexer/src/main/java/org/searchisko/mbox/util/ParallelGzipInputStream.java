@@ -0,0 +1,399 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses gzip file consisting of several members (as produced by concatenation of gzip files) in parallel.
+ * <p/>
+ * Position of the next member is known only after the current member is inflated, so we search the compressed
+ * bytes ahead for gzip member headers and speculatively inflate members starting at every candidate position
+ * in a thread pool. A false candidate (the header bytes can appear within compressed data by chance) either fails
+ * to inflate or it is never used because the chain of members (every member ends with CRC32 and size trailer and
+ * the next member starts right after it) does not go through it.
+ * <p/>
+ * Every speculatively inflated member is held in memory, which is why the decompressed member size is limited.
+ * Once a member bigger than that is found we switch to plain sequential {@link GZIPInputStream} for the rest of
+ * the file. This is also what happens for a typical single-member gzip file.
+ * <p/>
+ * Up to {@link #READ_AHEAD_PER_THREAD} members per thread are inflated ahead of the member being read and they
+ * wait in memory until read, so the stream can hold up to <code>(threads * 2 + 1) * maxMemberSize</code> bytes,
+ * that is 16 MB per thread with the default member size.
+ * <p/>
+ * Like {@link GZIPInputStream} trailing bytes which do not start another gzip member are ignored.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+	private static Logger log = LoggerFactory.getLogger(ParallelGzipInputStream.class);
+
+	public static final int DEFAULT_MAX_MEMBER_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Number of members inflated ahead per thread.
+	 */
+	public static final int READ_AHEAD_PER_THREAD = 2;
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+	private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+	private final FileChannel channel;
+	private final long size;
+	private final int threads;
+	private final int maxMemberSize;
+	private final ExecutorService inflaters;
+
+	// speculatively inflated members keyed by their compressed offset
+	private final TreeMap<Long, Future<Member>> pending = new TreeMap<>();
+	private final ArrayDeque<Long> candidates = new ArrayDeque<>();
+	private long scanned;
+
+	private long position;
+	private ByteBuffer current = ByteBuffer.allocate(0);
+	private InputStream sequential;
+
+	public ParallelGzipInputStream(File file, int threads) throws IOException {
+		this(file, threads, DEFAULT_MAX_MEMBER_SIZE);
+	}
+
+	/**
+	 * @param file gzip file
+	 * @param threads number of members inflated in parallel
+	 * @param maxMemberSize max size of decompressed member which is inflated in parallel, up to
+	 *                      <code>threads * {@link #READ_AHEAD_PER_THREAD}</code> such members are held in memory
+	 * @throws IOException
+	 */
+	public ParallelGzipInputStream(File file, int threads, int maxMemberSize) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.channel = new RandomAccessFile(file, "r").getChannel();
+		this.size = channel.size();
+		this.threads = threads;
+		this.maxMemberSize = maxMemberSize;
+		this.inflaters = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "gzip-inflater");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n;
+		while ((n = read(b, 0, 1)) == 0) {
+			// try again
+		}
+		return n == -1 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (true) {
+			if (sequential != null) {
+				return sequential.read(b, off, len);
+			}
+			if (current.hasRemaining()) {
+				int n = Math.min(len, current.remaining());
+				current.get(b, off, n);
+				return n;
+			}
+			if (!nextMember()) {
+				return -1;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		inflaters.shutdownNow();
+		pending.clear();
+		if (sequential != null) {
+			sequential.close();
+		}
+		channel.close();
+	}
+
+	/**
+	 * Move to the member at current position.
+	 * @return false if there is no more member
+	 */
+	private boolean nextMember() throws IOException {
+		if (position >= size) {
+			return false;
+		}
+		schedule();
+		Future<Member> future = pending.remove(position);
+		Member member = future == null ? inflate(position) : get(future);
+
+		if (!member.header && member.error == null) {
+			if (position == 0) {
+				throw new ZipException("Not in GZIP format");
+			}
+			log.debug("Ignoring {} trailing bytes at offset {}", size - position, position);
+			position = size;
+			return false;
+		}
+		if (member.error != null) {
+			throw member.error;
+		}
+		// drop candidates which turned out to be inside of this member
+		Iterator<Map.Entry<Long, Future<Member>>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Future<Member>> e = it.next();
+			if (member.data != null && e.getKey() >= member.end) {
+				break;
+			}
+			e.getValue().cancel(false);
+			it.remove();
+		}
+		if (member.data == null) {
+			log.debug("Member at offset {} is too big, switching to sequential decompression", position);
+			candidates.clear();
+			channel.position(position);
+			sequential = new GZIPInputStream(Channels.newInputStream(channel), BLOCK_SIZE);
+			return true;
+		}
+		position = member.end;
+		current = ByteBuffer.wrap(member.data, 0, member.length);
+		return true;
+	}
+
+	private Member get(Future<Member> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Submit members at candidate positions ahead of the current position.
+	 */
+	private void schedule() throws IOException {
+		if (scanned < position) {
+			candidates.clear();
+			scanned = position;
+		}
+		long lookAhead = position + (long) threads * maxMemberSize;
+		while (pending.size() < threads * READ_AHEAD_PER_THREAD) {
+			while (candidates.isEmpty() && scanned < size && scanned < lookAhead) {
+				scan();
+			}
+			Long candidate = candidates.poll();
+			if (candidate == null) {
+				break;
+			}
+			if (candidate < position) {
+				continue;
+			}
+			final long start = candidate;
+			pending.put(start, inflaters.submit(new Callable<Member>() {
+				@Override
+				public Member call() throws Exception {
+					return inflate(start);
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Find gzip member headers in the next block of compressed data.
+	 */
+	private void scan() throws IOException {
+		ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+		read(block, scanned);
+		int length = block.position();
+		int limit = length - 3;
+		if (limit <= 0) {
+			scanned = size;
+			return;
+		}
+		// magic, deflate method and flags byte without reserved bits
+		for (int i = 0; i < limit; i++) {
+			if ((block.get(i) & 0xFF) == 0x1f && (block.get(i + 1) & 0xFF) == 0x8b &&
+					block.get(i + 2) == 8 && (block.get(i + 3) & 0xE0) == 0) {
+				candidates.add(scanned + i);
+			}
+		}
+		scanned += limit;
+	}
+
+	/**
+	 * Inflate gzip member starting at given position. This is called from several threads at once,
+	 * it uses positional reads only.
+	 */
+	private Member inflate(long start) {
+		Member member = new Member();
+		Inflater inflater = new Inflater(true);
+		try {
+			ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+			read(block, start);
+			int headerLength = readHeader(block.array(), block.position());
+			if (headerLength < 0) {
+				return member;
+			}
+			member.header = true;
+
+			long blockStart = start;
+			int blockLength = block.position();
+			inflater.setInput(block.array(), headerLength, blockLength - headerLength);
+
+			CRC32 crc = new CRC32();
+			byte[] data = new byte[Math.min(BLOCK_SIZE * 4, maxMemberSize)];
+			int length = 0;
+			while (!inflater.finished()) {
+				if (length == data.length) {
+					if (length >= maxMemberSize) {
+						return member; // too big
+					}
+					byte[] bigger = new byte[(int) Math.min((long) maxMemberSize, length * 2L)];
+					System.arraycopy(data, 0, bigger, 0, length);
+					data = bigger;
+				}
+				int n = inflater.inflate(data, length, data.length - length);
+				if (n == 0) {
+					if (inflater.needsDictionary()) {
+						throw new ZipException("Unexpected dictionary");
+					}
+					if (inflater.needsInput()) {
+						blockStart += blockLength;
+						block.clear();
+						read(block, blockStart);
+						blockLength = block.position();
+						if (blockLength == 0) {
+							throw new EOFException("Unexpected end of ZLIB input stream");
+						}
+						inflater.setInput(block.array(), 0, blockLength);
+					}
+				}
+				crc.update(data, length, n);
+				length += n;
+			}
+
+			long trailerStart = blockStart + blockLength - inflater.getRemaining();
+			ByteBuffer trailer = ByteBuffer.allocate(8);
+			read(trailer, trailerStart);
+			if (trailer.position() < 8) {
+				throw new EOFException("Unexpected end of ZLIB input stream");
+			}
+			if (readInt(trailer.array(), 0) != crc.getValue() || readInt(trailer.array(), 4) != (length & 0xFFFFFFFFL)) {
+				throw new ZipException("Corrupt GZIP trailer");
+			}
+			member.end = trailerStart + 8;
+			member.data = data;
+			member.length = length;
+		} catch (DataFormatException e) {
+			member.error = new ZipException("Invalid deflate data at offset " + start + ": " + e.getMessage());
+		} catch (IOException e) {
+			member.error = e;
+		} finally {
+			inflater.end();
+		}
+		return member;
+	}
+
+	/**
+	 * @return length of gzip member header or -1 if there is no valid header
+	 */
+	private static int readHeader(byte[] b, int length) throws IOException {
+		if (length < 10 || (b[0] & 0xFF) != 0x1f || (b[1] & 0xFF) != 0x8b || b[2] != 8 || (b[3] & 0xE0) != 0) {
+			return -1;
+		}
+		int flags = b[3];
+		int pos = 10;
+		if ((flags & FEXTRA) != 0) {
+			if (pos + 2 > length) {
+				throw new ZipException("GZIP header too long");
+			}
+			pos += 2 + ((b[pos] & 0xFF) | ((b[pos + 1] & 0xFF) << 8));
+		}
+		if ((flags & FNAME) != 0) {
+			pos = skipZeroTerminated(b, pos, length);
+		}
+		if ((flags & FCOMMENT) != 0) {
+			pos = skipZeroTerminated(b, pos, length);
+		}
+		if ((flags & FHCRC) != 0) {
+			pos += 2;
+		}
+		if (pos > length) {
+			throw new ZipException("GZIP header too long");
+		}
+		return pos;
+	}
+
+	private static int skipZeroTerminated(byte[] b, int pos, int length) throws IOException {
+		while (pos < length && b[pos] != 0) {
+			pos++;
+		}
+		if (pos == length) {
+			throw new ZipException("GZIP header too long");
+		}
+		return pos + 1;
+	}
+
+	private static long readInt(byte[] b, int pos) {
+		return (b[pos] & 0xFFL) | ((b[pos + 1] & 0xFFL) << 8) | ((b[pos + 2] & 0xFFL) << 16) | ((b[pos + 3] & 0xFFL) << 24);
+	}
+
+	/**
+	 * Fill the buffer from given position, buffer position is the number of bytes read.
+	 */
+	private void read(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + buffer.position());
+			if (n < 0) {
+				break;
+			}
+		}
+	}
+
+	private static class Member {
+		boolean header;
+		long end;
+		byte[] data;
+		int length;
+		IOException error;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * InputStream which reads the underlying stream in its own thread. The data is handed over in chunks through
+ * a bounded queue so the reading thread can run ahead of the consumer at most <code>queueSize</code> chunks.
+ * <p/>
+ * This is useful when reading from the underlying stream is expensive (like decompression) and the consumer
+ * has some work to do with the data as well.
+ * <p/>
+ * The underlying stream is closed by the reading thread once it hits the end of the stream, an error, or this
+ * stream is closed.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	public static final int DEFAULT_QUEUE_SIZE = 4;
+
+	private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+	private final BlockingQueue<Object> queue;
+	private final Thread reader;
+	private volatile boolean closed;
+
+	private ByteBuffer current = ByteBuffer.allocate(0);
+	private IOException error;
+
+	public ReadAheadInputStream(InputStream source) {
+		this(source, DEFAULT_CHUNK_SIZE, DEFAULT_QUEUE_SIZE);
+	}
+
+	public ReadAheadInputStream(final InputStream source, final int chunkSize, int queueSize) {
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+		this.reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (!closed) {
+						byte[] chunk = new byte[chunkSize];
+						int length = 0;
+						int n = 0;
+						while (length < chunkSize && (n = source.read(chunk, length, chunkSize - length)) > -1) {
+							length += n;
+						}
+						if (length > 0) {
+							queue.put(ByteBuffer.wrap(chunk, 0, length));
+						}
+						if (n == -1) {
+							queue.put(EOF);
+							break;
+						}
+					}
+				} catch (InterruptedException e) {
+					// closed
+				} catch (Throwable e) {
+					offer(e);
+				} finally {
+					try {
+						source.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}, "read-ahead");
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	private void offer(Throwable e) {
+		try {
+			queue.put(e);
+		} catch (InterruptedException ie) {
+			// closed
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return current.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, current.remaining());
+		current.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current.remaining();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			reader.interrupt();
+			queue.clear();
+		}
+	}
+
+	/**
+	 * @return false if end of stream was reached
+	 */
+	private boolean fill() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		while (!current.hasRemaining()) {
+			if (current == EOF) {
+				return false;
+			}
+			if (error != null) {
+				throw error;
+			}
+			Object next;
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			if (next instanceof ByteBuffer) {
+				current = (ByteBuffer) next;
+			} else if (next instanceof IOException) {
+				error = (IOException) next;
+			} else {
+				error = new IOException((Throwable) next);
+			}
+		}
+		return true;
+	}
+}
@@ -8,6 +8,8 @@ package org.searchisko.mbox.util;
 
 import org.apache.commons.codec.binary.Base64;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Collection of utility methods for handling Base64 coding and parsing specific (i.e. mailman) URL string.
  * @author Lukáš Vlček (lvlcek@redhat.com)
@@ -42,7 +44,7 @@ public class StringUtil {
     }
 
     private static String base64Encode(String source) {
-        return base64.encodeToString(source.getBytes());
+        return base64.encodeToString(source.getBytes(StandardCharsets.UTF_8));
     }
 
 	/**
@@ -74,7 +76,7 @@ public class StringUtil {
     }
 
     public static String decodeFilenameSafe(String encoded) {
-        return new String(StringUtil.base64Decode(StringUtil.convertFilenameSafe(encoded)));
+        return new String(StringUtil.base64Decode(StringUtil.convertFilenameSafe(encoded)), StandardCharsets.UTF_8);
     }
 
     public static URLInfo getInfo(String encoded) {
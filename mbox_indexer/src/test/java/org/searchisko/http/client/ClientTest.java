@@ -7,14 +7,17 @@
 package org.searchisko.http.client;
 
 import com.github.tomakehurst.wiremock.junit.WireMockClassRule;
+import org.apache.http.entity.ContentProducer;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static org.searchisko.http.client.Client.getConfig;
@@ -47,4 +50,29 @@ public class ClientTest {
 
         client.close();
     }
+
+    @Test
+    public void shouldPostStreamedDocument() throws IOException, URISyntaxException {
+
+        stubFor(post(urlMatching("/stream/ct/[0-9]+"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"foo\":\"bar\"}")));
+
+        Client client = new Client(getConfig().serviceHost(new URI("http://localhost:8089")).servicePath("/stream").contentType("ct"));
+
+        client.post(new ContentProducer() {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                os.write("{\"foo\":\"\u017elu\u0165ou\u010dk\u00fd\"}".getBytes(StandardCharsets.UTF_8));
+            }
+        }, "1");
+
+        client.close();
+
+        verify(1, postRequestedFor(urlEqualTo("/stream/ct/1"))
+                .withHeader("Content-Type", containing("application/json"))
+                .withRequestBody(equalTo("{\"foo\":\"\u017elu\u0165ou\u010dk\u00fd\"}")));
+    }
 }
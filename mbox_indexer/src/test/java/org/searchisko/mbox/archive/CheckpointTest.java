@@ -0,0 +1,84 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class CheckpointTest {
+
+	@Test
+	public void shouldMoveOnlyOverContiguousAcknowledgedMessages() {
+		Checkpoint.Range range = new Checkpoint.Range(100, -1, 10);
+		assertEquals(10, range.getNumber());
+		assertEquals(100, range.getOffset());
+
+		range.acknowledge(11, 300);
+		range.acknowledge(12, 400);
+		assertEquals(10, range.getNumber());
+		assertEquals(100, range.getOffset());
+
+		range.acknowledge(10, 200);
+		assertEquals(13, range.getNumber());
+		assertEquals(400, range.getOffset());
+	}
+
+	@Test
+	public void shouldStopAtFailedMessage() {
+		Checkpoint.Range range = new Checkpoint.Range(0, -1, 0);
+		range.acknowledge(1, 20);
+		range.fail(2);
+		range.acknowledge(3, 40);
+		range.acknowledge(0, 10);
+		assertEquals(2, range.getNumber());
+		assertEquals(20, range.getOffset());
+
+		range.acknowledge(2, 30);
+		assertEquals(2, range.getNumber());
+	}
+
+	@Test
+	public void shouldWriteAndReadCheckpoint() throws IOException {
+		File archive = File.createTempFile("checkpoint", ".mbox");
+		archive.deleteOnExit();
+		File file = Checkpoint.getDefaultCheckpointFile(archive);
+		file.deleteOnExit();
+		FileUtils.writeStringToFile(archive, "From a@b Mon Jan  3 10:30:45 2011\nSubject: a\n\nbody\n");
+
+		Checkpoint checkpoint = Checkpoint.create(archive, new long[]{0, 10, 20}, new long[]{5, 8});
+		checkpoint.getRanges().get(1).acknowledge(8, 15);
+		checkpoint.write(file);
+
+		Checkpoint read = Checkpoint.read(file);
+		assertEquals(2, read.getRanges().size());
+		assertEquals(0, read.getRanges().get(0).getStart());
+		assertEquals(10, read.getRanges().get(0).getEnd());
+		assertEquals(5, read.getRanges().get(0).getNumber());
+		assertEquals(0, read.getRanges().get(0).getOffset());
+		assertEquals(10, read.getRanges().get(1).getStart());
+		assertEquals(-1, read.getRanges().get(1).getEnd());
+		assertEquals(9, read.getRanges().get(1).getNumber());
+		assertEquals(15, read.getRanges().get(1).getOffset());
+		assertTrue(read.isValidFor(archive));
+
+		FileUtils.writeStringToFile(archive, "From c@d Mon Jan  3 10:30:46 2011\nSubject: b\n\nbody\n", true);
+		assertTrue(read.isValidFor(archive));
+
+		FileUtils.writeStringToFile(archive, "From e@f Mon Jan  3 10:30:47 2011\n");
+		assertFalse(read.isValidFor(archive));
+	}
+}
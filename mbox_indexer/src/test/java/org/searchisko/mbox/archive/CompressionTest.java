@@ -0,0 +1,102 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(JUnit4.class)
+public class CompressionTest {
+
+	private File getFile(String path) {
+		return new File(getClass().getClassLoader().getResource(path).getFile());
+	}
+
+	private File compress(File source, Compression compression) throws IOException {
+		File file = File.createTempFile("compression", "." + compression.name().toLowerCase());
+		file.deleteOnExit();
+		OutputStream os = new FileOutputStream(file);
+		try {
+			switch (compression) {
+				case GZIP: os = new GZIPOutputStream(os); break;
+				case BZIP2: os = new BZip2CompressorOutputStream(os); break;
+				case XZ: os = new XZCompressorOutputStream(os); break;
+				default:
+			}
+			FileUtils.copyFile(source, os);
+		} finally {
+			os.close();
+		}
+		return file;
+	}
+
+	private byte[] read(File file, Compression compression) throws IOException {
+		InputStream is = compression.open(file, 2);
+		try {
+			return IOUtils.toByteArray(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void shouldDetectAndDecompress() throws IOException {
+		File mbox = getFile("mboxArchive/lucene-java-user-201301.mbox");
+		byte[] expected = FileUtils.readFileToByteArray(mbox);
+		assertEquals(Compression.NONE, Compression.detect(mbox));
+		for (Compression compression : Compression.values()) {
+			File file = compress(mbox, compression);
+			assertEquals(compression, Compression.detect(file));
+			assertArrayEquals(compression.name(), expected, read(file, compression));
+		}
+	}
+
+	@Test
+	public void streamSplitterShouldYieldSameMessages() throws IOException {
+		File file = getFile("mboxArchive/lucene-java-user-200703.mbox");
+		for (int bufferSize : new int[]{6, 1024, StreamMboxSplitter.DEFAULT_BUFFER_SIZE}) {
+			MboxSplitter expected = new MappedMboxSplitter(file);
+			MboxSplitter actual = new StreamMboxSplitter(Compression.GZIP.open(compress(file, Compression.GZIP), 2), bufferSize);
+			try {
+				MboxMessage e;
+				while ((e = expected.next()) != null) {
+					MboxMessage a = actual.next();
+					assertEquals(e.getOffset(), a.getOffset());
+					assertEquals(e.getContent(), a.getContent());
+				}
+				assertNull(actual.next());
+			} finally {
+				expected.close();
+				actual.close();
+			}
+		}
+	}
+
+	@Test
+	public void streamSplitterShouldHandleEmptyStream() throws IOException {
+		MboxSplitter splitter = new StreamMboxSplitter(new ByteArrayInputStream(new byte[0]));
+		assertNull(splitter.next());
+		splitter.close();
+	}
+}
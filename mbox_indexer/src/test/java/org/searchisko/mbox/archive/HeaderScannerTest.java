@@ -0,0 +1,53 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(JUnit4.class)
+public class HeaderScannerTest {
+
+	private ByteBuffer bytes(String s) {
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	public void shouldScanSelectedHeaders() {
+		HeaderScanner scanner = new HeaderScanner("Message-ID", "date", "list-id");
+		Map<String, String> headers = scanner.scan(bytes(
+				"From john@doe.com Tue Jan  4 05:31:00 2011\r\n" +
+				"Date: Tue, 4 Jan 2011\r\n" +
+				"\t11:30:45 +0100\r\n" +
+				"MESSAGE-ID :  <1@doe.com> \r\n" +
+				"Message-ID: <2@doe.com>\r\n" +
+				"Subject: test\r\n" +
+				"\r\n" +
+				"List-Id: not a header\r\n"));
+
+		assertEquals("<1@doe.com>", headers.get("message-id"));
+		assertEquals("Tue, 4 Jan 2011\t11:30:45 +0100", headers.get("date"));
+		assertNull(headers.get("list-id"));
+		assertNull(headers.get("subject"));
+	}
+
+	@Test
+	public void shouldRespectBufferPosition() {
+		ByteBuffer buffer = bytes("garbageFrom: a\nMessage-Id: 1");
+		buffer.position(7);
+		assertEquals("1", new HeaderScanner("message-id").scan(buffer).get("message-id"));
+		assertEquals(7, buffer.position());
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(JUnit4.class)
+public class MappedMboxSplitterTest {
+
+	private File getFile(String path) {
+		return new File(getClass().getClassLoader().getResource(path).getFile());
+	}
+
+	private int count(MboxSplitter splitter) throws IOException {
+		int cnt = 0;
+		try {
+			while (splitter.next() != null) {
+				cnt++;
+			}
+		} finally {
+			splitter.close();
+		}
+		return cnt;
+	}
+
+	@Test
+	public void shouldSplitArchives() throws IOException {
+		assertEquals(6, count(new MappedMboxSplitter(getFile("mboxArchive/simple6.mbox"))));
+		assertEquals(449, count(new MappedMboxSplitter(getFile("mboxArchive/lucene-java-user-201301.mbox"))));
+		assertEquals(771, count(new MappedMboxSplitter(getFile("mboxArchive/lucene-java-user-200703.mbox"))));
+	}
+
+	@Test
+	public void smallWindowShouldYieldSameMessages() throws IOException {
+		File file = getFile("mboxArchive/lucene-java-user-201301.mbox");
+		MboxSplitter expected = new MappedMboxSplitter(file);
+		MboxSplitter actual = new MappedMboxSplitter(file, 0, -1, 1024);
+		try {
+			MboxMessage e;
+			while ((e = expected.next()) != null) {
+				MboxMessage a = actual.next();
+				assertEquals(e.getOffset(), a.getOffset());
+				assertEquals(e.getContent(), a.getContent());
+			}
+			assertNull(actual.next());
+		} finally {
+			expected.close();
+			actual.close();
+		}
+	}
+
+	@Test
+	public void shouldKeepOriginalBytes() throws IOException {
+		String first = "From a@b Mon Jan  3 10:30:45 2011\r\nSubject: čeština\r\n\r\nFromage here\r\n>From there\r\n";
+		String second = "From c@d Mon Jan  3 10:30:46 2011\nSubject: b\n\nbody";
+		File file = File.createTempFile("splitter", ".mbox");
+		file.deleteOnExit();
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(first.getBytes(StandardCharsets.UTF_8));
+			os.write(second.getBytes(StandardCharsets.UTF_8));
+		} finally {
+			os.close();
+		}
+
+		MboxSplitter splitter = new MappedMboxSplitter(file);
+		try {
+			MboxMessage m = splitter.next();
+			assertEquals(0, m.getOffset());
+			assertEquals(first, read(m.getInputStream()));
+			m = splitter.next();
+			assertEquals(first.getBytes(StandardCharsets.UTF_8).length, m.getOffset());
+			assertEquals(second, read(m.getInputStream()));
+			assertNull(splitter.next());
+		} finally {
+			splitter.close();
+		}
+	}
+
+	private String read(InputStream is) throws IOException {
+		byte[] buffer = new byte[is.available()];
+		assertEquals(buffer.length, is.read(buffer));
+		return new String(buffer, StandardCharsets.UTF_8);
+	}
+}
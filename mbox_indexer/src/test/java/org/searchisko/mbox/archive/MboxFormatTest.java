@@ -0,0 +1,121 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(JUnit4.class)
+public class MboxFormatTest {
+
+	private static final String[] BODIES = {
+			"Hi,\nFrom now on the body is not quoted.\n",
+			"second\n\nFrom me\n>From you\n",
+			"third\n"
+	};
+
+	private File getFile(String path) {
+		return new File(getClass().getClassLoader().getResource(path).getFile());
+	}
+
+	/**
+	 * @param lengthDelta added to declared Content-Length of the second message
+	 * @return mboxcl2 archive with {@link #BODIES}
+	 */
+	private String mboxcl2(int lengthDelta) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < BODIES.length; i++) {
+			int length = BODIES[i].length() + (i == 1 ? lengthDelta : 0);
+			sb.append("From a@b.org Mon Jan  3 10:30:4").append(i).append(" 2011\n")
+					.append("Subject: message ").append(i).append("\n")
+					.append("Content-Length: ").append(length).append("\n\n")
+					.append(BODIES[i]).append("\n");
+		}
+		return sb.toString();
+	}
+
+	private File write(String content) throws IOException {
+		File file = File.createTempFile("format", ".mbox");
+		file.deleteOnExit();
+		FileUtils.writeStringToFile(file, content, StandardCharsets.ISO_8859_1.name());
+		return file;
+	}
+
+	private List<String> split(MboxSplitter splitter) throws IOException {
+		List<String> messages = new ArrayList<>();
+		try {
+			MboxMessage message;
+			while ((message = splitter.next()) != null) {
+				byte[] content = new byte[message.getLength()];
+				message.getContent().get(content);
+				messages.add(new String(content, StandardCharsets.ISO_8859_1));
+			}
+		} finally {
+			splitter.close();
+		}
+		return messages;
+	}
+
+	@Test
+	public void shouldDetectFormat() throws IOException {
+		assertEquals(MboxFormat.MBOXO, MboxFormat.detect(getFile("mboxArchive/simple6.mbox")));
+		assertEquals(MboxFormat.MBOXO, MboxFormat.detect(getFile("mboxArchive/lucene-java-user-200703.mbox")));
+		assertEquals(MboxFormat.MBOXRD, MboxFormat.detect(write("From a@b.org Mon Jan  3 10:30:40 2011\nSubject: a\n\n>>From b\n")));
+		assertEquals(MboxFormat.MBOXCL2, MboxFormat.detect(write(mboxcl2(0).replace(">From you", "From you"))));
+		assertEquals(MboxFormat.MBOXCL, MboxFormat.detect(write(mboxcl2(0).replace("\nFrom now", "\n>From now"))));
+		assertEquals(MboxFormat.MBOXO, MboxFormat.detect(write(mboxcl2(5))));
+	}
+
+	@Test
+	public void shouldSkipBodyUsingContentLength() throws IOException {
+		String archive = mboxcl2(0);
+		File file = write(archive);
+		List<String> messages = split(new MappedMboxSplitter(file));
+		assertEquals(3, messages.size());
+		assertEquals(archive, messages.get(0) + messages.get(1) + messages.get(2));
+		assertEquals(messages, split(new MappedMboxSplitter(file, 0, -1, 64)));
+		assertEquals(messages, split(new StreamMboxSplitter(new ByteArrayInputStream(archive.getBytes(StandardCharsets.ISO_8859_1)), 16)));
+	}
+
+	@Test
+	public void shouldFallBackToScanningIfContentLengthDoesNotMatch() throws IOException {
+		// the first message makes the archive look like mboxcl2, the second one has wrong Content-Length
+		String archive = mboxcl2(-3);
+		File file = write(archive);
+		List<String> messages = split(new MappedMboxSplitter(file, 0, -1, MboxFormat.MBOXCL2));
+		assertEquals(4, messages.size());
+		assertEquals(archive, messages.get(0) + messages.get(1) + messages.get(2) + messages.get(3));
+	}
+
+	@Test
+	public void rangesShouldStartAtMessages() throws IOException {
+		File file = write(mboxcl2(0));
+		long[] bounds = MboxRanges.split(file, 0, 3);
+		List<String> messages = split(new MappedMboxSplitter(file));
+		assertEquals(0, bounds[0]);
+		assertEquals(messages.get(0).length(), bounds[1]);
+		assertEquals(messages.get(0).length() + messages.get(1).length(), bounds[2]);
+		assertEquals(file.length(), bounds[3]);
+
+		MboxSplitter splitter = new MappedMboxSplitter(file, bounds[1], bounds[2]);
+		assertEquals(messages.get(1).length(), splitter.next().getLength());
+		assertNull(splitter.next());
+		splitter.close();
+	}
+}
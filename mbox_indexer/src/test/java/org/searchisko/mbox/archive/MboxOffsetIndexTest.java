@@ -0,0 +1,107 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.searchisko.mbox.util.MessageIdHash;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class MboxOffsetIndexTest {
+
+	private File copyOf(String path) throws IOException {
+		File source = new File(getClass().getClassLoader().getResource(path).getFile());
+		File target = File.createTempFile("index", ".mbox");
+		target.deleteOnExit();
+		FileUtils.copyFile(source, target);
+		return target;
+	}
+
+	@Test
+	public void indexShouldMatchSplitter() throws IOException {
+		File archive = copyOf("mboxArchive/lucene-java-user-201301.mbox");
+		MboxOffsetIndex index = MboxOffsetIndex.build(archive);
+		assertEquals(449, index.size());
+
+		MboxSplitter splitter = new MappedMboxSplitter(archive);
+		try {
+			for (int i = 0; i < index.size(); i++) {
+				MboxMessage message = splitter.next();
+				assertEquals(message.getOffset(), index.get(i).getOffset());
+				assertEquals(message.getLength(), index.get(i).getLength());
+				assertEquals(i, index.findByOffset(message.getOffset() + message.getLength() - 1));
+			}
+		} finally {
+			splitter.close();
+		}
+	}
+
+	@Test
+	public void shouldWriteAndReadIndex() throws IOException {
+		File archive = copyOf("mboxArchive/simple6.mbox");
+		File indexFile = MboxOffsetIndex.getDefaultIndexFile(archive);
+		indexFile.deleteOnExit();
+
+		MboxOffsetIndex index = MboxOffsetIndex.update(archive, indexFile);
+		assertEquals(6, index.size());
+		assertEquals(2, index.find("3"));
+		assertEquals(MessageIdHash.hash("3"), index.get(2).getMessageIdHash());
+		// Tue, 4 Jan 2011 11:30:45 +0100
+		assertEquals(1294137045000L, index.get(2).getDate());
+
+		MboxOffsetIndex loaded = MboxOffsetIndex.read(indexFile);
+		assertTrue(loaded.isValidFor(archive));
+		assertEquals(6, loaded.size());
+		for (int i = 0; i < loaded.size(); i++) {
+			assertEquals(index.get(i).getOffset(), loaded.get(i).getOffset());
+			assertEquals(index.get(i).getLength(), loaded.get(i).getLength());
+			assertEquals(index.get(i).getMessageIdHash(), loaded.get(i).getMessageIdHash());
+			assertEquals(index.get(i).getDate(), loaded.get(i).getDate());
+		}
+
+		MboxOffsetIndex.Entry entry = MboxOffsetIndex.readEntry(indexFile, 4);
+		assertEquals(index.get(4).getOffset(), entry.getOffset());
+		assertEquals(4, entry.getOrdinal());
+	}
+
+	@Test
+	public void shouldUpdateAppendedArchive() throws IOException {
+		File archive = copyOf("mboxArchive/simple6.mbox");
+		File indexFile = MboxOffsetIndex.getDefaultIndexFile(archive);
+		indexFile.deleteOnExit();
+		MboxOffsetIndex index = MboxOffsetIndex.update(archive, indexFile);
+		long size = archive.length();
+
+		FileOutputStream os = new FileOutputStream(archive, true);
+		try {
+			// simple6.mbox does not end with new line
+			os.write(("\nFrom john@doe.com Tue Jan  4 05:31:00 2011\nMessage-Id: 7\n\nMessage #7\n\n").getBytes(StandardCharsets.US_ASCII));
+		} finally {
+			os.close();
+		}
+		assertFalse(index.isValidFor(archive));
+		assertTrue(index.isPrefixOf(archive));
+
+		index = MboxOffsetIndex.update(archive, indexFile);
+		assertEquals(7, index.size());
+		assertEquals(size + 1, index.get(6).getOffset());
+		assertEquals(6, index.find("7"));
+		assertEquals(MboxOffsetIndex.NO_DATE, index.get(6).getDate());
+		assertTrue(MboxOffsetIndex.read(indexFile).isValidFor(archive));
+	}
+}
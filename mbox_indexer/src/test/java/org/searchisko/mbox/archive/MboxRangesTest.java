@@ -0,0 +1,72 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.archive;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class MboxRangesTest {
+
+	private File getFile(String path) {
+		return new File(getClass().getClassLoader().getResource(path).getFile());
+	}
+
+	private List<Long> offsets(File file, long start, long end) throws IOException {
+		List<Long> offsets = new ArrayList<>();
+		MboxSplitter splitter = new MappedMboxSplitter(file, start, end);
+		try {
+			MboxMessage message;
+			while ((message = splitter.next()) != null) {
+				offsets.add(message.getOffset());
+			}
+		} finally {
+			splitter.close();
+		}
+		return offsets;
+	}
+
+	@Test
+	public void rangesShouldYieldSameMessages() throws IOException {
+		File file = getFile("mboxArchive/lucene-java-user-200703.mbox");
+		List<Long> expected = offsets(file, 0, -1);
+
+		for (int n : new int[]{1, 2, 7, 32}) {
+			long[] bounds = MboxRanges.split(file, 0, n);
+			assertEquals(n + 1, bounds.length);
+			assertEquals(file.length(), bounds[n]);
+			List<Long> actual = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				assertTrue(bounds[i] <= bounds[i + 1]);
+				if (bounds[i] < bounds[i + 1]) {
+					assertTrue(expected.contains(bounds[i]));
+				}
+				actual.addAll(offsets(file, bounds[i], bounds[i + 1]));
+			}
+			assertEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void shouldAlignToBoundary() throws IOException {
+		File file = getFile("mboxArchive/simple6.mbox");
+		List<Long> expected = offsets(file, 0, -1);
+		assertEquals(0, MappedMboxSplitter.alignToBoundary(file, 0));
+		assertEquals((long) expected.get(1), MappedMboxSplitter.alignToBoundary(file, 1));
+		assertEquals((long) expected.get(1), MappedMboxSplitter.alignToBoundary(file, expected.get(1)));
+		assertEquals(file.length(), MappedMboxSplitter.alignToBoundary(file, expected.get(5) + 1));
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.filter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.searchisko.mbox.archive.HeaderScanner;
+import org.searchisko.mbox.archive.MboxMessage;
+import org.searchisko.mbox.util.MessageIdSet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class MessageFilterChainTest {
+
+	private static MboxMessage message(String from, String date, String messageId) {
+		String content = "From: " + from + "\n" +
+				"Date: " + date + "\n" +
+				"Message-ID:\n " + messageId + "\n" +
+				"Subject: test\n\n" +
+				"Message-ID: <body@example.com>\n";
+		return new MboxMessage(0, ByteBuffer.wrap(content.getBytes(StandardCharsets.ISO_8859_1)));
+	}
+
+	@Test
+	public void emptyChainShouldAcceptAll() {
+		MessageFilterChain chain = MessageFilterChain.empty();
+		assertTrue(chain.isEmpty());
+		assertTrue(chain.accept(message("a@b.org", "Mon, 3 Jan 2011 10:30:45 +0000", "<1@b.org>")));
+	}
+
+	@Test
+	public void shouldExcludeMessageIds() {
+		MessageFilterChain chain = new MessageFilterChain(Collections.<MessageFilter>singletonList(
+				new ExcludeMessageIdFilter(MessageIdSet.of("<1@b.org>", "<body@example.com>"))));
+		assertFalse(chain.accept(message("a@b.org", "Mon, 3 Jan 2011 10:30:45 +0000", "<1@b.org>")));
+		assertTrue(chain.accept(message("a@b.org", "Mon, 3 Jan 2011 10:30:45 +0000", "<2@b.org>")));
+	}
+
+	@Test
+	public void shouldFilterDateRange() {
+		MessageFilterChain chain = new MessageFilterChain(Collections.<MessageFilter>singletonList(new DateRangeFilter(
+				HeaderScanner.parseDate("Sat, 1 Jan 2011 00:00:00 +0000"),
+				HeaderScanner.parseDate("Tue, 1 Feb 2011 00:00:00 +0000"))));
+		assertTrue(chain.accept(message("a@b.org", "Sat, 1 Jan 2011 00:00:00 +0000", "<1@b.org>")));
+		assertTrue(chain.accept(message("a@b.org", "Mon, 31 Jan 2011 23:30:00 +0000", "<1@b.org>")));
+		assertFalse(chain.accept(message("a@b.org", "Mon, 31 Jan 2011 23:30:00 -0100", "<1@b.org>")));
+		assertFalse(chain.accept(message("a@b.org", "Fri, 31 Dec 2010 23:59:59 +0000", "<1@b.org>")));
+		assertTrue(chain.accept(message("a@b.org", "not a date", "<1@b.org>")));
+	}
+
+	@Test
+	public void shouldExcludeSenderDomains() {
+		MessageFilterChain chain = new MessageFilterChain(Collections.<MessageFilter>singletonList(
+				new SenderDomainFilter(Arrays.asList("Spam.org", " jira.example.com "))));
+		assertFalse(chain.accept(message("Spammer <x@spam.org>", "Mon, 3 Jan 2011 10:30:45 +0000", "<1@b.org>")));
+		assertFalse(chain.accept(message("x@mail.SPAM.org", "Mon, 3 Jan 2011 10:30:45 +0000", "<1@b.org>")));
+		assertFalse(chain.accept(message("\"JIRA\" <jira@jira.example.com>", "Mon, 3 Jan 2011 10:30:45 +0000", "<1@b.org>")));
+		assertTrue(chain.accept(message("x@notspam.org", "Mon, 3 Jan 2011 10:30:45 +0000", "<1@b.org>")));
+		assertTrue(chain.accept(message("x@example.com", "Mon, 3 Jan 2011 10:30:45 +0000", "<1@b.org>")));
+	}
+
+	@Test
+	public void shouldGetSenderDomain() {
+		assertEquals("b.org", SenderDomainFilter.getDomain("John Doe <john@B.org>"));
+		assertEquals("b.org", SenderDomainFilter.getDomain("john@b.org. (John Doe)"));
+		assertEquals("b.org", SenderDomainFilter.getDomain("john at c.org <john@b.org>"));
+		assertNull(SenderDomainFilter.getDomain("John Doe"));
+		assertNull(SenderDomainFilter.getDomain(null));
+	}
+
+	@Test
+	public void allFiltersMustAccept() {
+		MessageFilterChain chain = new MessageFilterChain(Arrays.asList(
+				new SenderDomainFilter(Collections.singletonList("spam.org")),
+				new ExcludeMessageIdFilter(MessageIdSet.of("<2@b.org>"))));
+		assertTrue(chain.accept(message("x@b.org", "Mon, 3 Jan 2011 10:30:45 +0000", "<1@b.org>")));
+		assertFalse(chain.accept(message("x@spam.org", "Mon, 3 Jan 2011 10:30:45 +0000", "<1@b.org>")));
+		assertFalse(chain.accept(message("x@b.org", "Mon, 3 Jan 2011 10:30:45 +0000", "<2@b.org>")));
+	}
+
+	@Test
+	public void excludingFilterShouldWin() {
+		MessageFilterChain chain = new MessageFilterChain(Arrays.asList(
+				new SenderDomainFilter(Collections.singletonList("spam.org")),
+				new ExcludeMessageIdFilter(MessageIdSet.of("<2@b.org>"))));
+		assertTrue(chain.isExcluding());
+		assertEquals(MessageFilterChain.Decision.PROCESS, chain.filter(message("x@b.org", "Mon, 3 Jan 2011 10:30:45 +0000", "<1@b.org>")));
+		assertEquals(MessageFilterChain.Decision.SKIP, chain.filter(message("x@spam.org", "Mon, 3 Jan 2011 10:30:45 +0000", "<1@b.org>")));
+		assertEquals(MessageFilterChain.Decision.EXCLUDE, chain.filter(message("x@spam.org", "Mon, 3 Jan 2011 10:30:45 +0000", "<2@b.org>")));
+		assertFalse(new MessageFilterChain(Collections.<MessageFilter>singletonList(new DateRangeFilter(null, null))).isExcluding());
+	}
+}
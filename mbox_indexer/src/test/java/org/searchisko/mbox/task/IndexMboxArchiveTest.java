@@ -177,8 +177,8 @@ public class IndexMboxArchiveTest {
         // according to mailman stats there should be 770 mails in March 2007
         // http://mail-archives.apache.org/mod_mbox/lucene-java-user/200703.mbox/thread
         // but we detect 771 !
-        // however, until MIME4J-232 is fixed we parse successfully only 769 messages
-        verify(769, postRequestedFor(urlMatching("/service3/ct/.+")));
+        // two of them have Date header which mime4j can not parse (MIME4J-232), MailDateParser handles them
+        verify(771, postRequestedFor(urlMatching("/service3/ct/.+")));
 
     }
 
@@ -0,0 +1,88 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.task;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class IndexMboxBatchTest {
+
+	private File folder;
+
+	@Before
+	public void createFolder() throws IOException {
+		folder = File.createTempFile("batch", "");
+		folder.delete();
+		folder.mkdir();
+	}
+
+	@After
+	public void deleteFolder() throws IOException {
+		FileUtils.deleteDirectory(folder);
+	}
+
+	@Test
+	public void shouldReadManifest() throws IOException {
+		File manifest = new File(folder, "manifest.txt");
+		FileUtils.writeStringToFile(manifest,
+				"# path mailListName mailListCategory numberOffset\n" +
+				"hibernate-dev.mbox hibernate-dev dev\n" +
+				"\n" +
+				"  /tmp/infinispan-dev.mbox.gz\tinfinispan-dev  dev 3\n");
+
+		List<ArchiveJob> jobs = IndexMboxBatch.readManifest(manifest);
+		assertEquals(2, jobs.size());
+		assertEquals(new File(folder, "hibernate-dev.mbox"), jobs.get(0).getFile());
+		assertEquals("hibernate-dev", jobs.get(0).getMailListName());
+		assertEquals("dev", jobs.get(0).getMailListCategory());
+		assertEquals(0, jobs.get(0).getNumberOffset());
+		assertEquals(new File("/tmp/infinispan-dev.mbox.gz"), jobs.get(1).getFile());
+		assertEquals("infinispan-dev", jobs.get(1).getMailListName());
+		assertEquals(3, jobs.get(1).getNumberOffset());
+	}
+
+	@Test
+	public void invalidManifestLineShouldFail() throws IOException {
+		File manifest = new File(folder, "manifest.txt");
+		FileUtils.writeStringToFile(manifest, "hibernate-dev.mbox hibernate-dev\n");
+		try {
+			IndexMboxBatch.readManifest(manifest);
+			fail("IOException expected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void shouldReadFolder() throws IOException {
+		FileUtils.writeStringToFile(new File(folder, "hibernate-dev.mbox"), "");
+		FileUtils.writeStringToFile(new File(folder, "hibernate-dev.mbox.idx"), "");
+		FileUtils.writeStringToFile(new File(folder, "jbossws-users.mbox.gz"), "");
+		FileUtils.writeStringToFile(new File(folder, "jbossws-users.mbox.gz.checkpoint"), "");
+		FileUtils.writeStringToFile(new File(folder, "readme.txt"), "");
+
+		List<ArchiveJob> jobs = IndexMboxBatch.readFolder(folder);
+		assertEquals(2, jobs.size());
+		assertEquals("hibernate-dev", jobs.get(0).getMailListName());
+		assertEquals("dev", jobs.get(0).getMailListCategory());
+		assertEquals("jbossws-users", jobs.get(1).getMailListName());
+		assertEquals("users", jobs.get(1).getMailListCategory());
+		assertEquals(0, jobs.get(1).getNumberOffset());
+	}
+}
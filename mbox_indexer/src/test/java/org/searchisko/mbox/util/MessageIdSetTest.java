@@ -0,0 +1,73 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class MessageIdSetTest {
+
+	@Test
+	public void shouldAddAndFindMessageIds() {
+		MessageIdSet set = new MessageIdSet();
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(set.add("<" + i + "@example.com>"));
+		}
+		assertFalse(set.add("<5@example.com>"));
+		assertFalse(set.add(" <5@example.com>\n"));
+		assertFalse(set.add(""));
+		assertEquals(10000, set.size());
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(set.contains("<" + i + "@example.com>"));
+			assertFalse(set.contains("<" + i + "@example.org>"));
+		}
+		assertFalse(set.contains(null));
+	}
+
+	@Test
+	public void shouldWriteAndReadBinaryFile() throws IOException {
+		File file = File.createTempFile("messageIds", MessageIdSet.DEFAULT_SUFFIX);
+		file.deleteOnExit();
+		MessageIdSet set = MessageIdSet.of("<a@b>", "<c@d>", "<e@f>");
+		set.write(file);
+
+		assertTrue(MessageIdSet.isBinary(file));
+		MessageIdSet read = MessageIdSet.load(file);
+		assertEquals(3, read.size());
+		assertTrue(read.contains("<a@b>"));
+		assertTrue(read.contains("<e@f>"));
+		assertFalse(read.contains("<x@y>"));
+
+		FileUtils.writeByteArrayToFile(file, new byte[40]);
+		try {
+			MessageIdSet.read(file);
+			fail("IOException expected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void shouldLoadPropertiesFile() throws IOException {
+		File file = new File(getClass().getClassLoader().getResource("mboxArchive/filteredMessageId.properties").getFile());
+		assertFalse(MessageIdSet.isBinary(file));
+		MessageIdSet set = MessageIdSet.load(file);
+		assertEquals(2, set.size());
+		assertTrue(set.contains("<200909251143.n8PBhhSF015549@lists01.dmz-a.mwc.hst.phx2.redhat.com>"));
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.util;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class ParallelGzipInputStreamTest {
+
+	private byte[] getBytes(String path) throws IOException {
+		return FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource(path).getFile()));
+	}
+
+	/**
+	 * Compress every part as separate gzip member and concatenate them.
+	 */
+	private File gzip(byte[] data, int memberSize, byte[] trailing) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int i = 0; i < data.length; i += memberSize) {
+			GZIPOutputStream os = new GZIPOutputStream(bytes);
+			os.write(data, i, Math.min(memberSize, data.length - i));
+			os.finish();
+		}
+		bytes.write(trailing);
+		File file = File.createTempFile("parallel", ".gz");
+		file.deleteOnExit();
+		FileUtils.writeByteArrayToFile(file, bytes.toByteArray());
+		return file;
+	}
+
+	private byte[] read(InputStream is) throws IOException {
+		try {
+			return IOUtils.toByteArray(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void shouldInflateMembersInParallel() throws IOException {
+		byte[] data = getBytes("mboxArchive/lucene-java-user-200703.mbox");
+		for (int memberSize : new int[]{1000, 100 * 1024, data.length}) {
+			File file = gzip(data, memberSize, new byte[0]);
+			assertArrayEquals(data, read(new ParallelGzipInputStream(file, 1)));
+			assertArrayEquals(data, read(new ParallelGzipInputStream(file, 4)));
+		}
+	}
+
+	@Test
+	public void shouldSwitchToSequentialForBigMembers() throws IOException {
+		byte[] data = getBytes("mboxArchive/lucene-java-user-200703.mbox");
+		File file = gzip(data, 300 * 1024, new byte[0]);
+		assertArrayEquals(data, read(new ParallelGzipInputStream(file, 4, 400 * 1024)));
+		assertArrayEquals(data, read(new ParallelGzipInputStream(file, 4, 200 * 1024)));
+	}
+
+	@Test
+	public void shouldIgnoreTrailingGarbage() throws IOException {
+		byte[] data = getBytes("mboxArchive/simple6.mbox");
+		File file = gzip(data, 1000, new byte[]{0, 0, 0, 0, 0, 0, 0, 0});
+		assertArrayEquals(data, read(new ParallelGzipInputStream(file, 2)));
+	}
+
+	@Test
+	public void shouldFailOnCorruptMember() throws IOException {
+		byte[] data = getBytes("mboxArchive/simple6.mbox");
+		File file = gzip(data, 1000, new byte[0]);
+		byte[] gz = FileUtils.readFileToByteArray(file);
+		gz[gz.length - 8] ^= 0x55; // CRC in the trailer of the last member
+		FileUtils.writeByteArrayToFile(file, gz);
+		try {
+			read(new ParallelGzipInputStream(file, 2));
+			fail("ZipException expected");
+		} catch (ZipException e) {
+			// expected
+		}
+	}
+}
@@ -31,6 +31,7 @@ public class Mail {
     private final String first_text_message;
     private final String first_text_message_without_quotes;
     private final String first_html_message;
+    private final String first_html_text;
 
     private final String[] text_messages;
     private final Integer text_messages_cnt;
@@ -44,8 +45,8 @@ public class Mail {
     public Mail(final String messageId, final String message_id_original, final String[] to, final String subject_original,
                     final String subject, final String author_name, String author_email, final String date, final String in_reply_to,
                     final String[] references, final String message_snippet, final String first_text_message,
-                    final String first_text_message_without_quotes, final String first_html_message, final String[] text_messages,
-                    final Integer text_messages_cnt, final String[] html_messages, final Integer html_messages_cnt,
+                    final String first_text_message_without_quotes, final String first_html_message, final String first_html_text,
+                    final String[] text_messages, final Integer text_messages_cnt, final String[] html_messages, final Integer html_messages_cnt,
                     final MailAttachment[] message_attachments, final Integer message_attachments_cnt) {
 
         this.message_id = messageId;
@@ -62,6 +63,7 @@ public class Mail {
         this.first_text_message = first_text_message;
         this.first_text_message_without_quotes = first_text_message_without_quotes;
         this.first_html_message = first_html_message;
+        this.first_html_text = first_html_text;
         this.text_messages = text_messages;
         this.text_messages_cnt = text_messages_cnt;
         this.html_messages = html_messages;
@@ -92,4 +94,11 @@ public class Mail {
     public MailAttachment[] message_attachments() { return message_attachments; }
     public Integer message_attachments_cnt() { return message_attachments_cnt; }
 
+    /**
+     * Stripped text of the first HTML message, it is only extracted if the mail has no (non-blank) text message.
+     *
+     * @return text, null if there is no first HTML message or the mail has text message
+     */
+    public String first_html_text() { return first_html_text; }
+
 }
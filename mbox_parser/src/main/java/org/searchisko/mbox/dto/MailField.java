@@ -0,0 +1,63 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.dto;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Mail fields computed from message body. Parsers and {@link org.searchisko.mbox.json.Converter} accept set
+ * of requested fields, work needed only for fields which are not requested is skipped (text parts are not decoded,
+ * attachments are not parsed). Fields taken from message header are always present.
+ */
+public enum MailField {
+
+    MESSAGE_SNIPPET,
+    FIRST_TEXT_MESSAGE,
+    FIRST_TEXT_MESSAGE_WITHOUT_QUOTES,
+    FIRST_HTML_MESSAGE,
+    /** text_messages and text_messages_cnt */
+    TEXT_MESSAGES,
+    /** html_messages and html_messages_cnt */
+    HTML_MESSAGES,
+    /** message_attachments (content type and file name) and message_attachments_cnt */
+    MESSAGE_ATTACHMENTS,
+    /** text extracted from attachments, it has effect only together with MESSAGE_ATTACHMENTS */
+    MESSAGE_ATTACHMENTS_CONTENT;
+
+    private static final Set<MailField> ALL = Collections.unmodifiableSet(EnumSet.allOf(MailField.class));
+
+    /**
+     * @return all fields
+     */
+    public static Set<MailField> all() {
+        return ALL;
+    }
+
+    /**
+     * @param names comma separated field names (case insensitive), e.g. "first_text_message,message_attachments"
+     * @return set of fields
+     * @throws IllegalArgumentException if some name is unknown
+     */
+    public static Set<MailField> parse(String names) {
+        Set<MailField> fields = EnumSet.noneOf(MailField.class);
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (name.length() > 0) {
+                fields.add(valueOf(name.toUpperCase(Locale.ENGLISH)));
+            }
+        }
+        return fields;
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+}
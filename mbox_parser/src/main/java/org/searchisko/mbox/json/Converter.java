@@ -12,11 +12,14 @@ import org.codehaus.jackson.JsonGenerator;
 
 import org.searchisko.mbox.dto.Mail;
 import org.searchisko.mbox.dto.MailAttachment;
+import org.searchisko.mbox.dto.MailField;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Convert {@link Mail} to JSON.
@@ -25,6 +28,15 @@ import java.util.Map;
  */
 public class Converter {
 
+    /**
+     * Shared by all threads, generators created by one factory recycle their buffers.
+     */
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    static {
+        jsonFactory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
     /**
      * Convert mail to JSON. It is the same as calling #toJSON(mail, false).
      * @param mail
@@ -63,115 +75,158 @@ public class Converter {
      * @return
      */
     public static String toJSON(Mail mail, Map<String,String> metadata, boolean prettyPrint) {
+        return toJSON(mail, metadata, MailField.all(), prettyPrint);
+    }
+
+    /**
+     * Convert mail to JSON. It is the same as calling #toJSON(mail, metadata, fields, false).
+     * @param mail
+     * @param metadata
+     * @param fields
+     * @return
+     */
+    public static String toJSON(Mail mail, Map<String, String> metadata, Set<MailField> fields) {
+        return toJSON(mail, metadata, fields, false);
+    }
+
+    /**
+     * Convert mail to JSON. Only requested body fields are written, header fields are written always.
+     * Whatever is in metadata is added to or override result JSON.
+     * @param mail
+     * @param metadata
+     * @param fields requested body fields
+     * @param prettyPrint
+     * @return
+     */
+    public static String toJSON(Mail mail, Map<String,String> metadata, Set<MailField> fields, boolean prettyPrint) {
 
         String json = null;
 
-        OutputStream os = new ByteArrayOutputStream();
-        JsonGenerator generator = null;
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
 
         try {
+            write(jsonFactory.createJsonGenerator(os, JsonEncoding.UTF8), mail, null, metadata, fields, prettyPrint);
+            json = new String(os.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // TODO
+        }
 
-            generator = new JsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
-            generator.writeStartObject();
+        return json;
+    }
 
-            if (prettyPrint == true) {
-                generator.useDefaultPrettyPrinter();
-            }
+    /**
+     * Write mail as UTF-8 JSON to the stream, the stream is flushed but it is not closed.
+     * Only requested body fields are written, header fields are written always.
+     * Whatever is in metadata is added to or override result JSON, metadata of the document override
+     * the shared metadata.
+     * @param mail
+     * @param listMetadata metadata shared by many documents, can be null
+     * @param metadata metadata of the document, can be null
+     * @param fields requested body fields
+     * @param os
+     * @throws IOException
+     */
+    public static void writeJSON(Mail mail, EncodedMetadata listMetadata, Map<String, String> metadata,
+                                 Set<MailField> fields, OutputStream os) throws IOException {
+        write(jsonFactory.createJsonGenerator(os, JsonEncoding.UTF8), mail, listMetadata, metadata, fields, false);
+    }
 
-            if (mail.author_name() != null && !hasKey(metadata, "author_name")) generator.writeStringField("author_name", mail.author_name());
-            if (mail.author_email() != null && !hasKey(metadata, "author_email")) generator.writeStringField("author_email", mail.author_email());
+    private static void write(JsonGenerator generator, Mail mail, EncodedMetadata listMetadata,
+                              Map<String, String> metadata, Set<MailField> fields, boolean prettyPrint) throws IOException {
 
-            if (mail.to() != null && !hasKey(metadata, "to")) {
-                generator.writeArrayFieldStart("to");
-                for (String to : mail.to()) {
-                    generator.writeString(to);
-                }
-                generator.writeEndArray();
+        generator.writeStartObject();
+
+        if (prettyPrint == true) {
+            generator.useDefaultPrettyPrinter();
+        }
+
+        if (mail.author_name() != null && !hasKey(listMetadata, metadata, "author_name")) generator.writeStringField("author_name", mail.author_name());
+        if (mail.author_email() != null && !hasKey(listMetadata, metadata, "author_email")) generator.writeStringField("author_email", mail.author_email());
+
+        if (mail.to() != null && !hasKey(listMetadata, metadata, "to")) {
+            generator.writeArrayFieldStart("to");
+            for (String to : mail.to()) {
+                generator.writeString(to);
             }
+            generator.writeEndArray();
+        }
 
-            if (mail.subject_original() != null && !hasKey(metadata, "subject_original")) generator.writeStringField("subject_original", mail.subject_original());
-            if (mail.subject() != null && !hasKey(metadata, "subject")) generator.writeStringField("subject", mail.subject());
-            if (mail.dateUTC() != null && !hasKey(metadata, "date")) generator.writeStringField("date", mail.dateUTC());
-            if (mail.message_id_original() != null && !hasKey(metadata, "message_id_original")) generator.writeStringField("message_id_original", mail.message_id_original());
-            if (mail.message_id() != null && !hasKey(metadata, "message_id")) generator.writeStringField("message_id", mail.message_id());
+        if (mail.subject_original() != null && !hasKey(listMetadata, metadata, "subject_original")) generator.writeStringField("subject_original", mail.subject_original());
+        if (mail.subject() != null && !hasKey(listMetadata, metadata, "subject")) generator.writeStringField("subject", mail.subject());
+        if (mail.dateUTC() != null && !hasKey(listMetadata, metadata, "date")) generator.writeStringField("date", mail.dateUTC());
+        if (mail.message_id_original() != null && !hasKey(listMetadata, metadata, "message_id_original")) generator.writeStringField("message_id_original", mail.message_id_original());
+        if (mail.message_id() != null && !hasKey(listMetadata, metadata, "message_id")) generator.writeStringField("message_id", mail.message_id());
 
-            if (mail.references() != null && !hasKey(metadata, "references")) {
-                generator.writeArrayFieldStart("references");
-                for (String ref : mail.references()) {
-                    generator.writeString(ref);
-                }
-                generator.writeEndArray();
+        if (mail.references() != null && !hasKey(listMetadata, metadata, "references")) {
+            generator.writeArrayFieldStart("references");
+            for (String ref : mail.references()) {
+                generator.writeString(ref);
             }
+            generator.writeEndArray();
+        }
 
-            if (mail.in_reply_to() != null && !hasKey(metadata, "in_reply_to")) generator.writeStringField("in_reply_to", mail.in_reply_to());
+        if (mail.in_reply_to() != null && !hasKey(listMetadata, metadata, "in_reply_to")) generator.writeStringField("in_reply_to", mail.in_reply_to());
 
-            if (mail.message_snippet() != null && !hasKey(metadata, "message_snippet")) generator.writeStringField("message_snippet", mail.message_snippet());
+        if (mail.message_snippet() != null && fields.contains(MailField.MESSAGE_SNIPPET) && !hasKey(listMetadata, metadata, "message_snippet")) generator.writeStringField("message_snippet", mail.message_snippet());
 
-            if (mail.first_text_message() != null && !hasKey(metadata, "first_text_message")) generator.writeStringField("first_text_message", mail.first_text_message());
-            if (mail.first_text_message_without_quotes() != null && !hasKey(metadata, "first_text_message_without_quotes")) generator.writeStringField("first_text_message_without_quotes", mail.first_text_message_without_quotes());
-            if (mail.first_html_message() != null && !hasKey(metadata, "first_html_message")) generator.writeStringField("first_html_message", mail.first_html_message());
+        if (mail.first_text_message() != null && fields.contains(MailField.FIRST_TEXT_MESSAGE) && !hasKey(listMetadata, metadata, "first_text_message")) generator.writeStringField("first_text_message", mail.first_text_message());
+        if (mail.first_text_message_without_quotes() != null && fields.contains(MailField.FIRST_TEXT_MESSAGE_WITHOUT_QUOTES) && !hasKey(listMetadata, metadata, "first_text_message_without_quotes")) generator.writeStringField("first_text_message_without_quotes", mail.first_text_message_without_quotes());
+        if (mail.first_html_message() != null && fields.contains(MailField.FIRST_HTML_MESSAGE) && !hasKey(listMetadata, metadata, "first_html_message")) generator.writeStringField("first_html_message", mail.first_html_message());
 
-            if (mail.text_messages() != null && mail.text_messages().length > 0 && !hasKey(metadata, "text_messages")) {
-                generator.writeArrayFieldStart("text_messages");
-                for (String part : mail.text_messages())
-                {
-                    generator.writeString(part);
-                }
-                generator.writeEndArray();
+        if (mail.text_messages() != null && mail.text_messages().length > 0 && fields.contains(MailField.TEXT_MESSAGES) && !hasKey(listMetadata, metadata, "text_messages")) {
+            generator.writeArrayFieldStart("text_messages");
+            for (String part : mail.text_messages())
+            {
+                generator.writeString(part);
             }
-            if (mail.text_messages_cnt() != null && !hasKey(metadata, "text_messages_cnt")) generator.writeNumberField("text_messages_cnt", mail.text_messages_cnt());
+            generator.writeEndArray();
+        }
+        if (mail.text_messages_cnt() != null && fields.contains(MailField.TEXT_MESSAGES) && !hasKey(listMetadata, metadata, "text_messages_cnt")) generator.writeNumberField("text_messages_cnt", mail.text_messages_cnt());
 
-            if (mail.html_messages() != null && mail.html_messages().length > 0 && !hasKey(metadata, "html_messages")) {
-                generator.writeArrayFieldStart("html_messages");
-                for (String part : mail.html_messages())
-                {
-                    generator.writeString(part);
-                }
-                generator.writeEndArray();
+        if (mail.html_messages() != null && mail.html_messages().length > 0 && fields.contains(MailField.HTML_MESSAGES) && !hasKey(listMetadata, metadata, "html_messages")) {
+            generator.writeArrayFieldStart("html_messages");
+            for (String part : mail.html_messages())
+            {
+                generator.writeString(part);
             }
-            if (mail.html_messages_cnt() != null && !hasKey(metadata, "html_messages_cnt")) generator.writeNumberField("html_messages_cnt", mail.html_messages_cnt());
-
-            if (mail.message_attachments() != null && mail.message_attachments().length > 0 && !hasKey(metadata, "message_attachments")) {
-                generator.writeArrayFieldStart("message_attachments");
-                for (MailAttachment atchm : mail.message_attachments()) {
-                    generator.writeStartObject();
-                        generator.writeStringField("content_type",atchm.getContentType());
-                        generator.writeStringField("filename", atchm.getFileName());
+            generator.writeEndArray();
+        }
+        if (mail.html_messages_cnt() != null && fields.contains(MailField.HTML_MESSAGES) && !hasKey(listMetadata, metadata, "html_messages_cnt")) generator.writeNumberField("html_messages_cnt", mail.html_messages_cnt());
+
+        if (mail.message_attachments() != null && mail.message_attachments().length > 0 && fields.contains(MailField.MESSAGE_ATTACHMENTS) && !hasKey(listMetadata, metadata, "message_attachments")) {
+            generator.writeArrayFieldStart("message_attachments");
+            for (MailAttachment atchm : mail.message_attachments()) {
+                generator.writeStartObject();
+                    generator.writeStringField("content_type",atchm.getContentType());
+                    generator.writeStringField("filename", atchm.getFileName());
+                    if (fields.contains(MailField.MESSAGE_ATTACHMENTS_CONTENT)) {
                         generator.writeStringField("content", atchm.getContent());
-                    generator.writeEndObject();
-                }
-                generator.writeEndArray();
-            }
-            if (mail.message_attachments_cnt() != null && !hasKey(metadata, "message_attachments_cnt")) generator.writeNumberField("message_attachments_cnt", mail.message_attachments_cnt());
-
-            if (metadata != null && !metadata.isEmpty()) {
-                for (String key : metadata.keySet()) {
-                    if (key.trim().length() > 0) {
-                        generator.writeStringField(key, metadata.get(key));
                     }
-                }
+                generator.writeEndObject();
             }
+            generator.writeEndArray();
+        }
+        if (mail.message_attachments_cnt() != null && fields.contains(MailField.MESSAGE_ATTACHMENTS) && !hasKey(listMetadata, metadata, "message_attachments_cnt")) generator.writeNumberField("message_attachments_cnt", mail.message_attachments_cnt());
 
-            generator.writeEndObject();
-            generator.close();
-
-            json = os.toString();
-
-        } catch (IOException e) {
-            // TODO
-
-        } finally {
-            try {
-                if (os != null) os.close();
-            } catch (IOException e) {
-                // ignore
+        if (listMetadata != null) {
+            listMetadata.write(generator, metadata);
+        }
+        if (metadata != null && !metadata.isEmpty()) {
+            for (String key : metadata.keySet()) {
+                if (key.trim().length() > 0) {
+                    generator.writeStringField(key, metadata.get(key));
+                }
             }
         }
 
-        return json;
+        generator.writeEndObject();
+        generator.close();
     }
 
-    private static boolean hasKey(Map<String, String> metadata, String key) {
+    private static boolean hasKey(EncodedMetadata listMetadata, Map<String, String> metadata, String key) {
+        if (listMetadata != null && listMetadata.containsKey(key)) {
+            return true;
+        }
         if (metadata != null) {
             return metadata.containsKey(key);
         } else {
@@ -0,0 +1,70 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.json;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.io.SerializedString;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Metadata which is the same for many documents (e.g. project and category of mailing list), names and values
+ * are encoded to JSON once and {@link Converter} copies their bytes to every document.
+ * <p/>
+ * Instances are immutable.
+ */
+public final class EncodedMetadata {
+
+    private final Set<String> keys = new HashSet<>();
+    private final SerializedString[] names;
+    private final SerializedString[] values;
+
+    /**
+     * @param metadata fields to add, entries with blank keys are ignored
+     */
+    public EncodedMetadata(Map<String, String> metadata) {
+        int size = 0;
+        names = new SerializedString[metadata.size()];
+        values = new SerializedString[metadata.size()];
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            if (entry.getKey().trim().length() > 0) {
+                keys.add(entry.getKey());
+                names[size] = new SerializedString(entry.getKey());
+                values[size] = entry.getValue() != null ? new SerializedString(entry.getValue()) : null;
+                size++;
+            }
+        }
+    }
+
+    boolean containsKey(String key) {
+        return keys.contains(key);
+    }
+
+    /**
+     * Write all fields which are not overridden by given metadata.
+     *
+     * @param generator
+     * @param metadata metadata of the document, can be null
+     * @throws IOException
+     */
+    void write(JsonGenerator generator, Map<String, String> metadata) throws IOException {
+        for (int i = 0; i < names.length && names[i] != null; i++) {
+            if (metadata != null && metadata.containsKey(names[i].getValue())) {
+                continue;
+            }
+            generator.writeFieldName(names[i]);
+            if (values[i] != null) {
+                generator.writeString(values[i]);
+            } else {
+                generator.writeNull();
+            }
+        }
+    }
+}
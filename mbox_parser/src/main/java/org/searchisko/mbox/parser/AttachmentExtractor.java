@@ -0,0 +1,461 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.apache.james.mime4j.dom.SingleBody;
+import org.apache.tika.Tika;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.CompositeParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.searchisko.mbox.dto.MailAttachment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts text content of attachments.
+ * <p/>
+ * By default the text is extracted by Tika in the thread which parses the message. Once {@link #start(int, long)}
+ * is called, extraction runs in its own bounded pool of threads: attachments of one message are extracted in
+ * parallel while the parsing thread goes on with the rest of the message, and the message is completed once all its
+ * attachments are extracted or timed out (see {@link MailCallback}). If all extraction threads are busy and their
+ * queue is full, the parsing thread waits for free capacity, so messages without attachments are not held up by heavy
+ * ones. The timeout of each attachment counts from the start of its extraction. Extraction which times out is
+ * interrupted and the attachment is indexed without content.
+ * <p/>
+ * If {@link #setTextCache(AttachmentTextCache)} is called, text of attachments already extracted before is taken
+ * from the cache instead of Tika.
+ * <p/>
+ * Before that {@link AttachmentRouter} looks at the first bytes and size of the content: useless or too big content
+ * is not parsed and recognized formats go directly to their Tika parser.
+ * <p/>
+ * Once {@link #startWorkers(int, int, long)} is called, Tika runs in forked JVMs (see {@link AttachmentWorkerPool})
+ * instead of the JVM which parses messages.
+ * <p/>
+ * This class is thread safe.
+ */
+public final class AttachmentExtractor {
+
+    private static Logger log = LoggerFactory.getLogger(AttachmentExtractor.class);
+
+    /**
+     * Max length of extracted text.
+     */
+    public static final int MAX_TEXT_LENGTH = 100000;
+
+    /**
+     * Default timeout of extraction of one attachment in millis.
+     */
+    public static final long DEFAULT_TIMEOUT = 60 * 1000L;
+
+    /**
+     * Default max heap size of forked workers in megabytes.
+     */
+    public static final int DEFAULT_WORKER_HEAP = 256;
+
+    private static ThreadPoolExecutor executor;
+    private static ScheduledExecutorService watchdog;
+    private static long timeoutMillis;
+    private static volatile AttachmentTextCache textCache;
+    private static volatile Map<MediaType, Parser> parsers;
+    private static volatile AttachmentWorkerPool workerPool;
+
+    private AttachmentExtractor() {};
+
+    /**
+     * Set cache of extracted text used by all extractions.
+     *
+     * @param cache cache, null to extract every attachment by Tika
+     */
+    public static void setTextCache(AttachmentTextCache cache) {
+        textCache = cache;
+    }
+
+    /**
+     * @return cache of extracted text, null if there is none
+     */
+    public static AttachmentTextCache getTextCache() {
+        return textCache;
+    }
+
+    /**
+     * Start pool of extraction threads, extraction in parsing threads is used until then.
+     *
+     * @param threads number of extraction threads
+     * @param timeoutMillis max time of extraction of one attachment
+     */
+    public static synchronized void start(int threads, long timeoutMillis) {
+        if (threads < 1 || timeoutMillis < 1) {
+            throw new IllegalArgumentException("Number of threads and timeout must be positive");
+        }
+        stopThreads();
+        AttachmentExtractor.timeoutMillis = timeoutMillis;
+        executor = new ThreadPoolExecutor(threads, threads, 3, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads, true),
+                newThreadFactory("attachment-extractor"),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // wait for free capacity
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException("Attachment extraction is shut down");
+                        }
+                        try {
+                            executor.getQueue().put(r);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException(e);
+                        }
+                        // shutdownNow could drain the queue before the put, the task would never run
+                        if (executor.isShutdown() && executor.getQueue().remove(r)) {
+                            throw new RejectedExecutionException("Attachment extraction is shut down");
+                        }
+                    }
+                });
+        // message can be completed in the thread which times out its last extraction, one thread per extraction
+        // thread keeps other timeouts on time meanwhile
+        watchdog = Executors.newScheduledThreadPool(threads, newThreadFactory("attachment-extractor-watchdog"));
+    }
+
+    /**
+     * @return max time until all extractions submitted so far end (the running ones and the queued ones which
+     * start after them), 0 if the pool of extraction threads is not started
+     */
+    public static synchronized long getCompletionTimeout() {
+        return executor != null ? 2 * timeoutMillis : 0;
+    }
+
+    /**
+     * Start forked JVMs which extract text instead of the parsing JVM.
+     *
+     * @param workers number of forked JVMs
+     * @param heapMegabytes max heap size of each forked JVM
+     * @param timeoutMillis max time of extraction of one attachment, the forked JVM is killed then
+     */
+    public static synchronized void startWorkers(int workers, int heapMegabytes, long timeoutMillis) {
+        stopWorkers();
+        workerPool = new AttachmentWorkerPool(workers, heapMegabytes, timeoutMillis);
+    }
+
+    /**
+     * Stop pool of extraction threads and forked JVMs, running extractions are interrupted. Text is extracted
+     * in parsing threads from now on.
+     */
+    public static synchronized void shutdown() {
+        stopThreads();
+        stopWorkers();
+    }
+
+    private static void stopThreads() {
+        if (executor != null) {
+            for (Runnable waiting : executor.shutdownNow()) {
+                // waiting messages are completed
+                ((FutureTask<?>) waiting).cancel(false);
+            }
+            watchdog.shutdownNow();
+            executor = null;
+            watchdog = null;
+        }
+    }
+
+    private static void stopWorkers() {
+        if (workerPool != null) {
+            workerPool.close();
+            workerPool = null;
+        }
+    }
+
+    static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Extract text of the attachment in the calling thread, the text cache is used if it is set. Content is routed
+     * to the Tika parser by {@link AttachmentRouter}.
+     *
+     * @param body attachment content
+     * @param mimeType mime type of the attachment
+     * @param filename file name of the attachment, can be null
+     * @return text with collapsed whitespace, null if the content is not parsed or a forked JVM timed out
+     * @throws IOException
+     * @throws TikaException
+     */
+    static String extract(SingleBody body, String mimeType, String filename) throws IOException, TikaException {
+        MediaType type = AttachmentRouter.route(body, mimeType, filename);
+        if (type == null) {
+            log.debug("Attachment '{}' of type '{}' is not parsed", filename, mimeType);
+            return null;
+        }
+        AttachmentTextCache cache = textCache;
+        String key = null;
+        if (cache != null) {
+            key = AttachmentTextCache.key(body, mimeType);
+            String text = cache.get(key);
+            if (text != null) {
+                return text;
+            }
+        }
+        AttachmentWorkerPool pool = workerPool;
+        String text = pool != null ? pool.parse(body, type) : parse(body, type);
+        if (text == null) {
+            return null;
+        }
+        text = TextNormalizer.collapseWhitespace(text);
+        if (cache != null) {
+            cache.put(key, text);
+        }
+        return text;
+    }
+
+    /**
+     * Parse the content by the parser of given type, the same way as {@link Tika#parseToString(InputStream, Metadata, int)}
+     * does after detection.
+     *
+     * @param type {@link AttachmentRouter#DETECT} to let Tika detect the type
+     */
+    static String parse(SingleBody body, MediaType type) throws IOException, TikaException {
+        Tika tika = MessageBodyParser.getTika();
+        Parser parser = type.equals(AttachmentRouter.DETECT) ? null : getParsers(tika).get(type);
+        if (parser == null) {
+            return tika.parseToString(body.getInputStream(), new Metadata(), MAX_TEXT_LENGTH);
+        }
+        WriteOutContentHandler handler = new WriteOutContentHandler(MAX_TEXT_LENGTH);
+        Metadata metadata = new Metadata();
+        metadata.set(Metadata.CONTENT_TYPE, type.toString());
+        ParseContext context = new ParseContext();
+        context.set(Parser.class, tika.getParser());
+        InputStream is = TikaInputStream.get(body.getInputStream());
+        try {
+            parser.parse(is, new BodyContentHandler(handler), metadata, context);
+        } catch (SAXException e) {
+            if (!handler.isWriteLimitReached(e)) {
+                throw new TikaException("Unexpected SAX processing failure", e);
+            }
+        } finally {
+            is.close();
+        }
+        return handler.toString();
+    }
+
+    private static Map<MediaType, Parser> getParsers(Tika tika) {
+        Map<MediaType, Parser> p = parsers;
+        if (p == null) {
+            Parser parser = tika.getParser();
+            p = parser instanceof CompositeParser ?
+                    ((CompositeParser) parser).getParsers(new ParseContext()) : Collections.<MediaType, Parser>emptyMap();
+            parsers = p;
+        }
+        return p;
+    }
+
+    /**
+     * @return true if the pool of extraction threads is started
+     */
+    static synchronized boolean isStarted() {
+        return executor != null;
+    }
+
+    /**
+     * Extract text of the attachment in the pool of extraction threads. If the pool is not started or it is shut
+     * down the text is extracted before this method returns.
+     *
+     * @param attachment content of the attachment is set by {@link Extraction#await()}
+     * @param body attachment content, it is disposed once extraction ends
+     * @return
+     */
+    static Extraction submit(MailAttachment attachment, SingleBody body) {
+        Extraction extraction = new Extraction(attachment, body);
+        ThreadPoolExecutor e;
+        synchronized (AttachmentExtractor.class) {
+            e = executor;
+            extraction.watchdog = watchdog;
+            extraction.timeoutMillis = timeoutMillis;
+        }
+        if (e != null) {
+            try {
+                e.execute(extraction.task);
+                return extraction;
+            } catch (RejectedExecutionException ex) {
+                log.debug("Attachment extraction rejected, extracting in calling thread");
+            }
+        }
+        extraction.watchdog = null;
+        extraction.task.run();
+        return extraction;
+    }
+
+    /**
+     * Text extraction of one attachment.
+     */
+    static class Extraction implements Callable<String> {
+
+        private final MailAttachment attachment;
+        private final SingleBody body;
+        private final FutureTask<String> task;
+        private final AtomicBoolean disposed = new AtomicBoolean();
+        private final AtomicBoolean notified = new AtomicBoolean();
+        private volatile ScheduledExecutorService watchdog;
+        private volatile long timeoutMillis;
+        private volatile Runnable listener;
+
+        private Extraction(MailAttachment attachment, SingleBody body) {
+            this.attachment = attachment;
+            this.body = body;
+            this.task = new FutureTask<String>(this) {
+                @Override
+                protected void done() {
+                    notifyListener();
+                }
+            };
+        }
+
+        /**
+         * Run the listener once the extraction ends (it is extracted, it fails, times out or it is cancelled),
+         * right away if it has already ended.
+         *
+         * @param listener
+         */
+        void whenDone(Runnable listener) {
+            this.listener = listener;
+            if (task.isDone()) {
+                notifyListener();
+            }
+        }
+
+        private void notifyListener() {
+            Runnable l = listener;
+            if (l != null && notified.compareAndSet(false, true)) {
+                l.run();
+            }
+        }
+
+        @Override
+        public String call() throws Exception {
+            ScheduledFuture<?> timeout = scheduleTimeout();
+            try {
+                return extract(body, attachment.getContentType(), attachment.getFileName());
+            } finally {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                dispose();
+            }
+        }
+
+        /**
+         * @return timer which interrupts the extraction, null if there is no timeout
+         */
+        private ScheduledFuture<?> scheduleTimeout() {
+            ScheduledExecutorService w = watchdog;
+            if (w == null) {
+                return null;
+            }
+            try {
+                return w.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.cancel(true);
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                return null;
+            }
+        }
+
+        SingleBody getBody() {
+            return body;
+        }
+
+        /**
+         * Wait for the extraction to end, it does not block once the listener set by {@link #whenDone(Runnable)}
+         * has been run.
+         *
+         * @return the attachment, null if it can not be parsed and should be ignored
+         * @throws IOException
+         */
+        MailAttachment await() throws IOException {
+            try {
+                attachment.setContent(task.get());
+                return attachment;
+            } catch (CancellationException e) {
+                log.warn("Text extraction of attachment '{}' timed out, indexing it without content", attachment.getFileName());
+                return attachment;
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for attachment extraction");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof TikaException) {
+                    log.warn("ignoring attachment: parsing error", cause);
+                    return null;
+                } else if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            } finally {
+                if (task.isCancelled()) {
+                    dispose();
+                }
+            }
+        }
+
+        /**
+         * Cancel the extraction if it has not ended yet.
+         */
+        void cancel() {
+            task.cancel(true);
+            dispose();
+        }
+
+        private void dispose() {
+            if (disposed.compareAndSet(false, true)) {
+                body.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.apache.james.mime4j.dom.SingleBody;
+import org.apache.james.mime4j.dom.TextBody;
+import org.apache.tika.mime.MediaType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides how attachment content is parsed from its first bytes and size, before Tika reads the content.
+ * <p/>
+ * Content which gives no useful text (executables, media, encrypted data, archives Tika can not open) and content
+ * bigger than {@link #MAX_SIZE} is not parsed at all. Magic numbers of executables and media are checked only for
+ * binary bodies, text bodies starting with the same characters (e.g. "ID3" or "MZ") are parsed. Formats recognized by their magic bytes are parsed by the
+ * specific Tika parser without running Tika detection again. Any other content, including zip files other than
+ * office documents, is left to Tika detection.
+ * <p/>
+ * This class is thread safe.
+ */
+final class AttachmentRouter {
+
+    /**
+     * Content bigger than this number of bytes is not parsed.
+     */
+    static final long MAX_SIZE = 20 * 1024 * 1024;
+
+    /**
+     * Number of bytes inspected for magic numbers.
+     */
+    static final int HEAD_SIZE = 32;
+
+    /**
+     * Returned for content which should be detected by Tika.
+     */
+    static final MediaType DETECT = MediaType.OCTET_STREAM;
+
+    static final MediaType PDF = MediaType.application("pdf");
+    static final MediaType RTF = MediaType.application("rtf");
+    static final MediaType MS_OFFICE = MediaType.application("x-tika-msoffice");
+
+    /**
+     * Declared mime types of content which gives no useful text.
+     */
+    private static final Set<String> SKIPPED_MIME_TYPES = new HashSet<>(Arrays.asList(
+            "application/pgp-encrypted", "application/pkcs7-mime", "application/x-pkcs7-mime",
+            "application/pkcs7-signature", "application/x-pkcs7-signature", "application/x-msdownload",
+            "application/x-executable", "application/java-vm", "application/x-rar-compressed",
+            "application/x-7z-compressed"));
+
+    /**
+     * Zip based office documents by filename extension.
+     */
+    private static final Map<String, MediaType> ZIP_DOCUMENTS = new HashMap<>();
+
+    static {
+        MediaType ooxml = MediaType.application("x-tika-ooxml");
+        for (String ext : new String[]{"docx", "docm", "dotx", "xlsx", "xlsm", "xltx", "pptx", "pptm", "potx", "ppsx"}) {
+            ZIP_DOCUMENTS.put(ext, ooxml);
+        }
+        ZIP_DOCUMENTS.put("odt", MediaType.application("vnd.oasis.opendocument.text"));
+        ZIP_DOCUMENTS.put("ods", MediaType.application("vnd.oasis.opendocument.spreadsheet"));
+        ZIP_DOCUMENTS.put("odp", MediaType.application("vnd.oasis.opendocument.presentation"));
+        ZIP_DOCUMENTS.put("odg", MediaType.application("vnd.oasis.opendocument.graphics"));
+    }
+
+    private AttachmentRouter() {};
+
+    /**
+     * Read first bytes of the content and check its size.
+     *
+     * @param body attachment content
+     * @param mimeType declared mime type
+     * @param filename declared filename, can be null
+     * @return media type of the parser to use, {@link #DETECT} if Tika should detect it, null if the content
+     *         should not be parsed
+     * @throws IOException
+     */
+    static MediaType route(SingleBody body, String mimeType, String filename) throws IOException {
+        if (mimeType != null && SKIPPED_MIME_TYPES.contains(mimeType.toLowerCase(Locale.ENGLISH))) {
+            return null;
+        }
+        byte[] head = new byte[HEAD_SIZE];
+        int length = 0;
+        InputStream is = body.getInputStream();
+        try {
+            int n;
+            while (length < head.length && (n = is.read(head, length, head.length - length)) != -1) {
+                length += n;
+            }
+            if (length == head.length && isLongerThan(is, MAX_SIZE - length)) {
+                return null;
+            }
+        } finally {
+            is.close();
+        }
+        return route(head, length, filename, !(body instanceof TextBody));
+    }
+
+    /**
+     * @param head first bytes of the content
+     * @param length number of valid bytes in head
+     * @param filename declared filename, can be null
+     * @param binary false if the content is a text body
+     * @return media type of the parser to use, {@link #DETECT} if Tika should detect it, null if the content
+     *         should not be parsed
+     */
+    static MediaType route(byte[] head, int length, String filename, boolean binary) {
+        if (startsWith(head, length, 0, "%PDF-")) {
+            return PDF;
+        }
+        if (startsWith(head, length, 0, "{\\rtf")) {
+            return RTF;
+        }
+        if (startsWith(head, length, 0, 0xD0, 0xCF, 0x11, 0xE0, 0xA1, 0xB1, 0x1A, 0xE1)) {
+            return MS_OFFICE;
+        }
+        if (startsWith(head, length, 0, 'P', 'K', 3, 4)) {
+            MediaType document = ZIP_DOCUMENTS.get(extension(filename));
+            return document != null ? document : DETECT;
+        }
+        if (startsWith(head, length, 0, "-----BEGIN PGP MESSAGE") || (binary && isUseless(head, length))) {
+            return null;
+        }
+        return DETECT;
+    }
+
+    /**
+     * @return true for magic numbers of executables, media and archives Tika can not open
+     */
+    private static boolean isUseless(byte[] head, int length) {
+        return
+                // executables and java classes
+                startsWith(head, length, 0, 'M', 'Z') ||
+                startsWith(head, length, 0, 0x7F, 'E', 'L', 'F') ||
+                startsWith(head, length, 0, 0xCA, 0xFE, 0xBA, 0xBE) ||
+                startsWith(head, length, 0, 0xFE, 0xED, 0xFA, 0xCE) ||
+                startsWith(head, length, 0, 0xCF, 0xFA, 0xED, 0xFE) ||
+                // archives
+                startsWith(head, length, 0, "Rar!") ||
+                startsWith(head, length, 0, '7', 'z', 0xBC, 0xAF, 0x27, 0x1C) ||
+                // images
+                startsWith(head, length, 0, 0x89, 'P', 'N', 'G') ||
+                startsWith(head, length, 0, 0xFF, 0xD8, 0xFF) ||
+                startsWith(head, length, 0, "GIF8") ||
+                // audio and video
+                startsWith(head, length, 0, "ID3") ||
+                startsWith(head, length, 0, "OggS") ||
+                startsWith(head, length, 0, "fLaC") ||
+                startsWith(head, length, 0, "FLV") ||
+                startsWith(head, length, 4, "ftyp") ||
+                (startsWith(head, length, 0, "RIFF") &&
+                        (startsWith(head, length, 8, "WAVE") || startsWith(head, length, 8, "AVI "))) ||
+                startsWith(head, length, 0, 0x1A, 0x45, 0xDF, 0xA3);
+    }
+
+    private static boolean startsWith(byte[] head, int length, int offset, String magic) {
+        byte[] bytes = magic.getBytes(StandardCharsets.US_ASCII);
+        if (offset + bytes.length > length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (head[offset + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] head, int length, int offset, int... magic) {
+        if (offset + magic.length > length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((head[offset + i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String extension(String filename) {
+        if (filename == null) {
+            return null;
+        }
+        int dot = filename.lastIndexOf('.');
+        return dot < 0 ? null : filename.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Skip at most <code>limit</code> bytes and check if there is more, streams of stored bodies skip without
+     * reading the content.
+     *
+     * @return true if the stream has more than <code>limit</code> bytes
+     */
+    static boolean isLongerThan(InputStream is, long limit) throws IOException {
+        long remaining = limit;
+        while (remaining > 0) {
+            long n = is.skip(remaining);
+            if (n <= 0) {
+                if (is.read() == -1) {
+                    return false;
+                }
+                n = 1;
+            }
+            remaining -= n;
+        }
+        // skip may go past the end of file
+        return is.read() != -1;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.apache.james.mime4j.dom.SingleBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk cache of text extracted from attachments, so the same attachment found in many messages (cross-posts,
+ * forwards) or indexed again is parsed by Tika only once.
+ * <p/>
+ * The key is SHA-1 hash of the mime type and decoded content of the attachment, the text is stored in a file
+ * named by the key. Total size of the files is bounded, least recently used files are deleted first. Order of use
+ * survives restarts as last modified time of the files. Other files in the directory are left alone, so it can be
+ * shared.
+ * <p/>
+ * This class is thread safe.
+ */
+public final class AttachmentTextCache {
+
+    private static Logger log = LoggerFactory.getLogger(AttachmentTextCache.class);
+
+    /**
+     * Default max total size of cache files in bytes.
+     */
+    public static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+
+    private static final String TEMP_PREFIX = "text";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int KEY_LENGTH = 40;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final long maxSize;
+
+    /**
+     * Size of files by key in order of use, guarded by itself.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Open the cache, files found in the directory are used.
+     *
+     * @param directory directory of cache files, it is created if it does not exist
+     * @param maxSize max total size of cache files in bytes
+     * @throws IOException if the directory can not be created
+     */
+    public AttachmentTextCache(File directory, long maxSize) throws IOException {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create directory " + directory);
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        load();
+        log.info("Attachment text cache in {} holds {} entries, {} bytes", new Object[]{directory, entries.size(), size});
+    }
+
+    private void load() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        synchronized (entries) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!file.isFile()) {
+                    continue;
+                }
+                if (name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX)) {
+                    // left by interrupted write
+                    file.delete();
+                } else if (isKey(name)) {
+                    entries.put(file.getName(), file.length());
+                    size += file.length();
+                }
+            }
+            evict();
+        }
+    }
+
+    /**
+     * @return true if the name is a cache key (hex encoded SHA-1 hash)
+     */
+    private static boolean isKey(String name) {
+        if (name.length() != KEY_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param body decoded content of the attachment
+     * @param mimeType mime type of the attachment
+     * @return cache key of the attachment
+     * @throws IOException
+     */
+    public static String key(SingleBody body, String mimeType) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        if (mimeType != null) {
+            digest.update(mimeType.toLowerCase(Locale.ENGLISH).getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+        byte[] buffer = new byte[8192];
+        InputStream is = body.getInputStream();
+        try {
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            is.close();
+        }
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @param key cache key as returned by {@link #key(SingleBody, String)}
+     * @return cached text, null if there is none
+     */
+    public String get(String key) {
+        synchronized (entries) {
+            if (entries.get(key) == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        File file = new File(directory, key);
+        try {
+            String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            file.setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return text;
+        } catch (IOException e) {
+            // evicted meanwhile
+            log.debug("Can not read cached text {}: {}", key, e.getMessage());
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Store the text, least recently used texts are deleted if the cache is full. Errors are logged
+     * and ignored.
+     *
+     * @param key cache key as returned by {@link #key(SingleBody, String)}
+     * @param text extracted text
+     */
+    public void put(String key, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > maxSize) {
+            return;
+        }
+        File temp = null;
+        try {
+            temp = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, directory);
+            Files.write(temp.toPath(), bytes);
+            synchronized (entries) {
+                Files.move(temp.toPath(), new File(directory, key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                Long previous = entries.put(key, (long) bytes.length);
+                size += bytes.length - (previous != null ? previous : 0);
+                evict();
+            }
+        } catch (IOException e) {
+            log.warn("Can not store cached text " + key, e);
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(directory, eldest.getKey()).delete();
+            size -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return total size of cached texts in bytes
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    /**
+     * @return number of texts found in the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of texts not found in the cache
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return summary of counters for logging
+     */
+    public String getStats() {
+        return "hits: " + getHits() + ", misses: " + getMisses() + ", entries: " + getEntryCount() + ", bytes: " + getSize();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.apache.james.mime4j.message.BasicBodyFactory;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.mime.MediaType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Main class of forked JVM which extracts text of attachments for {@link AttachmentWorkerPool}.
+ * <p/>
+ * Requests are read from standard input and responses are written to standard output, standard output
+ * is redirected to standard error for everything else. A request is media type of the parser followed by
+ * the content in chunks, each chunk is its length followed by its bytes, zero length chunk ends the content.
+ * A response is one of the status bytes followed by the text or error message. The worker exits once its
+ * input is closed or it runs out of memory.
+ */
+public final class AttachmentWorker {
+
+    static final int OK = 0;
+    static final int PARSE_ERROR = 1;
+    static final int ERROR = 2;
+
+    private AttachmentWorker() {};
+
+    public static void main(String[] args) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+        try {
+            while (true) {
+                MediaType type;
+                try {
+                    type = MediaType.parse(in.readUTF());
+                } catch (EOFException e) {
+                    return;
+                }
+                byte[] content = readContent(in);
+                try {
+                    String text = AttachmentExtractor.parse(new BasicBodyFactory().binaryBody(content), type);
+                    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                    out.writeByte(OK);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                } catch (TikaException e) {
+                    writeError(out, PARSE_ERROR, e);
+                } catch (IOException | RuntimeException e) {
+                    writeError(out, ERROR, e);
+                }
+                out.flush();
+            }
+        } catch (OutOfMemoryError e) {
+            // the parent sees closed output and starts new worker
+            System.exit(3);
+        }
+    }
+
+    private static byte[] readContent(DataInputStream in) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = in.readInt()) > 0) {
+            while (length > 0) {
+                int n = Math.min(length, buffer.length);
+                in.readFully(buffer, 0, n);
+                content.write(buffer, 0, n);
+                length -= n;
+            }
+        }
+        return content.toByteArray();
+    }
+
+    private static void writeError(DataOutputStream out, int status, Exception e) throws IOException {
+        String message = String.valueOf(e);
+        if (message.length() > 1000) {
+            message = message.substring(0, 1000);
+        }
+        out.writeByte(status);
+        out.writeUTF(message);
+    }
+}
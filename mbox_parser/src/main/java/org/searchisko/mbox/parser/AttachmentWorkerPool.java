@@ -0,0 +1,206 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.apache.james.mime4j.dom.SingleBody;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.mime.MediaType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of forked JVMs running {@link AttachmentWorker}, each of them with its own max heap size, so memory used by
+ * Tika does not count to heap of the parsing JVM. Workers are started on first use and live until the pool is
+ * closed. Content and text go through pipes of the worker process.
+ * <p/>
+ * A worker which does not answer within the timeout is killed, the attachment is then indexed without content.
+ * A worker which dies (typically it runs out of memory) fails the attachment. In both cases a new worker is
+ * started for the next attachment.
+ * <p/>
+ * This class is thread safe.
+ */
+final class AttachmentWorkerPool {
+
+    private static Logger log = LoggerFactory.getLogger(AttachmentWorkerPool.class);
+
+    private final List<String> command;
+    private final long timeoutMillis;
+    private final BlockingQueue<Worker> idle;
+    private final ScheduledExecutorService watchdog;
+    private volatile boolean closed;
+
+    /**
+     * @param workers number of worker processes
+     * @param heapMegabytes max heap size of each worker
+     * @param timeoutMillis max time of extraction of one attachment
+     */
+    AttachmentWorkerPool(int workers, int heapMegabytes, long timeoutMillis) {
+        if (workers < 1 || heapMegabytes < 1 || timeoutMillis < 1) {
+            throw new IllegalArgumentException("Number of workers, heap size and timeout must be positive");
+        }
+        this.command = Arrays.asList(
+                new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+                "-Xmx" + heapMegabytes + "m",
+                "-cp", System.getProperty("java.class.path"),
+                AttachmentWorker.class.getName());
+        this.timeoutMillis = timeoutMillis;
+        this.idle = new ArrayBlockingQueue<>(workers);
+        for (int i = 0; i < workers; i++) {
+            idle.add(new Worker());
+        }
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(
+                AttachmentExtractor.newThreadFactory("attachment-worker-watchdog"));
+    }
+
+    /**
+     * Extract text of the content by a worker process.
+     *
+     * @param body attachment content
+     * @param type media type of the parser, {@link AttachmentRouter#DETECT} to let Tika detect the type
+     * @return text, null if the worker timed out
+     * @throws IOException
+     * @throws TikaException if the content can not be parsed or the worker died
+     */
+    String parse(SingleBody body, MediaType type) throws IOException, TikaException {
+        Worker worker;
+        try {
+            worker = idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for attachment worker");
+        }
+        try {
+            return worker.parse(body, type);
+        } finally {
+            if (worker.broken || closed) {
+                worker.destroy();
+                worker = new Worker();
+            }
+            idle.add(worker);
+        }
+    }
+
+    /**
+     * Stop all idle workers, busy workers are stopped once they finish.
+     */
+    void close() {
+        closed = true;
+        for (Worker worker : idle) {
+            worker.destroy();
+        }
+        watchdog.shutdownNow();
+    }
+
+    private class Worker {
+
+        private Process process;
+        private DataOutputStream out;
+        private DataInputStream in;
+        private volatile boolean killed;
+        private boolean broken;
+
+        private void start() throws IOException {
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = builder.start();
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            log.debug("Attachment worker started");
+        }
+
+        /**
+         * @return text, null if timed out
+         */
+        private String parse(SingleBody body, MediaType type) throws IOException, TikaException {
+            if (process == null) {
+                broken = true;
+                start();
+                broken = false;
+            }
+            final Process p = process;
+            ScheduledFuture<?> timeout = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    killed = true;
+                    p.destroy();
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            int status;
+            String message;
+            try {
+                out.writeUTF(type.toString());
+                writeContent(body);
+                out.flush();
+                status = in.readUnsignedByte();
+                if (status == AttachmentWorker.OK) {
+                    byte[] text = new byte[in.readInt()];
+                    in.readFully(text);
+                    return new String(text, StandardCharsets.UTF_8);
+                }
+                message = in.readUTF();
+            } catch (IOException e) {
+                broken = true;
+                if (killed) {
+                    log.warn("Attachment worker timed out, indexing the attachment without content");
+                    return null;
+                }
+                throw new TikaException("Attachment worker died, most likely it ran out of memory", e);
+            } finally {
+                timeout.cancel(false);
+                if (killed) {
+                    broken = true;
+                }
+            }
+            if (status == AttachmentWorker.PARSE_ERROR) {
+                throw new TikaException(message);
+            }
+            throw new IOException(message);
+        }
+
+        private void writeContent(SingleBody body) throws IOException {
+            byte[] buffer = new byte[8192];
+            InputStream is = body.getInputStream();
+            try {
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    if (n > 0) {
+                        out.writeInt(n);
+                        out.write(buffer, 0, n);
+                    }
+                }
+            } finally {
+                is.close();
+            }
+            out.writeInt(0);
+        }
+
+        private void destroy() {
+            if (process != null) {
+                process.destroy();
+                process = null;
+            }
+        }
+    }
+}
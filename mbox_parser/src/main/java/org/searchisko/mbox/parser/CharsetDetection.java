@@ -0,0 +1,202 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import com.ibm.icu.text.CharsetDetector;
+import com.ibm.icu.text.CharsetMatch;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Heuristic detection of real charset of text parts labelled ISO-8859-*, mail clients often use that label
+ * for content in other charsets.
+ * <p/>
+ * Only a bounded sample from the beginning of the body is inspected ({@link #SAMPLE_SIZE} bytes). If the sample
+ * is pure ASCII the declared charset is kept without running the detector. Outcomes of detection are cached
+ * by a key identifying the sender and its mail client (see {@link #cacheKey(String, String)}), repeated senders
+ * then skip detection. A cached UTF-8 outcome is used only if the sample is valid UTF-8.
+ * <p/>
+ * Like {@link StringCache}, the cache is a bounded direct-mapped table.
+ * <p/>
+ * This class is thread safe.
+ */
+public final class CharsetDetection {
+
+    /**
+     * Max number of bytes inspected by the detector.
+     */
+    public static final int SAMPLE_SIZE = 8000;
+
+    /**
+     * Detected charset overrides the declared one if confidence of detection reaches this value.
+     */
+    public static final int MIN_CONFIDENCE = 80;
+
+    private static final int CACHE_CAPACITY = 4096;
+
+    private static final AtomicReferenceArray<Entry> cache = new AtomicReferenceArray<>(CACHE_CAPACITY);
+
+    private static final AtomicLong asciiSkips = new AtomicLong();
+    private static final AtomicLong cacheHits = new AtomicLong();
+    private static final AtomicLong cacheMisses = new AtomicLong();
+
+    private static final ThreadLocal<CharsetDecoder> utf8Decoders = new ThreadLocal<CharsetDecoder>() {
+        @Override
+        protected CharsetDecoder initialValue() {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+        }
+    };
+
+    private CharsetDetection() {};
+
+    private static class Entry {
+        final String key;
+        final String charset;
+
+        Entry(String key, String charset) {
+            this.key = key;
+            this.charset = charset;
+        }
+    }
+
+    /**
+     * @param charset declared charset
+     * @return true if real charset of the content should be detected
+     */
+    public static boolean isDetected(String charset) {
+        if (charset == null) {
+            return false;
+        }
+        String c = charset.toUpperCase(Locale.ENGLISH);
+        return c.startsWith("ISO-8859") || c.startsWith("ISO8859");
+    }
+
+    /**
+     * @param email sender address
+     * @param mailer value of X-Mailer or User-Agent header, can be null
+     * @return cache key, null if there is no sender
+     */
+    public static String cacheKey(String email, String mailer) {
+        if (email == null || email.isEmpty()) {
+            return null;
+        }
+        return mailer == null ? email : email + '\n' + mailer;
+    }
+
+    /**
+     * Detect charset of the content.
+     *
+     * @param sample beginning of the content
+     * @param length number of valid bytes in the sample, at most {@link #SAMPLE_SIZE} are inspected
+     * @param declared declared charset
+     * @param key cache key as returned by {@link #cacheKey(String, String)}, can be null
+     * @return charset to decode the content with
+     */
+    public static String detect(byte[] sample, int length, String declared, String key) {
+        length = Math.min(length, SAMPLE_SIZE);
+        if (isAscii(sample, length)) {
+            asciiSkips.incrementAndGet();
+            return declared;
+        }
+        int slot = -1;
+        if (key != null) {
+            key = key + '\n' + declared.toUpperCase(Locale.ENGLISH);
+            int h = key.hashCode();
+            slot = (h ^ (h >>> 16)) & (CACHE_CAPACITY - 1);
+            Entry entry = cache.get(slot);
+            if (entry != null && entry.key.equals(key) &&
+                    (!"UTF-8".equals(entry.charset) || isUtf8(sample, length))) {
+                cacheHits.incrementAndGet();
+                return entry.charset;
+            }
+        }
+        cacheMisses.incrementAndGet();
+
+        CharsetDetector cd = new CharsetDetector();
+        cd.setText(length == sample.length ? sample : Arrays.copyOf(sample, length));
+        cd.enableInputFilter(true);
+        CharsetMatch detected = cd.detect();
+        String charset = declared;
+        if (detected != null && detected.getConfidence() >= MIN_CONFIDENCE) {
+            charset = detected.getName();
+        }
+        if (slot >= 0) {
+            cache.set(slot, new Entry(key, charset));
+        }
+        return charset;
+    }
+
+    /**
+     * @return number of samples which were pure ASCII, detection was skipped for them
+     */
+    public static long getAsciiSkips() {
+        return asciiSkips.get();
+    }
+
+    /**
+     * @return number of samples whose charset was found in the cache
+     */
+    public static long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return number of samples the detector was run on
+     */
+    public static long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * @return summary of counters for logging
+     */
+    public static String getStats() {
+        return "ASCII skips: " + getAsciiSkips() + ", cache hits: " + getCacheHits() + ", cache misses: " + getCacheMisses();
+    }
+
+    /**
+     * Clear the cache and the counters.
+     */
+    public static void reset() {
+        for (int i = 0; i < CACHE_CAPACITY; i++) {
+            cache.set(i, null);
+        }
+        asciiSkips.set(0);
+        cacheHits.set(0);
+        cacheMisses.set(0);
+    }
+
+    private static boolean isAscii(byte[] sample, int length) {
+        for (int i = 0; i < length; i++) {
+            if (sample[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the sample is valid UTF-8, sequence cut by the end of the sample is accepted
+     */
+    private static boolean isUtf8(byte[] sample, int length) {
+        CharsetDecoder decoder = utf8Decoders.get().reset();
+        CharBuffer out = CharBuffer.allocate(length);
+        CoderResult result = decoder.decode(ByteBuffer.wrap(sample, 0, length), out, false);
+        return !result.isError();
+    }
+}
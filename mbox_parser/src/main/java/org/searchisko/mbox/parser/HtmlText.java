@@ -0,0 +1,218 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.jsoup.Jsoup;
+import org.jsoup.helper.StringUtil;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.Tag;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Text of HTML message extracted by one parse and one walk of the parsed document.
+ * <p/>
+ * Both texts are the same as if the HTML was cleaned by {@link org.jsoup.safety.Whitelist#relaxed()} and the
+ * cleaned HTML was parsed again, that is what message snippet and <code>sys_content</code> used to be made of.
+ * The walk skips elements which are not in the whitelist and tracks whitespace the cleaned HTML would be
+ * serialized with instead of serializing and parsing it.
+ * <p/>
+ * Instances are immutable.
+ */
+public final class HtmlText {
+
+    /**
+     * Tags of {@link org.jsoup.safety.Whitelist#relaxed()}.
+     */
+    private static final Set<String> SAFE_TAGS = new HashSet<>(Arrays.asList(
+            "a", "b", "blockquote", "br", "caption", "cite", "code", "col", "colgroup", "dd", "div", "dl", "dt",
+            "em", "h1", "h2", "h3", "h4", "h5", "h6", "i", "img", "li", "ol", "p", "pre", "q", "small", "strike",
+            "strong", "sub", "sup", "table", "tbody", "td", "tfoot", "th", "thead", "tr", "u", "ul"));
+
+    private final String text;
+    private final String strippedText;
+
+    private HtmlText(String text, String strippedText) {
+        this.text = text;
+        this.strippedText = strippedText;
+    }
+
+    /**
+     * @param html
+     * @return text of the html
+     */
+    public static HtmlText parse(String html) {
+        Extraction extraction = new Extraction();
+        new NodeTraversor(extraction).traverse(Jsoup.parseBodyFragment(html).body());
+        return extraction.result();
+    }
+
+    /**
+     * Text of the whole document, it is the same as
+     * <pre>
+     * Jsoup.parse(Jsoup.clean(html, Whitelist.relaxed())).text()
+     * </pre>
+     *
+     * @return text
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Text nodes of the document, each of them trimmed and followed by single space except the last one.
+     * Non-breaking spaces are replaced by spaces.
+     *
+     * @return text
+     */
+    public String getStrippedText() {
+        return strippedText;
+    }
+
+    /**
+     * Element of the cleaned document.
+     */
+    private static final class Frame {
+
+        private final Tag tag;
+        private final boolean preserveWhitespace;
+        private final int depth;
+        private int children;
+
+        private Frame(Tag tag, Frame parent) {
+            this.tag = tag;
+            this.preserveWhitespace = tag.preserveWhitespace() || (parent != null && parent.tag.preserveWhitespace());
+            this.depth = parent == null ? 0 : parent.depth + 1;
+        }
+    }
+
+    /**
+     * Walks parsed document, whitespace and text between two tags of the cleaned HTML is collected to
+     * <code>run</code> and appended to both texts at the next tag, the same way as text node of the document
+     * parsed from cleaned HTML.
+     */
+    private static final class Extraction implements NodeVisitor {
+
+        private final StringBuilder text = new StringBuilder();
+        private final StringBuilder stripped = new StringBuilder();
+        private final StringBuilder run = new StringBuilder();
+        private final Deque<Frame> frames = new ArrayDeque<>();
+        private boolean runPreservesWhitespace;
+        private boolean serialized;
+
+        @Override
+        public void head(Node node, int depth) {
+            if (depth == 0) {
+                frames.push(new Frame(((Element) node).tag(), null));
+                return;
+            }
+            Frame parent = frames.peek();
+            if (node instanceof TextNode) {
+                TextNode textNode = (TextNode) node;
+                String html = textNode.getWholeText();
+                if (!parent.preserveWhitespace) {
+                    html = StringUtil.normaliseWhitespace(html);
+                }
+                if (parent.children++ == 0 && parent.tag.formatAsBlock() && !textNode.isBlank()) {
+                    indent(parent, parent.depth);
+                }
+                append(parent, html);
+            } else if (node instanceof Element && SAFE_TAGS.contains(((Element) node).tagName())) {
+                Tag tag = ((Element) node).tag();
+                parent.children++;
+                if (serialized && (tag.formatAsBlock() || parent.tag.formatAsBlock())) {
+                    indent(parent, parent.depth);
+                }
+                tag();
+                if (text.length() > 0 && (tag.isBlock() || tag.getName().equals("br")) && !endsWithSpace(text)) {
+                    text.append(' ');
+                }
+                frames.push(new Frame(tag, parent));
+            }
+        }
+
+        @Override
+        public void tail(Node node, int depth) {
+            if (depth > 0 && node instanceof Element && SAFE_TAGS.contains(((Element) node).tagName())) {
+                Frame frame = frames.pop();
+                if (frame.children > 0 || !frame.tag.isSelfClosing()) {
+                    if (frame.children > 0 && frame.tag.formatAsBlock()) {
+                        indent(frame, frame.depth - 1);
+                    }
+                    tag();
+                }
+            }
+        }
+
+        private void indent(Frame owner, int depth) {
+            append(owner, "\n" + StringUtil.padding(depth));
+        }
+
+        private void append(Frame owner, String html) {
+            if (html.isEmpty()) {
+                return;
+            }
+            serialized = true;
+            run.append(html);
+            runPreservesWhitespace = owner.preserveWhitespace;
+        }
+
+        private void tag() {
+            serialized = true;
+            if (run.length() == 0) {
+                return;
+            }
+            String wholeText = run.toString();
+            run.setLength(0);
+
+            String normalised = StringUtil.normaliseWhitespace(wholeText);
+            if (runPreservesWhitespace) {
+                text.append(wholeText);
+            } else if (endsWithSpace(text)) {
+                text.append(normalised, leadingWhitespace(normalised), normalised.length());
+            } else {
+                text.append(normalised);
+            }
+
+            String strippedRun = normalised.replace('\u00A0', ' ').trim();
+            if (!strippedRun.isEmpty()) {
+                stripped.append(strippedRun).append(' ');
+            }
+        }
+
+        private HtmlText result() {
+            tag();
+            if (stripped.length() > 0) {
+                stripped.setLength(stripped.length() - 1);
+            }
+            return new HtmlText(text.toString().trim(), stripped.toString());
+        }
+
+        /**
+         * @return number of leading characters matching <code>\s</code>
+         */
+        private static int leadingWhitespace(String s) {
+            int i = 0;
+            while (i < s.length() && (s.charAt(i) == ' ' || (s.charAt(i) >= '\t' && s.charAt(i) <= '\r'))) {
+                i++;
+            }
+            return i;
+        }
+
+        private static boolean endsWithSpace(StringBuilder sb) {
+            return sb.length() > 0 && sb.charAt(sb.length() - 1) == ' ';
+        }
+    }
+}
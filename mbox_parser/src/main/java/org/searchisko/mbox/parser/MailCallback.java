@@ -0,0 +1,30 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.searchisko.mbox.dto.Mail;
+
+/**
+ * Receives message parsed asynchronously (see {@link MessageStreamParser#parse(java.io.InputStream, String,
+ * org.apache.james.mime4j.dom.Header, java.util.Set, MailCallback)}).
+ * <p/>
+ * Exactly one of the methods is called once text of all attachments of the message is extracted or timed out.
+ * It is called in the thread which ended the last extraction, that is the parsing thread if there is no pending
+ * extraction, an extraction thread, or the thread which interrupted timed out or cancelled extraction.
+ */
+public interface MailCallback {
+
+    /**
+     * @param mail parsed message
+     */
+    void completed(Mail mail);
+
+    /**
+     * @param e error of attachment extraction or of body processing after the body was read
+     */
+    void failed(MessageParseException e);
+}
@@ -0,0 +1,356 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parser of message dates straight into epoch millis, no Calendar, DateFormat or Date is involved.
+ * <p/>
+ * {@link #parse(CharSequence)} handles the common RFC 5322 form of the Date header:
+ * <pre>
+ * [day-name ","] day month-name year hour ":" minute [":" second] zone [comment]
+ * </pre>
+ * with four digit year and numeric zone (or one of the names in {@link #ZONES}). Anything else is left to
+ * the lenient mime4j parser, see {@link MessageParser#extractValue(org.apache.james.mime4j.dom.field.DateTimeField)}.
+ * <p/>
+ * {@link #parseFromLine(CharSequence)} handles the date of mbox "From " line (asctime format).
+ * <p/>
+ * This class is thread safe.
+ */
+public final class MailDateParser {
+
+    /**
+     * Returned if the value can not be parsed.
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+    private static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+
+    private static final String[] MONTHS = {"jan", "feb", "mar", "apr", "may", "jun", "jul", "aug", "sep", "oct", "nov", "dec"};
+    private static final int[] DAYS_IN_MONTH = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    /**
+     * Zone names (upper-cased) mapped to their offsets in minutes, see RFC 5322 obs-zone.
+     */
+    private static final Map<String, Integer> ZONES = new HashMap<>();
+
+    static {
+        ZONES.put("UT", 0);
+        ZONES.put("UTC", 0);
+        ZONES.put("GMT", 0);
+        ZONES.put("Z", 0);
+        ZONES.put("EST", -5 * 60);
+        ZONES.put("EDT", -4 * 60);
+        ZONES.put("CST", -6 * 60);
+        ZONES.put("CDT", -5 * 60);
+        ZONES.put("MST", -7 * 60);
+        ZONES.put("MDT", -6 * 60);
+        ZONES.put("PST", -8 * 60);
+        ZONES.put("PDT", -7 * 60);
+    }
+
+    private MailDateParser() {};
+
+    /**
+     * Parse value of Date header.
+     *
+     * @param value
+     * @return epoch millis, {@link #INVALID} if the value is not in the supported form
+     */
+    public static long parse(CharSequence value) {
+        if (value == null) {
+            return INVALID;
+        }
+        Cursor c = new Cursor(value);
+        c.skipWhitespace();
+        if (c.isLetter()) {
+            // day name is not checked, like in the lenient parser
+            c.skipLetters();
+            c.skipWhitespace();
+            if (!c.skip(',')) {
+                return INVALID;
+            }
+            c.skipWhitespace();
+        }
+        int day = c.number(1, 2);
+        c.skipWhitespace();
+        int month = c.month();
+        c.skipWhitespace();
+        int year = c.number(4, 4);
+        c.skipWhitespace();
+        if (day < 0 || month < 0 || year < 0) {
+            return INVALID;
+        }
+        long time = c.time();
+        if (time == INVALID || !c.skipWhitespace()) {
+            return INVALID;
+        }
+        int offset = c.zone();
+        if (offset == Integer.MIN_VALUE) {
+            return INVALID;
+        }
+        c.skipWhitespace();
+        if (!c.atEnd() && !c.skip('(')) {
+            return INVALID;
+        }
+        return toMillis(year, month, day, time, offset);
+    }
+
+    /**
+     * Parse date of mbox "From " line, e.g. <code>From john@example.com Tue Jan  4 05:31:00 2011</code>.
+     * The line has no zone, the date is taken as UTC.
+     *
+     * @param line whole "From " line or just the date part
+     * @return epoch millis, {@link #INVALID} if the line does not end with the date
+     */
+    public static long parseFromLine(CharSequence line) {
+        if (line == null) {
+            return INVALID;
+        }
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        // asctime date: "Www Mmm dd hh:mm:ss yyyy" is 24 characters long
+        int start = end - 24;
+        if (start < 0) {
+            return INVALID;
+        }
+        Cursor c = new Cursor(line.subSequence(start, end));
+        c.skipLetters();
+        c.skipWhitespace();
+        int month = c.month();
+        c.skipWhitespace();
+        int day = c.number(1, 2);
+        c.skipWhitespace();
+        long time = c.time();
+        c.skipWhitespace();
+        int year = c.number(4, 4);
+        if (month < 0 || day < 0 || time == INVALID || year < 0 || !c.atEnd()) {
+            return INVALID;
+        }
+        return toMillis(year, month, day, time, 0);
+    }
+
+    /**
+     * Format epoch millis the same way as {@link MessageParser#defaultDatePrinter} does,
+     * e.g. <code>2011-01-04T10:30:45.000Z</code>.
+     *
+     * @param millis
+     * @return
+     */
+    public static String format(long millis) {
+        long days = floorDiv(millis, MILLIS_PER_DAY);
+        long millisOfDay = millis - days * MILLIS_PER_DAY;
+        // civil from days, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            return MessageParser.defaultDatePrinter.print(millis);
+        }
+        char[] out = new char[24];
+        digits(out, 0, (int) year, 4);
+        out[4] = '-';
+        digits(out, 5, month, 2);
+        out[7] = '-';
+        digits(out, 8, day, 2);
+        out[10] = 'T';
+        digits(out, 11, (int) (millisOfDay / 3600000), 2);
+        out[13] = ':';
+        digits(out, 14, (int) (millisOfDay / 60000 % 60), 2);
+        out[16] = ':';
+        digits(out, 17, (int) (millisOfDay / 1000 % 60), 2);
+        out[19] = '.';
+        digits(out, 20, (int) (millisOfDay % 1000), 3);
+        out[23] = 'Z';
+        return new String(out);
+    }
+
+    private static void digits(char[] out, int offset, int value, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * @param time millis of day
+     * @param offset zone offset in minutes
+     */
+    private static long toMillis(int year, int month, int day, long time, int offset) {
+        if (day < 1 || day > DAYS_IN_MONTH[month - 1] || (month == 2 && day == 29 && !isLeapYear(year))) {
+            return INVALID;
+        }
+        return daysFromCivil(year, month, day) * MILLIS_PER_DAY + time - offset * MILLIS_PER_MINUTE;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    /**
+     * @return number of days since 1970-01-01 (proleptic Gregorian calendar)
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * Position within parsed value. Methods return negative value (or false) if the expected token is not found.
+     */
+    private static class Cursor {
+
+        private final CharSequence value;
+        private int pos;
+
+        Cursor(CharSequence value) {
+            this.value = value;
+        }
+
+        boolean atEnd() {
+            return pos >= value.length();
+        }
+
+        boolean isLetter() {
+            return !atEnd() && isAsciiLetter(value.charAt(pos));
+        }
+
+        /**
+         * @return true if at least one whitespace character was skipped
+         */
+        boolean skipWhitespace() {
+            int start = pos;
+            while (!atEnd() && TextNormalizer.isWhitespace(value.charAt(pos))) {
+                pos++;
+            }
+            return pos > start;
+        }
+
+        void skipLetters() {
+            while (isLetter()) {
+                pos++;
+            }
+        }
+
+        boolean skip(char c) {
+            if (!atEnd() && value.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return number of given length range, -1 if there is none
+         */
+        int number(int minDigits, int maxDigits) {
+            int start = pos;
+            int n = 0;
+            while (!atEnd() && pos - start < maxDigits && isDigit(value.charAt(pos))) {
+                n = n * 10 + value.charAt(pos) - '0';
+                pos++;
+            }
+            if (pos - start < minDigits || (!atEnd() && isDigit(value.charAt(pos)))) {
+                return -1;
+            }
+            return n;
+        }
+
+        /**
+         * @return month 1-12, -1 if there is no month name
+         */
+        int month() {
+            if (pos + 3 > value.length()) {
+                return -1;
+            }
+            for (int i = 0; i < MONTHS.length; i++) {
+                String m = MONTHS[i];
+                if (Character.toLowerCase(value.charAt(pos)) == m.charAt(0) &&
+                        Character.toLowerCase(value.charAt(pos + 1)) == m.charAt(1) &&
+                        Character.toLowerCase(value.charAt(pos + 2)) == m.charAt(2)) {
+                    pos += 3;
+                    return isLetter() ? -1 : i + 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return millis of day of <code>hh:mm[:ss]</code>, {@link #INVALID} if there is no valid time
+         */
+        long time() {
+            int hour = number(1, 2);
+            if (hour < 0 || hour > 23 || !skip(':')) {
+                return INVALID;
+            }
+            int minute = number(2, 2);
+            if (minute < 0 || minute > 59) {
+                return INVALID;
+            }
+            int second = 0;
+            if (skip(':')) {
+                second = number(2, 2);
+                if (second < 0 || second > 59) {
+                    return INVALID;
+                }
+            }
+            return ((hour * 60L + minute) * 60 + second) * 1000;
+        }
+
+        /**
+         * @return zone offset in minutes, Integer.MIN_VALUE if there is no valid zone
+         */
+        int zone() {
+            if (atEnd()) {
+                return Integer.MIN_VALUE;
+            }
+            char sign = value.charAt(pos);
+            if (sign == '+' || sign == '-') {
+                pos++;
+                int zone = number(4, 4);
+                if (zone < 0 || zone % 100 > 59) {
+                    return Integer.MIN_VALUE;
+                }
+                int offset = zone / 100 * 60 + zone % 100;
+                return sign == '-' ? -offset : offset;
+            }
+            int start = pos;
+            skipLetters();
+            Integer offset = ZONES.get(value.subSequence(start, pos).toString().toUpperCase(Locale.ENGLISH));
+            return offset != null ? offset : Integer.MIN_VALUE;
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
+        }
+
+        private static boolean isAsciiLetter(char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+        }
+    }
+}
@@ -6,23 +6,24 @@
 
 package org.searchisko.mbox.parser;
 
-import com.ibm.icu.text.CharsetDetector;
-import com.ibm.icu.text.CharsetMatch;
 import com.sun.xml.messaging.saaj.packaging.mime.MessagingException;
-import com.sun.xml.messaging.saaj.packaging.mime.internet.MimeUtility;
-import org.apache.commons.io.IOUtils;
 import org.apache.james.mime4j.dom.*;
 import org.apache.james.mime4j.message.BodyPart;
 import org.apache.tika.Tika;
 import org.apache.tika.exception.TikaException;
-import org.apache.tika.metadata.Metadata;
 import org.searchisko.mbox.dto.MailAttachment;
+import org.searchisko.mbox.dto.MailField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents the content of parsed mail body (no headers).
@@ -43,6 +44,18 @@ public class MessageBodyParser {
 
         private final String value;
 
+        /**
+         * Subtypes (lower-cased) and constant names mapped to constants.
+         */
+        private static final Map<String, SupportedMultiPartType> lookup = new HashMap<>();
+
+        static {
+            for (SupportedMultiPartType type : values()) {
+                lookup.put(type.value, type);
+                lookup.put(type.name(), type);
+            }
+        }
+
         private SupportedMultiPartType(String value) {
             this.value = value;
         }
@@ -52,21 +65,29 @@ public class MessageBodyParser {
             return this.value;
         }
 
+        /**
+         * @param value multipart subtype (case insensitive)
+         * @return subtype constant, UNKNOWN if the subtype is not supported
+         */
         public static SupportedMultiPartType getValue(String value) {
-            try {
-                return valueOf(value.replaceAll("-", "_").toUpperCase());
-            } catch (Exception e) {
-                return UNKNOWN;
+            SupportedMultiPartType type = lookup.get(value);
+            if (type == null) {
+                type = lookup.get(value.replace('-', '_').toUpperCase(Locale.ENGLISH));
             }
+            return type != null ? type : UNKNOWN;
         }
     }
 
 
     /**
-     * Represents parsed message body content.
+     * Represents parsed message body content. Only content used by requested fields is parsed.
      */
     public static class MailBodyContent {
 
+        private final Set<MailField> fields;
+        private boolean firstContentSkipped;
+        private String charsetKey;
+
         private String messageId;
         private String firstTextContent;
         private String firstTextContentWithoutQuotes;
@@ -74,6 +95,16 @@ public class MessageBodyParser {
         private List<String> textMessages = new ArrayList<>();
         private List<String> htmlMessages = new ArrayList<>();
         private List<MailAttachment> attachments = new ArrayList<>();
+        private List<AttachmentExtractor.Extraction> extractions;
+        // unfinished extractions plus one until the body is parsed
+        private final AtomicInteger pendingExtractions = new AtomicInteger(1);
+        private volatile Runnable extractionListener;
+        private final Runnable extractionEnded = new Runnable() {
+            @Override
+            public void run() {
+                extractionEnded();
+            }
+        };
 
         public void setMessageId(String id) { this.messageId = id; }
         public String getMessageId() { return this.messageId; }
@@ -94,6 +125,160 @@ public class MessageBodyParser {
         public List<String> getHtmlMessages() { return this.htmlMessages; }
 
         public List<MailAttachment> getAttachments() { return this.attachments; }
+
+        public MailBodyContent() {
+            this(MailField.all());
+        }
+
+        /**
+         * @param fields requested fields
+         */
+        public MailBodyContent(Set<MailField> fields) {
+            this.fields = fields;
+        }
+
+        public boolean isRequested(MailField field) { return fields.contains(field); }
+
+        Set<MailField> getFields() { return this.fields; }
+
+        /**
+         * Attachment whose text is extracted asynchronously, it is added to attachments by {@link #awaitAttachments()}.
+         * @param extraction
+         */
+        void addExtraction(AttachmentExtractor.Extraction extraction) {
+            if (extractions == null) {
+                extractions = new ArrayList<>();
+            }
+            extractions.add(extraction);
+            pendingExtractions.incrementAndGet();
+            extraction.whenDone(extractionEnded);
+        }
+
+        /**
+         * Run the listener once all asynchronous extractions end, right away if there is none pending. It must be
+         * called once the body is parsed, the listener can then call {@link #awaitAttachments()} without blocking.
+         *
+         * @param listener
+         */
+        void whenAttachmentsExtracted(Runnable listener) {
+            extractionListener = listener;
+            extractionEnded();
+        }
+
+        private void extractionEnded() {
+            if (pendingExtractions.decrementAndGet() == 0) {
+                extractionListener.run();
+            }
+        }
+
+        /**
+         * @param body
+         * @return true if the body is used by unfinished attachment extraction, it is disposed once extraction ends
+         */
+        boolean isRetained(Body body) {
+            if (extractions != null && body != null) {
+                for (AttachmentExtractor.Extraction extraction : extractions) {
+                    if (extraction.getBody() == body) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Wait for all asynchronous extractions and add their attachments.
+         * @throws IOException
+         */
+        void awaitAttachments() throws IOException {
+            if (extractions == null) {
+                return;
+            }
+            for (AttachmentExtractor.Extraction extraction : extractions) {
+                MailAttachment attachment = extraction.await();
+                if (attachment != null) {
+                    attachments.add(attachment);
+                }
+            }
+            extractions = null;
+        }
+
+        /**
+         * Cancel asynchronous extractions which have not ended yet.
+         */
+        void cancelAttachments() {
+            if (extractions == null) {
+                return;
+            }
+            for (AttachmentExtractor.Extraction extraction : extractions) {
+                extraction.cancel();
+            }
+            extractions = null;
+        }
+
+        /**
+         * @param key identifies sender of the message for {@link CharsetDetection}, can be null
+         */
+        void setCharsetKey(String key) { this.charsetKey = key; }
+        String getCharsetKey() { return this.charsetKey; }
+
+        /**
+         * @return true if no text/plain or text/html part has been found so far
+         */
+        boolean isFirstContentFree() {
+            return firstTextContent == null && firstHtmlContent == null && !firstContentSkipped;
+        }
+
+        /**
+         * @param mimeType
+         * @return true if content of text part (not an attachment) of given type is used by requested fields
+         */
+        boolean isContentUsed(String mimeType) {
+            if (isFirstContentFree()) {
+                if (mimeType.equals("text/plain")) {
+                    return isRequested(MailField.FIRST_TEXT_MESSAGE) || isRequested(MailField.FIRST_TEXT_MESSAGE_WITHOUT_QUOTES) ||
+                            isRequested(MailField.MESSAGE_SNIPPET);
+                } else if (mimeType.equals("text/html")) {
+                    return isRequested(MailField.FIRST_HTML_MESSAGE) || isRequested(MailField.MESSAGE_SNIPPET);
+                }
+            } else if (mimeType.equals("text/html")) {
+                return isRequested(MailField.HTML_MESSAGES);
+            }
+            return isRequested(MailField.TEXT_MESSAGES);
+        }
+
+        /**
+         * Text part of given type is not parsed, but it still takes place of the first text part if it is free.
+         * @param mimeType
+         */
+        void skipContent(String mimeType) {
+            if (isFirstContentFree() && (mimeType.equals("text/plain") || mimeType.equals("text/html"))) {
+                firstContentSkipped = true;
+            }
+        }
+    }
+
+    /**
+     * Unlike {@link MailBodyContent#isContentUsed(String)} it does not depend on parts found so far.
+     *
+     * @param fields requested fields
+     * @param mimeType
+     * @param filename
+     * @return true if content of text part of given type can be used by requested fields
+     */
+    static boolean mayUseContent(Set<MailField> fields, String mimeType, String filename) {
+        if (filename != null) {
+            return fields.contains(MailField.MESSAGE_ATTACHMENTS) && fields.contains(MailField.MESSAGE_ATTACHMENTS_CONTENT);
+        }
+        if (mimeType.equals("text/plain")) {
+            return fields.contains(MailField.FIRST_TEXT_MESSAGE) || fields.contains(MailField.FIRST_TEXT_MESSAGE_WITHOUT_QUOTES) ||
+                    fields.contains(MailField.MESSAGE_SNIPPET) || fields.contains(MailField.TEXT_MESSAGES);
+        }
+        if (mimeType.equals("text/html")) {
+            return fields.contains(MailField.FIRST_HTML_MESSAGE) || fields.contains(MailField.MESSAGE_SNIPPET) ||
+                    fields.contains(MailField.HTML_MESSAGES);
+        }
+        return fields.contains(MailField.TEXT_MESSAGES);
     }
 
     private static Tika tika;
@@ -122,25 +307,29 @@ public class MessageBodyParser {
      * @return
      */
     public static MailBodyContent parse(Entity message) throws MessageParseException, IOException {
+        return parse(message, MailField.all());
+    }
+
+    /**
+     *
+     * @param message
+     * @param fields requested fields
+     * @return
+     */
+    public static MailBodyContent parse(Entity message, Set<MailField> fields) throws MessageParseException, IOException {
 
-        MailBodyContent content = new MailBodyContent();
+        MailBodyContent content = new MailBodyContent(fields);
         return parse(content, message);
     }
 
-    private static MailBodyContent parse(MailBodyContent content, Entity message) throws MessageParseException, IOException {
+    static MailBodyContent parse(MailBodyContent content, Entity message) throws MessageParseException, IOException {
 
         Body body = message.getBody();
         String mimeType = message.getMimeType().toLowerCase();
         String contentTransferEncoding = message.getContentTransferEncoding();
-        String charset = message.getCharset();
+        String charset = fixCharset(message.getCharset());
         String filename = message.getFilename();
 
-        if ("x-gbk".equalsIgnoreCase(charset)) {
-            // hardcoded fix for java.io.UnsupportedEncodingException: x-gbk
-            log.warn("Unsupported encoding found: 'x-gbk', using 'gbk' instead.");
-            charset = "gbk";
-        }
-
         if (log.isTraceEnabled()) {
             log.trace("parsing Entity, mimeType: '{}', filename: '{}'", new Object[]{mimeType, filename});
             log.trace("contentTransferEncoding: '{}'", contentTransferEncoding);
@@ -165,6 +354,19 @@ public class MessageBodyParser {
         return content;
     }
 
+    /**
+     * @param charset
+     * @return charset name that can be used instead of the given one
+     */
+    static String fixCharset(String charset) {
+        if ("x-gbk".equalsIgnoreCase(charset)) {
+            // hardcoded fix for java.io.UnsupportedEncodingException: x-gbk
+            log.warn("Unsupported encoding found: 'x-gbk', using 'gbk' instead.");
+            return "gbk";
+        }
+        return charset;
+    }
+
     private static MailBodyContent parseMultipartBody(MailBodyContent content, Multipart body) throws MessageParseException, IOException {
 
         String subType = body.getSubType().toLowerCase();
@@ -235,7 +437,7 @@ public class MessageBodyParser {
         return content;
     }
 
-    private static MailBodyContent parseTextBody(MailBodyContent bodyContent, TextBody body, String mimeType, String contentTransferEncoding, String charset, String filename) throws IOException {
+    static MailBodyContent parseTextBody(MailBodyContent bodyContent, TextBody body, String mimeType, String contentTransferEncoding, String charset, String filename) throws IOException {
 
         if (log.isTraceEnabled()) {
             log.trace("parsing text body, mimeType: '{}', contentTransferEncoding: '{}', charset: '{}', filename: '{}'",
@@ -244,10 +446,12 @@ public class MessageBodyParser {
 
         if (filename != null) {
             addAttachment(bodyContent, body, mimeType, filename);
+        } else if (!bodyContent.isContentUsed(mimeType)) {
+            log.trace("skipping text body, mimeType: '{}'", mimeType);
+            bodyContent.skipContent(mimeType);
         } else {
 
-            String content = null;
-            InputStream output = null;
+            String content;
 
             if (contentTransferEncoding != null && contentTransferEncoding.length() > 0) {
                 if (log.isTraceEnabled()) {
@@ -255,43 +459,19 @@ public class MessageBodyParser {
                     log.trace("charset: '{}'", charset);
                 }
                 try {
-                    // com.sun.xml.messaging.saaj.packaging.mime.util.BASE64DecoderStream.decode() seems to be buggy
-                    if ("base64".equalsIgnoreCase(contentTransferEncoding)) {
-                        output = body.getInputStream();
-                    } else {
-                        output = MimeUtility.decode(body.getInputStream(), contentTransferEncoding.toLowerCase());
-                    }
-
-                    // check for 'ISO-8859'* and aliases
-                    if (charset.toUpperCase().startsWith("ISO-8859") || charset.toUpperCase().startsWith("ISO8859")) {
-                        CharsetMatch detectedCharset = detectCharset(output);
-                        if (detectedCharset != null) {
-                            int conf = detectedCharset.getConfidence();
-                            if (conf >= 80) {
-                                log.trace("Heuristics: overriding charset from '{}' to '{}' with confidence: {}",
-                                        new Object[]{detectedCharset.getName(), charset, conf});
-                                charset = detectedCharset.getName();
-                            }
-                        }
-                    }
-
-                    StringWriter writer = new StringWriter();
-                    IOUtils.copy(output, writer, charset);
-                    content = writer.toString();
+                    content = TextBodyDecoder.decode(body.getInputStream(), contentTransferEncoding, charset,
+                            bodyContent.getCharsetKey());
                 } catch (MessagingException e) {
                     log.trace("Error decoding transfer coding.", e);
-                    content = getTextBodyContent(body.getReader()).replaceAll("=\n","");
+                    content = TextBodyDecoder.readWithoutSoftLineBreaks(body.getReader());
                 }
             } else {
-                content = getTextBodyContent(body.getReader()).replaceAll("=\n", "");
+                content = TextBodyDecoder.readWithoutSoftLineBreaks(body.getReader());
             }
 
             if (mimeType.equals("text/plain")) {
-                content = content
-//                        .replaceAll(">","&gt;")
-//                        .replaceAll("<", "&lt;")
-                        .replaceAll("^>From","From");
-                if (bodyContent.getFirstTextContent() == null && bodyContent.getFirstHtmlContent() == null) {
+                content = TextNormalizer.unescapeFrom(content);
+                if (bodyContent.isFirstContentFree()) {
                     bodyContent.setFirstTextContentWithoutQuotes(filterOutQuotedContent(content));
 //                    if (bodyContent.getFirstTextContentWithoutQuotes().length() > 0) {
 //                        bodyContent.setFirstTextContentWithoutQuotes(bodyContent.getFirstTextContentWithoutQuotes().replaceAll(">","&gt;"));
@@ -303,7 +483,7 @@ public class MessageBodyParser {
                 }
             } else if (mimeType.equals("text/html")) {
                 // TODO clean possible html tags?
-                if (bodyContent.getFirstTextContent() == null && bodyContent.getFirstHtmlContent() == null) {
+                if (bodyContent.isFirstContentFree()) {
                     bodyContent.setFirstHtmlContent(content);
                 } else {
                     bodyContent.getHtmlMessages().add(content);
@@ -318,34 +498,56 @@ public class MessageBodyParser {
         return bodyContent;
     }
 
-    private static CharsetMatch detectCharset(InputStream inputStream) throws IOException {
-        CharsetDetector cd = new CharsetDetector();
-        // CharDetector requires support of mark/reset
-        inputStream = inputStream.markSupported() ? inputStream : new BufferedInputStream(inputStream);
-        cd.setText(inputStream);
-        cd.enableInputFilter(true);
-        return cd.detect();
+    /**
+     * Handle text part whose body is not read at all because
+     * {@link #mayUseContent(java.util.Set, String, String)} is false for it.
+     *
+     * @param bodyContent
+     * @param mimeType
+     * @param filename
+     * @throws IOException
+     */
+    static void skipTextBody(MailBodyContent bodyContent, String mimeType, String filename) throws IOException {
+        if (filename != null) {
+            addAttachment(bodyContent, null, mimeType, filename);
+        } else {
+            log.trace("skipping text body, mimeType: '{}'", mimeType);
+            bodyContent.skipContent(mimeType);
+        }
     }
 
-    private static MailBodyContent parseBinaryBody(MailBodyContent content, BinaryBody body, String mimeType, String contentTransferEncoding, String charset, String filename) throws IOException {
-        log.trace("parsing binary body, mimeType: '{}', contentTransferEncoding: '{}', charset: '{}', filename: '{}'", new Object[]{mimeType, contentTransferEncoding, charset, filename});
-        if (mimeType != null &&
+    /**
+     * Handle binary part whose body is not read at all because
+     * {@link #mayUseContent(java.util.Set, String, String)} is false for it.
+     *
+     * @param bodyContent
+     * @param mimeType
+     * @param filename
+     * @throws IOException
+     */
+    static void skipBinaryBody(MailBodyContent bodyContent, String mimeType, String filename) throws IOException {
+        if (isBinaryAttachment(mimeType, filename)) {
+            addAttachment(bodyContent, null, mimeType, filename);
+        }
+    }
+
+    /**
+     * @param mimeType
+     * @param filename
+     * @return true if content of binary body with given mime type and filename is extracted as attachment
+     */
+    static boolean isBinaryAttachment(String mimeType, String filename) {
+        return mimeType != null &&
                 !mimeType.equals("application/pgp-signature") &&
                 !mimeType.equals("application/ms-tnef") &&
-                !mimeType.startsWith("image/")) {
-//            (!mimeType.startsWith("image/") || mimeType.equalsIgnoreCase("image/svg+xml"))) {
-            if (filename != null) {
-                addAttachment(content, body, mimeType, filename);
-//            } else
-//            if (mimeType.equalsIgnoreCase("application/pdf") /*|| mimeType.equalsIgnoreCase("image/svg+xml")*/) {
-                // fix for malformed filename > see "filename*0=" in msgs
-                // image/svg+xml commented out because binary body content needs to be first decoded using transfer encoding.
-//                addAttachment(body, mimeType, null);
-//                log.info("adding binary body, mimeType: {}, contentTransferEncoding: {}, charset: {}, filename: {}", new Object[]{mimeType, contentTransferEncoding, charset, filename});
-            } else {
-                log.trace("Ignoring binary mimeType: '{}', contentTransferEncoding: '{}', charset: '{}', filename: '{}'",
-                        new Object[]{mimeType, contentTransferEncoding, charset, filename});
-            }
+                !mimeType.startsWith("image/") &&
+                filename != null;
+    }
+
+    static MailBodyContent parseBinaryBody(MailBodyContent content, BinaryBody body, String mimeType, String contentTransferEncoding, String charset, String filename) throws IOException {
+        log.trace("parsing binary body, mimeType: '{}', contentTransferEncoding: '{}', charset: '{}', filename: '{}'", new Object[]{mimeType, contentTransferEncoding, charset, filename});
+        if (isBinaryAttachment(mimeType, filename)) {
+            addAttachment(content, body, mimeType, filename);
         } else {
             log.trace("Ignoring binary mimeType: '{}', contentTransferEncoding: '{}', charset: '{}', filename: '{}'",
                     new Object[]{mimeType, contentTransferEncoding, charset, filename});
@@ -356,37 +558,35 @@ public class MessageBodyParser {
     /**
      * Silently fail if Tika fails parsing the content.
      * @param bodyContent
-     * @param content
+     * @param content can be null if attachment content is not requested
      * @param mimeType
      * @param filename
      * @throws IOException
      */
     private static void addAttachment(MailBodyContent bodyContent, SingleBody content, String mimeType, String filename) throws IOException {
 
+        if (!bodyContent.isRequested(MailField.MESSAGE_ATTACHMENTS)) {
+            return;
+        }
+
         log.trace("processing attachment: Mime-Type='{}', filename='{}'", new Object[]{mimeType, filename});
 
         MailAttachment attachment = new MailAttachment();
         attachment.setContentType(mimeType);
         attachment.setFileName(filename);
 
-        if (content instanceof BinaryBody)  {
-            Metadata metadata = new Metadata();
-            // TODO: add length limit
-            String fileContent = null;
-            try {
-                fileContent = removeWhiteSpaces(getTika().parseToString(content.getInputStream(), metadata, 100000));
-                attachment.setContent(fileContent);
-                bodyContent.getAttachments().add(attachment);
-            } catch (TikaException e) {
-                log.warn("ignoring attachment: parsing error", e);
+        if (!bodyContent.isRequested(MailField.MESSAGE_ATTACHMENTS_CONTENT)) {
+            bodyContent.getAttachments().add(attachment);
+            return;
+        }
+
+        if (content instanceof BinaryBody || content instanceof TextBody)  {
+            if (AttachmentExtractor.isStarted()) {
+                bodyContent.addExtraction(AttachmentExtractor.submit(attachment, content));
+                return;
             }
-        } else if (content instanceof TextBody) {
-            Metadata metadata = new Metadata();
-            // TODO: add length limit
-            String fileContent = null;
             try {
-                fileContent = removeWhiteSpaces(getTika().parseToString(content.getInputStream(), metadata, 100000));
-                attachment.setContent(fileContent);
+                attachment.setContent(AttachmentExtractor.extract(content, mimeType, filename));
                 bodyContent.getAttachments().add(attachment);
             } catch (TikaException e) {
                 log.warn("ignoring attachment: parsing error", e);
@@ -397,29 +597,11 @@ public class MessageBodyParser {
     }
 
     private static String removeWhiteSpaces(String input) {
-        return input.replaceAll("\r\n"," ").replaceAll("\n"," ").replaceAll("\\s+"," ").trim();
+        return TextNormalizer.collapseWhitespace(input);
     }
 
     private static String filterOutQuotedContent(String content) {
-        StringBuilder noQuotes = new StringBuilder();
-        for (String line : content.split("\n")) {
-            line = line.trim();
-            if (line.length() > 0 && !line.startsWith(">")) {
-                noQuotes.append(line).append(" ");
-            }
-        }
-        String result = noQuotes.toString().trim();
-        return result;
-    }
-
-    private static String getTextBodyContent(Reader reader) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int c;
-        while ((c = reader.read()) != -1) {
-            sb.append((char) c);
-        }
-        reader.close();
-        return sb.toString();
+        return TextNormalizer.filterOutQuotedLines(content);
     }
 
 }
@@ -7,6 +7,7 @@
 package org.searchisko.mbox.parser;
 
 import org.apache.james.mime4j.MimeException;
+import org.apache.james.mime4j.codec.DecodeMonitor;
 import org.apache.james.mime4j.dom.FieldParser;
 import org.apache.james.mime4j.dom.Message;
 import org.apache.james.mime4j.dom.MessageBuilder;
@@ -16,19 +17,24 @@ import org.apache.james.mime4j.field.AddressListFieldImpl;
 import org.apache.james.mime4j.field.DateTimeFieldLenientImpl;
 import org.apache.james.mime4j.field.LenientFieldParser;
 import org.apache.james.mime4j.field.MailboxListFieldImpl;
+import org.apache.james.mime4j.message.BasicBodyFactory;
+import org.apache.james.mime4j.message.BodyFactory;
 import org.apache.james.mime4j.message.DefaultMessageBuilder;
 import org.apache.james.mime4j.stream.Field;
+import org.apache.james.mime4j.storage.StorageBodyFactory;
+import org.apache.james.mime4j.storage.TempFileStorageProvider;
+import org.apache.james.mime4j.storage.ThresholdStorageProvider;
 import org.apache.james.mime4j.stream.MimeConfig;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
-import org.jsoup.Jsoup;
-import org.jsoup.safety.Whitelist;
 import org.searchisko.mbox.dto.Mail;
 import org.searchisko.mbox.dto.MailAttachment;
+import org.searchisko.mbox.dto.MailField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 
@@ -46,10 +52,23 @@ public class MessageParser {
      */
     public enum MessageHeader {
         FROM("from"), TO("to"), SUBJECT("subject"), DATE("date"), MESSAGE_ID("message-id"),
-        REFERENCES("references"), IN_REPLY_TO("in-reply-to"), IGNORE("");
+        REFERENCES("references"), IN_REPLY_TO("in-reply-to"), X_MAILER("x-mailer"), USER_AGENT("user-agent"),
+        IGNORE("");
 
         private final String value;
 
+        /**
+         * Header names (lower-cased) and constant names mapped to constants.
+         */
+        private static final Map<String, MessageHeader> lookup = new HashMap<>();
+
+        static {
+            for (MessageHeader header : values()) {
+                lookup.put(header.value, header);
+                lookup.put(header.name(), header);
+            }
+        }
+
         private MessageHeader(String value) {
             this.value = value;
         }
@@ -59,61 +78,148 @@ public class MessageParser {
             return this.value;
         }
 
+        /**
+         * @param value header name (case insensitive)
+         * @return header constant, IGNORE if the header is not interesting
+         */
         public static MessageHeader getValue(String value) {
-            try {
-                return valueOf(value.replaceAll("-", "_").toUpperCase());
-            } catch (Exception e) {
-                return IGNORE;
+            MessageHeader header = lookup.get(value);
+            if (header == null) {
+                header = lookup.get(value.replace('-', '_').toUpperCase(Locale.ENGLISH));
             }
+            return header != null ? header : IGNORE;
         }
     }
 
+    /**
+     * Canonical instances of values repeated across messages (recipients, subjects, authors).
+     */
+    private static final StringCache valueCache = new StringCache(16 * 1024);
+
     public final static DateTimeFormatter defaultDatePrinter = ISODateTimeFormat.dateTime().withZone(DateTimeZone.UTC);
 
-    private static MessageBuilder messageBuilder;
+    /**
+     * MessageBuilder is not thread safe, every thread gets its own instance.
+     */
+    private static final ThreadLocal<DefaultMessageBuilder> messageBuilders = new ThreadLocal<DefaultMessageBuilder>() {
+        @Override
+        protected DefaultMessageBuilder initialValue() {
+            return newMessageBuilder();
+        }
+    };
+
+    /**
+     * Factory of message bodies, by default all bodies are kept in memory.
+     */
+    private static volatile BodyFactory bodyFactory = new BasicBodyFactory();
 
     private MessageParser() {};
 
     /**
-     * Lazy initialize MessageBuilder instance.
+     * Get MessageBuilder instance bound to the calling thread. The instance must not be shared with other threads,
+     * it is safe to call this method for every message as the instance is created only once per thread.
      * @return MessageBuilder instance
      * @throws MimeException
      */
     public static MessageBuilder getMessageBuilder() throws MimeException {
-        MessageBuilder mb = messageBuilder;
-        if (mb == null) {
-            synchronized(MessageParser.class) {
-                mb = messageBuilder;
-                if (mb == null) {
-
-                    MimeConfig config = new MimeConfig();
-                    config.setMaxLineLen(10000);
-
-                    FieldParser<MailboxListField> fromMailboxListParser = MailboxListFieldImpl.PARSER;
-                    FieldParser<AddressListField> toAddressListParser = AddressListFieldImpl.PARSER;
-                    FieldParser<DateTimeField> dateParser = DateTimeFieldLenientImpl.PARSER;
-
-                    LenientFieldParser fieldParser = new LenientFieldParser();
-                    fieldParser.setFieldParser(FieldName.TO, toAddressListParser);
-                    fieldParser.setFieldParser(FieldName.REPLY_TO, toAddressListParser);
-                    fieldParser.setFieldParser(FieldName.FROM, fromMailboxListParser);
-                    fieldParser.setFieldParser(FieldName.RESENT_FROM, fromMailboxListParser);
-                    fieldParser.setFieldParser(FieldName.DATE, dateParser);
-                    fieldParser.setFieldParser(FieldName.RESENT_DATE, dateParser);
-
-                    DefaultMessageBuilder _mb = new DefaultMessageBuilder();
-                    _mb.setMimeEntityConfig(config);
-                    _mb.setFieldParser(fieldParser);
-
-                    mb = _mb;
-
-                    messageBuilder = mb;
-                }
-            }
-        }
+        DefaultMessageBuilder mb = messageBuilders.get();
+        mb.setBodyFactory(bodyFactory);
         return mb;
     }
 
+    /**
+     * Create new MessageBuilder instance configured for parsing of mailing list messages.
+     * @return new MessageBuilder instance
+     */
+    public static DefaultMessageBuilder newMessageBuilder() {
+        DefaultMessageBuilder mb = new DefaultMessageBuilder();
+        mb.setMimeEntityConfig(newMimeConfig());
+        mb.setFieldParser(newFieldParser());
+        mb.setBodyFactory(bodyFactory);
+        return mb;
+    }
+
+    /**
+     * Keep message bodies (text parts and attachments) bigger than <code>thresholdSize</code> bytes in temporary
+     * files, smaller bodies are kept in memory. This way the memory needed to parse a message does not depend on size
+     * of its attachments. It applies to all messages parsed after this call by {@link MessageStreamParser} and by
+     * MessageBuilders returned from {@link #getMessageBuilder()} or {@link #newMessageBuilder()}.
+     * <p/>
+     * Messages built by a MessageBuilder have to be disposed (see {@link Message#dispose()}) in order to delete
+     * their temporary files, {@link MessageStreamParser} deletes them right after the body is parsed.
+     *
+     * @param thresholdSize max size of body kept in memory
+     * @param directory directory to create temporary files in, null for default temporary directory
+     */
+    public static void setBodyStorage(int thresholdSize, File directory) {
+        if (thresholdSize < 0) {
+            throw new IllegalArgumentException("thresholdSize must not be negative");
+        }
+        TempFileStorageProvider tempFiles = directory == null ? new TempFileStorageProvider() :
+                new TempFileStorageProvider(directory);
+        setBodyFactory(new StorageBodyFactory(new ThresholdStorageProvider(tempFiles, thresholdSize), DecodeMonitor.SILENT));
+        log.info("Bodies bigger than {} bytes are stored in temporary files", thresholdSize);
+    }
+
+    /**
+     * Keep all message bodies in memory, this is the default.
+     */
+    public static void setMemoryBodyStorage() {
+        setBodyFactory(new BasicBodyFactory());
+    }
+
+    /**
+     * Set factory of message bodies used by all parsers.
+     * @param factory
+     */
+    public static void setBodyFactory(BodyFactory factory) {
+        bodyFactory = factory;
+    }
+
+    /**
+     * @return factory of message bodies used by all parsers
+     */
+    static BodyFactory getBodyFactory() {
+        return bodyFactory;
+    }
+
+    /**
+     * @return MimeConfig used for parsing of mailing list messages
+     */
+    static MimeConfig newMimeConfig() {
+        MimeConfig config = new MimeConfig();
+        config.setMaxLineLen(10000);
+        return config;
+    }
+
+    /**
+     * @return FieldParser used for parsing of mailing list messages
+     */
+    static FieldParser<ParsedField> newFieldParser() {
+        FieldParser<MailboxListField> fromMailboxListParser = MailboxListFieldImpl.PARSER;
+        FieldParser<AddressListField> toAddressListParser = AddressListFieldImpl.PARSER;
+        FieldParser<DateTimeField> dateParser = DateTimeFieldLenientImpl.PARSER;
+
+        LenientFieldParser fieldParser = new LenientFieldParser();
+        fieldParser.setFieldParser(FieldName.TO, toAddressListParser);
+        fieldParser.setFieldParser(FieldName.REPLY_TO, toAddressListParser);
+        fieldParser.setFieldParser(FieldName.FROM, fromMailboxListParser);
+        fieldParser.setFieldParser(FieldName.RESENT_FROM, fromMailboxListParser);
+        fieldParser.setFieldParser(FieldName.DATE, dateParser);
+        fieldParser.setFieldParser(FieldName.RESENT_DATE, dateParser);
+        return fieldParser;
+    }
+
+    /**
+     * Source of parsed message body content. Allows to parse the body once message headers are processed.
+     */
+    interface BodyContentSource {
+        /**
+         * @param content empty content to be filled
+         */
+        void parse(MessageBodyParser.MailBodyContent content) throws MessageParseException, IOException;
+    }
+
     /**
      * It is the same as calling #parse(message, null).
      *
@@ -131,7 +237,78 @@ public class MessageParser {
      * @param idsuffix  This value gets appended to the message-id.
      * @return
      */
-    public static Mail parse(Message message, /*Map<String, String> data,*/ String idsuffix) throws MessageParseException {
+    public static Mail parse(final Message message, /*Map<String, String> data,*/ String idsuffix) throws MessageParseException {
+        return parse(message, idsuffix, MailField.all());
+    }
+
+    /**
+     * Parse given Message into Mail. Body fields which are not requested are not computed and they are null.
+     *
+     * @param message
+     * @param idsuffix  This value gets appended to the message-id.
+     * @param fields requested fields
+     * @return
+     */
+    public static Mail parse(final Message message, String idsuffix, final Set<MailField> fields) throws MessageParseException {
+        return parse(getMessageHeaders(message), new BodyContentSource() {
+            @Override
+            public void parse(MessageBodyParser.MailBodyContent content) throws MessageParseException, IOException {
+                MessageBodyParser.parse(content, message);
+            }
+        }, idsuffix, fields, null);
+    }
+
+    /**
+     * Create Mail from message headers and body content. Headers are processed first, the body is parsed only
+     * if headers are valid.
+     *
+     * @param headers as returned by {@link #getMessageHeaders(java.util.List)}
+     * @param body
+     * @param idsuffix This value gets appended to the message-id.
+     * @param fields requested fields, other body fields are left null
+     * @param mboxFromLine mbox "From " line of the message, its date is used if Date header can not be parsed, can be null
+     * @return
+     * @throws MessageParseException
+     */
+    static Mail parse(Map<String, Field> headers, BodyContentSource body, String idsuffix, Set<MailField> fields,
+                      String mboxFromLine) throws MessageParseException {
+        ParsedMessage message = parseBody(headers, body, idsuffix, fields, mboxFromLine);
+        try {
+            message.content.awaitAttachments();
+        } catch (IOException e) {
+            throw new MessageParseException(e);
+        } finally {
+            message.content.cancelAttachments();
+        }
+        return message.toMail();
+    }
+
+    /**
+     * Create Mail from message headers and body content without waiting for text extraction of attachments
+     * (see {@link AttachmentExtractor}). Headers are processed and the body is parsed before this method returns,
+     * the Mail is passed to the callback once text of all attachments is extracted.
+     *
+     * @param headers as returned by {@link #getMessageHeaders(java.util.List)}
+     * @param body
+     * @param idsuffix This value gets appended to the message-id.
+     * @param fields requested fields, other body fields are left null
+     * @param mboxFromLine mbox "From " line of the message, its date is used if Date header can not be parsed, can be null
+     * @param callback receives the Mail, it is not called if this method throws exception
+     * @throws MessageParseException if headers or body can not be parsed
+     */
+    static void parse(Map<String, Field> headers, BodyContentSource body, String idsuffix, Set<MailField> fields,
+                      String mboxFromLine, final MailCallback callback) throws MessageParseException {
+        final ParsedMessage message = parseBody(headers, body, idsuffix, fields, mboxFromLine);
+        message.content.whenAttachmentsExtracted(new Runnable() {
+            @Override
+            public void run() {
+                message.complete(callback);
+            }
+        });
+    }
+
+    private static ParsedMessage parseBody(Map<String, Field> headers, BodyContentSource body, String idsuffix,
+                                           Set<MailField> fields, String mboxFromLine) throws MessageParseException {
 
         String author_name = null;
         String author_email = null;
@@ -143,42 +320,31 @@ public class MessageParser {
         String message_id = null;
         String[] references = null;
         String in_reply_to = null;
-        String message_snippet = null;
-        String first_text_message = null;
-        String first_text_message_without_quotes = null;
-        String first_html_message = null;
-        String[] text_messages = null;
-        Integer text_messages_cnt = null;
-        String[] html_messages = null;
-        Integer html_messages_cnt = null;
-        MailAttachment[] message_attachments = null;
-        Integer message_attachments_cnt = null;
-
-        Map<String, Field> headers = getMessageHeaders(message);
+        String mailer = null;
 
         boolean messageIdPresent = false;
         for (String fieldName : headers.keySet()) {
 
             Field f = headers.get(fieldName);
-            switch (MessageHeader.getValue(f.getName())) {
+            switch (MessageHeader.getValue(fieldName)) {
                 case FROM:
 					Author author = extractValue((MailboxListField)f);
-                    author_name = author.name;
-                    author_email = author.email;
+                    author_name = valueCache.canonicalize(author.name);
+                    author_email = valueCache.canonicalize(author.email);
                     break;
                 case TO:
                     List<String> tos = new ArrayList<>();
-                    for (String recipient : extractValue((AddressListField)f)) { tos.add(recipient); }
+                    for (String recipient : extractValue((AddressListField)f)) { tos.add(valueCache.canonicalize(recipient)); }
                     to = tos.toArray(new String[tos.size()]);
                     break;
                 case SUBJECT:
                     subject_original = extractValue((UnstructuredField)f);
-                    subject = normalizeSubject(subject_original);
+                    subject = valueCache.canonicalize(normalizeSubject(subject_original));
                     break;
                 case DATE:
-                    Date d = extractValue((DateTimeField)f);
-                    if (d != null) {
-                        date = defaultDatePrinter.print(d.getTime());
+                    long millis = parseDate((DateTimeField)f, mboxFromLine);
+                    if (millis != MailDateParser.INVALID) {
+                        date = MailDateParser.format(millis);
                     } else {
                         String mid = headers.get(MessageHeader.MESSAGE_ID.toString()).getBody();
                         log.warn("Unable to parse header field '{}' for message-id: '{}'", f, mid);
@@ -207,87 +373,196 @@ public class MessageParser {
                 case IN_REPLY_TO:
                     in_reply_to = extractValue((UnstructuredField)f);
                     break;
+                case X_MAILER:
+                case USER_AGENT:
+                    mailer = f.getBody();
+                    break;
             }
 
         }
 
         if (!messageIdPresent) throw new MessageParseException("Message-ID header not found.");
 
-        MessageBodyParser.MailBodyContent content;
+        MessageBodyParser.MailBodyContent content = new MessageBodyParser.MailBodyContent(fields);
+        content.setCharsetKey(CharsetDetection.cacheKey(author_email, mailer));
+        boolean parsed = false;
         try {
-            content = MessageBodyParser.parse(message);
+            body.parse(content);
+            parsed = true;
         } catch (IOException e) {
             throw new MessageParseException(e);
+        } finally {
+            if (!parsed) {
+                content.cancelAttachments();
+            }
+        }
+
+        return new ParsedMessage(message_id, message_id_original, to, subject_original, subject, author_name,
+                author_email, date, in_reply_to, references, fields, content);
+    }
+
+    /**
+     * Message whose headers are processed and body is parsed, text of its attachments can still be extracted.
+     */
+    private static final class ParsedMessage {
+
+        private final String message_id;
+        private final String message_id_original;
+        private final String[] to;
+        private final String subject_original;
+        private final String subject;
+        private final String author_name;
+        private final String author_email;
+        private final String date;
+        private final String in_reply_to;
+        private final String[] references;
+        private final Set<MailField> fields;
+        private final MessageBodyParser.MailBodyContent content;
+
+        private ParsedMessage(String message_id, String message_id_original, String[] to, String subject_original,
+                              String subject, String author_name, String author_email, String date, String in_reply_to,
+                              String[] references, Set<MailField> fields, MessageBodyParser.MailBodyContent content) {
+            this.message_id = message_id;
+            this.message_id_original = message_id_original;
+            this.to = to;
+            this.subject_original = subject_original;
+            this.subject = subject;
+            this.author_name = author_name;
+            this.author_email = author_email;
+            this.date = date;
+            this.in_reply_to = in_reply_to;
+            this.references = references;
+            this.fields = fields;
+            this.content = content;
+        }
+
+        /**
+         * Add extracted attachments and pass the Mail to the callback, extractions must have ended.
+         */
+        private void complete(MailCallback callback) {
+            Mail mail;
+            try {
+                content.awaitAttachments();
+                mail = toMail();
+            } catch (IOException | RuntimeException e) {
+                callback.failed(new MessageParseException(e));
+                return;
+            } finally {
+                content.cancelAttachments();
+            }
+            callback.completed(mail);
+        }
+
+        /**
+         * @return Mail with attachments added by {@link MessageBodyParser.MailBodyContent#awaitAttachments()}
+         */
+        private Mail toMail() {
+            String message_snippet = null;
+            String first_text_message = null;
+            String first_text_message_without_quotes = null;
+            String first_html_message = null;
+            String first_html_text = null;
+            String[] text_messages = null;
+            Integer text_messages_cnt = null;
+            String[] html_messages = null;
+            Integer html_messages_cnt = null;
+            MailAttachment[] message_attachments = null;
+            Integer message_attachments_cnt = null;
+
+            // the first HTML message is parsed once for both the snippet and the text
+            HtmlText htmlText = null;
+            if (content.getFirstHtmlContent() != null && isBlank(content.getFirstTextContentWithoutQuotes())
+                    && isBlank(content.getFirstTextContent())
+                    && (fields.contains(MailField.MESSAGE_SNIPPET) || fields.contains(MailField.FIRST_HTML_MESSAGE))) {
+                htmlText = HtmlText.parse(content.getFirstHtmlContent());
+            }
+
+            if (fields.contains(MailField.MESSAGE_SNIPPET)) {
+                message_snippet = getSnippet(content, htmlText);
+            }
+
+            if (fields.contains(MailField.FIRST_TEXT_MESSAGE)) {
+                first_text_message = content.getFirstTextContent();
+            }
+            if (fields.contains(MailField.FIRST_TEXT_MESSAGE_WITHOUT_QUOTES)) {
+                first_text_message_without_quotes = content.getFirstTextContentWithoutQuotes();
+            }
+            if (fields.contains(MailField.FIRST_HTML_MESSAGE)) {
+                first_html_message = content.getFirstHtmlContent();
+                first_html_text = htmlText != null ? htmlText.getStrippedText() : null;
+            }
+
+            if (fields.contains(MailField.TEXT_MESSAGES)) {
+                List<String> testMessages = new ArrayList<>();
+                for (String part : content.getTextMessages())
+                {
+                    testMessages.add(part);
+                }
+                text_messages = testMessages.toArray(new String[testMessages.size()]);
+                text_messages_cnt = content.getTextMessages().size();
+            }
+
+            if (fields.contains(MailField.HTML_MESSAGES)) {
+                List<String> htmlMessages = new ArrayList<>();
+                for (String part : content.getHtmlMessages())
+                {
+                    htmlMessages.add(part);
+                }
+                html_messages = htmlMessages.toArray(new String[htmlMessages.size()]);
+                html_messages_cnt = content.getHtmlMessages().size();
+            }
+
+            if (fields.contains(MailField.MESSAGE_ATTACHMENTS)) {
+                if (content.getAttachments().size() > 0) {
+                    message_attachments_cnt = content.getAttachments().size();
+                    message_attachments = content.getAttachments().toArray(new MailAttachment[message_attachments_cnt]);
+                } else {
+                    message_attachments_cnt = 0;
+                }
+            }
+
+            return new Mail(
+                    message_id,
+                    message_id_original,
+                    to,
+                    subject_original,
+                    subject,
+                    author_name,
+                    author_email,
+                    date,
+                    in_reply_to,
+                    references,
+                    message_snippet,
+                    first_text_message,
+                    first_text_message_without_quotes,
+                    first_html_message,
+                    first_html_text,
+                    text_messages,
+                    text_messages_cnt,
+                    html_messages,
+                    html_messages_cnt,
+                    message_attachments,
+                    message_attachments_cnt
+            );
         }
+    }
 
+    private static boolean isBlank(String text) {
+        return text == null || text.trim().isEmpty();
+    }
+
+    private static String getSnippet(MessageBodyParser.MailBodyContent content, HtmlText htmlText) {
         String snippet = "";
         if (content.getFirstTextContentWithoutQuotes() != null) {
             snippet = content.getFirstTextContentWithoutQuotes();
         } else if (content.getFirstTextContent() != null) {
             snippet = content.getFirstTextContent();
         } else if (content.getFirstHtmlContent() != null) {
-            snippet =  Jsoup.parse(
-                    Jsoup.clean(content.getFirstHtmlContent(), Whitelist.relaxed())
-            ).text();
+            snippet = htmlText.getText();
         } else {
             // TODO get text snippet from other fields
         }
-        snippet = snippet.substring(0,(snippet.length() > 250 ? 250 : (snippet.length() > 0 ? snippet.length()-1 : 0))) // index can be -1 if length = 0 !!!
-//                .replaceAll(">*", "")
-                .replaceAll("^>From", "From")
-                .replaceAll("\\s+", " ")
-                .trim();
-        message_snippet = snippet;
-
-        first_text_message = content.getFirstTextContent();
-        first_text_message_without_quotes = content.getFirstTextContentWithoutQuotes();
-        first_html_message = content.getFirstHtmlContent();
-
-        List<String> testMessages = new ArrayList<>();
-        for (String part : content.getTextMessages())
-        {
-            testMessages.add(part);
-        }
-        text_messages = testMessages.toArray(new String[testMessages.size()]);
-        text_messages_cnt = content.getTextMessages().size();
-
-        List<String> htmlMessages = new ArrayList<>();
-        for (String part : content.getHtmlMessages())
-        {
-            htmlMessages.add(part);
-        }
-        html_messages = htmlMessages.toArray(new String[htmlMessages.size()]);
-        html_messages_cnt = content.getHtmlMessages().size();
-
-        if (content.getAttachments().size() > 0) {
-            message_attachments_cnt = content.getAttachments().size();
-            message_attachments = content.getAttachments().toArray(new MailAttachment[message_attachments_cnt]);
-        } else {
-            message_attachments_cnt = 0;
-        }
-
-        return new Mail(
-                message_id,
-                message_id_original,
-                to,
-                subject_original,
-                subject,
-                author_name,
-                author_email,
-                date,
-                in_reply_to,
-                references,
-                message_snippet,
-                first_text_message,
-                first_text_message_without_quotes,
-                first_html_message,
-                text_messages,
-                text_messages_cnt,
-                html_messages,
-                html_messages_cnt,
-                message_attachments,
-                message_attachments_cnt
-        );
+        return TextNormalizer.snippet(snippet, 250);
     }
 
     /**
@@ -298,12 +573,24 @@ public class MessageParser {
      * @return
      */
     public static Map<String, Field> getMessageHeaders(Message message) {
+        return getMessageHeaders(message.getHeader().getFields());
+    }
+
+    /**
+     * Extract only those header fields that are listed in MessageHeader
+     * All keys are lower-cased.
+     *
+     * @param fields
+     * @return
+     */
+    public static Map<String, Field> getMessageHeaders(List<Field> fields) {
         Map<String, Field> h = new HashMap<String, Field>();
-        for (Field f : message.getHeader().getFields()) {
-            if (MessageHeader.IGNORE.equals(MessageHeader.getValue(f.getName().toLowerCase()))) {
+        for (Field f : fields) {
+            String name = f.getName().toLowerCase(Locale.ENGLISH);
+            if (MessageHeader.getValue(name) == MessageHeader.IGNORE) {
                 continue;
             }
-            h.put(f.getName().toLowerCase(), f);
+            h.put(name, f);
         }
         return h;
     }
@@ -346,6 +633,30 @@ public class MessageParser {
         return items;
     }
 
+    /**
+     * Parse date of the message. The common form of the Date header is parsed by {@link MailDateParser},
+     * other forms by the lenient mime4j parser. If neither succeeds, date of mbox "From " line is used.
+     *
+     * @param field Date header
+     * @param mboxFromLine can be null
+     * @return epoch millis, {@link MailDateParser#INVALID} if there is no valid date
+     */
+    public static long parseDate(DateTimeField field, String mboxFromLine) {
+        long millis = MailDateParser.parse(field.getBody());
+        if (millis != MailDateParser.INVALID) {
+            return millis;
+        }
+        Date d = extractValue(field);
+        if (d != null) {
+            return d.getTime();
+        }
+        millis = MailDateParser.parseFromLine(mboxFromLine);
+        if (millis != MailDateParser.INVALID) {
+            log.debug("Using date of mbox From line [{}] instead of the date field [{}]", mboxFromLine, field);
+        }
+        return millis;
+    }
+
     /**
      *
      * @param field
@@ -377,16 +688,7 @@ public class MessageParser {
      * @return
      */
     public static String normalizeSubject(String subject) {
-        String s = subject;
-        if (s != null) {
-            s = s.replaceAll("\\[.*?\\][^$]","")  // remove any brackets at the beginning except the one having end of line after the "]"
-                    .replaceAll("^\\s*(-*\\s*[a-zA-Z]{2,3}:\\s*)*","") // remove all Re: Fw: Aw: ... etc including leading dash
-                    .replaceAll("\\s+[a-zA-Z]{2,3}:","") // remove any additional Re: having white space prefix
-                    .replaceAll("^\\s*-\\s*","") // remove any left dashes at the beginning
-                    .replaceAll("\\s+"," ") // finally replace multi-white space with one white space
-                    .trim();
-        }
-        return s;
+        return TextNormalizer.normalizeSubject(subject);
     }
 
 
@@ -0,0 +1,570 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.apache.james.mime4j.MimeException;
+import org.apache.james.mime4j.codec.DecodeMonitor;
+import org.apache.james.mime4j.dom.BinaryBody;
+import org.apache.james.mime4j.dom.Body;
+import org.apache.james.mime4j.dom.Entity;
+import org.apache.james.mime4j.dom.FieldParser;
+import org.apache.james.mime4j.dom.Header;
+import org.apache.james.mime4j.dom.TextBody;
+import org.apache.james.mime4j.dom.field.ParsedField;
+import org.apache.james.mime4j.message.AbstractEntity;
+import org.apache.james.mime4j.message.BodyPart;
+import org.apache.james.mime4j.message.DefaultBodyDescriptorBuilder;
+import org.apache.james.mime4j.message.HeaderImpl;
+import org.apache.james.mime4j.message.MessageImpl;
+import org.apache.james.mime4j.stream.BodyDescriptor;
+import org.apache.james.mime4j.stream.EntityState;
+import org.apache.james.mime4j.stream.Field;
+import org.apache.james.mime4j.stream.MimeConfig;
+import org.apache.james.mime4j.stream.MimeTokenStream;
+import org.apache.james.mime4j.stream.RecursionMode;
+import org.searchisko.mbox.dto.Mail;
+import org.searchisko.mbox.dto.MailField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parses raw message into Mail in one forward pass over mime4j token stream, no mime4j DOM is built.
+ * <p/>
+ * The result is the same as of {@link MessageParser#parse(org.apache.james.mime4j.dom.Message, String)} for message
+ * parsed by {@link MessageParser#getMessageBuilder()}, but only one body part is held in memory at a time: bodies
+ * of text parts and attachments are decoded and handed over to {@link MessageBodyParser} as soon as they are read,
+ * binary parts which are not indexed are skipped without reading them into memory. Bodies are stored according to
+ * {@link MessageParser#setBodyStorage(int, java.io.File)} and they are disposed as soon as they are parsed. The only exception are parts
+ * of multipart/alternative body which are kept until the alternative to be used is known. Bodies of parts which can
+ * not be used by requested fields (see {@link MailField}) are not read at all.
+ * <p/>
+ * This class is thread safe.
+ */
+public class MessageStreamParser {
+
+    private static Logger log = LoggerFactory.getLogger(MessageStreamParser.class);
+
+    private static final MimeConfig config = MessageParser.newMimeConfig();
+    private static final FieldParser<ParsedField> fieldParser = MessageParser.newFieldParser();
+
+    /**
+     * Longer first line is not taken for mbox "From " line.
+     */
+    private static final int MAX_FROM_LINE_LENGTH = 1024;
+
+    private MessageStreamParser() {};
+
+    /**
+     * It is the same as calling #parse(is, null, null).
+     *
+     * @param is raw message
+     * @return
+     * @throws MessageParseException
+     */
+    public static Mail parse(InputStream is) throws MessageParseException {
+        return parse(is, null, null);
+    }
+
+    /**
+     * Parse raw message into Mail. It is the same as calling #parse(is, idsuffix, header, MailField.all()).
+     *
+     * @param is raw message
+     * @param idsuffix This value gets appended to the message-id.
+     * @param header if not null, all fields of the message header are added to it
+     * @return
+     * @throws MessageParseException
+     */
+    public static Mail parse(InputStream is, String idsuffix, Header header) throws MessageParseException {
+        return parse(is, idsuffix, header, MailField.all());
+    }
+
+    /**
+     * Parse raw message into Mail. Body fields which are not requested are not computed and they are null.
+     *
+     * @param is raw message
+     * @param idsuffix This value gets appended to the message-id.
+     * @param header if not null, all fields of the message header are added to it
+     * @param fields requested fields
+     * @return
+     * @throws MessageParseException
+     */
+    public static Mail parse(InputStream is, String idsuffix, Header header, final Set<MailField> fields) throws MessageParseException {
+        RawMessage message = readMessageHeader(is, header);
+        return MessageParser.parse(message.headers, message.body, idsuffix, fields, message.fromLine);
+    }
+
+    /**
+     * Parse raw message into Mail without waiting for text extraction of attachments (see {@link AttachmentExtractor}),
+     * so the calling thread can go on once the stream is read. Body fields which are not requested are not computed
+     * and they are null.
+     *
+     * @param is raw message, it is read before this method returns
+     * @param idsuffix This value gets appended to the message-id.
+     * @param header if not null, all fields of the message header are added to it
+     * @param fields requested fields
+     * @param callback receives the Mail once text of all attachments is extracted, it is not called if this method
+     *                 throws exception
+     * @throws MessageParseException
+     */
+    public static void parse(InputStream is, String idsuffix, Header header, final Set<MailField> fields,
+                             MailCallback callback) throws MessageParseException {
+        RawMessage message = readMessageHeader(is, header);
+        MessageParser.parse(message.headers, message.body, idsuffix, fields, message.fromLine, callback);
+    }
+
+    /**
+     * Read mbox "From " line and message header, the body is read by {@link RawMessage#body}.
+     */
+    private static RawMessage readMessageHeader(InputStream is, Header header) throws MessageParseException {
+        if (!is.markSupported()) {
+            is = new BufferedInputStream(is);
+        }
+        String fromLine;
+        try {
+            fromLine = peekFromLine(is);
+        } catch (IOException e) {
+            throw new MessageParseException(e);
+        }
+
+        final MimeTokenStream stream = new MimeTokenStream(config, DecodeMonitor.SILENT,
+                new DefaultBodyDescriptorBuilder(null, fieldParser, DecodeMonitor.SILENT));
+        stream.setRecursionMode(RecursionMode.M_RECURSE);
+        stream.parse(is);
+
+        final MessageImpl message = new MessageImpl();
+        try {
+            readHeader(stream, message);
+        } catch (MimeException e) {
+            throw new MessageParseException(e);
+        } catch (IOException e) {
+            throw new MessageParseException(e);
+        }
+        if (header != null) {
+            for (Field field : message.getHeader().getFields()) {
+                header.addField(field);
+            }
+        }
+
+        return new RawMessage(MessageParser.getMessageHeaders(message.getHeader().getFields()),
+                new MessageParser.BodyContentSource() {
+                    @Override
+                    public void parse(MessageBodyParser.MailBodyContent content) throws MessageParseException, IOException {
+                        try {
+                            parseEntity(stream, message, true, new Sink(content));
+                        } catch (MimeException e) {
+                            throw new MessageParseException(e);
+                        }
+                    }
+                }, fromLine);
+    }
+
+    /**
+     * Message whose header is read, the body is read from the stream by {@link #body}.
+     */
+    private static final class RawMessage {
+
+        private final Map<String, Field> headers;
+        private final MessageParser.BodyContentSource body;
+        private final String fromLine;
+
+        private RawMessage(Map<String, Field> headers, MessageParser.BodyContentSource body, String fromLine) {
+            this.headers = headers;
+            this.body = body;
+            this.fromLine = fromLine;
+        }
+    }
+
+    /**
+     * Read mbox "From " line which mime4j skips. The stream is reset to its original position.
+     *
+     * @param is stream supporting mark
+     * @return the first line if it starts with "From ", null otherwise
+     * @throws IOException
+     */
+    static String peekFromLine(InputStream is) throws IOException {
+        is.mark(MAX_FROM_LINE_LENGTH);
+        try {
+            byte[] line = new byte[MAX_FROM_LINE_LENGTH];
+            int length = 0;
+            int b;
+            while (length < line.length && (b = is.read()) != -1 && b != '\n') {
+                line[length++] = (byte) b;
+            }
+            if (length < 5 || line[0] != 'F' || line[1] != 'r' || line[2] != 'o' || line[3] != 'm' || line[4] != ' ') {
+                return null;
+            }
+            return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+        } finally {
+            is.reset();
+        }
+    }
+
+    /**
+     * Part of message body content. It is added to the content either right away or later, see {@link Sink}.
+     */
+    private static abstract class Part {
+        abstract void addTo(MessageBodyParser.MailBodyContent content) throws MessageParseException, IOException;
+
+        /**
+         * @return body of the part, null if it has not been read
+         */
+        Body getBody() {
+            return null;
+        }
+
+        /**
+         * Release body of the part (e.g. delete its temporary file), it is called once the part is added or dropped.
+         */
+        void dispose() {
+        }
+    }
+
+    /**
+     * Part whose body has been read.
+     */
+    private static abstract class StoredPart extends Part {
+        private final Body body;
+
+        StoredPart(Body body) {
+            this.body = body;
+        }
+
+        @Override
+        Body getBody() {
+            return body;
+        }
+
+        @Override
+        void dispose() {
+            body.dispose();
+        }
+    }
+
+    /**
+     * Adds parts to the content as they come or keeps them until it is known whether they are used at all.
+     */
+    private static class Sink {
+
+        private final MessageBodyParser.MailBodyContent content;
+        private final List<Part> deferred;
+        private final Set<MailField> fields;
+
+        Sink(MessageBodyParser.MailBodyContent content) {
+            this.content = content;
+            this.deferred = null;
+            this.fields = content.getFields();
+        }
+
+        /**
+         * @param fields requested fields
+         */
+        Sink(Set<MailField> fields) {
+            this.content = null;
+            this.deferred = new ArrayList<>();
+            this.fields = fields;
+        }
+
+        void add(Part part) throws MessageParseException, IOException {
+            if (deferred == null) {
+                try {
+                    part.addTo(content);
+                } finally {
+                    if (!content.isRetained(part.getBody())) {
+                        part.dispose();
+                    }
+                }
+            } else {
+                deferred.add(part);
+            }
+        }
+
+        void addTo(Sink sink) throws MessageParseException, IOException {
+            for (Part part : deferred) {
+                sink.add(part);
+            }
+        }
+
+        /**
+         * Drop all deferred parts.
+         */
+        void dispose() {
+            for (Part part : deferred) {
+                part.dispose();
+            }
+        }
+    }
+
+    /**
+     * Read entity header. The stream must be at the start of the entity.
+     */
+    private static void readHeader(MimeTokenStream stream, AbstractEntity entity) throws MimeException, IOException {
+        expect(stream.next(), EntityState.T_START_HEADER);
+        Header header = new HeaderImpl();
+        EntityState state;
+        while ((state = stream.next()) == EntityState.T_FIELD) {
+            header.addField(stream.getField());
+        }
+        expect(state, EntityState.T_END_HEADER);
+        entity.setHeader(header);
+    }
+
+    /**
+     * Parse body of the entity whose header was read. The stream is at the end of the entity afterwards.
+     *
+     * @param fixCharset true if the body is parsed like by {@link MessageBodyParser#parse(Entity)}, false if it is
+     *                   parsed like body of nested message
+     */
+    private static void parseEntity(MimeTokenStream stream, AbstractEntity entity, boolean fixCharset, Sink sink)
+            throws MimeException, IOException, MessageParseException {
+
+        String mimeType = entity.getMimeType().toLowerCase();
+        String contentTransferEncoding = entity.getContentTransferEncoding();
+        String charset = fixCharset ? MessageBodyParser.fixCharset(entity.getCharset()) : entity.getCharset();
+        String filename = entity.getFilename();
+
+        EntityState state = stream.next();
+        switch (state) {
+            case T_BODY:
+                BodyDescriptor descriptor = stream.getBodyDescriptor();
+                if (descriptor.getMimeType().startsWith("text/")) {
+                    sink.add(textPart(stream, sink.fields, mimeType, contentTransferEncoding, charset, filename));
+                } else {
+                    sink.add(binaryPart(stream, sink.fields, mimeType, contentTransferEncoding, charset, filename));
+                }
+                break;
+            case T_START_MULTIPART:
+                parseMultipart(stream, entity, sink);
+                break;
+            case T_START_MESSAGE:
+                parseMessage(stream, entity, false, sink);
+                break;
+            default:
+                throw new MimeException("Unexpected parser state: " + MimeTokenStream.stateToString(state));
+        }
+        skipEntity(stream);
+    }
+
+    /**
+     * Parse nested message. The stream must be at the start of the message, it is at the end of the message afterwards.
+     */
+    private static void parseMessage(MimeTokenStream stream, Entity parent, boolean fixCharset, Sink sink)
+            throws MimeException, IOException, MessageParseException {
+        MessageImpl message = new MessageImpl();
+        message.setParent(parent);
+        readHeader(stream, message);
+        parseEntity(stream, message, fixCharset, sink);
+    }
+
+    /**
+     * Parse multipart body of given entity. The stream must be at the start of the multipart, it is at the end
+     * of the multipart afterwards.
+     */
+    private static void parseMultipart(MimeTokenStream stream, Entity entity, Sink sink)
+            throws MimeException, IOException, MessageParseException {
+
+        final String subType = stream.getBodyDescriptor().getSubType().toLowerCase();
+        switch (MessageBodyParser.SupportedMultiPartType.getValue(subType)) {
+            case UNKNOWN:
+                sink.add(new Part() {
+                    @Override
+                    public void addTo(MessageBodyParser.MailBodyContent content) throws MessageParseException {
+                        throw new MessageParseException(subType + " is unsupported body multipart subtype.");
+                    }
+                });
+                skipEntity(stream);
+                break;
+            case ALTERNATIVE:
+                parseAlternative(stream, entity, sink);
+                break;
+            default:
+                EntityState state;
+                while ((state = nextPart(stream)) == EntityState.T_START_BODYPART) {
+                    BodyPart part = newBodyPart(entity);
+                    readHeader(stream, part);
+                    parseEntity(stream, part, true, sink);
+                }
+                expect(state, EntityState.T_END_MULTIPART);
+                break;
+        }
+    }
+
+    /**
+     * The last text/plain part is used, or the last text/html part if there is no text/plain part. All other parts
+     * are used only if there is neither of them.
+     */
+    private static void parseAlternative(MimeTokenStream stream, Entity entity, Sink sink)
+            throws MimeException, IOException, MessageParseException {
+
+        Part textPart = null;
+        Part htmlPart = null;
+        Sink other = new Sink(sink.fields);
+
+        EntityState state;
+        while ((state = nextPart(stream)) == EntityState.T_START_BODYPART) {
+            BodyPart part = newBodyPart(entity);
+            readHeader(stream, part);
+            String mimeType = part.getMimeType().toLowerCase();
+            if (mimeType.equals("text/plain") || mimeType.equals("text/html")) {
+                expect(stream.next(), EntityState.T_BODY);
+                Part p = textPart(stream, sink.fields, part.getMimeType(), part.getContentTransferEncoding(),
+                        part.getCharset(), part.getFilename());
+                if (mimeType.equals("text/plain")) {
+                    dispose(textPart);
+                    textPart = p;
+                } else {
+                    dispose(htmlPart);
+                    htmlPart = p;
+                }
+            } else {
+                state = stream.next();
+                switch (state) {
+                    case T_START_MULTIPART:
+                        parseMultipart(stream, part, other);
+                        break;
+                    case T_START_MESSAGE:
+                        parseMessage(stream, part, true, other);
+                        break;
+                    default:
+                        log.warn("Body of type [{}] not supported! Ignoring.", stream.getBodyDescriptor().getMimeType());
+                        break;
+                }
+            }
+            skipEntity(stream);
+        }
+        expect(state, EntityState.T_END_MULTIPART);
+
+        if (textPart != null) {
+            sink.add(textPart);
+            dispose(htmlPart);
+            other.dispose();
+        } else if (htmlPart != null) {
+            sink.add(htmlPart);
+            other.dispose();
+        } else {
+            other.addTo(sink);
+        }
+    }
+
+    private static void dispose(Part part) {
+        if (part != null) {
+            part.dispose();
+        }
+    }
+
+    private static BodyPart newBodyPart(Entity parent) {
+        BodyPart part = new BodyPart();
+        part.setParent(parent);
+        return part;
+    }
+
+    private static TextBody readTextBody(MimeTokenStream stream) throws IOException {
+        return MessageParser.getBodyFactory().textBody(stream.getDecodedInputStream(), stream.getBodyDescriptor().getCharset());
+    }
+
+    private static Part textPart(MimeTokenStream stream, Set<MailField> fields, final String mimeType,
+                                 final String contentTransferEncoding, final String charset, final String filename) throws IOException {
+        if (!MessageBodyParser.mayUseContent(fields, mimeType.toLowerCase(), filename)) {
+            return new Part() {
+                @Override
+                public void addTo(MessageBodyParser.MailBodyContent content) throws IOException {
+                    MessageBodyParser.skipTextBody(content, mimeType, filename);
+                }
+            };
+        }
+        final TextBody body = readTextBody(stream);
+        return new StoredPart(body) {
+            @Override
+            public void addTo(MessageBodyParser.MailBodyContent content) throws IOException {
+                MessageBodyParser.parseTextBody(content, body, mimeType, contentTransferEncoding, charset, filename);
+            }
+        };
+    }
+
+    private static Part binaryPart(MimeTokenStream stream, Set<MailField> fields, final String mimeType,
+                                   final String contentTransferEncoding, final String charset, final String filename) throws IOException {
+        if (!MessageBodyParser.isBinaryAttachment(mimeType, filename)) {
+            log.trace("Ignoring binary mimeType: '{}', contentTransferEncoding: '{}', charset: '{}', filename: '{}'",
+                    new Object[]{mimeType, contentTransferEncoding, charset, filename});
+            return new Part() {
+                @Override
+                public void addTo(MessageBodyParser.MailBodyContent content) {
+                    // not indexed
+                }
+            };
+        }
+        if (!MessageBodyParser.mayUseContent(fields, mimeType, filename)) {
+            return new Part() {
+                @Override
+                public void addTo(MessageBodyParser.MailBodyContent content) throws IOException {
+                    MessageBodyParser.skipBinaryBody(content, mimeType, filename);
+                }
+            };
+        }
+        final BinaryBody body = MessageParser.getBodyFactory().binaryBody(stream.getDecodedInputStream());
+        return new StoredPart(body) {
+            @Override
+            public void addTo(MessageBodyParser.MailBodyContent content) throws IOException {
+                MessageBodyParser.parseBinaryBody(content, body, mimeType, contentTransferEncoding, charset, filename);
+            }
+        };
+    }
+
+    /**
+     * @return next state which is not preamble or epilogue of multipart
+     */
+    private static EntityState nextPart(MimeTokenStream stream) throws MimeException, IOException {
+        EntityState state;
+        do {
+            state = stream.next();
+        } while (state == EntityState.T_PREAMBLE || state == EntityState.T_EPILOGUE);
+        return state;
+    }
+
+    /**
+     * Skip the rest of current entity (including nested entities), the stream is at the end of the entity afterwards.
+     */
+    private static void skipEntity(MimeTokenStream stream) throws MimeException, IOException {
+        int depth = 0;
+        while (true) {
+            EntityState state = stream.next();
+            switch (state) {
+                case T_START_MESSAGE:
+                case T_START_BODYPART:
+                case T_START_MULTIPART:
+                    depth++;
+                    break;
+                case T_END_MESSAGE:
+                case T_END_BODYPART:
+                case T_END_MULTIPART:
+                    if (depth-- == 0) {
+                        return;
+                    }
+                    break;
+                case T_END_OF_STREAM:
+                    return;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static void expect(EntityState state, EntityState expected) throws MimeException {
+        if (state != expected) {
+            throw new MimeException("Unexpected parser state: " + MimeTokenStream.stateToString(state) +
+                    ", expected: " + MimeTokenStream.stateToString(expected));
+        }
+    }
+}
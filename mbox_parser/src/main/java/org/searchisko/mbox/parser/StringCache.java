@@ -0,0 +1,63 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded cache of canonical instances of repeated strings (recipient addresses, normalized subjects, author names).
+ * Equal values parsed from different messages then share one String instance, so mails waiting in the queue
+ * do not hold many copies of the same value.
+ * <p/>
+ * The cache is a direct-mapped table: every value has exactly one slot given by its hash code, a value replaces
+ * whatever was in its slot before. Memory used by the cache is therefore bounded by its capacity and lookups
+ * never lock or allocate.
+ * <p/>
+ * This class is thread safe.
+ */
+public class StringCache {
+
+    private final AtomicReferenceArray<String> table;
+    private final int mask;
+
+    /**
+     * @param capacity max number of cached values, it is rounded up to power of two
+     */
+    public StringCache(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * @param value
+     * @return cached instance equal to the value, or the value itself which is cached from now on
+     */
+    public String canonicalize(String value) {
+        if (value == null) {
+            return null;
+        }
+        int h = value.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        String cached = table.get(slot);
+        if (cached != null && cached.equals(value)) {
+            return cached;
+        }
+        table.set(slot, value);
+        return value;
+    }
+
+    /**
+     * @return max number of cached values
+     */
+    public int capacity() {
+        return table.length();
+    }
+}
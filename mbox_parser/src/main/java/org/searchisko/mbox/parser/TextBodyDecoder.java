@@ -0,0 +1,276 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import com.sun.xml.messaging.saaj.packaging.mime.MessagingException;
+import com.sun.xml.messaging.saaj.packaging.mime.internet.MimeUtility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes content of text parts into String. The body is read into a byte buffer, transfer decoding is done
+ * in place, then bytes are decoded into a char buffer by cached {@link CharsetDecoder} and the String is created
+ * once from that buffer. Buffers and decoders are owned by the calling thread.
+ * <p/>
+ * Quoted-printable decoding gives the same result as saaj <code>QPDecoderStream</code> used before, except it does
+ * not turn <code>"=-d"</code> into a negative byte value and does not add a garbage byte after <code>'='</code>
+ * near the end of the body.
+ * <p/>
+ * This class is thread safe.
+ */
+final class TextBodyDecoder {
+
+    /**
+     * Buffers bigger than this are not kept for reuse.
+     */
+    private static final int MAX_REUSED_CAPACITY = 256 * 1024;
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    private static class Buffers {
+        byte[] bytes = new byte[INITIAL_CAPACITY];
+        char[] chars = new char[INITIAL_CAPACITY];
+        final Map<String, CharsetDecoder> decoders = new HashMap<>();
+    }
+
+    private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private TextBodyDecoder() {};
+
+    /**
+     * Decode text body. Charset of ISO-8859-* content is detected by {@link CharsetDetection}.
+     *
+     * @param is body content, the stream is closed
+     * @param transferEncoding content transfer encoding applied on top of the content
+     * @param charset declared charset
+     * @param charsetKey key for {@link CharsetDetection}, can be null
+     * @return
+     * @throws IOException
+     * @throws MessagingException if the transfer encoding is not known
+     */
+    static String decode(InputStream is, String transferEncoding, String charset, String charsetKey) throws IOException, MessagingException {
+        Buffers b = buffers.get();
+        try {
+            int length;
+            try {
+                if (isKnownEncoding(transferEncoding)) {
+                    length = read(is, b);
+                } else {
+                    length = read(MimeUtility.decode(is, transferEncoding), b);
+                }
+            } finally {
+                is.close();
+            }
+            if ("quoted-printable".equalsIgnoreCase(transferEncoding)) {
+                length = decodeQuotedPrintable(b.bytes, length);
+            }
+            if (CharsetDetection.isDetected(charset)) {
+                charset = CharsetDetection.detect(b.bytes, length, charset, charsetKey);
+            }
+            return decodeChars(b, length, charset);
+        } finally {
+            release(b);
+        }
+    }
+
+    /**
+     * Read the whole content and remove all soft line breaks <code>"=\n"</code>, it is the same as
+     * <code>TextNormalizer.removeSoftLineBreaks(content)</code>.
+     *
+     * @param reader content, the reader is closed
+     * @return
+     * @throws IOException
+     */
+    static String readWithoutSoftLineBreaks(Reader reader) throws IOException {
+        Buffers b = buffers.get();
+        try {
+            char[] chars = b.chars;
+            int length = 0;
+            try {
+                int n;
+                while ((n = reader.read(chars, length, chars.length - length)) != -1) {
+                    length += n;
+                    if (length == chars.length) {
+                        chars = grow(chars);
+                        b.chars = chars;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            int w = 0;
+            for (int r = 0; r < length; r++) {
+                if (chars[r] == '=' && r + 1 < length && chars[r + 1] == '\n') {
+                    r++;
+                } else {
+                    chars[w++] = chars[r];
+                }
+            }
+            return new String(chars, 0, w);
+        } finally {
+            release(b);
+        }
+    }
+
+    /**
+     * Decode quoted-printable content in place.
+     *
+     * @param bytes
+     * @param length
+     * @return length of decoded content
+     */
+    static int decodeQuotedPrintable(byte[] bytes, int length) {
+        int r = 0;
+        int w = 0;
+        while (r < length) {
+            byte c = bytes[r++];
+            if (c == ' ') {
+                // trailing spaces are dropped
+                int start = r - 1;
+                while (r < length && bytes[r] == ' ') {
+                    r++;
+                }
+                if (r < length && bytes[r] != '\r' && bytes[r] != '\n') {
+                    while (start++ < r) {
+                        bytes[w++] = ' ';
+                    }
+                }
+            } else if (c == '=') {
+                if (r == length) {
+                    break;
+                }
+                byte a = bytes[r];
+                if (a == '\n') {
+                    r++;
+                } else if (a == '\r') {
+                    r++;
+                    if (r < length && bytes[r] == '\n') {
+                        r++;
+                    }
+                } else {
+                    int high = r + 1 < length ? hexDigit(a) : -1;
+                    int low = high >= 0 ? hexDigit(bytes[r + 1]) : -1;
+                    if (low >= 0) {
+                        bytes[w++] = (byte) (high * 16 + low);
+                        r += 2;
+                    } else {
+                        // not an escape, following characters are processed as usual
+                        bytes[w++] = c;
+                    }
+                }
+            } else {
+                bytes[w++] = c;
+            }
+        }
+        return w;
+    }
+
+    private static int hexDigit(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the content is read as is, base64 content is already decoded by mime4j
+     */
+    private static boolean isKnownEncoding(String transferEncoding) {
+        return "quoted-printable".equalsIgnoreCase(transferEncoding) || "base64".equalsIgnoreCase(transferEncoding) ||
+                "7bit".equalsIgnoreCase(transferEncoding) || "8bit".equalsIgnoreCase(transferEncoding) ||
+                "binary".equalsIgnoreCase(transferEncoding);
+    }
+
+    /**
+     * Read the whole stream into the byte buffer.
+     *
+     * @return number of bytes read
+     */
+    private static int read(InputStream is, Buffers b) throws IOException {
+        byte[] bytes = b.bytes;
+        int length = 0;
+        int n;
+        while ((n = is.read(bytes, length, bytes.length - length)) != -1) {
+            length += n;
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                b.bytes = bytes;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Decode bytes of the buffer the same way as {@link java.io.InputStreamReader} does.
+     */
+    private static String decodeChars(Buffers b, int length, String charset) {
+        CharsetDecoder decoder = b.decoders.get(charset);
+        if (decoder == null) {
+            Charset cs = charset == null ? Charset.defaultCharset() : Charset.forName(charset);
+            decoder = cs.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            b.decoders.put(charset, decoder);
+        }
+        decoder.reset();
+        int capacity = (int) (length * (double) decoder.maxCharsPerByte()) + 16;
+        if (b.chars.length < capacity) {
+            b.chars = new char[capacity];
+        }
+        ByteBuffer in = ByteBuffer.wrap(b.bytes, 0, length);
+        CharBuffer out = CharBuffer.wrap(b.chars);
+        while (decoder.decode(in, out, true).isOverflow()) {
+            out = grow(b, out);
+        }
+        while (decoder.flush(out).isOverflow()) {
+            out = grow(b, out);
+        }
+        return new String(b.chars, 0, out.position());
+    }
+
+    private static CharBuffer grow(Buffers b, CharBuffer out) {
+        b.chars = grow(b.chars);
+        CharBuffer grown = CharBuffer.wrap(b.chars);
+        grown.position(out.position());
+        return grown;
+    }
+
+    private static char[] grow(char[] chars) {
+        return Arrays.copyOf(chars, chars.length * 2);
+    }
+
+    /**
+     * Drop buffers which grew too big.
+     */
+    private static void release(Buffers b) {
+        if (b.bytes.length > MAX_REUSED_CAPACITY) {
+            b.bytes = new byte[INITIAL_CAPACITY];
+        }
+        if (b.chars.length > MAX_REUSED_CAPACITY) {
+            b.chars = new char[INITIAL_CAPACITY];
+        }
+    }
+}
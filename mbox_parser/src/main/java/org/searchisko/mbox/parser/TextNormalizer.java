@@ -0,0 +1,399 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+/**
+ * Hand-written replacements of regular expressions used to normalize subjects, snippets and extracted text.
+ * Every method scans its input once per step without compiling any pattern. The result is the same as that of
+ * the regular expression mentioned in the method doc.
+ * <p/>
+ * Intermediate results are written to a buffer owned by the calling thread, the only allocation is the result String.
+ * <p/>
+ * This class is thread safe.
+ */
+public final class TextNormalizer {
+
+    /**
+     * Buffers bigger than this are not kept for reuse.
+     */
+    private static final int MAX_REUSED_CAPACITY = 256 * 1024;
+
+    private static final ThreadLocal<StringBuilder[]> buffers = new ThreadLocal<StringBuilder[]>() {
+        @Override
+        protected StringBuilder[] initialValue() {
+            return new StringBuilder[]{new StringBuilder(256), new StringBuilder(256)};
+        }
+    };
+
+    private TextNormalizer() {};
+
+    /**
+     * Normalize Subject value, it is the same as
+     * <pre>
+     * subject.replaceAll("\\[.*?\\][^$]","")
+     *        .replaceAll("^\\s*(-*\\s*[a-zA-Z]{2,3}:\\s*)*","")
+     *        .replaceAll("\\s+[a-zA-Z]{2,3}:","")
+     *        .replaceAll("^\\s*-\\s*","")
+     *        .replaceAll("\\s+"," ")
+     *        .trim()
+     * </pre>
+     *
+     * @param subject
+     * @return normalized subject, null if subject is null
+     */
+    public static String normalizeSubject(CharSequence subject) {
+        if (subject == null) {
+            return null;
+        }
+        StringBuilder[] b = buffers.get();
+        StringBuilder in = b[0];
+        StringBuilder out = b[1];
+        try {
+            removeBrackets(subject, in);
+            removeReplyPrefixes(in, out);
+            in.setLength(0);
+            removeInnerReplyPrefixes(out, in);
+            return collapseWhitespace(in, leadingDashEnd(in), in.length(), out);
+        } finally {
+            release(b, 0);
+            release(b, 1);
+        }
+    }
+
+    /**
+     * It is the same as <code>text.subSequence(start, end).toString().replaceAll("\\s+", " ").trim()</code>.
+     *
+     * @param text
+     * @param start
+     * @param end
+     * @return
+     */
+    public static String collapseWhitespace(CharSequence text, int start, int end) {
+        StringBuilder[] b = buffers.get();
+        try {
+            return collapseWhitespace(text, start, end, b[0]);
+        } finally {
+            release(b, 0);
+        }
+    }
+
+    /**
+     * It is the same as <code>text.replaceAll("\\s+", " ").trim()</code>.
+     *
+     * @param text
+     * @return
+     */
+    public static String collapseWhitespace(CharSequence text) {
+        return collapseWhitespace(text, 0, text.length());
+    }
+
+    /**
+     * Build snippet of given text, it is the same as
+     * <pre>
+     * text.substring(0, (text.length() > maxLength ? maxLength : (text.length() > 0 ? text.length() - 1 : 0)))
+     *     .replaceAll("^>From", "From")
+     *     .replaceAll("\\s+", " ")
+     *     .trim()
+     * </pre>
+     * Note the last character is dropped if the text is not longer than <code>maxLength</code>.
+     *
+     * @param text
+     * @param maxLength
+     * @return
+     */
+    public static String snippet(CharSequence text, int maxLength) {
+        int length = text.length();
+        int end = length > maxLength ? maxLength : (length > 0 ? length - 1 : 0);
+        int start = end >= 5 && startsWith(text, ">From") ? 1 : 0;
+        return collapseWhitespace(text, start, end);
+    }
+
+    /**
+     * Join all lines which are not empty and which are not quoted (start with '>') by single space, every line
+     * is trimmed. It is the same as
+     * <pre>
+     * StringBuilder noQuotes = new StringBuilder();
+     * for (String line : text.split("\n")) {
+     *     line = line.trim();
+     *     if (line.length() > 0 && !line.startsWith(">")) {
+     *         noQuotes.append(line).append(" ");
+     *     }
+     * }
+     * noQuotes.toString().trim();
+     * </pre>
+     *
+     * @param text
+     * @return
+     */
+    public static String filterOutQuotedLines(CharSequence text) {
+        StringBuilder[] b = buffers.get();
+        StringBuilder out = b[0];
+        try {
+            int length = text.length();
+            int lineStart = 0;
+            while (lineStart <= length) {
+                int lineEnd = lineStart;
+                while (lineEnd < length && text.charAt(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                int start = lineStart;
+                int end = lineEnd;
+                while (start < end && text.charAt(start) <= ' ') {
+                    start++;
+                }
+                while (end > start && text.charAt(end - 1) <= ' ') {
+                    end--;
+                }
+                if (start < end && text.charAt(start) != '>') {
+                    if (out.length() > 0) {
+                        out.append(' ');
+                    }
+                    out.append(text, start, end);
+                }
+                lineStart = lineEnd + 1;
+            }
+            return out.toString();
+        } finally {
+            release(b, 0);
+        }
+    }
+
+    /**
+     * It is the same as <code>text.replaceAll("^>From", "From")</code>.
+     *
+     * @param text
+     * @return
+     */
+    public static String unescapeFrom(String text) {
+        return text.startsWith(">From") ? text.substring(1) : text;
+    }
+
+    /**
+     * Remove all occurrences of soft line break <code>"=\n"</code>, it is the same as
+     * <code>text.replaceAll("=\n", "")</code>.
+     *
+     * @param text
+     * @return
+     */
+    public static String removeSoftLineBreaks(String text) {
+        int i = text.indexOf("=\n");
+        if (i < 0) {
+            return text;
+        }
+        StringBuilder[] b = buffers.get();
+        StringBuilder out = b[0];
+        try {
+            int start = 0;
+            while (i >= 0) {
+                out.append(text, start, i);
+                start = i + 2;
+                i = text.indexOf("=\n", start);
+            }
+            out.append(text, start, text.length());
+            return out.toString();
+        } finally {
+            release(b, 0);
+        }
+    }
+
+    /**
+     * <code>\s</code> of regular expressions
+     */
+    static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Characters not matched by <code>.</code> of regular expressions
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean startsWith(CharSequence text, String prefix) {
+        if (text.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collapse whitespace and trim given range of text.
+     */
+    private static String collapseWhitespace(CharSequence text, int start, int end, StringBuilder out) {
+        out.setLength(0);
+        while (start < end && text.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        boolean space = false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space) {
+                    out.append(' ');
+                    space = false;
+                }
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * <code>replaceAll("\\[.*?\\][^$]","")</code>
+     */
+    private static void removeBrackets(CharSequence text, StringBuilder out) {
+        out.setLength(0);
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c == '[') {
+                int end = bracketEnd(text, i);
+                if (end > 0) {
+                    i = end;
+                    continue;
+                }
+            }
+            out.append(c);
+            i++;
+        }
+    }
+
+    /**
+     * @return end of the shortest <code>\[.*?\][^$]</code> starting at position of '[', -1 if there is none
+     */
+    private static int bracketEnd(CharSequence text, int start) {
+        int length = text.length();
+        for (int k = start + 1; k < length; k++) {
+            char c = text.charAt(k);
+            if (c == ']' && k + 1 < length && text.charAt(k + 1) != '$') {
+                // [^$] matches whole code point
+                return k + 1 + Character.charCount(Character.codePointAt(text, k + 1));
+            }
+            if (isLineTerminator(c)) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * <code>replaceAll("^\\s*(-*\\s*[a-zA-Z]{2,3}:\\s*)*","")</code>
+     */
+    private static void removeReplyPrefixes(CharSequence text, StringBuilder out) {
+        out.setLength(0);
+        int length = text.length();
+        int pos = 0;
+        while (pos < length && isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        while (true) {
+            int i = pos;
+            while (i < length && text.charAt(i) == '-') {
+                i++;
+            }
+            while (i < length && isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            int letters = countLetters(text, i);
+            if (letters < 2 || letters > 3 || i + letters >= length || text.charAt(i + letters) != ':') {
+                break;
+            }
+            i += letters + 1;
+            while (i < length && isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            pos = i;
+        }
+        out.append(text, pos, length);
+    }
+
+    /**
+     * <code>replaceAll("\\s+[a-zA-Z]{2,3}:","")</code>
+     */
+    private static void removeInnerReplyPrefixes(CharSequence text, StringBuilder out) {
+        out.setLength(0);
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (!isWhitespace(c)) {
+                out.append(c);
+                i++;
+                continue;
+            }
+            int j = i + 1;
+            while (j < length && isWhitespace(text.charAt(j))) {
+                j++;
+            }
+            int letters = countLetters(text, j);
+            if (letters >= 2 && letters <= 3 && j + letters < length && text.charAt(j + letters) == ':') {
+                i = j + letters + 1;
+            } else {
+                out.append(text, i, j);
+                i = j;
+            }
+        }
+    }
+
+    /**
+     * @return end of <code>^\\s*-\\s*</code>, 0 if there is no match
+     */
+    private static int leadingDashEnd(CharSequence text) {
+        int length = text.length();
+        int i = 0;
+        while (i < length && isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        if (i == length || text.charAt(i) != '-') {
+            return 0;
+        }
+        i++;
+        while (i < length && isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return number of ASCII letters starting at given position, counting stops at 4
+     */
+    private static int countLetters(CharSequence text, int start) {
+        int length = text.length();
+        int i = start;
+        while (i < length && i - start < 4 && isAsciiLetter(text.charAt(i))) {
+            i++;
+        }
+        return i - start;
+    }
+
+    /**
+     * Clear the buffer, drop it if it grew too big.
+     */
+    private static void release(StringBuilder[] b, int index) {
+        if (b[index].capacity() > MAX_REUSED_CAPACITY) {
+            b[index] = new StringBuilder(256);
+        } else {
+            b[index].setLength(0);
+        }
+    }
+}
@@ -12,10 +12,13 @@ import org.codehaus.jackson.JsonNode;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.searchisko.mbox.dto.Mail;
+import org.searchisko.mbox.dto.MailField;
 import org.searchisko.mbox.parser.MessageParseException;
 import org.searchisko.mbox.parser.MessageParser;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
@@ -61,4 +64,25 @@ public class ConverterMetadataTest extends ConverterTestSupport {
 
     }
 
+    @Test
+    public void shouldWriteEncodedMetadata() throws IOException, MimeException, MessageParseException {
+
+        Map<String, String> listMetadata = new HashMap<>();
+        listMetadata.put("project", "weld");
+        listMetadata.put("subject", "overridden by list");
+        listMetadata.put("foo", "overridden by document");
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("foo", "bar");
+
+        Mail mail = MessageParser.parse(getMessage("mbox/encoding/invalid/simple.mbox", mb));
+
+        Map<String, String> all = new HashMap<>(listMetadata);
+        all.putAll(metadata);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Converter.writeJSON(mail, new EncodedMetadata(listMetadata), metadata, MailField.all(), os);
+
+        assertEquals(mapper.readTree(Converter.toJSON(mail, all)), mapper.readTree(os.toByteArray()));
+        assertEquals("bar", mapper.readTree(os.toByteArray()).get("foo").getTextValue());
+    }
+
 }
@@ -25,6 +25,7 @@ import org.searchisko.mbox.parser.MessageParser;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -73,23 +74,14 @@ public class ConverterTest extends ConverterTestSupport {
     }
 
     /**
-     * Once MIME4J-232 is fixed this should go away.
+     * Date header of these messages can not be parsed by mime4j (MIME4J-232).
      */
     @Test
-    public void shouldFailsParsingInvalidDate3() throws IOException, MimeException, MessageParseException {
-        Message msg = getMessage("mbox/date/lucene-java-users-200703.01.mbox", mb);
-        thrown.expect(org.searchisko.mbox.parser.MessageParseException.class);
-        MessageParser.parse(msg);
-    }
-
-    /**
-     * Once MIME4J-232 is fixed this should go away.
-     */
-    @Test
-    public void shouldFailsParsingInvalidDate4() throws IOException, MimeException, MessageParseException {
-        Message msg = getMessage("mbox/date/lucene-java-users-200703.02.mbox", mb);
-        thrown.expect(org.searchisko.mbox.parser.MessageParseException.class);
-        MessageParser.parse(msg);
+    public void shouldParseDateNotParsedByMime4j() throws IOException, MimeException, MessageParseException {
+        assertEquals("2007-03-28T02:58:26.000Z",
+                MessageParser.parse(getMessage("mbox/date/lucene-java-users-200703.01.mbox", mb)).dateUTC());
+        assertEquals("2007-03-28T03:32:39.000Z",
+                MessageParser.parse(getMessage("mbox/date/lucene-java-users-200703.02.mbox", mb)).dateUTC());
     }
 
     @Test
@@ -0,0 +1,89 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.apache.james.mime4j.dom.SingleBody;
+import org.apache.james.mime4j.message.BasicBodyFactory;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class AttachmentRouterTest {
+
+    private static MediaType route(String head, String filename) {
+        byte[] bytes = head.getBytes(StandardCharsets.ISO_8859_1);
+        return AttachmentRouter.route(bytes, bytes.length, filename, true);
+    }
+
+    private static MediaType route(byte[] content, String mimeType) throws Exception {
+        return AttachmentRouter.route(new BasicBodyFactory().binaryBody(content), mimeType, "file");
+    }
+
+    @Test
+    public void shouldRouteByMagicBytes() {
+        assertEquals(AttachmentRouter.PDF, route("%PDF-1.4\n", "spec.bin"));
+        assertEquals(AttachmentRouter.RTF, route("{\\rtf1\\ansi", null));
+        assertEquals(AttachmentRouter.MS_OFFICE, route("ÐÏ\u0011à¡±\u001Aá\u0000", "a.doc"));
+        assertEquals(MediaType.application("x-tika-ooxml"), route("PK\u0003\u0004\u0014\u0000", "Report.DOCX"));
+        assertEquals(AttachmentRouter.DETECT, route("PK\u0003\u0004\u0014\u0000", "sources.zip"));
+        assertEquals(AttachmentRouter.DETECT, route("<?xml version=\"1.0\"?>", "pom.xml"));
+        assertEquals(AttachmentRouter.DETECT, route("", null));
+    }
+
+    @Test
+    public void shouldSkipUselessContent() throws Exception {
+        assertNull(route("MZ\u0090\u0000\u0003", "setup.exe"));
+        assertNull(route("Êþº¾\u0000\u0000", "Foo.class"));
+        assertNull(route("\u0089PNG\r\n", "octet"));
+        assertNull(route("Rar!\u001A\u0007", "logs.rar"));
+        assertNull(route("-----BEGIN PGP MESSAGE-----", "msg.asc"));
+        assertNull(route("text".getBytes(StandardCharsets.US_ASCII), "application/pkcs7-mime"));
+    }
+
+    @Test
+    public void shouldParseTextBodiesStartingLikeBinaryContent() throws Exception {
+        BasicBodyFactory factory = new BasicBodyFactory();
+        assertEquals(AttachmentRouter.DETECT,
+                AttachmentRouter.route(factory.textBody("ID3 tags are not parsed", "US-ASCII"), "text/plain", "notes.txt"));
+        assertEquals(AttachmentRouter.DETECT,
+                AttachmentRouter.route(factory.textBody("MZ header", "US-ASCII"), "text/plain", null));
+        assertNull(AttachmentRouter.route(factory.binaryBody("MZ header".getBytes(StandardCharsets.US_ASCII)),
+                "application/octet-stream", null));
+        assertNull(AttachmentRouter.route(factory.textBody("-----BEGIN PGP MESSAGE-----", "US-ASCII"), "text/plain", null));
+    }
+
+    @Test
+    public void shouldSkipBigContent() throws Exception {
+        byte[] content = new byte[(int) AttachmentRouter.MAX_SIZE];
+        content[0] = '%';
+        assertEquals(AttachmentRouter.DETECT, route(content, "application/octet-stream"));
+        assertNull(route(new byte[content.length + 1], "application/octet-stream"));
+        assertFalse(AttachmentRouter.isLongerThan(new ByteArrayInputStream(new byte[10]), 10));
+        assertTrue(AttachmentRouter.isLongerThan(new ByteArrayInputStream(new byte[11]), 10));
+    }
+
+    @Test
+    public void shouldParseRoutedContentLikeTika() throws Exception {
+        SingleBody rtf = new BasicBodyFactory().binaryBody(
+                "{\\rtf1\\ansi{\\fonttbl{\\f0 Arial;}}\\f0 Weld {\\b release} notes\\par second line}".getBytes(StandardCharsets.US_ASCII));
+        String expected = TextNormalizer.collapseWhitespace(MessageBodyParser.getTika().parseToString(
+                rtf.getInputStream(), new Metadata(), AttachmentExtractor.MAX_TEXT_LENGTH));
+        assertTrue(expected.contains("second line"));
+        assertEquals(expected, AttachmentExtractor.extract(rtf, "application/octet-stream", "notes.rtf"));
+    }
+}
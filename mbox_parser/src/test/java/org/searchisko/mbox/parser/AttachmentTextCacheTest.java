@@ -0,0 +1,112 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.mime4j.message.BasicBodyFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.searchisko.mbox.MessageTestSupport;
+import org.searchisko.mbox.json.Converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class AttachmentTextCacheTest extends MessageTestSupport {
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("attachments", "");
+        assertTrue(dir.delete());
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        AttachmentExtractor.setTextCache(null);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static String key(String content, String mimeType) throws IOException {
+        return AttachmentTextCache.key(new BasicBodyFactory().binaryBody(content.getBytes(StandardCharsets.UTF_8)), mimeType);
+    }
+
+    @Test
+    public void shouldKeyByContentAndMimeType() throws IOException {
+        assertEquals(key("content", "text/plain"), key("content", "TEXT/PLAIN"));
+        assertNotEquals(key("content", "text/plain"), key("content", "application/pdf"));
+        assertNotEquals(key("content", "text/plain"), key("contents", "text/plain"));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsed() throws IOException {
+        String a = key("a", null), b = key("b", null), c = key("c", null);
+        AttachmentTextCache cache = new AttachmentTextCache(dir, 20);
+        cache.put(a, "0123456789");
+        cache.put(b, "0123456789");
+        assertEquals("0123456789", cache.get(a));
+        cache.put(c, "0123456789");
+        assertNull(cache.get(b));
+        assertEquals("0123456789", cache.get(a));
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(20, cache.getSize());
+        assertEquals(2, dir.list().length);
+
+        // entries survive reopening
+        cache = new AttachmentTextCache(dir, 10);
+        assertEquals(1, cache.getEntryCount());
+        assertEquals("0123456789", cache.get(new File(dir, a).exists() ? a : c));
+    }
+
+    @Test
+    public void shouldLeaveOtherFilesAlone() throws IOException {
+        assertTrue(dir.mkdir());
+        File other = new File(dir, "notes.txt");
+        FileUtils.writeStringToFile(other, "0123456789");
+        AttachmentTextCache cache = new AttachmentTextCache(dir, 10);
+        assertEquals(0, cache.getEntryCount());
+        cache.put(key("a", null), "0123456789");
+        cache.put(key("b", null), "0123456789");
+        assertEquals(1, cache.getEntryCount());
+        assertTrue(other.exists());
+    }
+
+    @Test
+    public void shouldExtractAttachmentOnlyOnce() throws IOException, MessageParseException {
+        AttachmentTextCache cache = new AttachmentTextCache(dir, AttachmentTextCache.DEFAULT_MAX_SIZE);
+        String path = "mbox/attachments/cdi-dev-01.mbox";
+        String expected = parse(path);
+        AttachmentExtractor.setTextCache(cache);
+        assertEquals(expected, parse(path));
+        int stored = cache.getEntryCount();
+        assertTrue(stored > 0);
+        assertEquals(0, cache.getHits());
+        assertEquals(expected, parse(path));
+        assertEquals(stored, cache.getHits());
+    }
+
+    private String parse(String path) throws IOException, MessageParseException {
+        InputStream is = getInputStream(path);
+        try {
+            return Converter.toJSON(MessageStreamParser.parse(is, "suffix", null));
+        } finally {
+            is.close();
+        }
+    }
+}
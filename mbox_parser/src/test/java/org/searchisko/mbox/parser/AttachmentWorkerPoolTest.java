@@ -0,0 +1,56 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.apache.james.mime4j.dom.SingleBody;
+import org.apache.james.mime4j.message.BasicBodyFactory;
+import org.apache.tika.exception.TikaException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class AttachmentWorkerPoolTest {
+
+    private static final SingleBody RTF = new BasicBodyFactory().binaryBody(
+            "{\\rtf1\\ansi Forked {\\b worker}\\par second line}".getBytes(StandardCharsets.US_ASCII));
+
+    @Test
+    public void shouldParseInWorker() throws Exception {
+        AttachmentWorkerPool pool = new AttachmentWorkerPool(1, 64, 60000);
+        try {
+            String expected = AttachmentExtractor.parse(RTF, AttachmentRouter.RTF);
+            assertEquals(expected, pool.parse(RTF, AttachmentRouter.RTF));
+            try {
+                pool.parse(RTF, AttachmentRouter.PDF);
+                fail("PDF parser should fail");
+            } catch (TikaException e) {
+                // the worker survives parsing errors
+            }
+            assertEquals(expected, pool.parse(RTF, AttachmentRouter.DETECT));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void shouldKillWorkerOnTimeout() throws Exception {
+        AttachmentWorkerPool pool = new AttachmentWorkerPool(1, 64, 1);
+        try {
+            assertNull(pool.parse(RTF, AttachmentRouter.RTF));
+            assertNull(pool.parse(RTF, AttachmentRouter.RTF));
+        } finally {
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class CharsetDetectionTest {
+
+    private static final String UTF8_TEXT = "Dobrý den, posílám opravenou verzi. Příliš žluťoučký kůň úpěl ďábelské ódy. " +
+            "Díky za rychlou odpověď, změny jsou v příloze a testy procházejí.";
+
+    @Before
+    public void reset() {
+        CharsetDetection.reset();
+    }
+
+    private static String detect(String text, String key) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return CharsetDetection.detect(bytes, bytes.length, "ISO-8859-1", key);
+    }
+
+    @Test
+    public void shouldDetectOnlyIsoLatinCharsets() {
+        assertTrue(CharsetDetection.isDetected("iso-8859-2"));
+        assertTrue(CharsetDetection.isDetected("ISO8859_1"));
+        assertFalse(CharsetDetection.isDetected("UTF-8"));
+        assertFalse(CharsetDetection.isDetected(null));
+    }
+
+    @Test
+    public void shouldSkipAsciiContent() {
+        assertEquals("ISO-8859-1", detect("plain ascii text", "john@example.com"));
+        assertEquals(1, CharsetDetection.getAsciiSkips());
+        assertEquals(0, CharsetDetection.getCacheMisses());
+    }
+
+    @Test
+    public void shouldCacheOutcomePerSender() {
+        String key = CharsetDetection.cacheKey("john@example.com", "Thunderbird");
+        assertEquals("UTF-8", detect(UTF8_TEXT, key));
+        assertEquals("UTF-8", detect(UTF8_TEXT, key));
+        assertEquals(1, CharsetDetection.getCacheMisses());
+        assertEquals(1, CharsetDetection.getCacheHits());
+
+        // cached UTF-8 is not used for content which is not valid UTF-8
+        byte[] latin = UTF8_TEXT.getBytes(StandardCharsets.ISO_8859_1);
+        CharsetDetection.detect(latin, latin.length, "ISO-8859-1", key);
+        assertEquals(2, CharsetDetection.getCacheMisses());
+
+        detect(UTF8_TEXT, null);
+        assertEquals(3, CharsetDetection.getCacheMisses());
+        assertNull(CharsetDetection.cacheKey(null, "Thunderbird"));
+    }
+}
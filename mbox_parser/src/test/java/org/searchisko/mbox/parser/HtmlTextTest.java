@@ -0,0 +1,78 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.safety.Whitelist;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class HtmlTextTest {
+
+    private static final String[] HTML = {
+            "",
+            "plain text",
+            "<p><h1>Title</h1>Dummy<br><i>text</i></p><p><ul><li>A<li>B<li>C</ul</p>",
+            "<div>There is<script>var x = {};</script> no script</div>",
+            "<html><head><title>Weld</title><style>p { color: red }</style></head>\r\n<body>\r\n" +
+                    "<p>Hi&nbsp;all,</p>\r\n<p>the <b>release</b> is <span style=\"x\">out</span>.</p>\r\n" +
+                    "<!-- comment --><blockquote>On Monday <a href=\"mailto:a@b.c\">Joe</a> wrote:<br>\r\n" +
+                    "&gt; quoted<br></blockquote><div><font face=\"Arial\">Regards,<br>Jane</font></div></body></html>",
+            "<table border=1><tr><th>Name</th><th>Value</th></tr>\n<tr><td>a &amp; b</td><td>1&nbsp;000</td></tr></table>after",
+            "<pre>\nline one\n   line  two\n</pre><p>text <code>code  here</code></p>",
+            "<div><span>one</span><span>two</span> <o:p></o:p><center>three</center><form>four<input></form></div>",
+            "<ol>\n  <li><p>first</p></li>\n  <li>second <ul><li>nested</li></ul></li>\n</ol>\n<dl><dt>term</dt><dd>def</dd></dl>",
+            "<div><pre>  <div>in pre</div>\r\n  <b>bold</b></pre></div>&copy; 2014 café",
+            "text <img src=\"a.png\"> more<br/>\n<br/>last   line&#160;\t"
+    };
+
+    private static String legacyText(String html) {
+        return Jsoup.parse(Jsoup.clean(html, Whitelist.relaxed())).text();
+    }
+
+    private static String legacyStrippedText(String html) {
+        final StringBuilder buffer = new StringBuilder();
+        new NodeTraversor(new NodeVisitor() {
+            @Override
+            public void head(Node node, int depth) {
+                if (node instanceof TextNode) {
+                    String text = ((TextNode) node).text().replace('\u00A0', ' ').trim();
+                    if (!text.isEmpty()) {
+                        buffer.append(text).append(' ');
+                    }
+                }
+            }
+            @Override
+            public void tail(Node node, int depth) {}
+        }).traverse(Jsoup.parse(Jsoup.clean(html, Whitelist.relaxed())).body());
+        return buffer.toString().trim();
+    }
+
+    @Test
+    public void shouldExtractTextLikeCleanedDocument() {
+        for (String html : HTML) {
+            HtmlText text = HtmlText.parse(html);
+            assertEquals(html, legacyText(html), text.getText());
+            assertEquals(html, legacyStrippedText(html), text.getStrippedText());
+        }
+    }
+
+    @Test
+    public void shouldExtractText() {
+        HtmlText text = HtmlText.parse("<p>Hi&nbsp;all,</p><script>x</script><pre>a\n b</pre><p>c</p>");
+        assertEquals("Hi\u00A0all, a\n b c", text.getText());
+        assertEquals("Hi all, a b c", text.getStrippedText());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.apache.james.mime4j.codec.DecodeMonitor;
+import org.apache.james.mime4j.field.DateTimeFieldLenientImpl;
+import org.apache.james.mime4j.stream.RawField;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.searchisko.mbox.dto.Mail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Results of {@link MailDateParser} are compared to the lenient mime4j parser.
+ */
+@RunWith(JUnit4.class)
+public class MailDateParserTest {
+
+    private static final String[] DAYS = {"Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun"};
+    private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    private static long lenient(String value) {
+        Date d = DateTimeFieldLenientImpl.PARSER.parse(new RawField("Date", value), DecodeMonitor.SILENT).getDate();
+        return d == null ? MailDateParser.INVALID : d.getTime();
+    }
+
+    @Test
+    public void shouldParseLikeLenientParser() {
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            String value = String.format("%s%d %s %d %02d:%02d:%02d %s%02d%02d",
+                    random.nextBoolean() ? DAYS[random.nextInt(7)] + ", " : "",
+                    1 + random.nextInt(28), MONTHS[random.nextInt(12)], 1970 + random.nextInt(60),
+                    random.nextInt(24), random.nextInt(60), random.nextInt(60),
+                    random.nextBoolean() ? "+" : "-", random.nextInt(13), random.nextInt(60));
+            long millis = MailDateParser.parse(value);
+            assertEquals(value, lenient(value), millis);
+            assertEquals(value, MessageParser.defaultDatePrinter.print(millis), MailDateParser.format(millis));
+        }
+        assertEquals(lenient("Tue, 4 Jan 2011 11:30:45 GMT"), MailDateParser.parse("Tue, 4 Jan 2011 11:30:45 GMT"));
+        assertEquals(lenient("Tue, 29 Feb 2000 11:30:45 -0500"),
+                MailDateParser.parse("Tue,\r\n 29 Feb 2000 11:30:45 -0500 (EST)"));
+    }
+
+    @Test
+    public void shouldLeaveOddFormatsToLenientParser() {
+        assertEquals(MailDateParser.INVALID, MailDateParser.parse("Tue, 4 Jan 11 11:30:45 +0000"));
+        assertEquals(MailDateParser.INVALID, MailDateParser.parse("Tue, 29 Feb 2011 11:30:45 +0000"));
+        assertEquals(MailDateParser.INVALID, MailDateParser.parse("Tue, 4 Jan 2011 24:30:45 +0000"));
+        assertEquals(MailDateParser.INVALID, MailDateParser.parse("Tue, 4 Jan 2011 11:30:45 +0075"));
+        assertEquals(MailDateParser.INVALID, MailDateParser.parse("Tue, 4 Jan 2011 11:30:45 Europe/Prague"));
+        assertEquals(MailDateParser.INVALID, MailDateParser.parse("2011-01-04T11:30:45Z"));
+        assertEquals(MailDateParser.INVALID, MailDateParser.parse(""));
+    }
+
+    @Test
+    public void shouldParseFromLineDate() {
+        long expected = MailDateParser.parse("4 Jan 2011 05:31:00 +0000");
+        assertEquals(expected, MailDateParser.parseFromLine("From john.doe at example.com  Tue Jan  4 05:31:00 2011\n"));
+        assertEquals(expected, MailDateParser.parseFromLine("From MAILER-DAEMON Tue Jan 04 05:31:00 2011"));
+        assertEquals(MailDateParser.INVALID, MailDateParser.parseFromLine("From MAILER-DAEMON"));
+        assertEquals(MailDateParser.INVALID, MailDateParser.parseFromLine(null));
+    }
+
+    @Test
+    public void shouldUseFromLineDateIfDateHeaderIsInvalid() throws MessageParseException {
+        String message = "From john.doe at example.com  Tue Jan  4 05:31:00 2011\n" +
+                "From: John Doe <john.doe@example.com>\n" +
+                "Date: yesterday\n" +
+                "Subject: test\n" +
+                "Message-ID: <123@example.com>\n" +
+                "\n" +
+                "Hello\n";
+        Mail mail = MessageStreamParser.parse(new ByteArrayInputStream(message.getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("2011-01-04T05:31:00.000Z", mail.dateUTC());
+        assertEquals("John Doe", mail.author_name());
+    }
+}
@@ -8,6 +8,8 @@ package org.searchisko.mbox.parser;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.matchers.JUnitMatchers.hasItems;
 
@@ -25,6 +27,9 @@ import org.searchisko.mbox.dto.Mail;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author Lukáš Vlček (lvlcek@redhat.com)
@@ -42,6 +47,23 @@ public class MessageHeaderParsingTest extends MessageTestSupport {
         mb = MessageParser.getMessageBuilder();
     }
 
+    @Test
+    public void shouldUseMessageBuilderPerThread() throws Exception {
+        assertSame(mb, MessageParser.getMessageBuilder());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            MessageBuilder other = executor.submit(new Callable<MessageBuilder>() {
+                @Override
+                public MessageBuilder call() throws Exception {
+                    return MessageParser.getMessageBuilder();
+                }
+            }).get();
+            assertNotSame(mb, other);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void shouldParseHeaders() throws IOException, MimeException, MessageParseException {
 
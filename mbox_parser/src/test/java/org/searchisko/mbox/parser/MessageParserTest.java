@@ -10,6 +10,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 /**
  * @author Lukáš Vlček (lvlcek@redhat.com)
@@ -27,4 +28,23 @@ public class MessageParserTest {
         assertEquals("Multiple Assignment of a task in - jBPM4", MessageParser.normalizeSubject("[jbpm-users] [jBPM Users] - [JBPM4] Multiple Assignment of a task in - jBPM4"));
     }
 
+    @Test
+    public void headerNamesShouldBeClassifiedWithoutRegardToCase() {
+        assertSame(MessageParser.MessageHeader.MESSAGE_ID, MessageParser.MessageHeader.getValue("message-id"));
+        assertSame(MessageParser.MessageHeader.MESSAGE_ID, MessageParser.MessageHeader.getValue("Message-ID"));
+        assertSame(MessageParser.MessageHeader.IN_REPLY_TO, MessageParser.MessageHeader.getValue("In-Reply-To"));
+        assertSame(MessageParser.MessageHeader.IGNORE, MessageParser.MessageHeader.getValue("X-Spam-Status"));
+        assertSame(MessageParser.MessageHeader.IGNORE, MessageParser.MessageHeader.getValue(""));
+        assertSame(MessageBodyParser.SupportedMultiPartType.ALTERNATIVE, MessageBodyParser.SupportedMultiPartType.getValue("Alternative"));
+        assertSame(MessageBodyParser.SupportedMultiPartType.UNKNOWN, MessageBodyParser.SupportedMultiPartType.getValue("appledouble"));
+    }
+
+    @Test
+    public void equalValuesShouldShareInstance() {
+        StringCache cache = new StringCache(16);
+        String value = cache.canonicalize(new String("infinispan-dev@lists.jboss.org"));
+        assertSame(value, cache.canonicalize(new String("infinispan-dev@lists.jboss.org")));
+        assertEquals("other", cache.canonicalize("other"));
+    }
+
 }
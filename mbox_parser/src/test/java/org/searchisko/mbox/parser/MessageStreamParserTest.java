@@ -0,0 +1,174 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.apache.james.mime4j.MimeException;
+import org.apache.james.mime4j.dom.Header;
+import org.apache.james.mime4j.dom.Message;
+import org.apache.james.mime4j.message.HeaderImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.searchisko.mbox.MessageTestSupport;
+import org.searchisko.mbox.dto.Mail;
+import org.searchisko.mbox.dto.MailField;
+import org.searchisko.mbox.json.Converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class MessageStreamParserTest extends MessageTestSupport {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    private static final String[] MESSAGES = {
+            "mbox/encoding/invalid/simple.mbox",
+            "mbox/encoding/invalid/jboss-cluster-dev-01.mbox",
+            "mbox/encoding/jbosstools-dev-01.mbox",
+            "mbox/encoding/rules-users-01.mbox",
+            "mbox/html/hibernate-users-03.mbox",
+            "mbox/multipart/wise-users-01.mbox",
+            "mbox/multipart/weld-dev-01.mbox",
+            "mbox/multipart/jopr-dev-01.mbox",
+            "mbox/attachments/cdi-dev-01.mbox",
+            "mbox/attachments/gatein-dev-01.mbox",
+            "mbox/attachments/netty-dev-01.mbox",
+            "mbox/lucene-user/lucene0082.mbox"
+    };
+
+    private String parseStream(String path, Header header) throws IOException, MessageParseException {
+        InputStream is = getInputStream(path);
+        try {
+            return Converter.toJSON(MessageStreamParser.parse(is, "suffix", header));
+        } finally {
+            is.close();
+        }
+    }
+
+    private Mail parseMail(String path, Set<MailField> fields) throws IOException, MessageParseException {
+        InputStream is = getInputStream(path);
+        try {
+            return MessageStreamParser.parse(is, "suffix", null, fields);
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void shouldParseSameAsMessageParser() throws IOException, MimeException, MessageParseException {
+        for (String path : MESSAGES) {
+            String expected = Converter.toJSON(MessageParser.parse(getMessage(path, MessageParser.getMessageBuilder()), "suffix"));
+            assertEquals(path, expected, parseStream(path, null));
+        }
+    }
+
+    @Test
+    public void shouldParseOnlyRequestedFields() throws IOException, MessageParseException {
+        Set<MailField> fields = MailField.parse("first_text_message, message_snippet, html_messages");
+        for (String path : MESSAGES) {
+            Mail mail = parseMail(path, fields);
+            assertNull(path, mail.first_text_message_without_quotes());
+            assertNull(path, mail.text_messages());
+            assertNull(path, mail.message_attachments_cnt());
+            assertEquals(path, Converter.toJSON(parseMail(path, MailField.all()), null, fields), Converter.toJSON(mail, null, fields));
+        }
+    }
+
+    @Test
+    public void shouldStoreBigBodiesInTempFiles() throws IOException, MimeException, MessageParseException {
+        File dir = File.createTempFile("bodies", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        try {
+            MessageParser.setBodyStorage(1024, dir);
+            for (String path : MESSAGES) {
+                Message message = getMessage(path, MessageParser.getMessageBuilder());
+                String expected = Converter.toJSON(MessageParser.parse(message, "suffix"));
+                message.dispose();
+                assertEquals(path, expected, parseStream(path, null));
+                assertEquals(path, 0, dir.list().length);
+            }
+        } finally {
+            MessageParser.setMemoryBodyStorage();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void shouldExtractAttachmentsInPool() throws IOException, MimeException, MessageParseException {
+        AttachmentExtractor.start(2, AttachmentExtractor.DEFAULT_TIMEOUT);
+        try {
+            for (String path : MESSAGES) {
+                String expected = Converter.toJSON(MessageParser.parse(getMessage(path, MessageParser.getMessageBuilder()), "suffix"));
+                assertEquals(path, expected, parseStream(path, null));
+            }
+        } finally {
+            AttachmentExtractor.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldCompleteMessagesInCallback() throws Exception {
+        AttachmentExtractor.start(2, AttachmentExtractor.DEFAULT_TIMEOUT);
+        try {
+            final Map<String, String> parsed = new ConcurrentHashMap<>();
+            final CountDownLatch completed = new CountDownLatch(MESSAGES.length);
+            for (final String path : MESSAGES) {
+                InputStream is = getInputStream(path);
+                try {
+                    MessageStreamParser.parse(is, "suffix", null, MailField.all(), new MailCallback() {
+                        @Override
+                        public void completed(Mail mail) {
+                            parsed.put(path, Converter.toJSON(mail));
+                            completed.countDown();
+                        }
+
+                        @Override
+                        public void failed(MessageParseException e) {
+                            completed.countDown();
+                        }
+                    });
+                } finally {
+                    is.close();
+                }
+            }
+            assertTrue(completed.await(AttachmentExtractor.getCompletionTimeout(), TimeUnit.MILLISECONDS));
+            for (String path : MESSAGES) {
+                assertEquals(path, parseStream(path, null), parsed.get(path));
+            }
+        } finally {
+            AttachmentExtractor.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldFillHeader()throws IOException, MessageParseException {
+        Header header = new HeaderImpl();
+        parseStream("mbox/encoding/invalid/simple.mbox", header);
+        assertEquals("<7EC53B0B-B47C-45E5-A9E8-46B48FCE394E@redhat.com>", header.getField("Message-ID").getBody());
+    }
+
+    @Test
+    public void withoutMessageIdFiresException() throws IOException, MessageParseException {
+        thrown.expect(MessageParseException.class);
+        thrown.expectMessage("Message-ID header not found.");
+        parseStream("mbox/headers/withoutMessageId.mbox", null);
+    }
+}
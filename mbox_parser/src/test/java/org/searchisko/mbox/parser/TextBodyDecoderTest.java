@@ -0,0 +1,86 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import com.sun.xml.messaging.saaj.packaging.mime.internet.MimeUtility;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Results of {@link TextBodyDecoder} are compared to saaj decoding streams and {@link java.io.InputStreamReader}.
+ */
+@RunWith(JUnit4.class)
+public class TextBodyDecoderTest {
+
+    /**
+     * @return random text made of characters which are significant for quoted-printable decoding
+     */
+    private static byte[] randomContent(Random random, int maxLength) {
+        byte[] chars = "= \r\n\t0aF9gZ=é".getBytes(StandardCharsets.ISO_8859_1);
+        int length = random.nextInt(maxLength);
+        byte[] content = new byte[length + 3];
+        for (int i = 0; i < length; i++) {
+            content[i] = chars[random.nextInt(chars.length)];
+        }
+        // saaj adds garbage byte if '=' is close to the end
+        content[length] = content[length + 1] = content[length + 2] = '.';
+        return content;
+    }
+
+    @Test
+    public void shouldDecodeQuotedPrintableLikeSaaj() throws Exception {
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            byte[] content = randomContent(random, 50);
+            byte[] expected = IOUtils.toByteArray(MimeUtility.decode(new ByteArrayInputStream(content), "quoted-printable"));
+            byte[] decoded = content.clone();
+            int length = TextBodyDecoder.decodeQuotedPrintable(decoded, decoded.length);
+            assertArrayEquals(new String(content, StandardCharsets.ISO_8859_1), expected, Arrays.copyOf(decoded, length));
+        }
+    }
+
+    @Test
+    public void shouldDecodeCharsetLikeReader() throws Exception {
+        Random random = new Random(0);
+        for (String charset : new String[]{"UTF-8", "windows-1250", "US-ASCII"}) {
+            for (int i = 0; i < 1000; i++) {
+                byte[] content = new byte[random.nextInt(20000)];
+                random.nextBytes(content);
+                StringWriter expected = new StringWriter();
+                IOUtils.copy(new ByteArrayInputStream(content), expected, charset);
+                assertEquals(expected.toString(),
+                        TextBodyDecoder.decode(new ByteArrayInputStream(content), "8bit", charset, null));
+            }
+        }
+        String text = "Příliš žluťoučký kůň =C3=BA=\npl";
+        assertEquals("Příliš žluťoučký kůň úpl",
+                TextBodyDecoder.decode(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)),
+                        "Quoted-Printable", "UTF-8", null));
+    }
+
+    @Test
+    public void shouldRemoveSoftLineBreaks() throws Exception {
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            String text = new String(randomContent(random, 20000), StandardCharsets.ISO_8859_1);
+            assertEquals(TextNormalizer.removeSoftLineBreaks(text),
+                    TextBodyDecoder.readWithoutSoftLineBreaks(new StringReader(text)));
+        }
+    }
+}
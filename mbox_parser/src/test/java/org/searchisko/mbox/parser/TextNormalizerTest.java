@@ -0,0 +1,126 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2014 Red Hat Inc. and/or its affiliates and other contributors
+ * as indicated by the @authors tag. All rights reserved.
+ */
+
+package org.searchisko.mbox.parser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Results of {@link TextNormalizer} are compared to the regular expressions it replaces.
+ */
+@RunWith(JUnit4.class)
+public class TextNormalizerTest {
+
+    private static final String[] SUBJECTS = {
+            "Re: [infinispan-dev] Feedback from Mobicents Cluster Framework on        top of Infinispan 5.0 Alpha1",
+            "[hibernate-dev] [HSEARCH] Re: AW: Fw: question",
+            " - Re:  Fwd: - [jboss-user] [JBoss Seam] - Re: RE: problem",
+            "[brackets at the end]",
+            "[a]$[b] rest",
+            "[multi\nline] subject",
+            "Subject: with: colons re:",
+            "Reply: not a prefix",
+            "---Re: dashes",
+            "",
+            "   ",
+            "\u0001 control \u0001"
+    };
+
+    private static String normalizeSubject(String subject) {
+        return subject.replaceAll("\\[.*?\\][^$]","")
+                .replaceAll("^\\s*(-*\\s*[a-zA-Z]{2,3}:\\s*)*","")
+                .replaceAll("\\s+[a-zA-Z]{2,3}:","")
+                .replaceAll("^\\s*-\\s*","")
+                .replaceAll("\\s+"," ")
+                .trim();
+    }
+
+    private static String snippet(String text) {
+        return text.substring(0, (text.length() > 250 ? 250 : (text.length() > 0 ? text.length() - 1 : 0)))
+                .replaceAll("^>From", "From")
+                .replaceAll("\\s+", " ")
+                .trim();
+    }
+
+    private static String filterOutQuotedLines(String text) {
+        StringBuilder noQuotes = new StringBuilder();
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith(">")) {
+                noQuotes.append(line).append(" ");
+            }
+        }
+        return noQuotes.toString().trim();
+    }
+
+    /**
+     * @return random text made of characters which are significant for the normalization
+     */
+    private static String randomText(Random random, int maxLength) {
+        String chars = "[]$-:>=Rea Fwd\t\n\r\u000B\f\u0001 xyzFrom";
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(maxLength);
+        for (int i = 0; i < length; i++) {
+            int n = random.nextInt(chars.length() + 1);
+            if (n < chars.length()) {
+                sb.append(chars.charAt(n));
+            } else {
+                // supplementary character
+                sb.appendCodePoint(0x1F680);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void shouldNormalizeSubjectLikeRegex() {
+        for (String subject : SUBJECTS) {
+            assertEquals(subject, normalizeSubject(subject), TextNormalizer.normalizeSubject(subject));
+        }
+        assertEquals("Release 5.0", TextNormalizer.normalizeSubject("[hibernate-dev]\uD83D\uDE80 Release 5.0"));
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            String subject = randomText(random, 30);
+            assertEquals(subject, normalizeSubject(subject), TextNormalizer.normalizeSubject(subject));
+        }
+    }
+
+    @Test
+    public void shouldBuildSnippetLikeRegex() {
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            String text = random.nextBoolean() ? randomText(random, 300) : ">From" + randomText(random, 10);
+            assertEquals(text, snippet(text), TextNormalizer.snippet(text, 250));
+        }
+    }
+
+    @Test
+    public void shouldFilterOutQuotedLinesLikeSplit() {
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            String text = randomText(random, 100);
+            assertEquals(text, filterOutQuotedLines(text), TextNormalizer.filterOutQuotedLines(text));
+        }
+    }
+
+    @Test
+    public void shouldCollapseWhitespaceLikeRegex() {
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            String text = randomText(random, 100);
+            assertEquals(text, text.replaceAll("\r\n", " ").replaceAll("\n", " ").replaceAll("\\s+", " ").trim(),
+                    TextNormalizer.collapseWhitespace(text));
+            assertEquals(text, text.replaceAll("=\n", ""), TextNormalizer.removeSoftLineBreaks(text));
+            assertEquals(text, text.replaceAll("^>From", "From"), TextNormalizer.unescapeFrom(text));
+        }
+    }
+}